@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr;
+
+import java.io.IOException;
+
+import org.elasticsearch.index.mapper.Uid;
+import org.wikimedia.search.ltr.LTRScoringQuery.FeatureInfo;
+
+/**
+ * Destination of the feature vectors logged by a {@link FeatureLogger}.
+ * Called on the search thread for every scored document, implementations
+ * must be thread safe and should not block.
+ */
+public interface FeatureLogSink {
+    /**
+     * @param logger
+     *            the logger of the query, providing the marker and the
+     *            feature format
+     * @param uid
+     *            ES document id whose features we are saving
+     * @param featuresInfo
+     *            values of all the features extracted for the document. The
+     *            array is reused for the next document.
+     * @return true if the features were logged, false otherwise.
+     */
+    boolean log(FeatureLogger logger, Uid uid, FeatureInfo[] featuresInfo) throws IOException;
+}
@@ -17,14 +17,17 @@
 package org.wikimedia.search.ltr;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
-import org.elasticsearch.common.xcontent.XContent;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.elasticsearch.index.mapper.Uid;
 import org.wikimedia.search.ltr.LTRScoringQuery.FeatureInfo;
+import org.wikimedia.search.ltr.logging.FeatureLogRateLimiter;
+import org.wikimedia.search.ltr.logging.Utf8Buffer;
 
 /**
  * FeatureLogger can be registered in a model and provide a strategy for logging
@@ -38,14 +41,70 @@ public abstract class FeatureLogger {
         DENSE, SPARSE
     };
 
+    /**
+     * Writes the vectors built by {@link #makeFeatureVector(Uid, FeatureInfo[])}
+     * to the ES log, on the search thread.
+     */
+    public static final FeatureLogSink LOG_SINK = new FeatureLogSink() {
+        @Override
+        public boolean log(FeatureLogger logger, Uid uid, FeatureInfo[] featuresInfo) throws IOException {
+            final String featureVector = logger.makeFeatureVector(uid, featuresInfo);
+            if (featureVector == null) {
+                log.info("null feature vector");
+
+                return false;
+            }
+
+            log.info(featureVector);
+            return true;
+        }
+    };
+
     protected final FeatureFormat featureFormat;
     protected final String marker;
+    protected FeatureLogSink sink = LOG_SINK;
+    protected FeatureLogRateLimiter rateLimiter;
 
     protected FeatureLogger(FeatureFormat f, String marker) {
         this.featureFormat = f;
         this.marker = marker;
     }
 
+    public FeatureLogger setSink(FeatureLogSink sink) {
+        this.sink = sink;
+        return this;
+    }
+
+    public FeatureLogSink getSink() {
+        return sink;
+    }
+
+    public FeatureLogger setRateLimiter(FeatureLogRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Checked before extracting the id of a doc and logging its features.
+     *
+     * @return false if the node wide limit of logged vectors is reached
+     */
+    public boolean acquire() {
+        return rateLimiter == null || rateLimiter.tryAcquire();
+    }
+
+    public String getMarker() {
+        return marker;
+    }
+
+    /**
+     * @return true if features that were not extracted for a document are
+     *         logged with their default value, false if they are skipped
+     */
+    public boolean isDense() {
+        return featureFormat == FeatureFormat.DENSE;
+    }
+
     /**
      * Log will be called every time that the model generates the feature values
      * for a document and a query.
@@ -64,22 +123,15 @@ public abstract class FeatureLogger {
             log.info("null uid");
             return false;
         }
-        final String featureVector = makeFeatureVector(uid, featuresInfo);
-        if (featureVector == null) {
-            log.info("null feature vector");
-
-            return false;
-        }
-
-        log.info(featureVector);
-        return true;
+        return sink.log(this, uid, featuresInfo);
     }
 
     /**
      * returns a FeatureLogger that logs the features in output, using the
      * format specified in the 'stringFormat' param: 'csv' will log the features
      * as a unique string in csv format 'json' will log the features in a map in
-     * a Map of featureName keys to featureValue values if format is null or
+     * a Map of featureName keys to featureValue values, 'svmrank' (or 'libsvm')
+     * will log the features as SVMRank lines; if format is null or
      * empty, csv format will be selected. 'featureFormat' param: 'dense' will
      * write features in dense format, 'sparse' will write the features in
      * sparse format, null or empty will default to 'sparse'
@@ -106,50 +158,171 @@ public abstract class FeatureLogger {
         if (stringFormat.equals("json")) {
             return new MapFeatureLogger(f, marker);
         }
+        if (stringFormat.equals("svmrank") || stringFormat.equals("libsvm")) {
+            return new SVMRankFeatureLogger(f, marker);
+        }
         log.warn("unknown feature logger string format {} | {}", stringFormat, featureFormat);
         return null;
 
     }
 
+    /**
+     * Builds the feature vector of a doc. Implementations encode it in the
+     * {@link Utf8Buffer} of the calling thread, so that logging does not
+     * allocate more than the returned string, and must be thread safe: a
+     * logger is shared by all the shards running the query.
+     */
     public abstract String makeFeatureVector(Uid uid, FeatureInfo[] featuresInfo) throws IOException;
 
+    /**
+     * @return the feature vector added to a search hit, the same as
+     *         {@link #makeFeatureVector(Uid, FeatureInfo[])} unless the format
+     *         has a structured equivalent
+     */
+    public Object makeHitFeatureVector(Uid uid, FeatureInfo[] featuresInfo) throws IOException {
+        return makeFeatureVector(uid, featuresInfo);
+    }
+
+    // Feature names as written before their value, by feature index. The
+    // features of a query never change, so they are encoded on first use.
+    private volatile byte[][] encodedNames;
+
+    /**
+     * @return the name of the feature encoded by
+     *         {@link #encodeName(int, String)}
+     */
+    protected byte[] encodedName(FeatureInfo[] featuresInfo, int featureIndex) {
+        byte[][] names = encodedNames;
+        if (names == null || names.length != featuresInfo.length) {
+            names = new byte[featuresInfo.length][];
+            for (int i = 0; i < featuresInfo.length; i++) {
+                if (featuresInfo[i] != null) {
+                    names[i] = encodeName(i, featuresInfo[i].getName());
+                }
+            }
+            encodedNames = names;
+        }
+        final byte[] name = names[featureIndex];
+        return name == null ? encodeName(featureIndex, featuresInfo[featureIndex].getName()) : name;
+    }
+
+    // Names of the features of the query, built on first use like encodedNames
+    private volatile String[] featureNames;
+
+    /**
+     * @return the names of the features in featuresInfo, skipping the
+     *         missing ones. The array is shared and must not be modified.
+     */
+    public String[] featureNames(FeatureInfo[] featuresInfo) {
+        String[] names = featureNames;
+        if (names == null) {
+            int count = 0;
+            for (final FeatureInfo fInfo : featuresInfo) {
+                if (fInfo != null) {
+                    count++;
+                }
+            }
+            names = new String[count];
+            int i = 0;
+            for (final FeatureInfo fInfo : featuresInfo) {
+                if (fInfo != null) {
+                    names[i++] = fInfo.getName();
+                }
+            }
+            featureNames = names;
+        }
+        return names;
+    }
+
+    /**
+     * Forgets the encoded names, after a change to the way they are encoded.
+     */
+    protected void clearEncodedNames() {
+        encodedNames = null;
+    }
+
+    /**
+     * @return the bytes written before the value of the feature, whose index
+     *         in the feature store is featureIndex
+     */
+    protected abstract byte[] encodeName(int featureIndex, String name);
+
     public static class MapFeatureLogger extends FeatureLogger {
-        XContent xContent = JsonXContent.jsonXContent;
+        private static final byte[] ID = Utf8Buffer.encode("{\"_id\":");
+        private static final byte[] TYPE = Utf8Buffer.encode(",\"_type\":");
+        private static final byte[] MARKER = Utf8Buffer.encode(",\"_marker\":");
+        private static final byte[] VEC = Utf8Buffer.encode(",\"vec\":{");
 
         public MapFeatureLogger(FeatureFormat f, String marker) {
             super(f, marker);
         }
 
         @Override
-        public String makeFeatureVector(Uid uid, FeatureInfo[] featuresInfo) throws IOException {
+        public String makeFeatureVector(Uid uid, FeatureInfo[] featuresInfo) {
             if (featuresInfo.length == 0) {
                 return null;
             }
             boolean isDense = featureFormat.equals(FeatureFormat.DENSE);
-            XContentBuilder builder = XContentBuilder.builder(xContent);
-            builder.startObject();
-            builder.field("_id", uid.id());
-            builder.field("_type", uid.type());
+            // Same output as an XContentBuilder with the JSON generator
+            final Utf8Buffer buffer = Utf8Buffer.get();
+            buffer.append(ID).appendJsonString(uid.id());
+            buffer.append(TYPE).appendJsonString(uid.type());
             if (marker != null) {
-                builder.field("_marker", marker);
+                buffer.append(MARKER).appendJsonString(marker);
             }
-            builder.startObject("vec");
-            for (FeatureInfo featInfo : featuresInfo) {
+            buffer.append(VEC);
+            boolean first = true;
+            for (int i = 0; i < featuresInfo.length; i++) {
+                final FeatureInfo featInfo = featuresInfo[i];
                 if (featInfo != null && (featInfo.isUsed() || isDense)) {
-                    builder.field(featInfo.getName(), featInfo.getValue());
+                    if (!first) {
+                        buffer.append((byte) ',');
+                    }
+                    first = false;
+                    buffer.append(encodedName(featuresInfo, i)).appendJsonFloat(featInfo.getValue());
                 }
             }
-            builder.endObject();
-            builder.endObject();
+            buffer.append((byte) '}').append((byte) '}');
+            return buffer.toString();
+        }
 
-            return builder.string();
+        @Override
+        protected byte[] encodeName(int featureIndex, String name) {
+            return new Utf8Buffer(name.length() + 8).appendJsonString(name).append((byte) ':').toBytes();
+        }
+
+        @Override
+        public Object makeHitFeatureVector(Uid uid, FeatureInfo[] featuresInfo) {
+            if (featuresInfo.length == 0) {
+                return null;
+            }
+            boolean isDense = featureFormat.equals(FeatureFormat.DENSE);
+            final Map<String, Object> vector = new LinkedHashMap<>();
+            vector.put("_id", uid.id());
+            vector.put("_type", uid.type());
+            if (marker != null) {
+                vector.put("_marker", marker);
+            }
+            final Map<String, Object> vec = new LinkedHashMap<>();
+            for (FeatureInfo featInfo : featuresInfo) {
+                if (featInfo != null && (featInfo.isUsed() || isDense)) {
+                    vec.put(featInfo.getName(), featInfo.getValue());
+                }
+            }
+            vector.put("vec", vec);
+            return vector;
         }
     }
 
     public static class CSVFeatureLogger extends FeatureLogger {
-        StringBuilder sb = new StringBuilder(500);
+        private static final byte[] ID = Utf8Buffer.encode("_id");
+        private static final byte[] TYPE = Utf8Buffer.encode("_type");
+        private static final byte[] MARKER = Utf8Buffer.encode("_marker");
+
         char keyValueSep = ':';
         char featureSep = ';';
+        private byte[] keyValueSepBytes = encodeSep(keyValueSep);
+        private byte[] featureSepBytes = encodeSep(featureSep);
 
         public CSVFeatureLogger(FeatureFormat f, String marker) {
             super(f, marker);
@@ -157,36 +330,116 @@ public abstract class FeatureLogger {
 
         public CSVFeatureLogger setKeyValueSep(char keyValueSep) {
             this.keyValueSep = keyValueSep;
+            this.keyValueSepBytes = encodeSep(keyValueSep);
+            clearEncodedNames();
             return this;
         }
 
         public CSVFeatureLogger setFeatureSep(char featureSep) {
             this.featureSep = featureSep;
+            this.featureSepBytes = encodeSep(featureSep);
             return this;
         }
 
+        private static byte[] encodeSep(char sep) {
+            return Utf8Buffer.encode(String.valueOf(sep));
+        }
+
         @Override
         public String makeFeatureVector(Uid uid, FeatureInfo[] featuresInfo) {
             if (featuresInfo.length == 0) {
                 return null;
             }
             boolean isDense = featureFormat.equals(FeatureFormat.DENSE);
-            sb.append("_id").append(keyValueSep).append(uid.id()).append(featureSep).append("_type").append(keyValueSep)
-                .append(uid.type()).append(featureSep);
+            final byte[] kvSep = keyValueSepBytes;
+            final byte[] fSep = featureSepBytes;
+            final Utf8Buffer buffer = Utf8Buffer.get();
+            buffer.append(ID).append(kvSep).append(uid.id()).append(fSep);
+            buffer.append(TYPE).append(kvSep).append(uid.type()).append(fSep);
             if (marker != null) {
-                sb.append("_marker").append(keyValueSep).append(marker).append(featureSep);
+                buffer.append(MARKER).append(kvSep).append(marker).append(fSep);
             }
-            for (FeatureInfo featInfo : featuresInfo) {
+            for (int i = 0; i < featuresInfo.length; i++) {
+                final FeatureInfo featInfo = featuresInfo[i];
                 if (featInfo != null && (featInfo.isUsed() || isDense)) {
-                    sb.append(featInfo.getName()).append(keyValueSep).append(featInfo.getValue());
-                    sb.append(featureSep);
+                    buffer.append(encodedName(featuresInfo, i)).append(featInfo.getValue()).append(fSep);
                 }
             }
+            // drop the last separator
+            buffer.truncate(buffer.length() - fSep.length);
+            return buffer.toString();
+        }
 
-            final String features = sb.substring(0, sb.length() - 1);
-            sb.setLength(0);
+        @Override
+        protected byte[] encodeName(int featureIndex, String name) {
+            return new Utf8Buffer(name.length() + 8).append(name).append(keyValueSepBytes).toBytes();
+        }
+    }
 
-            return features;
+    /**
+     * Writes lines in the SVMRank / LibSVM format:
+     *
+     * <pre>
+     * 0 qid:&lt;query id&gt; &lt;feature id&gt;:&lt;value&gt; ... # &lt;type&gt;#&lt;id&gt;
+     * </pre>
+     *
+     * The label is always 0, to be replaced with the relevance of the doc
+     * when joining with the judgments on the uid in the trailing comment.
+     * Feature ids are the index of the feature in its store plus one, so they
+     * are stable for a given store and increasing within a line. The query
+     * id is the marker if it is a number, a hash of the marker otherwise, or
+     * without marker a hash of the query set by {@link #setQueryKey(String)}.
+     */
+    public static class SVMRankFeatureLogger extends FeatureLogger {
+        private static final byte[] LABEL_QID = Utf8Buffer.encode("0 qid:");
+        private static final byte[] COMMENT = Utf8Buffer.encode(" # ");
+
+        private volatile String queryId;
+
+        public SVMRankFeatureLogger(FeatureFormat f, String marker) {
+            super(f, marker);
+            if (marker != null) {
+                queryId = marker.matches("[0-9]{1,18}") ? Long.toString(Long.parseLong(marker)) : hash(marker);
+            } else {
+                queryId = hash("");
+            }
+        }
+
+        /**
+         * Sets the key whose hash is the query id of the lines, when there is
+         * no marker.
+         */
+        public void setQueryKey(String key) {
+            if (marker == null) {
+                queryId = hash(key);
+            }
+        }
+
+        private static String hash(String key) {
+            return Integer.toString(StringHelper.murmurhash3_x86_32(new BytesRef(key), 0) & 0x7FFFFFFF);
+        }
+
+        @Override
+        public String makeFeatureVector(Uid uid, FeatureInfo[] featuresInfo) {
+            if (featuresInfo.length == 0) {
+                return null;
+            }
+            boolean isDense = featureFormat.equals(FeatureFormat.DENSE);
+            final Utf8Buffer buffer = Utf8Buffer.get();
+            buffer.append(LABEL_QID).append(queryId);
+            for (int i = 0; i < featuresInfo.length; i++) {
+                final FeatureInfo featInfo = featuresInfo[i];
+                if (featInfo != null && (featInfo.isUsed() || isDense)) {
+                    buffer.append(encodedName(featuresInfo, i)).append(featInfo.getValue());
+                }
+            }
+            buffer.append(COMMENT).append(uid.type()).append((byte) '#').append(uid.id());
+            return buffer.toString();
+        }
+
+        @Override
+        protected byte[] encodeName(int featureIndex, String name) {
+            return Utf8Buffer.encode(" " + (featureIndex + 1) + ":");
         }
     }
 }
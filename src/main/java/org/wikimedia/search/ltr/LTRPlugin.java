@@ -12,15 +12,28 @@ import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.indices.IndicesModule;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.rest.RestModule;
+import org.elasticsearch.search.SearchModule;
 import org.wikimedia.search.ltr.LTRScoringQueryParser;
 import org.wikimedia.search.ltr.action.feature.put.PutFeaturesAction;
 import org.wikimedia.search.ltr.action.feature.put.TransportPutFeaturesAction;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsAction;
+import org.wikimedia.search.ltr.action.model.bulk.TransportBulkPutModelsAction;
 import org.wikimedia.search.ltr.action.model.put.PutModelsAction;
 import org.wikimedia.search.ltr.action.model.put.TransportPutModelsAction;
+import org.wikimedia.search.ltr.action.model.validate.TransportValidateModelsAction;
+import org.wikimedia.search.ltr.action.model.validate.ValidateModelsAction;
+import org.wikimedia.search.ltr.action.stats.LTRStatsAction;
+import org.wikimedia.search.ltr.action.stats.TransportLTRStatsAction;
+import org.wikimedia.search.ltr.logging.BinaryFeatureLogSink;
+import org.wikimedia.search.ltr.logging.FeatureLogRateLimiter;
+import org.wikimedia.search.ltr.logging.FeatureVectorFetchSubPhase;
+import org.wikimedia.search.ltr.rest.RestBulkPutModelsAction;
 import org.wikimedia.search.ltr.rest.RestGetFeaturesAction;
 import org.wikimedia.search.ltr.rest.RestGetModelsAction;
+import org.wikimedia.search.ltr.rest.RestLTRStatsAction;
 import org.wikimedia.search.ltr.rest.RestPutFeaturesAction;
 import org.wikimedia.search.ltr.rest.RestPutModelsAction;
+import org.wikimedia.search.ltr.rest.RestValidateModelsAction;
 import org.wikimedia.search.ltr.store.LTRStoreService;
 
 /**
@@ -44,12 +57,22 @@ public class LTRPlugin extends Plugin {
         module.registerQueryParser(LTRScoringQueryParser.class);
     }
 
+    /**
+     * Register our fetch sub phases
+     */
+    public void onModule(SearchModule module) {
+        module.registerFetchSubPhase(FeatureVectorFetchSubPhase.class);
+    }
+
     /**
      * Register our cluster actions
      */
     public void onModule(ActionModule module) {
         module.registerAction(PutFeaturesAction.INSTANCE, TransportPutFeaturesAction.class);
         module.registerAction(PutModelsAction.INSTANCE, TransportPutModelsAction.class);
+        module.registerAction(BulkPutModelsAction.INSTANCE, TransportBulkPutModelsAction.class);
+        module.registerAction(ValidateModelsAction.INSTANCE, TransportValidateModelsAction.class);
+        module.registerAction(LTRStatsAction.INSTANCE, TransportLTRStatsAction.class);
     }
 
     /**
@@ -60,6 +83,9 @@ public class LTRPlugin extends Plugin {
         module.addRestAction(RestPutFeaturesAction.class);
         module.addRestAction(RestGetModelsAction.class);
         module.addRestAction(RestPutModelsAction.class);
+        module.addRestAction(RestBulkPutModelsAction.class);
+        module.addRestAction(RestValidateModelsAction.class);
+        module.addRestAction(RestLTRStatsAction.class);
     }
 
     @Override
@@ -71,13 +97,18 @@ public class LTRPlugin extends Plugin {
 
     @Override
     public Collection<Class<? extends LifecycleComponent>> nodeServices() {
-        return Collections.<Class<? extends LifecycleComponent>>singleton(LTRStoreService.class);
+        List<Class<? extends LifecycleComponent>> services = new ArrayList<>(2);
+        services.add(LTRStoreService.class);
+        services.add(BinaryFeatureLogSink.class);
+        return Collections.unmodifiableCollection(services);
     }
 
     public static class LTRStoreModule extends AbstractModule {
         @Override
         protected void configure() {
             bind(LTRStoreService.class).asEagerSingleton();
+            bind(BinaryFeatureLogSink.class).asEagerSingleton();
+            bind(FeatureLogRateLimiter.class).asEagerSingleton();
         }
     }
 }
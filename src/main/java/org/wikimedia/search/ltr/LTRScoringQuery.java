@@ -19,6 +19,8 @@ package org.wikimedia.search.ltr;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -34,13 +36,28 @@ import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.CollectionUtil;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lease.Releasables;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.FloatArray;
+import org.elasticsearch.common.util.LongArray;
 import org.elasticsearch.index.mapper.Uid;
 import org.elasticsearch.index.query.IndexQueryParserService;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.rescore.QueryRescorer.QueryRescoreContext;
+import org.elasticsearch.search.rescore.RescoreSearchContext;
+import org.wikimedia.search.ltr.feature.ExpressionFeature;
+import org.wikimedia.search.ltr.feature.ExpressionFeature.ExpressionFeatureWeight;
 import org.wikimedia.search.ltr.feature.Feature;
+import org.wikimedia.search.ltr.feature.FeatureExpression;
 import org.wikimedia.search.ltr.feature.Feature.FeatureWeight;
 import org.wikimedia.search.ltr.feature.Feature.FeatureWeight.FeatureScorer;
+import org.wikimedia.search.ltr.feature.Feature.FeatureWeight.RandomAccessFeatureScorer;
+import org.wikimedia.search.ltr.logging.HitFeatureVectors;
 import org.wikimedia.search.ltr.model.LTRScoringModel;
 
 import com.google.common.collect.Sets;
@@ -64,6 +81,8 @@ public class LTRScoringQuery extends Query {
 
     // feature logger to output the features.
     protected FeatureLogger featureLogger;
+    // vectors of the scored docs, returned with the hits of the search request
+    protected HitFeatureVectors.Vectors hitVectors;
     // Map of external parameters, such as query intent, that can be used by
     // features
     protected final Settings efi;
@@ -93,6 +112,10 @@ public class LTRScoringQuery extends Query {
         return featureLogger;
     }
 
+    public void setHitFeatureVectors(HitFeatureVectors.Vectors hitVectors) {
+        this.hitVectors = hitVectors;
+    }
+
     public Settings getExternalFeatureInfo() {
         return efi;
     }
@@ -154,30 +177,63 @@ public class LTRScoringQuery extends Query {
         if (this.extractAllFeatures) {
             features = allFeatures;
         } else {
-            features = modelFeatures;
+            features = withExpressionDependencies(modelFeatures);
         }
         final FeatureWeight[] extractedFeatureWeights = new FeatureWeight[features.size()];
         final FeatureWeight[] modelFeaturesWeights = new FeatureWeight[modelFeatSize];
         List<FeatureWeight> featureWeights = new ArrayList<>(features.size());
 
         createWeights(searcher, needsScores, featureWeights, features);
+        // we can lookup by featureid because every model feature is part of
+        // the extracted features
+        final FeatureWeight[] weightsByIndex = new FeatureWeight[allFeatures.size()];
         int i = 0, j = 0;
-        if (this.extractAllFeatures) {
-            for (final FeatureWeight fw : featureWeights) {
-                extractedFeatureWeights[i++] = fw;
-            }
-            for (final Feature f : modelFeatures) {
-                modelFeaturesWeights[j++] = extractedFeatureWeights[f.getIndex()];
-                // we can lookup by featureid because all features will
-                // be extracted when this.extractAllFeatures is set
+        for (final FeatureWeight fw : featureWeights) {
+            extractedFeatureWeights[i++] = fw;
+            weightsByIndex[fw.getIndex()] = fw;
+        }
+        for (final Feature f : modelFeatures) {
+            modelFeaturesWeights[j++] = weightsByIndex[f.getIndex()];
+        }
+        return new ModelWeight(searcher, modelFeaturesWeights, extractedFeatureWeights, allFeatures.size());
+    }
+
+    /**
+     * @return the window of the rescorer running this query in the current
+     *         search request, or -1 if this query is not run as a rescorer
+     */
+    private int rescoreWindow() {
+        final SearchContext context = SearchContext.current();
+        if (context == null || context.rescore() == null) {
+            return -1;
+        }
+        for (final RescoreSearchContext rescore : context.rescore()) {
+            if (rescore instanceof QueryRescoreContext && this.equals(((QueryRescoreContext) rescore).query())) {
+                return rescore.window();
             }
-        } else {
-            for (final FeatureWeight fw : featureWeights) {
-                extractedFeatureWeights[i++] = fw;
-                modelFeaturesWeights[j++] = fw;
+        }
+        return -1;
+    }
+
+    /**
+     * Expression features are computed from other features of the store, so
+     * those need to be extracted as well even if the model does not use them
+     * directly.
+     */
+    private static Collection<Feature> withExpressionDependencies(Collection<Feature> features) {
+        final LinkedHashSet<Feature> result = new LinkedHashSet<>(features);
+        final List<Feature> pending = new ArrayList<>(features);
+        while (!pending.isEmpty()) {
+            final Feature f = pending.remove(pending.size() - 1);
+            if (f instanceof ExpressionFeature) {
+                for (final Feature dep : ((ExpressionFeature) f).getDependencies()) {
+                    if (result.add(dep)) {
+                        pending.add(dep);
+                    }
+                }
             }
         }
-        return new ModelWeight(searcher, modelFeaturesWeights, extractedFeatureWeights, allFeatures.size());
+        return result;
     }
 
     private void createWeights(IndexSearcher searcher, boolean needsScores, List<FeatureWeight> featureWeights,
@@ -228,6 +284,13 @@ public class LTRScoringQuery extends Query {
         public void setUsed(boolean used) {
             this.used = used;
         }
+
+        /**
+         * @return the same feature with another value
+         */
+        public FeatureInfo copy(float value, boolean used) {
+            return new FeatureInfo(name, value, used);
+        }
     }
 
     public static class IdExtractor {
@@ -249,7 +312,7 @@ public class LTRScoringQuery extends Query {
         }
     }
 
-    public class ModelWeight extends Weight {
+    public class ModelWeight extends Weight implements FeatureExpression.Values, Releasable {
 
         IndexSearcher searcher;
 
@@ -275,6 +338,33 @@ public class LTRScoringQuery extends Query {
          */
         FeatureInfo[] featuresInfo;
 
+        // Values of the features of the doc being scored, by feature index,
+        // and bits set for the features it used. Allocated from the
+        // BigArrays of the search request: accounted to the request circuit
+        // breaker, recycled and released at the end of the search phase.
+        final FloatArray values;
+        final LongArray used;
+
+        // Expression features in evaluation order. They are computed from the
+        // values of the other features once those are extracted.
+        final ExpressionFeature[] expressionFeatures;
+
+        // Extracted features whose value depends on the document. The other
+        // ones are per-request constants, written once in featuresInfo by
+        // setFeaturesInfo() and never reset nor iterated.
+        final FeatureWeight[] perDocFeatureWeights;
+
+        // Number of docs the rescorer will score, or -1 if unknown (the query
+        // is then expected to score every doc)
+        final int rescoreWindow;
+
+        // for benchmarks and tests, overrides the strategy selected per leaf
+        ScoringStrategy forcedStrategy;
+
+        // Vectors are only kept for the docs of the rescore window, the
+        // fetch phase extracts the hits of other queries on its own
+        final HitFeatureVectors.Vectors collectedHitVectors;
+
         /*
          * @param modelFeatureWeights - should be the same size as the number of
          * features used by the model
@@ -295,22 +385,157 @@ public class LTRScoringQuery extends Query {
             this.modelFeatureWeights = modelFeatureWeights;
             this.modelFeatureValuesNormalized = new float[modelFeatureWeights.length];
             this.featuresInfo = new FeatureInfo[allFeaturesSize];
+            final SearchContext context = SearchContext.current();
+            final BigArrays bigArrays = context == null ? BigArrays.NON_RECYCLING_INSTANCE : context.bigArrays();
+            this.values = bigArrays.newFloatArray(allFeaturesSize, false);
+            boolean success = false;
+            try {
+                this.used = bigArrays.newLongArray((allFeaturesSize + 63) >>> 6, true);
+                success = true;
+            } finally {
+                if (!success) {
+                    values.close();
+                }
+            }
+            if (context != null) {
+                context.addReleasable(this, SearchContext.Lifetime.PHASE);
+            }
+            this.expressionFeatures = collectExpressionFeatures(extractedFeatureWeights);
+            final List<FeatureWeight> perDoc = new ArrayList<>(extractedFeatureWeights.length);
+            for (final FeatureWeight fw : extractedFeatureWeights) {
+                if (fw.getConstantValue() == null) {
+                    perDoc.add(fw);
+                }
+            }
+            this.perDocFeatureWeights = perDoc.toArray(new FeatureWeight[perDoc.size()]);
+            this.rescoreWindow = rescoreWindow();
+            this.collectedHitVectors = rescoreWindow >= 0 ? hitVectors : null;
             setFeaturesInfo();
         }
 
+        private ExpressionFeature[] collectExpressionFeatures(FeatureWeight[] weights) {
+            final List<ExpressionFeature> expressions = new ArrayList<>();
+            for (final FeatureWeight fw : weights) {
+                if (fw instanceof ExpressionFeatureWeight) {
+                    expressions.add(((ExpressionFeatureWeight) fw).getFeature());
+                }
+            }
+            CollectionUtil.timSort(expressions, new Comparator<ExpressionFeature>() {
+                @Override
+                public int compare(ExpressionFeature a, ExpressionFeature b) {
+                    return Integer.compare(a.getEvaluationOrder(), b.getEvaluationOrder());
+                }
+            });
+            return expressions.toArray(new ExpressionFeature[expressions.size()]);
+        }
+
+        @Override
+        public float value(int featureIndex) {
+            return values.get(featureIndex);
+        }
+
+        private boolean isUsed(int featureIndex) {
+            return (used.get(featureIndex >>> 6) & (1L << featureIndex)) != 0;
+        }
+
+        private void setFeature(int featureIndex, float value, boolean isUsed) {
+            values.set(featureIndex, value);
+            final long word = used.get(featureIndex >>> 6);
+            final long mask = 1L << featureIndex;
+            used.set(featureIndex >>> 6, isUsed ? word | mask : word & ~mask);
+        }
+
+        /**
+         * Evaluates the expression features on top of the feature values
+         * extracted for the current document.
+         */
+        private void computeExpressionFeatures() {
+            for (final ExpressionFeature feature : expressionFeatures) {
+                setFeature(feature.getIndex(), feature.evaluate(this), true);
+            }
+        }
+
         private void setFeaturesInfo() {
             for (int i = 0; i < extractedFeatureWeights.length; ++i) {
                 String featName = extractedFeatureWeights[i].getName();
                 int featId = extractedFeatureWeights[i].getIndex();
-                float value = extractedFeatureWeights[i].getDefaultValue();
-                featuresInfo[featId] = new FeatureInfo(featName, value, false);
+                Float constant = extractedFeatureWeights[i].getConstantValue();
+                featuresInfo[featId] = new WeightFeatureInfo(featName, featId);
+                if (constant == null) {
+                    setFeature(featId, extractedFeatureWeights[i].getDefaultValue(), false);
+                } else {
+                    setFeature(featId, constant, true);
+                }
             }
         }
 
+        /**
+         * Feature of the doc being scored, backed by the values of the weight.
+         */
+        private class WeightFeatureInfo extends FeatureInfo {
+            private final int index;
+
+            WeightFeatureInfo(String name, int index) {
+                super(name, 0f, false);
+                this.index = index;
+            }
+
+            @Override
+            public void setScore(float score) {
+                values.set(index, score);
+            }
+
+            @Override
+            public float getValue() {
+                return values.get(index);
+            }
+
+            @Override
+            public boolean isUsed() {
+                return ModelWeight.this.isUsed(index);
+            }
+
+            @Override
+            public void setUsed(boolean used) {
+                setFeature(index, values.get(index), used);
+            }
+        }
+
+        @Override
+        public void close() {
+            Releasables.close(values, used);
+        }
+
         public FeatureInfo[] getFeaturesInfo() {
             return featuresInfo;
         }
 
+        /**
+         * @return a copy of the features of the doc last scored
+         */
+        FeatureInfo[] copyFeaturesInfo() {
+            final FeatureInfo[] copy = new FeatureInfo[featuresInfo.length];
+            for (int i = 0; i < featuresInfo.length; i++) {
+                final FeatureInfo fInfo = featuresInfo[i];
+                if (fInfo != null) {
+                    copy[i] = fInfo.copy(fInfo.getValue(), fInfo.isUsed());
+                }
+            }
+            return copy;
+        }
+
+        /**
+         * Extracts the features of a single doc, without logging them.
+         *
+         * @return a copy of the features of doc
+         */
+        public FeatureInfo[] extractFeatures(LeafReaderContext context, int doc) throws IOException {
+            final ModelScorer scorer = scorer(context, false);
+            scorer.iterator().advance(doc);
+            scorer.score();
+            return copyFeaturesInfo();
+        }
+
         // for test use
         Feature.FeatureWeight[] getModelFeatureWeights() {
             return modelFeatureWeights;
@@ -344,10 +569,8 @@ public class LTRScoringQuery extends Query {
             int pos = 0;
             for (final FeatureWeight feature : modelFeatureWeights) {
                 final int featureId = feature.getIndex();
-                FeatureInfo fInfo = featuresInfo[featureId];
-                if (fInfo.isUsed()) { // not checking for finfo == null as that
-                                      // would be a bug we should catch
-                    modelFeatureValuesNormalized[pos] = fInfo.getValue();
+                if (isUsed(featureId)) {
+                    modelFeatureValuesNormalized[pos] = values.get(featureId);
                 } else {
                     modelFeatureValuesNormalized[pos] = feature.getDefaultValue();
                 }
@@ -363,6 +586,20 @@ public class LTRScoringQuery extends Query {
             for (final FeatureWeight feature : extractedFeatureWeights) {
                 explanations[feature.getIndex()] = feature.explain(context, doc);
             }
+            final FeatureExpression.Values explainedValues = new FeatureExpression.Values() {
+                @Override
+                public float value(int featureIndex) {
+                    return explanations[featureIndex].getValue();
+                }
+            };
+            for (final ExpressionFeature feature : expressionFeatures) {
+                final List<Explanation> dependencies = new ArrayList<>();
+                for (final Feature dep : feature.getDependencies()) {
+                    dependencies.add(explanations[dep.getIndex()]);
+                }
+                explanations[feature.getIndex()] = Explanation.match(feature.evaluate(explainedValues),
+                    feature.toString(), dependencies);
+            }
             final List<Explanation> featureExplanations = new ArrayList<>();
             for (int idx = 0; idx < modelFeatureWeights.length; ++idx) {
                 final FeatureWeight f = modelFeatureWeights[idx];
@@ -385,15 +622,27 @@ public class LTRScoringQuery extends Query {
             }
         }
 
+        /**
+         * Estimates how many docs of the leaf will be scored, assuming the
+         * rescore window is spread evenly over the segments.
+         */
+        private long expectedDocsToScore(LeafReaderContext context) {
+            final int maxDoc = context.reader().maxDoc();
+            if (rescoreWindow < 0) {
+                return maxDoc;
+            }
+            final int totalDocs = Math.max(1, searcher.getIndexReader().maxDoc());
+            return Math.min(maxDoc, 1 + (long) rescoreWindow * maxDoc / totalDocs);
+        }
+
         protected void reset() {
-            for (int i = 0; i < extractedFeatureWeights.length; ++i) {
-                int featId = extractedFeatureWeights[i].getIndex();
-                float value = extractedFeatureWeights[i].getDefaultValue();
+            for (int i = 0; i < perDocFeatureWeights.length; ++i) {
+                int featId = perDocFeatureWeights[i].getIndex();
+                float value = perDocFeatureWeights[i].getDefaultValue();
                 // need to set default value everytime as
                 // the default value is used in 'dense' mode
                 // even if used=false
-                featuresInfo[featId].setScore(value);
-                featuresInfo[featId].setUsed(false);
+                setFeature(featId, value, false);
             }
         }
 
@@ -404,17 +653,19 @@ public class LTRScoringQuery extends Query {
 
         public ModelScorer scorer(LeafReaderContext context, boolean logFeatures) throws IOException {
 
-            final List<FeatureScorer> featureScorers = new ArrayList<FeatureScorer>(extractedFeatureWeights.length);
-            for (final FeatureWeight featureWeight : extractedFeatureWeights) {
+            final List<FeatureScorer> featureScorers = new ArrayList<FeatureScorer>(perDocFeatureWeights.length);
+            // Features that can be looked up for any doc, such as doc values,
+            // norms or values that are constant within this segment. They
+            // are never advanced, only read for the docs actually scored.
+            final List<RandomAccessFeatureScorer> randomAccessScorers = new ArrayList<>();
+            for (final FeatureWeight featureWeight : perDocFeatureWeights) {
                 final FeatureScorer scorer = featureWeight.scorer(context);
-                if (scorer != null) {
-                    featureScorers.add(featureWeight.scorer(context));
+                if (scorer instanceof RandomAccessFeatureScorer) {
+                    randomAccessScorers.add((RandomAccessFeatureScorer) scorer);
+                } else if (scorer != null) {
+                    featureScorers.add(scorer);
                 }
             }
-            IdExtractor idExtractor = null;
-            if (logFeatures == true && featureLogger != null) {
-                idExtractor = new IdExtractor(context);
-            }
 
             // Always return a ModelScorer, even if no features match, because
             // we
@@ -423,7 +674,8 @@ public class LTRScoringQuery extends Query {
             // could
             // return a
             // non 0 score for a given model.
-            ModelScorer mscorer = new ModelScorer(this, featureScorers, idExtractor);
+            ModelScorer mscorer = new ModelScorer(this, context, featureScorers, randomAccessScorers, logFeatures,
+                expectedDocsToScore(context));
             return mscorer;
 
         }
@@ -431,19 +683,40 @@ public class LTRScoringQuery extends Query {
         public class ModelScorer extends Scorer {
             final private Scorer featureTraversalScorer;
             final private IdExtractor idExtractor;
+            final private HitFeatureVectors.Vectors hitVectors;
+            final private int docBase;
+            final private RandomAccessFeatureScorer[] randomAccessScorers;
+            final private ScoringStrategy strategy;
 
-            public ModelScorer(Weight weight, List<FeatureScorer> featureScorers, IdExtractor idExtractor) {
+            public ModelScorer(Weight weight, LeafReaderContext context, List<FeatureScorer> featureScorers,
+                List<RandomAccessFeatureScorer> randomAccessScorers, boolean logFeatures, long expectedDocs) {
                 super(weight);
-                this.idExtractor = idExtractor;
-                // TODO: Allow the use of dense
-                // features in other cases
-                if (featureScorers.size() <= 1) {
-                    featureTraversalScorer = new DenseModelScorer(weight, featureScorers);
-                } else {
+                this.idExtractor = logFeatures && featureLogger != null ? new IdExtractor(context) : null;
+                this.hitVectors = logFeatures ? collectedHitVectors : null;
+                this.docBase = context.docBase;
+                final int maxDoc = context.reader().maxDoc();
+                this.randomAccessScorers = randomAccessScorers
+                    .toArray(new RandomAccessFeatureScorer[randomAccessScorers.size()]);
+                ScoringStrategy strategy = forcedStrategy;
+                if (strategy == null || (strategy == ScoringStrategy.DISJUNCTION && featureScorers.size() <= 1)) {
+                    final long[] costs = new long[featureScorers.size()];
+                    for (int i = 0; i < costs.length; i++) {
+                        costs[i] = featureScorers.get(i).iterator().cost();
+                    }
+                    strategy = ScoringStrategy.select(costs, expectedDocs);
+                }
+                this.strategy = strategy;
+                if (strategy == ScoringStrategy.DISJUNCTION) {
                     featureTraversalScorer = new SparseModelScorer(weight, featureScorers);
+                } else {
+                    featureTraversalScorer = new DenseModelScorer(weight, featureScorers, maxDoc);
                 }
             }
 
+            public ScoringStrategy getStrategy() {
+                return strategy;
+            }
+
             @Override
             public Collection<ChildScorer> getChildren() {
                 return featureTraversalScorer.getChildren();
@@ -469,6 +742,30 @@ public class LTRScoringQuery extends Query {
                 return featureTraversalScorer.iterator();
             }
 
+            /**
+             * Logs the features of doc, computed by the last call to score().
+             */
+            protected void logFeatures(int doc) throws IOException {
+                if (featureLogger != null && idExtractor != null && featureLogger.acquire()) {
+                    featureLogger.log(idExtractor.get(doc), featuresInfo);
+                }
+                if (hitVectors != null) {
+                    hitVectors.collect(docBase + doc, featuresInfo);
+                }
+            }
+
+            /**
+             * Resets the per doc features and looks up the values of the
+             * random access features for doc.
+             */
+            protected void resetFeatures(int doc) throws IOException {
+                reset();
+                for (final RandomAccessFeatureScorer scorer : randomAccessScorers) {
+                    final int featureId = ((FeatureWeight) scorer.getWeight()).getIndex();
+                    setFeature(featureId, scorer.score(doc), true);
+                }
+            }
+
             public class SparseModelScorer extends Scorer {
                 protected DisiPriorityQueue subScorers;
                 protected ScoringQuerySparseIterator itr;
@@ -492,7 +789,9 @@ public class LTRScoringQuery extends Query {
 
                 @Override
                 public int docID() {
-                    return itr.docID();
+                    // The doc being scored, the underlying disjunction may
+                    // already be positioned after it.
+                    return targetDoc;
                 }
 
                 @Override
@@ -505,20 +804,24 @@ public class LTRScoringQuery extends Query {
                     // otherwise just continue with the model's scoring process
                     // with empty
                     // features.
-                    reset();
+                    resetFeatures(targetDoc);
                     if (activeDoc == targetDoc) {
                         for (DisiWrapper w = topList; w != null; w = w.next) {
+                            // The disjunction only advanced the
+                            // approximations, confirm the match now that the
+                            // doc is actually scored.
+                            if (w.twoPhaseView != null && w.twoPhaseView.matches() == false) {
+                                continue;
+                            }
                             final Scorer subScorer = w.scorer;
                             FeatureWeight scFW = (FeatureWeight) subScorer.getWeight();
                             final int featureId = scFW.getIndex();
-                            featuresInfo[featureId].setScore(subScorer.score());
-                            featuresInfo[featureId].setUsed(true);
+                            setFeature(featureId, subScorer.score(), true);
                         }
                     }
+                    computeExpressionFeatures();
                     makeNormalizedFeatures();
-                    if (featureLogger != null && idExtractor != null) {
-                        featureLogger.log(idExtractor.get(docID()), featuresInfo);
-                    }
+                    logFeatures(docID());
                     return ltrScoringModel.score(modelFeatureValuesNormalized);
                 }
 
@@ -552,6 +855,11 @@ public class LTRScoringQuery extends Query {
                         super(subIterators);
                     }
 
+                    @Override
+                    public int docID() {
+                        return targetDoc;
+                    }
+
                     @Override
                     public final int nextDoc() throws IOException {
                         if (activeDoc == targetDoc) {
@@ -582,16 +890,40 @@ public class LTRScoringQuery extends Query {
 
             }
 
+            /**
+             * Advances every feature scorer independently to the scored
+             * document (leap-frog). Also used when no feature needs to be
+             * iterated at all.
+             */
             public class DenseModelScorer extends Scorer {
-                int activeDoc = -1; // The doc that our scorer's are actually at
+                final FeatureScorer[] featureScorers;
+                // What is advanced for each feature scorer: the approximation
+                // of two-phase scorers, the scorer's iterator otherwise
+                final DocIdSetIterator[] approximations;
+                final TwoPhaseIterator[] twoPhaseViews;
+                final int maxDoc;
+                final long cost;
                 int targetDoc = -1; // The doc we were most recently told to go
                                     // to
                 int freq = -1;
-                List<FeatureScorer> featureScorers;
 
-                protected DenseModelScorer(Weight weight, List<FeatureScorer> featureScorers) {
+                protected DenseModelScorer(Weight weight, List<FeatureScorer> featureScorers, int maxDoc) {
                     super(weight);
-                    this.featureScorers = featureScorers;
+                    this.featureScorers = featureScorers.toArray(new FeatureScorer[featureScorers.size()]);
+                    this.approximations = new DocIdSetIterator[this.featureScorers.length];
+                    this.twoPhaseViews = new TwoPhaseIterator[this.featureScorers.length];
+                    for (int i = 0; i < this.featureScorers.length; i++) {
+                        final TwoPhaseIterator twoPhase = this.featureScorers[i].twoPhaseIterator();
+                        twoPhaseViews[i] = twoPhase;
+                        approximations[i] = twoPhase == null ? this.featureScorers[i].iterator()
+                            : twoPhase.approximation();
+                    }
+                    this.maxDoc = maxDoc;
+                    long sum = 0;
+                    for (final FeatureScorer scorer : this.featureScorers) {
+                        sum += scorer.iterator().cost();
+                    }
+                    this.cost = sum;
                 }
 
                 @Override
@@ -601,20 +933,21 @@ public class LTRScoringQuery extends Query {
 
                 @Override
                 public float score() throws IOException {
-                    reset();
+                    resetFeatures(targetDoc);
                     freq = 0;
-                    if (targetDoc == activeDoc) {
-                        for (final Scorer scorer : featureScorers) {
-                            if (scorer.docID() == activeDoc) {
-                                freq++;
-                                FeatureWeight scFW = (FeatureWeight) scorer.getWeight();
-                                final int featureId = scFW.getIndex();
-                                featuresInfo[featureId].setScore(scorer.score());
-                                featuresInfo[featureId].setUsed(true);
-                            }
+                    for (int i = 0; i < featureScorers.length; i++) {
+                        if (approximations[i].docID() == targetDoc
+                            && (twoPhaseViews[i] == null || twoPhaseViews[i].matches())) {
+                            final FeatureScorer scorer = featureScorers[i];
+                            freq++;
+                            FeatureWeight scFW = (FeatureWeight) scorer.getWeight();
+                            final int featureId = scFW.getIndex();
+                            setFeature(featureId, scorer.score(), true);
                         }
                     }
+                    computeExpressionFeatures();
                     makeNormalizedFeatures();
+                    logFeatures(targetDoc);
                     return ltrScoringModel.score(modelFeatureValuesNormalized);
                 }
 
@@ -646,25 +979,18 @@ public class LTRScoringQuery extends Query {
 
                     @Override
                     public int nextDoc() throws IOException {
-                        if (activeDoc <= targetDoc) {
-                            activeDoc = NO_MORE_DOCS;
-                            for (final Scorer scorer : featureScorers) {
-                                if (scorer.docID() != NO_MORE_DOCS) {
-                                    activeDoc = Math.min(activeDoc, scorer.iterator().nextDoc());
-                                }
-                            }
-                        }
-                        return ++targetDoc;
+                        return advance(targetDoc + 1);
                     }
 
                     @Override
                     public int advance(int target) throws IOException {
-                        if (activeDoc < target) {
-                            activeDoc = NO_MORE_DOCS;
-                            for (final Scorer scorer : featureScorers) {
-                                if (scorer.docID() != NO_MORE_DOCS) {
-                                    activeDoc = Math.min(activeDoc, scorer.iterator().advance(target));
-                                }
+                        if (target >= maxDoc) {
+                            targetDoc = NO_MORE_DOCS;
+                            return targetDoc;
+                        }
+                        for (final DocIdSetIterator approximation : approximations) {
+                            if (approximation.docID() < target) {
+                                approximation.advance(target);
                             }
                         }
                         targetDoc = target;
@@ -673,11 +999,7 @@ public class LTRScoringQuery extends Query {
 
                     @Override
                     public long cost() {
-                        long sum = 0;
-                        for (int i = 0; i < featureScorers.size(); i++) {
-                            sum += featureScorers.get(i).iterator().cost();
-                        }
-                        return sum;
+                        return cost;
                     }
                 }
             }
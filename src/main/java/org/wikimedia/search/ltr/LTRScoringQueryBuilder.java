@@ -12,6 +12,9 @@ public class LTRScoringQueryBuilder extends QueryBuilder {
     private String marker = null;
     private String featureFormat = null;
     private String stringFormat = null;
+    private String sink = null;
+    private Double sampleRate = null;
+    private String sampleKey = null;
     private Map<String, String> efi;
 
     public LTRScoringQueryBuilder(String modelName) {
@@ -38,6 +41,36 @@ public class LTRScoringQueryBuilder extends QueryBuilder {
         return this;
     }
 
+    /**
+     * @param sink
+     *            "log" (default) to write the features to the ES log,
+     *            "binary" to write them to the node's binary feature log, or
+     *            "response" to return them with the hits
+     */
+    public LTRScoringQueryBuilder sink(String sink) {
+        this.sink = sink;
+        return this;
+    }
+
+    /**
+     * @param sampleRate
+     *            fraction of the requests whose features are logged
+     */
+    public LTRScoringQueryBuilder sampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * @param sampleKey
+     *            key, such as the user query, whose hash decides whether the
+     *            request is sampled instead of a random draw on each shard
+     */
+    public LTRScoringQueryBuilder sampleKey(String sampleKey) {
+        this.sampleKey = sampleKey;
+        return this;
+    }
+
     public LTRScoringQueryBuilder efi(Map<String, String> efi) {
         this.efi = efi;
         return this;
@@ -54,7 +87,8 @@ public class LTRScoringQueryBuilder extends QueryBuilder {
             builder.field("efi");
             builder.map(efi);
         }
-        if (marker != null || featureFormat != null || stringFormat != null) {
+        if (marker != null || featureFormat != null || stringFormat != null || sink != null || sampleRate != null
+            || sampleKey != null) {
             builder.startObject("logger");
             if (marker != null) {
                 builder.field("marker", marker);
@@ -65,6 +99,15 @@ public class LTRScoringQueryBuilder extends QueryBuilder {
             if (stringFormat != null) {
                 builder.field("stringFormat", stringFormat);
             }
+            if (sink != null) {
+                builder.field("sink", sink);
+            }
+            if (sampleRate != null) {
+                builder.field("sample_rate", sampleRate);
+            }
+            if (sampleKey != null) {
+                builder.field("sample_key", sampleKey);
+            }
             builder.endObject();
         }
         builder.endObject();
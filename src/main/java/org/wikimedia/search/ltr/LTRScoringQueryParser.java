@@ -1,25 +1,43 @@
 package org.wikimedia.search.ltr;
 
 import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
 
 import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.lease.Releasable;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.index.query.QueryParser;
 import org.elasticsearch.index.query.QueryParsingException;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.search.internal.ShardSearchRequest;
+import org.wikimedia.search.ltr.feature.FeatureException;
+import org.wikimedia.search.ltr.logging.BinaryFeatureLogSink;
+import org.wikimedia.search.ltr.logging.FeatureLogRateLimiter;
+import org.wikimedia.search.ltr.logging.FeatureVectorFetchSubPhase;
+import org.wikimedia.search.ltr.logging.HitFeatureVectors;
 import org.wikimedia.search.ltr.model.LTRScoringModel;
+import org.wikimedia.search.ltr.model.ModelException;
 import org.wikimedia.search.ltr.store.LTRStoreService;
 
 public class LTRScoringQueryParser implements QueryParser {
     public static final String NAME = "ltr";
 
     final private LTRStoreService store;
+    final private BinaryFeatureLogSink binarySink;
+    final private FeatureLogRateLimiter rateLimiter;
 
     @Inject
-    public LTRScoringQueryParser(LTRStoreService store) {
+    public LTRScoringQueryParser(LTRStoreService store, BinaryFeatureLogSink binarySink,
+        FeatureLogRateLimiter rateLimiter) {
         this.store = store;
+        this.binarySink = binarySink;
+        this.rateLimiter = rateLimiter;
     }
 
     @Override
@@ -69,14 +87,63 @@ public class LTRScoringQueryParser implements QueryParser {
         if (modelName == null) {
             throw new QueryParsingException(parseContext, "learn_to_rank requires 'model' to be specified");
         }
-        LTRScoringModel model = store.getModel(modelName);
+        final LTRScoringModel model;
+        try {
+            model = store.acquireModel(modelName);
+        } catch (ModelException | FeatureException e) {
+            // models are compiled on first use
+            throw new QueryParsingException(parseContext, "[ltr] unable to compile model [" + modelName + "]", e);
+        }
         if (model == null) {
             throw new QueryParsingException(parseContext, "[ltr] unknown model [" + modelName + "]");
         }
+        final SearchContext searchContext = SearchContext.current();
+        if (searchContext != null) {
+            // the resources of the model are kept until the search is done,
+            // even if the model is replaced meanwhile
+            searchContext.addReleasable(new Releasable() {
+                @Override
+                public void close() {
+                    model.decRef();
+                }
+            }, SearchContext.Lifetime.CONTEXT);
+        } else {
+            final boolean offHeap = model.offHeapBytesUsed() > 0;
+            model.decRef();
+            if (offHeap) {
+                // nothing would keep the mapped trees until the query is
+                // done with them
+                throw new QueryParsingException(parseContext,
+                    "[ltr] model [" + modelName + "] is scored off heap and can only be used in search requests");
+            }
+        }
         LTRScoringQuery query = new LTRScoringQuery(model, efi, extractAllFeatures,
             parseContext.indexQueryParserService());
+        if (logger instanceof FeatureLogger.SVMRankFeatureLogger && logger.getMarker() == null) {
+            // one group of lines per request, the same on every shard
+            final String requestKey = requestKey(SearchContext.current());
+            if (requestKey == null) {
+                throw new QueryParsingException(parseContext,
+                    "[ltr] logger.marker is required by the svmrank format outside of search requests");
+            }
+            ((FeatureLogger.SVMRankFeatureLogger) logger).setQueryKey(requestKey);
+        }
         if (logger != null) {
-            query.setFeatureLogger(logger);
+            if (logger.getSink() == HitFeatureVectors.RESPONSE_SINK) {
+                final SearchContext context = SearchContext.current();
+                if (context == null) {
+                    throw new QueryParsingException(parseContext,
+                        "[ltr] logger sink [response] is only supported in search requests");
+                }
+                final HitFeatureVectors.Vectors vectors = context
+                    .getFetchSubPhaseContext(FeatureVectorFetchSubPhase.CONTEXT_FACTORY)
+                    .add(query, logger, context.bigArrays());
+                // read until the hits are fetched
+                context.addReleasable(vectors, SearchContext.Lifetime.CONTEXT);
+                query.setHitFeatureVectors(vectors);
+            } else {
+                query.setFeatureLogger(logger);
+            }
         }
         return query;
     }
@@ -88,6 +155,9 @@ public class LTRScoringQueryParser implements QueryParser {
         String stringFormat = "json";
         String featureFormat = "sparse";
         String marker = null;
+        String sink = "log";
+        double sampleRate = 1d;
+        String sampleKey = null;
         while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
             if (token == XContentParser.Token.FIELD_NAME) {
                 currentFieldName = parser.currentName();
@@ -98,6 +168,12 @@ public class LTRScoringQueryParser implements QueryParser {
                     featureFormat = parser.text();
                 } else if ("marker".equals(currentFieldName)) {
                     marker = parser.text();
+                } else if ("sink".equals(currentFieldName)) {
+                    sink = parser.text();
+                } else if ("sample_rate".equals(currentFieldName) || "sampleRate".equals(currentFieldName)) {
+                    sampleRate = parser.doubleValue();
+                } else if ("sample_key".equals(currentFieldName) || "sampleKey".equals(currentFieldName)) {
+                    sampleKey = parser.text();
                 } else {
                     throw new QueryParsingException(parseContext,
                         "[ltr] query does not support [logger." + currentFieldName + "]");
@@ -106,7 +182,70 @@ public class LTRScoringQueryParser implements QueryParser {
                 throw new QueryParsingException(parseContext, "[ltr] unexpected token");
             }
         }
-        return FeatureLogger.createFeatureLogger(stringFormat, featureFormat, marker);
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new QueryParsingException(parseContext,
+                "[ltr] logger.sample_rate must be between 0 and 1 but was [" + sampleRate + "]");
+        }
+        if (!"log".equals(sink) && !"binary".equals(sink) && !"response".equals(sink)) {
+            throw new QueryParsingException(parseContext, "[ltr] unknown logger sink [" + sink + "]");
+        }
+        if (!isSampled(sampleRate, sampleKey != null ? sampleKey : requestKey(SearchContext.current()))) {
+            // Not logging at all, not even extracting the doc ids
+            return null;
+        }
+        final FeatureLogger logger = FeatureLogger.createFeatureLogger(stringFormat, featureFormat, marker);
+        if (logger == null) {
+            return null;
+        }
+        if ("response".equals(sink)) {
+            logger.setSink(HitFeatureVectors.RESPONSE_SINK);
+        } else {
+            if ("binary".equals(sink)) {
+                logger.setSink(binarySink);
+            }
+            logger.setRateLimiter(rateLimiter);
+        }
+        return logger;
+    }
+
+    /**
+     * Decides whether the features of a request are logged. The decision only
+     * depends on the hash of the sample key, typically the user query, so
+     * that all the shards and all the requests for the same key are either
+     * logged or skipped together. Without sample key the
+     * {@link #requestKey(SearchContext) request key} is used, and the shards
+     * of a request decide together. Without either it is random.
+     */
+    public static boolean isSampled(double sampleRate, String sampleKey) {
+        if (sampleRate >= 1) {
+            return true;
+        }
+        if (sampleRate <= 0) {
+            return false;
+        }
+        if (sampleKey == null) {
+            return ThreadLocalRandom.current().nextDouble() < sampleRate;
+        }
+        final int hash = StringHelper.murmurhash3_x86_32(new BytesRef(sampleKey), 0);
+        return (hash & 0xFFFFFFFFL) < (long) (sampleRate * (1L << 32));
+    }
+
+    /**
+     * @return a key identifying the search request, the same on all the
+     *         shards it runs on: its start time, set by the coordinating node,
+     *         and the hash of its body. Null outside of a search request.
+     */
+    static String requestKey(SearchContext context) {
+        if (context == null || context.request() == null) {
+            return null;
+        }
+        final ShardSearchRequest request = context.request();
+        return request.nowInMillis() + ":" + hash(request.source()) + ":" + hash(request.extraSource()) + ":"
+            + hash(request.templateSource());
+    }
+
+    private static int hash(BytesReference bytes) {
+        return bytes == null ? 0 : StringHelper.murmurhash3_x86_32(bytes.toBytesRef(), 0);
     }
 
     private Settings parseEfi(QueryParseContext parseContext, XContentParser parser)
@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr;
+
+/**
+ * How the {@link LTRScoringQuery.ModelWeight.ModelScorer} walks the iterated
+ * feature scorers of a segment.
+ * <p>
+ * The choice is made per leaf with a simple cost model: every strategy pays
+ * one advance per matching posting up to the last scored doc, leap-frog then
+ * pays a docID check of every feature scorer for every scored doc while the
+ * disjunction pays a heap update per advance and a fixed cost per scored doc.
+ * Leap-frog is therefore cheaper for few or dense features, the disjunction
+ * for many sparse features. The relative costs were calibrated so that the
+ * disjunction is only picked for many very sparse features over a large
+ * number of scored documents, where it was measured to be faster by
+ * TestScoringStrategyBenchmark.
+ */
+public enum ScoringStrategy {
+    /**
+     * No feature needs to be iterated, all values are looked up for the
+     * scored documents.
+     */
+    RANDOM_ACCESS,
+    /**
+     * Each feature scorer is advanced independently to the scored document.
+     */
+    LEAP_FROG,
+    /**
+     * Feature scorers are advanced through a disjunction, only the scorers
+     * matching the scored document are visited.
+     */
+    DISJUNCTION;
+
+    // Costs relative to advancing a postings iterator
+    static final double DOC_CHECK_COST = 0.06;
+    static final double HEAP_UPDATE_COST = 0.3;
+    static final double DISJUNCTION_DOC_COST = 0.5;
+
+    /**
+     * @param costs
+     *            {@link org.apache.lucene.search.DocIdSetIterator#cost()} of
+     *            each iterated feature scorer of the segment
+     * @param expectedDocs
+     *            number of documents of the segment expected to be scored
+     * @return the cheapest strategy
+     */
+    public static ScoringStrategy select(long[] costs, long expectedDocs) {
+        if (costs.length == 0) {
+            return RANDOM_ACCESS;
+        }
+        if (costs.length == 1) {
+            return LEAP_FROG;
+        }
+        final double heapDepth = Math.max(1d, Math.log(costs.length) / Math.log(2));
+        double leapFrog = expectedDocs * costs.length * DOC_CHECK_COST;
+        double disjunction = expectedDocs * DISJUNCTION_DOC_COST;
+        for (final long cost : costs) {
+            final double advances = Math.min(cost, expectedDocs);
+            leapFrog += advances;
+            disjunction += advances * (1 + heapDepth * HEAP_UPDATE_COST);
+        }
+        return leapFrog <= disjunction ? LEAP_FROG : DISJUNCTION;
+    }
+}
@@ -0,0 +1,24 @@
+package org.wikimedia.search.ltr.action.model.bulk;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class BulkPutModelsAction
+    extends Action<BulkPutModelsRequest, BulkPutModelsResponse, BulkPutModelsRequestBuilder> {
+    public static final BulkPutModelsAction INSTANCE = new BulkPutModelsAction();
+    public static final String NAME = "cluster:admin/ltr/models/bulk";
+
+    private BulkPutModelsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public BulkPutModelsResponse newResponse() {
+        return new BulkPutModelsResponse();
+    }
+
+    @Override
+    public BulkPutModelsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new BulkPutModelsRequestBuilder(client, this);
+    }
+}
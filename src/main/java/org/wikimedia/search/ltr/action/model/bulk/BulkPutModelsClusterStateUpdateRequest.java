@@ -0,0 +1,22 @@
+package org.wikimedia.search.ltr.action.model.bulk;
+
+import org.elasticsearch.cluster.ack.ClusterStateUpdateRequest;
+import org.elasticsearch.common.settings.Settings;
+
+public class BulkPutModelsClusterStateUpdateRequest
+    extends ClusterStateUpdateRequest<BulkPutModelsClusterStateUpdateRequest> {
+    private Settings models;
+
+    BulkPutModelsClusterStateUpdateRequest() {
+
+    }
+
+    public Settings models() {
+        return models;
+    }
+
+    public BulkPutModelsClusterStateUpdateRequest models(Settings models) {
+        this.models = models;
+        return this;
+    }
+}
@@ -0,0 +1,25 @@
+package org.wikimedia.search.ltr.action.model.bulk;
+
+import java.util.Map;
+
+import org.elasticsearch.cluster.ack.ClusterStateUpdateResponse;
+
+/**
+ * Response of a bulk upload, with the failures of the models that were not
+ * stored.
+ */
+public class BulkPutModelsClusterStateUpdateResponse extends ClusterStateUpdateResponse {
+    private final Map<String, Throwable> failures;
+
+    public BulkPutModelsClusterStateUpdateResponse(boolean acknowledged, Map<String, Throwable> failures) {
+        super(acknowledged);
+        this.failures = failures;
+    }
+
+    /**
+     * @return the failure of every invalid model, by name
+     */
+    public Map<String, Throwable> failures() {
+        return failures;
+    }
+}
@@ -0,0 +1,111 @@
+package org.wikimedia.search.ltr.action.model.bulk;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+import static org.elasticsearch.common.settings.Settings.readSettingsFromStream;
+import static org.elasticsearch.common.settings.Settings.writeSettingsToStream;
+import static org.elasticsearch.common.settings.Settings.Builder.EMPTY_SETTINGS;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.master.AcknowledgedRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsException;
+import org.wikimedia.search.ltr.model.StreamingModelLoader;
+
+/**
+ * Uploads many models at once, each valid model is stored and the invalid
+ * ones are reported.
+ */
+public class BulkPutModelsRequest extends AcknowledgedRequest<BulkPutModelsRequest> {
+    private Settings models = EMPTY_SETTINGS;
+
+    public BulkPutModelsRequest() {
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = null;
+        if (models.getGroups("models").isEmpty()) {
+            validationException = addValidationError("no models provided", validationException);
+        }
+        return validationException;
+    }
+
+    public Settings models() {
+        return models;
+    }
+
+    public BulkPutModelsRequest models(Settings models) {
+        this.models = Settings.builder().put(models).normalizePrefix("models.").build();
+        return this;
+    }
+
+    /**
+     * Reads models from newline delimited JSON, optionally gzip compressed.
+     * Every line holds one or more models, as the body of a single upload.
+     */
+    public BulkPutModelsRequest models(BytesReference ndjson) throws IOException {
+        final Settings.Builder builder = Settings.builder();
+        final Set<String> names = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(ndjson), StandardCharsets.UTF_8))) {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final Settings lineModels;
+                try {
+                    lineModels = Settings.builder().put(StreamingModelLoader.load(line)).normalizePrefix("models.")
+                        .build();
+                } catch (SettingsException e) {
+                    throw new ElasticsearchParseException("unable to parse the models of line [{}]", e, lineNumber);
+                }
+                for (final String name : lineModels.getGroups("models").keySet()) {
+                    if (!names.add(name)) {
+                        throw new ElasticsearchParseException("model [{}] of line [{}] is already defined", name,
+                            lineNumber);
+                    }
+                }
+                builder.put(lineModels);
+            }
+        }
+        this.models = builder.build();
+        return this;
+    }
+
+    private static InputStream open(BytesReference content) throws IOException {
+        final InputStream in = content.streamInput();
+        if (content.length() >= 2 && content.get(0) == (byte) 0x1f && content.get(1) == (byte) 0x8b) {
+            return new GZIPInputStream(in);
+        }
+        return in;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        models = readSettingsFromStream(in);
+        readTimeout(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        writeSettingsToStream(models, out);
+        writeTimeout(out);
+    }
+}
@@ -0,0 +1,25 @@
+package org.wikimedia.search.ltr.action.model.bulk;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.master.AcknowledgedRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.settings.Settings;
+
+public class BulkPutModelsRequestBuilder
+    extends AcknowledgedRequestBuilder<BulkPutModelsRequest, BulkPutModelsResponse, BulkPutModelsRequestBuilder> {
+    public BulkPutModelsRequestBuilder(ElasticsearchClient client, BulkPutModelsAction action) {
+        super(client, action, new BulkPutModelsRequest());
+    }
+
+    public BulkPutModelsRequestBuilder models(BytesReference ndjson) throws IOException {
+        request.models(ndjson);
+        return this;
+    }
+
+    public BulkPutModelsRequestBuilder models(Settings models) {
+        request.models(models);
+        return this;
+    }
+}
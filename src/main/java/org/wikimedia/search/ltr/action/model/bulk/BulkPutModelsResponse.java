@@ -0,0 +1,92 @@
+package org.wikimedia.search.ltr.action.model.bulk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Result of every model of a bulk upload: stored, or its failure.
+ */
+public class BulkPutModelsResponse extends AcknowledgedResponse implements ToXContent {
+    private List<String> stored = Collections.emptyList();
+    private Map<String, String> failures = Collections.emptyMap();
+
+    public BulkPutModelsResponse() {
+    }
+
+    public BulkPutModelsResponse(boolean acknowledged, List<String> stored, Map<String, String> failures) {
+        super(acknowledged);
+        this.stored = stored;
+        this.failures = failures;
+    }
+
+    /**
+     * @return the names of the models that were stored
+     */
+    public List<String> stored() {
+        return stored;
+    }
+
+    /**
+     * @return the reason why every other model was not stored, by name
+     */
+    public Map<String, String> failures() {
+        return failures;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        readAcknowledged(in);
+        int size = in.readVInt();
+        stored = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            stored.add(in.readString());
+        }
+        size = in.readVInt();
+        failures = new LinkedHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            failures.put(in.readString(), in.readString());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        writeAcknowledged(out);
+        out.writeVInt(stored.size());
+        for (final String name : stored) {
+            out.writeString(name);
+        }
+        out.writeVInt(failures.size());
+        for (final Map.Entry<String, String> failure : failures.entrySet()) {
+            out.writeString(failure.getKey());
+            out.writeString(failure.getValue());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("acknowledged", isAcknowledged());
+        builder.field("errors", !failures.isEmpty());
+        builder.startObject("models");
+        for (final String name : stored) {
+            builder.startObject(name).field("stored", true).endObject();
+        }
+        for (final Map.Entry<String, String> failure : failures.entrySet()) {
+            builder.startObject(failure.getKey()).field("stored", false).field("error", failure.getValue())
+                .endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,82 @@
+package org.wikimedia.search.ltr.action.model.bulk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.master.TransportMasterNodeAction;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.wikimedia.search.ltr.store.LTRStoreService;
+
+public class TransportBulkPutModelsAction
+    extends TransportMasterNodeAction<BulkPutModelsRequest, BulkPutModelsResponse> {
+    private final LTRStoreService ltrStoreService;
+
+    @Inject
+    public TransportBulkPutModelsAction(Settings settings, TransportService transportService,
+        ClusterService clusterService, ThreadPool threadPool, ActionFilters actionFilters,
+        IndexNameExpressionResolver indexNameExpressionResolver, LTRStoreService ltrStoreService) {
+        super(settings, BulkPutModelsAction.NAME, transportService, clusterService, threadPool, actionFilters,
+            indexNameExpressionResolver, BulkPutModelsRequest.class);
+        this.ltrStoreService = ltrStoreService;
+    }
+
+    @Override
+    protected String executor() {
+        // models are validated on the management thread pool
+        return ThreadPool.Names.SAME;
+    }
+
+    @Override
+    protected BulkPutModelsResponse newResponse() {
+        return new BulkPutModelsResponse();
+    }
+
+    @Override
+    protected ClusterBlockException checkBlock(BulkPutModelsRequest request, ClusterState state) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.METADATA_WRITE);
+    }
+
+    @Override
+    protected void masterOperation(final BulkPutModelsRequest request, final ClusterState state,
+        final ActionListener<BulkPutModelsResponse> listener) {
+        final BulkPutModelsClusterStateUpdateRequest updateRequest = new BulkPutModelsClusterStateUpdateRequest()
+            .ackTimeout(request.timeout()).masterNodeTimeout(request.masterNodeTimeout()).models(request.models());
+
+        ltrStoreService.bulkPutModels(updateRequest, threadPool.executor(ThreadPool.Names.MANAGEMENT),
+            new ActionListener<BulkPutModelsClusterStateUpdateResponse>() {
+                @Override
+                public void onResponse(BulkPutModelsClusterStateUpdateResponse response) {
+                    final List<String> stored = new ArrayList<>();
+                    for (final String name : request.models().getGroups("models").keySet()) {
+                        if (!response.failures().containsKey(name)) {
+                            stored.add(name);
+                        }
+                    }
+                    final Map<String, String> failures = new TreeMap<>();
+                    for (final Map.Entry<String, Throwable> failure : response.failures().entrySet()) {
+                        failures.put(failure.getKey(), ExceptionsHelper.detailedMessage(failure.getValue()));
+                    }
+                    listener.onResponse(new BulkPutModelsResponse(response.isAcknowledged(), stored, failures));
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    logger.debug("failed to bulk put models", t);
+                    listener.onFailure(t);
+                }
+            });
+    }
+}
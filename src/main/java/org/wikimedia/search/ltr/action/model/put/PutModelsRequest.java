@@ -17,6 +17,7 @@ import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.wikimedia.search.ltr.model.StreamingModelLoader;
 
 public class PutModelsRequest extends AcknowledgedRequest<PutModelsRequest> {
     private Settings models = EMPTY_SETTINGS;
@@ -48,7 +49,7 @@ public class PutModelsRequest extends AcknowledgedRequest<PutModelsRequest> {
     }
 
     public PutModelsRequest models(String source) {
-        models(Settings.settingsBuilder().loadFromSource(source));
+        models(StreamingModelLoader.load(source));
         return this;
     }
 
@@ -0,0 +1,35 @@
+package org.wikimedia.search.ltr.action.model.validate;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.wikimedia.search.ltr.store.LTRStoreService;
+
+/**
+ * Profiles the models on the node receiving the request, nothing is sent to
+ * the master.
+ */
+public class TransportValidateModelsAction
+    extends HandledTransportAction<ValidateModelsRequest, ValidateModelsResponse> {
+    private final LTRStoreService ltrStoreService;
+
+    @Inject
+    public TransportValidateModelsAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+        ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+        LTRStoreService ltrStoreService) {
+        super(settings, ValidateModelsAction.NAME, threadPool, transportService, actionFilters,
+            indexNameExpressionResolver, ValidateModelsRequest.class);
+        this.ltrStoreService = ltrStoreService;
+    }
+
+    @Override
+    protected void doExecute(ValidateModelsRequest request, ActionListener<ValidateModelsResponse> listener) {
+        ltrStoreService.profileModels(request.models(), request.iterations(),
+            threadPool.executor(ThreadPool.Names.MANAGEMENT), listener);
+    }
+}
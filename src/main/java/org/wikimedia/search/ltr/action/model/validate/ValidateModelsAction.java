@@ -0,0 +1,24 @@
+package org.wikimedia.search.ltr.action.model.validate;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class ValidateModelsAction
+    extends Action<ValidateModelsRequest, ValidateModelsResponse, ValidateModelsRequestBuilder> {
+    public static final ValidateModelsAction INSTANCE = new ValidateModelsAction();
+    public static final String NAME = "cluster:admin/ltr/models/validate";
+
+    private ValidateModelsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public ValidateModelsResponse newResponse() {
+        return new ValidateModelsResponse();
+    }
+
+    @Override
+    public ValidateModelsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new ValidateModelsRequestBuilder(client, this);
+    }
+}
@@ -0,0 +1,113 @@
+package org.wikimedia.search.ltr.action.model.validate;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+import static org.elasticsearch.common.settings.Settings.readSettingsFromStream;
+import static org.elasticsearch.common.settings.Settings.writeSettingsToStream;
+import static org.elasticsearch.common.settings.Settings.Builder.EMPTY_SETTINGS;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchGenerationException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.wikimedia.search.ltr.model.StreamingModelLoader;
+
+/**
+ * Compiles models against the current feature stores without storing them,
+ * and reports what they would cost.
+ */
+public class ValidateModelsRequest extends ActionRequest<ValidateModelsRequest> {
+    /**
+     * Number of synthetic feature vectors scored by default.
+     */
+    public static final int DEFAULT_ITERATIONS = 10000;
+    /**
+     * Models are profiled on the management pool, a single request must not
+     * hold it for long.
+     */
+    public static final int MAX_ITERATIONS = 1000000;
+
+    private Settings models = EMPTY_SETTINGS;
+    private int iterations = DEFAULT_ITERATIONS;
+
+    public ValidateModelsRequest() {
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = null;
+        if (models.getGroups("models").isEmpty()) {
+            validationException = addValidationError("no models provided", validationException);
+        }
+        if (iterations < 0 || iterations > MAX_ITERATIONS) {
+            validationException = addValidationError("iterations must be between 0 and " + MAX_ITERATIONS
+                + " but was [" + iterations + "]", validationException);
+        }
+        return validationException;
+    }
+
+    public Settings models() {
+        return models;
+    }
+
+    public ValidateModelsRequest models(Settings models) {
+        this.models = Settings.builder().put(models).normalizePrefix("models.").build();
+        return this;
+    }
+
+    public ValidateModelsRequest models(String source) {
+        return models(StreamingModelLoader.load(source));
+    }
+
+    public ValidateModelsRequest models(Map<String, Map<String, Object>> models) {
+        try {
+            XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON);
+            builder.startObject();
+            builder.startObject("models");
+            for (Map.Entry<String, Map<String, Object>> entry : models.entrySet()) {
+                builder.field(entry.getKey());
+                builder.map(entry.getValue());
+            }
+            builder.endObject();
+            builder.endObject();
+            models(builder.string());
+        } catch (IOException e) {
+            throw new ElasticsearchGenerationException("Failed to generate [" + models + "]", e);
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of synthetic feature vectors each model scores, 0
+     *         to skip measuring the scoring time
+     */
+    public int iterations() {
+        return iterations;
+    }
+
+    public ValidateModelsRequest iterations(int iterations) {
+        this.iterations = iterations;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        models = readSettingsFromStream(in);
+        iterations = in.readVInt();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        writeSettingsToStream(models, out);
+        out.writeVInt(iterations);
+    }
+}
@@ -0,0 +1,34 @@
+package org.wikimedia.search.ltr.action.model.validate;
+
+import java.util.Map;
+
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.settings.Settings;
+
+public class ValidateModelsRequestBuilder
+    extends ActionRequestBuilder<ValidateModelsRequest, ValidateModelsResponse, ValidateModelsRequestBuilder> {
+    public ValidateModelsRequestBuilder(ElasticsearchClient client, ValidateModelsAction action) {
+        super(client, action, new ValidateModelsRequest());
+    }
+
+    public ValidateModelsRequestBuilder models(String source) {
+        request.models(source);
+        return this;
+    }
+
+    public ValidateModelsRequestBuilder models(Settings models) {
+        request.models(models);
+        return this;
+    }
+
+    public ValidateModelsRequestBuilder models(Map<String, Map<String, Object>> models) {
+        request.models(models);
+        return this;
+    }
+
+    public ValidateModelsRequestBuilder iterations(int iterations) {
+        request.iterations(iterations);
+        return this;
+    }
+}
@@ -0,0 +1,90 @@
+package org.wikimedia.search.ltr.action.model.validate;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.wikimedia.search.ltr.store.ModelProfile;
+
+/**
+ * Profile of every model that compiled, and the failure of the others.
+ */
+public class ValidateModelsResponse extends ActionResponse implements ToXContent {
+    private Map<String, ModelProfile> profiles = Collections.emptyMap();
+    private Map<String, String> failures = Collections.emptyMap();
+
+    public ValidateModelsResponse() {
+    }
+
+    public ValidateModelsResponse(Map<String, ModelProfile> profiles, Map<String, String> failures) {
+        this.profiles = profiles;
+        this.failures = failures;
+    }
+
+    /**
+     * @return the profile of the models that compiled, by name
+     */
+    public Map<String, ModelProfile> profiles() {
+        return profiles;
+    }
+
+    /**
+     * @return the reason why every other model did not compile, by name
+     */
+    public Map<String, String> failures() {
+        return failures;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        profiles = new LinkedHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            profiles.put(in.readString(), ModelProfile.readModelProfile(in));
+        }
+        size = in.readVInt();
+        failures = new LinkedHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            failures.put(in.readString(), in.readString());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(profiles.size());
+        for (final Map.Entry<String, ModelProfile> profile : profiles.entrySet()) {
+            out.writeString(profile.getKey());
+            profile.getValue().writeTo(out);
+        }
+        out.writeVInt(failures.size());
+        for (final Map.Entry<String, String> failure : failures.entrySet()) {
+            out.writeString(failure.getKey());
+            out.writeString(failure.getValue());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("errors", !failures.isEmpty());
+        builder.startObject("models");
+        for (final Map.Entry<String, ModelProfile> profile : profiles.entrySet()) {
+            builder.startObject(profile.getKey()).field("valid", true);
+            profile.getValue().toXContent(builder, params);
+            builder.endObject();
+        }
+        for (final Map.Entry<String, String> failure : failures.entrySet()) {
+            builder.startObject(failure.getKey()).field("valid", false).field("error", failure.getValue())
+                .endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
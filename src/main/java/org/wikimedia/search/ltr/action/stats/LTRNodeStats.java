@@ -0,0 +1,61 @@
+package org.wikimedia.search.ltr.action.stats;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.wikimedia.search.ltr.store.MemoryStats;
+import org.wikimedia.search.ltr.store.StoreStats;
+
+public class LTRNodeStats extends BaseNodeResponse implements ToXContent {
+    private StoreStats store;
+    private MemoryStats memory;
+
+    LTRNodeStats() {
+    }
+
+    public LTRNodeStats(DiscoveryNode node, StoreStats store, MemoryStats memory) {
+        super(node);
+        this.store = store;
+        this.memory = memory;
+    }
+
+    public static LTRNodeStats readNodeStats(StreamInput in) throws IOException {
+        final LTRNodeStats stats = new LTRNodeStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public StoreStats getStoreStats() {
+        return store;
+    }
+
+    public MemoryStats getMemoryStats() {
+        return memory;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        store = StoreStats.readStoreStats(in);
+        memory = MemoryStats.readMemoryStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        store.writeTo(out);
+        memory.writeTo(out);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().name());
+        store.toXContent(builder, params);
+        return memory.toXContent(builder, params);
+    }
+}
@@ -0,0 +1,23 @@
+package org.wikimedia.search.ltr.action.stats;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class LTRStatsAction extends Action<LTRStatsRequest, LTRStatsResponse, LTRStatsRequestBuilder> {
+    public static final LTRStatsAction INSTANCE = new LTRStatsAction();
+    public static final String NAME = "cluster:monitor/ltr/stats";
+
+    private LTRStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public LTRStatsResponse newResponse() {
+        return new LTRStatsResponse();
+    }
+
+    @Override
+    public LTRStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new LTRStatsRequestBuilder(client, this);
+    }
+}
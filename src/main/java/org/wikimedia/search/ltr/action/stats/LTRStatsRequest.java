@@ -0,0 +1,15 @@
+package org.wikimedia.search.ltr.action.stats;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+
+/**
+ * Statistics of the models of the nodes, all of them if no node id is given.
+ */
+public class LTRStatsRequest extends BaseNodesRequest<LTRStatsRequest> {
+    public LTRStatsRequest() {
+    }
+
+    public LTRStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+}
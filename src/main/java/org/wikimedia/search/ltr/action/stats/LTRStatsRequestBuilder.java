@@ -0,0 +1,11 @@
+package org.wikimedia.search.ltr.action.stats;
+
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+
+public class LTRStatsRequestBuilder
+    extends NodesOperationRequestBuilder<LTRStatsRequest, LTRStatsResponse, LTRStatsRequestBuilder> {
+    public LTRStatsRequestBuilder(ElasticsearchClient client, LTRStatsAction action) {
+        super(client, action, new LTRStatsRequest());
+    }
+}
@@ -0,0 +1,51 @@
+package org.wikimedia.search.ltr.action.stats;
+
+import java.io.IOException;
+
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+public class LTRStatsResponse extends BaseNodesResponse<LTRNodeStats> implements ToXContent {
+
+    LTRStatsResponse() {
+    }
+
+    public LTRStatsResponse(ClusterName clusterName, LTRNodeStats[] nodes) {
+        super(clusterName, nodes);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        nodes = new LTRNodeStats[in.readVInt()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = LTRNodeStats.readNodeStats(in);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(nodes.length);
+        for (final LTRNodeStats node : nodes) {
+            node.writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("cluster_name", getClusterName().value());
+        builder.startObject("nodes");
+        for (final LTRNodeStats node : nodes) {
+            builder.startObject(node.getNode().id());
+            node.toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,72 @@
+package org.wikimedia.search.ltr.action.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.wikimedia.search.ltr.store.LTRStoreService;
+
+public class TransportLTRStatsAction extends
+    TransportNodesAction<LTRStatsRequest, LTRStatsResponse, TransportLTRStatsAction.NodeRequest, LTRNodeStats> {
+    private final LTRStoreService ltrStoreService;
+
+    @Inject
+    public TransportLTRStatsAction(Settings settings, ClusterName clusterName, ThreadPool threadPool,
+        ClusterService clusterService, TransportService transportService, ActionFilters actionFilters,
+        IndexNameExpressionResolver indexNameExpressionResolver, LTRStoreService ltrStoreService) {
+        super(settings, LTRStatsAction.NAME, clusterName, threadPool, clusterService, transportService, actionFilters,
+            indexNameExpressionResolver, LTRStatsRequest.class, NodeRequest.class, ThreadPool.Names.MANAGEMENT);
+        this.ltrStoreService = ltrStoreService;
+    }
+
+    @Override
+    protected LTRStatsResponse newResponse(LTRStatsRequest request, AtomicReferenceArray responses) {
+        final List<LTRNodeStats> nodes = new ArrayList<>();
+        for (int i = 0; i < responses.length(); i++) {
+            final Object response = responses.get(i);
+            if (response instanceof LTRNodeStats) {
+                nodes.add((LTRNodeStats) response);
+            }
+        }
+        return new LTRStatsResponse(clusterName, nodes.toArray(new LTRNodeStats[nodes.size()]));
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(String nodeId, LTRStatsRequest request) {
+        return new NodeRequest(request, nodeId);
+    }
+
+    @Override
+    protected LTRNodeStats newNodeResponse() {
+        return new LTRNodeStats();
+    }
+
+    @Override
+    protected LTRNodeStats nodeOperation(NodeRequest request) {
+        return new LTRNodeStats(clusterService.localNode(), ltrStoreService.stats(), ltrStoreService.memoryStats());
+    }
+
+    @Override
+    protected boolean accumulateExceptions() {
+        return false;
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+        public NodeRequest() {
+        }
+
+        NodeRequest(LTRStatsRequest request, String nodeId) {
+            super(request, nodeId);
+        }
+    }
+}
@@ -29,6 +29,7 @@ import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.Weight;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.ToXContent;
@@ -159,6 +160,16 @@ public class ESQueryFeature extends Feature {
             }
         }
 
+        @Override
+        public Float getConstantValue() {
+            // A query that was analyzed away will never match anything, the
+            // scorer would return 0 for every document.
+            if (esQueryWeight == null) {
+                return 0f;
+            }
+            return null;
+        }
+
         @Override
         public FeatureScorer scorer(LeafReaderContext context) throws IOException {
             Scorer esScorer = null;
@@ -190,6 +201,16 @@ public class ESQueryFeature extends Feature {
                 this.esScorer = esScorer;
             }
 
+            /**
+             * Exposes the two-phase view of the query, so the model scorer
+             * can advance the cheap approximation and only confirm matches
+             * for the documents it actually scores.
+             */
+            @Override
+            public TwoPhaseIterator twoPhaseIterator() {
+                return esScorer.twoPhaseIterator();
+            }
+
             @Override
             public float score() throws IOException {
                 // Is this try/catch any good? Query parsing failure happens in
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.feature;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.IndexSearcher;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.IndexQueryParserService;
+
+/**
+ * This feature computes its value from other features of the same feature
+ * store, without touching the index. The value is evaluated on the already
+ * extracted feature vector of the document.
+ *
+ * Example configuration:
+ *
+ * <pre>
+ * {
+  "name":  "titleMatchRatio",
+  "class": "org.wikimedia.search.ltr.feature.ExpressionFeature",
+  "params": {
+      "expression": "titleMatch / max(titleLength, 1)"
+  }
+}
+ * </pre>
+ *
+ * Expressions support numeric constants, the operators + - * / and ^
+ * (power), parentheses and the functions {@link FeatureExpression#FUNCTIONS}.
+ * Any other identifier refers to a feature of the same store, names with
+ * other characters than letters, digits and _ being quoted with backquotes.
+ * Dependencies are resolved when the feature store is linked, and cycles
+ * between expression features are rejected at that time.
+ */
+public class ExpressionFeature extends Feature {
+    private final String expression;
+    private final FeatureExpression compiled;
+    private List<Feature> dependencies = Collections.emptyList();
+    private int evaluationOrder = -1;
+
+    public ExpressionFeature(String name, Settings params) {
+        super(name, params);
+        expression = params.get("expression");
+        if (expression == null || expression.isEmpty()) {
+            throw new FeatureException(getClass().getSimpleName() + ": expression must be provided");
+        }
+        compiled = FeatureExpression.compile(expression);
+    }
+
+    @Override
+    public LinkedHashMap<String, Object> paramsToMap() {
+        final LinkedHashMap<String, Object> params = new LinkedHashMap<>(1, 1.0f);
+        params.put("expression", expression);
+        return params;
+    }
+
+    /**
+     * @return names of the features referenced by the expression
+     */
+    public Set<String> getVariables() {
+        return compiled.variables();
+    }
+
+    /**
+     * Resolves the variables of the expression to the given features. Called
+     * by the {@link org.wikimedia.search.ltr.store.FeatureStore} once all
+     * features of the store are known.
+     *
+     * @param dependencies
+     *            features referenced by the expression
+     * @param evaluationOrder
+     *            position of this feature in the topological order of all
+     *            expression features in the store
+     */
+    public void bind(List<Feature> dependencies, int evaluationOrder) {
+        compiled.bind(dependencies);
+        this.dependencies = Collections.unmodifiableList(new ArrayList<>(dependencies));
+        this.evaluationOrder = evaluationOrder;
+    }
+
+    public List<Feature> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * @return expression features with a lower order must be evaluated first
+     */
+    public int getEvaluationOrder() {
+        return evaluationOrder;
+    }
+
+    /**
+     * @param values
+     *            source of the values of the other features, keyed by their
+     *            index in the feature store
+     * @return the value of this feature
+     */
+    public float evaluate(FeatureExpression.Values values) {
+        if (evaluationOrder < 0) {
+            throw new FeatureException("Expression feature " + name + " has not been linked to its feature store");
+        }
+        return compiled.evaluate(values);
+    }
+
+    @Override
+    public FeatureWeight createWeight(IndexSearcher searcher, boolean needsScores, Settings efi,
+        IndexQueryParserService queryParserService) throws IOException {
+        return new ExpressionFeatureWeight(searcher, efi);
+    }
+
+    public class ExpressionFeatureWeight extends FeatureWeight {
+
+        public ExpressionFeatureWeight(IndexSearcher searcher, Settings efi) {
+            super(ExpressionFeature.this, searcher, efi);
+        }
+
+        public ExpressionFeature getFeature() {
+            return ExpressionFeature.this;
+        }
+
+        /**
+         * Expression features are not iterated, the ModelWeight evaluates
+         * them after the features they depend on have been extracted.
+         */
+        @Override
+        public FeatureScorer scorer(LeafReaderContext context) throws IOException {
+            return null;
+        }
+    }
+}
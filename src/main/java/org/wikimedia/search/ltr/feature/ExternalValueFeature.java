@@ -86,6 +86,13 @@ public class ExternalValueFeature extends Feature {
             }
         }
 
+        @Override
+        public Float getConstantValue() {
+            // When the efi is missing the feature has no value at all, which
+            // is already handled by returning a null scorer.
+            return featureValue;
+        }
+
         @Override
         public FeatureScorer scorer(LeafReaderContext context) throws IOException {
             if (featureValue != null)
@@ -17,7 +17,10 @@
 package org.wikimedia.search.ltr.feature;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.lucene.index.LeafReaderContext;
@@ -28,6 +31,8 @@ import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.index.query.IndexQueryParserService;
 
@@ -57,7 +62,16 @@ import org.elasticsearch.index.query.IndexQueryParserService;
  * the {@link #validate()} function, and must implement the
  * {@link #paramsToMap()} and createWeight() methods.
  */
-public abstract class Feature extends Query {
+public abstract class Feature extends Query implements Accountable {
+    private static final long STRING_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(String.class);
+    /**
+     * Estimated heap used by an entry of a hash map, without its key and
+     * value.
+     */
+    public static final long MAP_ENTRY_RAM_BYTES = RamUsageEstimator.alignObjectSize(
+        RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 3 * RamUsageEstimator.NUM_BYTES_OBJECT_REF
+            + RamUsageEstimator.NUM_BYTES_INT) + RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
     final protected String name;
     private int index = -1;
     private float defaultValue = 0.0f;
@@ -194,6 +208,40 @@ public abstract class Feature extends Query {
 
     public abstract LinkedHashMap<String, Object> paramsToMap();
 
+    /**
+     * Estimates the heap used by the feature and its params.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.shallowSizeOf(this) + ramBytesUsed(params);
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Estimates the heap used by the keys and values of settings. Their
+     * strings may be shared with the cluster state, they are counted anyway
+     * since whoever holds the settings keeps them alive.
+     */
+    public static long ramBytesUsed(Settings settings) {
+        long bytes = 0;
+        for (final Map.Entry<String, String> entry : settings.getAsMap().entrySet()) {
+            bytes += MAP_ENTRY_RAM_BYTES + ramBytesUsed(entry.getKey()) + ramBytesUsed(entry.getValue());
+        }
+        return bytes;
+    }
+
+    private static long ramBytesUsed(String string) {
+        if (string == null) {
+            return 0;
+        }
+        return STRING_RAM_BYTES + RamUsageEstimator.alignObjectSize(
+            RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) RamUsageEstimator.NUM_BYTES_CHAR * string.length());
+    }
+
     /**
      * Weight for a feature
      **/
@@ -239,6 +287,19 @@ public abstract class Feature extends Query {
         @Override
         public abstract FeatureScorer scorer(LeafReaderContext context) throws IOException;
 
+        /**
+         * Features whose value is the same for every document of a request,
+         * such as constants or values passed in the request, return that
+         * value here. The ModelWeight then writes it once into the feature
+         * vector and never iterates the feature's scorer.
+         *
+         * @return the value of this feature for every document, or null if
+         *         it depends on the document
+         */
+        public Float getConstantValue() {
+            return null;
+        }
+
         @Override
         public Explanation explain(LeafReaderContext context, int doc) throws IOException {
             final FeatureScorer r = scorer(context);
@@ -311,12 +372,39 @@ public abstract class Feature extends Query {
             }
         }
 
+        /**
+         * A FeatureScorer that can compute its value for any document of the
+         * segment directly, without being advanced. Doc values, norms and
+         * constants can be looked up this way, which is much cheaper than
+         * merging their iterators into the disjunction of the query features
+         * when only the documents of the rescore window are scored.
+         */
+        public abstract class RandomAccessFeatureScorer extends FeatureScorer {
+
+            public RandomAccessFeatureScorer(FeatureWeight weight, DocIdSetIterator itr) {
+                super(weight, itr);
+            }
+
+            /**
+             * @param doc
+             *            segment relative document id
+             * @return the value of the feature for the document, or the
+             *         default value if the document does not have one
+             */
+            public abstract float score(int doc) throws IOException;
+
+            @Override
+            public float score() throws IOException {
+                return score(docID());
+            }
+        }
+
         /**
          * Default FeatureScorer class that returns the score passed in. Can be
          * used as a simple ValueFeature, or to return a default scorer in case
          * an underlying feature's scorer is null.
          */
-        public class ValueFeatureScorer extends FeatureScorer {
+        public class ValueFeatureScorer extends RandomAccessFeatureScorer {
             float constScore;
 
             public ValueFeatureScorer(FeatureWeight weight, float constScore, DocIdSetIterator itr) {
@@ -325,7 +413,7 @@ public abstract class Feature extends Query {
             }
 
             @Override
-            public float score() {
+            public float score(int doc) {
                 return constScore;
             }
 
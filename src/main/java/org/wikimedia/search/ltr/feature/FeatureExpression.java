@@ -0,0 +1,525 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.feature;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A compiled arithmetic expression over feature values, used by
+ * {@link ExpressionFeature}.
+ * <p>
+ * The grammar is the usual one:
+ *
+ * <pre>
+ * expr    := term (('+' | '-') term)*
+ * term    := factor (('*' | '/') factor)*
+ * factor  := unary ('^' factor)?
+ * unary   := '-' unary | primary
+ * primary := number | identifier | '`' name '`' | identifier '(' expr (',' expr)* ')' | '(' expr ')'
+ * </pre>
+ *
+ * Identifiers are made of letters, digits and {@code _}. Features with other
+ * names are referenced between backquotes, a backquote of the name being
+ * doubled: {@code `title-match` / 2}.
+ */
+public class FeatureExpression {
+
+    public static final Set<String> FUNCTIONS;
+
+    static {
+        final ImmutableSet.Builder<String> functions = ImmutableSet.builder();
+        for (final FunctionType type : FunctionType.values()) {
+            functions.add(type.functionName());
+        }
+        FUNCTIONS = functions.build();
+    }
+
+    /**
+     * Source of the feature values an expression is evaluated against.
+     */
+    public interface Values {
+        /**
+         * @param featureIndex
+         *            index of the feature in its feature store
+         * @return the current value of that feature
+         */
+        float value(int featureIndex);
+    }
+
+    private final String source;
+    private final Node root;
+    private final Map<String, List<Variable>> variables;
+
+    private FeatureExpression(String source, Node root, Map<String, List<Variable>> variables) {
+        this.source = source;
+        this.root = root;
+        this.variables = variables;
+    }
+
+    public static FeatureExpression compile(String source) {
+        final Parser parser = new Parser(source);
+        final Node root = parser.parse();
+        return new FeatureExpression(source, root, parser.variables);
+    }
+
+    /**
+     * @return the names of the features referenced by this expression, in
+     *         order of first appearance
+     */
+    public Set<String> variables() {
+        return Collections.unmodifiableSet(variables.keySet());
+    }
+
+    /**
+     * Resolve all variables to a feature index.
+     *
+     * @param features
+     *            features providing the variables, looked up by name
+     */
+    void bind(List<Feature> features) {
+        final Map<String, Feature> byName = new HashMap<>();
+        for (Feature f : features) {
+            byName.put(f.getName(), f);
+        }
+        for (Map.Entry<String, List<Variable>> entry : variables.entrySet()) {
+            final Feature f = byName.get(entry.getKey());
+            if (f == null) {
+                throw new FeatureException("Expression [" + source + "] refers to unknown feature [" + entry.getKey()
+                    + "]");
+            }
+            for (Variable v : entry.getValue()) {
+                v.index = f.getIndex();
+            }
+        }
+    }
+
+    public float evaluate(Values values) {
+        return (float) root.eval(values);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private abstract static class Node {
+        abstract double eval(Values values);
+    }
+
+    private static class Constant extends Node {
+        private final double value;
+
+        Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        double eval(Values values) {
+            return value;
+        }
+    }
+
+    private static class Variable extends Node {
+        private int index = -1;
+
+        @Override
+        double eval(Values values) {
+            return values.value(index);
+        }
+    }
+
+    private static class Negate extends Node {
+        private final Node node;
+
+        Negate(Node node) {
+            this.node = node;
+        }
+
+        @Override
+        double eval(Values values) {
+            return -node.eval(values);
+        }
+    }
+
+    private static class Binary extends Node {
+        private final char op;
+        private final Node left;
+        private final Node right;
+
+        Binary(char op, Node left, Node right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        double eval(Values values) {
+            final double l = left.eval(values);
+            final double r = right.eval(values);
+            switch (op) {
+            case '+':
+                return l + r;
+            case '-':
+                return l - r;
+            case '*':
+                return l * r;
+            case '/':
+                return l / r;
+            case '^':
+                return Math.pow(l, r);
+            default:
+                throw new IllegalStateException("Unknown operator " + op);
+            }
+        }
+    }
+
+    /**
+     * Functions of an expression, resolved when it is parsed.
+     */
+    private enum FunctionType {
+        ABS(1) {
+            @Override
+            double apply(double a, double b) {
+                return Math.abs(a);
+            }
+        },
+        CEIL(1) {
+            @Override
+            double apply(double a, double b) {
+                return Math.ceil(a);
+            }
+        },
+        EXP(1) {
+            @Override
+            double apply(double a, double b) {
+                return Math.exp(a);
+            }
+        },
+        FLOOR(1) {
+            @Override
+            double apply(double a, double b) {
+                return Math.floor(a);
+            }
+        },
+        LOG(1) {
+            @Override
+            double apply(double a, double b) {
+                return Math.log(a);
+            }
+        },
+        LOG10(1) {
+            @Override
+            double apply(double a, double b) {
+                return Math.log10(a);
+            }
+        },
+        LOG1P(1) {
+            @Override
+            double apply(double a, double b) {
+                return Math.log1p(a);
+            }
+        },
+        MAX(2) {
+            @Override
+            double apply(double a, double b) {
+                return Math.max(a, b);
+            }
+        },
+        MIN(2) {
+            @Override
+            double apply(double a, double b) {
+                return Math.min(a, b);
+            }
+        },
+        POW(2) {
+            @Override
+            double apply(double a, double b) {
+                return Math.pow(a, b);
+            }
+        },
+        SIGMOID(1) {
+            @Override
+            double apply(double a, double b) {
+                return 1d / (1d + Math.exp(-a));
+            }
+        },
+        SQRT(1) {
+            @Override
+            double apply(double a, double b) {
+                return Math.sqrt(a);
+            }
+        };
+
+        private final int arity;
+
+        FunctionType(int arity) {
+            this.arity = arity;
+        }
+
+        String functionName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        /**
+         * @param b
+         *            second argument, 0 for functions of one argument
+         */
+        abstract double apply(double a, double b);
+
+        /**
+         * @return the function of that name, or null if there is none
+         */
+        static FunctionType fromName(String name) {
+            for (final FunctionType type : values()) {
+                if (type.functionName().equals(name)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class Function extends Node {
+        private final FunctionType type;
+        private final Node first;
+        // null for functions of one argument
+        private final Node second;
+
+        Function(FunctionType type, Node first, Node second) {
+            this.type = type;
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        double eval(Values values) {
+            return type.apply(first.eval(values), second == null ? 0 : second.eval(values));
+        }
+    }
+
+    private static class Parser {
+        private final String source;
+        // LinkedHashMap keeps variables in order of first appearance, which
+        // makes error messages and the dependency graph predictable.
+        private final Map<String, List<Variable>> variables = new LinkedHashMap<>();
+        private int pos = 0;
+
+        Parser(String source) {
+            this.source = source;
+        }
+
+        Node parse() {
+            final Node node = expr();
+            skipWhitespace();
+            if (pos < source.length()) {
+                throw error("unexpected character '" + source.charAt(pos) + "'");
+            }
+            return node;
+        }
+
+        private Node expr() {
+            Node node = term();
+            while (true) {
+                if (accept('+')) {
+                    node = new Binary('+', node, term());
+                } else if (accept('-')) {
+                    node = new Binary('-', node, term());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node term() {
+            Node node = factor();
+            while (true) {
+                if (accept('*')) {
+                    node = new Binary('*', node, factor());
+                } else if (accept('/')) {
+                    node = new Binary('/', node, factor());
+                } else {
+                    return node;
+                }
+            }
+        }
+
+        private Node factor() {
+            final Node node = unary();
+            if (accept('^')) {
+                return new Binary('^', node, factor());
+            }
+            return node;
+        }
+
+        private Node unary() {
+            if (accept('-')) {
+                return new Negate(unary());
+            }
+            return primary();
+        }
+
+        private Node primary() {
+            skipWhitespace();
+            if (pos >= source.length()) {
+                throw error("unexpected end of expression");
+            }
+            final char c = source.charAt(pos);
+            if (accept('(')) {
+                final Node node = expr();
+                expect(')');
+                return node;
+            }
+            if (Character.isDigit(c) || c == '.') {
+                return number();
+            }
+            if (c == '`') {
+                return variable(quotedIdentifier());
+            }
+            if (Character.isLetter(c) || c == '_') {
+                final String identifier = identifier();
+                if (accept('(')) {
+                    return function(identifier);
+                }
+                return variable(identifier);
+            }
+            throw error("unexpected character '" + c + "'");
+        }
+
+        private Node variable(String name) {
+            final Variable v = new Variable();
+            List<Variable> uses = variables.get(name);
+            if (uses == null) {
+                uses = new ArrayList<>();
+                variables.put(name, uses);
+            }
+            uses.add(v);
+            return v;
+        }
+
+        private Node function(String name) {
+            final FunctionType type = FunctionType.fromName(name);
+            if (type == null) {
+                throw error("unknown function [" + name + "]");
+            }
+            final List<Node> args = new ArrayList<>(2);
+            args.add(expr());
+            while (accept(',')) {
+                args.add(expr());
+            }
+            expect(')');
+            if (args.size() != type.arity) {
+                throw error("function [" + name + "] expects " + type.arity + " argument(s) but got "
+                    + args.size());
+            }
+            return new Function(type, args.get(0), type.arity == 2 ? args.get(1) : null);
+        }
+
+        private Node number() {
+            final int start = pos;
+            while (pos < source.length()) {
+                final char c = source.charAt(pos);
+                if (Character.isDigit(c) || c == '.') {
+                    pos++;
+                } else if ((c == 'e' || c == 'E') && pos > start) {
+                    pos++;
+                    if (pos < source.length() && (source.charAt(pos) == '-' || source.charAt(pos) == '+')) {
+                        pos++;
+                    }
+                } else {
+                    break;
+                }
+            }
+            try {
+                return new Constant(Double.parseDouble(source.substring(start, pos)));
+            } catch (NumberFormatException e) {
+                throw error("invalid number [" + source.substring(start, pos) + "]");
+            }
+        }
+
+        private String identifier() {
+            final int start = pos;
+            while (pos < source.length()) {
+                final char c = source.charAt(pos);
+                if (Character.isLetterOrDigit(c) || c == '_') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            return source.substring(start, pos);
+        }
+
+        /**
+         * @return the name between backquotes, a doubled backquote standing
+         *         for a backquote of the name
+         */
+        private String quotedIdentifier() {
+            final StringBuilder name = new StringBuilder();
+            // opening backquote
+            pos++;
+            while (pos < source.length()) {
+                final char c = source.charAt(pos++);
+                if (c != '`') {
+                    name.append(c);
+                } else if (pos < source.length() && source.charAt(pos) == '`') {
+                    name.append(c);
+                    pos++;
+                } else if (name.length() == 0) {
+                    throw error("empty feature name");
+                } else {
+                    return name.toString();
+                }
+            }
+            throw error("unterminated feature name");
+        }
+
+        private boolean accept(char c) {
+            skipWhitespace();
+            if (pos < source.length() && source.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!accept(c)) {
+                throw error("expected '" + c + "'");
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < source.length() && Character.isWhitespace(source.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private FeatureException error(String message) {
+            return new FeatureException("Unable to parse expression [" + source + "] at position " + pos + ": "
+                + message);
+        }
+    }
+}
@@ -110,7 +110,7 @@ public class FieldLengthFeature extends Feature {
             return new FieldLengthFeatureScorer(this, DocIdSetIterator.all(context.reader().maxDoc()), norms);
         }
 
-        public class FieldLengthFeatureScorer extends FeatureScorer {
+        public class FieldLengthFeatureScorer extends RandomAccessFeatureScorer {
 
             NumericDocValues norms = null;
 
@@ -131,8 +131,8 @@ public class FieldLengthFeature extends Feature {
             }
 
             @Override
-            public float score() throws IOException {
-                final long l = norms.get(docID());
+            public float score(int doc) throws IOException {
+                final long l = norms.get(doc);
                 final float numTerms = decodeNorm(l);
                 return numTerms;
             }
@@ -26,14 +26,21 @@ import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.index.fielddata.IndexNumericFieldData;
+import org.elasticsearch.index.fielddata.SortedNumericDoubleValues;
+import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.query.IndexQueryParserService;
+import org.elasticsearch.index.query.QueryParseContext;
 import org.elasticsearch.search.lookup.SourceLookup;
 
 import com.google.common.collect.Sets;
 
 /**
- * This feature returns the value of a field in the current document. Currently
- * this field must be a stored field, and not part of the _source.
+ * This feature returns the value of a field in the current document. By default
+ * the field must be a stored field. Set "source" to read it from the _source
+ * instead, or "docValues" to read it from the numeric doc values (or field
+ * data) of the field, which is by far the cheapest option.
  *
  * Example configuration:
  *
@@ -52,6 +59,7 @@ public class FieldValueFeature extends Feature {
     private final String field;
     private final Set<String> fieldAsSet;
     private final SourceLookup sourceLookup;
+    private final boolean docValues;
 
     public String getField() {
         return field;
@@ -64,6 +72,9 @@ public class FieldValueFeature extends Feature {
         if (sourceLookup != null) {
             params.put("source", "true");
         }
+        if (docValues) {
+            params.put("docValues", "true");
+        }
         return params;
     }
 
@@ -80,6 +91,10 @@ public class FieldValueFeature extends Feature {
         if (field == null) {
             throw new FeatureException(getClass().getSimpleName() + ": field must be provided");
         }
+        docValues = params.getAsBoolean("docValues", false);
+        if (docValues && params.getAsBoolean("source", false)) {
+            throw new FeatureException(getClass().getSimpleName() + ": source and docValues are mutually exclusive");
+        }
         if (params.getAsBoolean("source", false) == true) {
             fieldAsSet = null;
             sourceLookup = new SourceLookup();
@@ -92,21 +107,63 @@ public class FieldValueFeature extends Feature {
     @Override
     public FeatureWeight createWeight(IndexSearcher searcher, boolean needsScores, Settings efi,
         IndexQueryParserService queryParserService) throws IOException {
-        return new FieldValueFeatureWeight(searcher, efi);
+        IndexNumericFieldData fieldData = null;
+        if (docValues) {
+            final QueryParseContext parseContext = queryParserService.getParseContext();
+            final MappedFieldType fieldType = parseContext.mapperService().smartNameFieldType(field);
+            // An unmapped field will get the default value
+            if (fieldType != null) {
+                final IndexFieldData<?> ifd = parseContext.getForField(fieldType);
+                if (!(ifd instanceof IndexNumericFieldData)) {
+                    throw new FeatureException(getClass().getSimpleName() + ": field " + field + " is not numeric");
+                }
+                fieldData = (IndexNumericFieldData) ifd;
+            }
+        }
+        return new FieldValueFeatureWeight(searcher, efi, fieldData);
     }
 
     public class FieldValueFeatureWeight extends FeatureWeight {
+        private final IndexNumericFieldData fieldData;
 
-        public FieldValueFeatureWeight(IndexSearcher searcher, Settings efi) {
+        public FieldValueFeatureWeight(IndexSearcher searcher, Settings efi, IndexNumericFieldData fieldData) {
             super(FieldValueFeature.this, searcher, efi);
+            this.fieldData = fieldData;
         }
 
         @Override
         public FeatureScorer scorer(LeafReaderContext context) throws IOException {
+            if (docValues) {
+                if (fieldData == null) {
+                    return new ValueFeatureScorer(this, getDefaultValue(),
+                        DocIdSetIterator.all(DocIdSetIterator.NO_MORE_DOCS));
+                }
+                return new DocValuesFeatureScorer(this, fieldData.load(context).getDoubleValues(),
+                    DocIdSetIterator.all(context.reader().maxDoc()));
+            }
             return new FieldValueFeatureScorer(this, context, DocIdSetIterator.all(DocIdSetIterator.NO_MORE_DOCS));
         }
 
-        public class FieldValueFeatureScorer extends FeatureScorer {
+        public class DocValuesFeatureScorer extends RandomAccessFeatureScorer {
+            final SortedNumericDoubleValues values;
+
+            public DocValuesFeatureScorer(FeatureWeight weight, SortedNumericDoubleValues values,
+                DocIdSetIterator itr) {
+                super(weight, itr);
+                this.values = values;
+            }
+
+            @Override
+            public float score(int doc) {
+                values.setDocument(doc);
+                if (values.count() == 0) {
+                    return getDefaultValue();
+                }
+                return (float) values.valueAt(0);
+            }
+        }
+
+        public class FieldValueFeatureScorer extends RandomAccessFeatureScorer {
 
             LeafReaderContext context = null;
 
@@ -116,19 +173,19 @@ public class FieldValueFeature extends Feature {
             }
 
             @Override
-            public float score() throws IOException {
+            public float score(int doc) throws IOException {
 
                 try {
                     Number number = null;
                     if (sourceLookup == null) {
-                        final Document document = context.reader().document(itr.docID(), fieldAsSet);
+                        final Document document = context.reader().document(doc, fieldAsSet);
                         final IndexableField indexableField = document.getField(field);
                         if (indexableField == null) {
                             return getDefaultValue();
                         }
                         number = indexableField.numericValue();
                     } else {
-                        sourceLookup.setSegmentAndDocument(context, itr.docID());
+                        sourceLookup.setSegmentAndDocument(context, doc);
                         final Object value = sourceLookup.extractValue(field);
                         if (value != null && Number.class.isAssignableFrom(value.getClass())) {
                             number = (Number) value;
@@ -80,6 +80,11 @@ public class ValueFeature extends Feature {
             super(ValueFeature.this, searcher, efi);
         }
 
+        @Override
+        public Float getConstantValue() {
+            return configValue;
+        }
+
         @Override
         public FeatureScorer scorer(LeafReaderContext context) throws IOException {
             return new ValueFeatureScorer(this, configValue, DocIdSetIterator.all(DocIdSetIterator.NO_MORE_DOCS));
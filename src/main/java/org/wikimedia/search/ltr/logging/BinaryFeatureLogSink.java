@@ -0,0 +1,350 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.mapper.Uid;
+import org.wikimedia.search.ltr.FeatureLogSink;
+import org.wikimedia.search.ltr.FeatureLogger;
+import org.wikimedia.search.ltr.LTRScoringQuery.FeatureInfo;
+
+/**
+ * Feature log sink writing to local files in a compact binary format (see
+ * {@link FeatureLogFormat}), meant to collect training data at production
+ * query rates without going through the ES log.
+ * <p>
+ * Search threads only copy the feature values into a bounded lock-free ring
+ * buffer, a background thread started by the first vector logged writes them
+ * to rotating files. When the buffer is full the vector is dropped and
+ * counted, the search is never blocked. Node settings:
+ *
+ * <pre>
+ * ltr.feature_log.path           directory of the files, defaults to ltr/ in the logs directory
+ * ltr.feature_log.buffer_size    number of vectors the buffer holds, defaults to 65536
+ * ltr.feature_log.max_file_size  size after which a new file is started, defaults to 128mb
+ * ltr.feature_log.max_files      number of files kept, the oldest ones are deleted, defaults to 10
+ * ltr.feature_log.compress       gzip the files, defaults to false
+ * ltr.feature_log.flush_interval how often the writer flushes when idle, defaults to 1s
+ * </pre>
+ */
+public class BinaryFeatureLogSink extends AbstractLifecycleComponent<BinaryFeatureLogSink> implements FeatureLogSink {
+    public static final String SETTINGS_PREFIX = "ltr.feature_log.";
+    private static final int STOPPED = 1 << 30;
+
+    private final Path dir;
+    private final BoundedRingBuffer<Entry> buffer;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final boolean compress;
+    private final long flushIntervalNanos;
+
+    private final AtomicLong logged = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    // Number of calls to log in progress, with the STOPPED bit set once the
+    // sink is stopped
+    private final AtomicInteger state = new AtomicInteger(STOPPED);
+
+    private volatile boolean running;
+    private volatile boolean writerParked;
+    private volatile Thread writerThread;
+
+    @Inject
+    public BinaryFeatureLogSink(Settings settings, Environment environment) {
+        this(settings, environment.logsFile().resolve("ltr"));
+    }
+
+    public BinaryFeatureLogSink(Settings settings, Path defaultDir) {
+        super(settings);
+        final Settings sinkSettings = settings.getByPrefix(SETTINGS_PREFIX);
+        final String path = sinkSettings.get("path");
+        this.dir = path == null ? defaultDir : defaultDir.getFileSystem().getPath(path);
+        this.buffer = new BoundedRingBuffer<>(sinkSettings.getAsInt("buffer_size", 1 << 16));
+        this.maxFileSize = sinkSettings.getAsBytesSize("max_file_size", new ByteSizeValue(128, ByteSizeUnit.MB))
+            .bytes();
+        this.maxFiles = sinkSettings.getAsInt("max_files", 10);
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException(SETTINGS_PREFIX + "max_files must be at least 1");
+        }
+        this.compress = sinkSettings.getAsBoolean("compress", false);
+        this.flushIntervalNanos = sinkSettings.getAsTime("flush_interval", TimeValue.timeValueSeconds(1)).nanos();
+    }
+
+    /**
+     * A feature vector copied from the search thread. The names are shared by
+     * all the vectors of a query, only the values are copied.
+     */
+    static class Entry {
+        final long timestamp;
+        final String marker;
+        final String type;
+        final String id;
+        final String[] schema;
+        // bit set of the features of schema that were logged, null if all were
+        final long[] logged;
+        final float[] values;
+
+        Entry(long timestamp, String marker, String type, String id, String[] schema, long[] logged,
+            float[] values) {
+            this.timestamp = timestamp;
+            this.marker = marker;
+            this.type = type;
+            this.id = id;
+            this.schema = schema;
+            this.logged = logged;
+            this.values = values;
+        }
+
+        /**
+         * @return the names of the logged features
+         */
+        List<String> names() {
+            if (logged == null) {
+                return Arrays.asList(schema);
+            }
+            final List<String> names = new ArrayList<>(values.length);
+            for (int i = 0; i < schema.length; i++) {
+                if ((logged[i >>> 6] & (1L << i)) != 0) {
+                    names.add(schema[i]);
+                }
+            }
+            return names;
+        }
+    }
+
+    @Override
+    public boolean log(FeatureLogger logger, Uid uid, FeatureInfo[] featuresInfo) {
+        // Counts the calls in flight so that doStop can wait for their
+        // entries to be in the buffer before the writer drains it
+        if ((state.incrementAndGet() & STOPPED) != 0) {
+            state.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        try {
+            final Thread writer = writerThread == null ? startWriter() : writerThread;
+            if (!buffer.offer(copy(logger, uid, featuresInfo))) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (writerParked) {
+                LockSupport.unpark(writer);
+            }
+        } finally {
+            state.decrementAndGet();
+        }
+        logged.incrementAndGet();
+        return true;
+    }
+
+    private static Entry copy(FeatureLogger logger, Uid uid, FeatureInfo[] featuresInfo) {
+        final String[] schema = logger.featureNames(featuresInfo);
+        final boolean dense = logger.isDense();
+        int count = 0;
+        for (final FeatureInfo fInfo : featuresInfo) {
+            if (fInfo != null && (dense || fInfo.isUsed())) {
+                count++;
+            }
+        }
+        final float[] values = new float[count];
+        final long[] used = count == schema.length ? null : new long[(schema.length + 63) >>> 6];
+        int i = 0;
+        int pos = 0;
+        for (final FeatureInfo fInfo : featuresInfo) {
+            if (fInfo == null) {
+                continue;
+            }
+            if (dense || fInfo.isUsed()) {
+                values[i++] = fInfo.getValue();
+                if (used != null) {
+                    used[pos >>> 6] |= 1L << pos;
+                }
+            }
+            pos++;
+        }
+        return new Entry(System.currentTimeMillis(), logger.getMarker(), uid.type(), uid.id(), schema, used, values);
+    }
+
+    /**
+     * @return number of vectors accepted in the buffer
+     */
+    public long getLogged() {
+        return logged.get();
+    }
+
+    /**
+     * @return number of vectors dropped, because the buffer was full, the
+     *         sink was not running or a write failed
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of vectors written to the files
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * @return number of vectors waiting in the buffer
+     */
+    public int getPending() {
+        return buffer.size();
+    }
+
+    public Path getDirectory() {
+        return dir;
+    }
+
+    @Override
+    protected void doStart() {
+        running = true;
+        state.set(0);
+    }
+
+    /**
+     * Starts the writer on the first vector logged, nodes where the sink is
+     * never used do not run it.
+     */
+    private synchronized Thread startWriter() {
+        if (writerThread == null) {
+            final Thread thread = EsExecutors.daemonThreadFactory(settings, "ltr_feature_log").newThread(new Writer());
+            thread.start();
+            writerThread = thread;
+        }
+        return writerThread;
+    }
+
+    @Override
+    protected void doStop() {
+        int current = state.get();
+        while (!state.compareAndSet(current, current | STOPPED)) {
+            current = state.get();
+        }
+        // Vectors being logged are added to the buffer before the writer is
+        // told to drain it
+        while (state.get() != STOPPED) {
+            Thread.yield();
+        }
+        running = false;
+        final Thread thread;
+        synchronized (this) {
+            thread = writerThread;
+            writerThread = null;
+        }
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            final FeatureLogFileWriter out = new FeatureLogFileWriter(dir, maxFileSize, maxFiles, compress);
+            boolean dirty = false;
+            long lastFlush = System.nanoTime();
+            try {
+                while (true) {
+                    final Entry entry = buffer.poll();
+                    if (entry == null) {
+                        if (!running) {
+                            // the buffer is drained
+                            break;
+                        }
+                        final long sinceFlush = System.nanoTime() - lastFlush;
+                        if (dirty && sinceFlush >= flushIntervalNanos) {
+                            flush(out);
+                            dirty = false;
+                            lastFlush = System.nanoTime();
+                        }
+                        // Sleeps until a vector is logged, or it is time to
+                        // flush. Loggers unpark the writer once the flag is
+                        // visible, so the buffer is checked again after
+                        // setting it.
+                        writerParked = true;
+                        if (running && buffer.size() == 0) {
+                            if (dirty) {
+                                LockSupport.parkNanos(this, flushIntervalNanos - sinceFlush);
+                            } else {
+                                LockSupport.park(this);
+                            }
+                        }
+                        writerParked = false;
+                        continue;
+                    }
+                    try {
+                        out.write(entry);
+                        written.incrementAndGet();
+                        dirty = true;
+                    } catch (IOException e) {
+                        dropped.incrementAndGet();
+                        logger.warn("Unable to write feature vector to {}", e, dir);
+                        closeQuietly(out);
+                    }
+                }
+            } finally {
+                closeQuietly(out);
+            }
+        }
+
+        private void flush(FeatureLogFileWriter out) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                logger.warn("Unable to flush feature log in {}", e, dir);
+                closeQuietly(out);
+            }
+        }
+
+        private void closeQuietly(FeatureLogFileWriter out) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.warn("Unable to close feature log in {}", e, dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.lucene.util.CollectionUtil;
+
+/**
+ * Writes {@link BinaryFeatureLogSink.Entry entries} to rotating files in the
+ * {@link FeatureLogFormat}. Not thread safe, only used by the writer thread
+ * of the sink.
+ */
+class FeatureLogFileWriter implements Closeable {
+    static final String FILE_PREFIX = "features-";
+    static final String FILE_SUFFIX = ".ltrf";
+    static final String COMPRESSED_SUFFIX = ".gz";
+
+    private final Path dir;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final boolean compress;
+
+    private final Map<List<String>, Integer> schemas = new HashMap<>();
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+    private final DataOutputStream recordData = new DataOutputStream(record);
+    private OutputStream out;
+    private long fileSize;
+    private int sequence;
+
+    FeatureLogFileWriter(Path dir, long maxFileSize, int maxFiles, boolean compress) {
+        this.dir = dir;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.compress = compress;
+    }
+
+    void write(BinaryFeatureLogSink.Entry entry) throws IOException {
+        if (out == null) {
+            open();
+        }
+        final List<String> names = entry.names();
+        Integer schemaId = schemas.get(names);
+        if (schemaId == null) {
+            schemaId = schemas.size();
+            record.reset();
+            record.write(FeatureLogFormat.SCHEMA);
+            FeatureLogFormat.writeVInt(record, schemaId);
+            FeatureLogFormat.writeVInt(record, names.size());
+            for (final String name : names) {
+                FeatureLogFormat.writeString(record, name);
+            }
+            writeRecord();
+            schemas.put(names, schemaId);
+        }
+        record.reset();
+        record.write(FeatureLogFormat.VECTOR);
+        FeatureLogFormat.writeVInt(record, schemaId);
+        recordData.writeLong(entry.timestamp);
+        FeatureLogFormat.writeString(record, entry.marker);
+        FeatureLogFormat.writeString(record, entry.type);
+        FeatureLogFormat.writeString(record, entry.id);
+        for (final float value : entry.values) {
+            recordData.writeFloat(value);
+        }
+        writeRecord();
+        if (fileSize >= maxFileSize) {
+            close();
+        }
+    }
+
+    private void writeRecord() throws IOException {
+        FeatureLogFormat.writeVInt(out, record.size());
+        record.writeTo(out);
+        // The size limit is on uncompressed bytes, compressed files are
+        // smaller than that
+        fileSize += record.size() + 5;
+    }
+
+    void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(dir);
+        deleteOldFiles(maxFiles - 1);
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final String name = String.format(Locale.ROOT, "%s%s-%05d%s%s", FILE_PREFIX, format.format(new Date()),
+            sequence++ % 100000, FILE_SUFFIX, compress ? COMPRESSED_SUFFIX : "");
+        OutputStream stream = new BufferedOutputStream(Files.newOutputStream(dir.resolve(name)), 64 * 1024);
+        if (compress) {
+            stream = new GZIPOutputStream(stream, 64 * 1024, true);
+        }
+        out = stream;
+        fileSize = 0;
+        schemas.clear();
+        FeatureLogFormat.writeHeader(out);
+    }
+
+    /**
+     * Deletes the oldest log files so that at most keep of them remain.
+     */
+    private void deleteOldFiles(int keep) throws IOException {
+        final List<Path> files = listFiles(dir);
+        for (int i = 0; i < files.size() - Math.max(0, keep); i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    /**
+     * @return the feature log files of dir, oldest first
+     */
+    static List<Path> listFiles(Path dir) throws IOException {
+        final List<Path> files = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_PREFIX + "*" + FILE_SUFFIX + "*")) {
+            for (final Path file : stream) {
+                files.add(file);
+            }
+        }
+        // file names start with their creation time
+        CollectionUtil.timSort(files);
+        return files;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (out != null) {
+            try {
+                out.close();
+            } finally {
+                out = null;
+            }
+        }
+    }
+}
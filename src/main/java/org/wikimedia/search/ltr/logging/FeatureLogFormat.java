@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary format of the files written by {@link BinaryFeatureLogSink}.
+ * <p>
+ * A file starts with the magic bytes {@code LTRF} and a version byte,
+ * followed by records. Each record is a vint length followed by that many
+ * bytes of payload, whose first byte is the record type:
+ *
+ * <pre>
+ * schema: 1, vint schemaId, vint count, count * string (feature names)
+ * vector: 2, vint schemaId, int64 timestamp, string marker, string type, string id,
+ *         count * float32 (values, in the order of the schema)
+ * </pre>
+ *
+ * Strings are a vint byte length followed by UTF-8 bytes, numbers are
+ * big-endian and vints use 7 bits per byte, low bits first. A schema record
+ * always precedes the first vector using it, schema ids are local to a file.
+ * Files may be gzip compressed as a whole.
+ */
+public final class FeatureLogFormat {
+    static final byte[] MAGIC = { 'L', 'T', 'R', 'F' };
+    static final byte VERSION = 1;
+    static final byte SCHEMA = 1;
+    static final byte VECTOR = 2;
+
+    private FeatureLogFormat() {
+    }
+
+    /**
+     * A feature vector read back from a log file.
+     */
+    public static class Record {
+        private final long timestamp;
+        private final String marker;
+        private final String type;
+        private final String id;
+        private final List<String> names;
+        private final float[] values;
+
+        Record(long timestamp, String marker, String type, String id, List<String> names, float[] values) {
+            this.timestamp = timestamp;
+            this.marker = marker;
+            this.type = type;
+            this.id = id;
+            this.names = names;
+            this.values = values;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public String getMarker() {
+            return marker;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public List<String> getNames() {
+            return names;
+        }
+
+        public float[] getValues() {
+            return values;
+        }
+    }
+
+    /**
+     * Reads the records of one (uncompressed) log file stream.
+     */
+    public static class Reader {
+        private final DataInputStream in;
+        private final List<List<String>> schemas = new ArrayList<>();
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new DataInputStream(in);
+            final byte[] header = new byte[MAGIC.length + 1];
+            this.in.readFully(header);
+            if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+                throw new IOException("Not a feature log file");
+            }
+            if (header[MAGIC.length] != VERSION) {
+                throw new IOException("Unsupported feature log version [" + header[MAGIC.length] + "]");
+            }
+        }
+
+        /**
+         * @return the next vector, or null at the end of the stream
+         */
+        public Record next() throws IOException {
+            while (true) {
+                final int length;
+                try {
+                    length = readVInt(in);
+                } catch (EOFException e) {
+                    return null;
+                }
+                final byte type = in.readByte();
+                if (type == SCHEMA) {
+                    final int schemaId = readVInt(in);
+                    final int count = readVInt(in);
+                    final List<String> names = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        names.add(readString(in));
+                    }
+                    if (schemaId != schemas.size()) {
+                        throw new IOException("Unexpected schema id [" + schemaId + "]");
+                    }
+                    schemas.add(names);
+                } else if (type == VECTOR) {
+                    final int schemaId = readVInt(in);
+                    if (schemaId >= schemas.size()) {
+                        throw new IOException("Unknown schema id [" + schemaId + "]");
+                    }
+                    final List<String> names = schemas.get(schemaId);
+                    final long timestamp = in.readLong();
+                    final String marker = readString(in);
+                    final String docType = readString(in);
+                    final String id = readString(in);
+                    final float[] values = new float[names.size()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = in.readFloat();
+                    }
+                    return new Record(timestamp, marker, docType, id, names, values);
+                } else {
+                    // Unknown record type from a newer writer, skip it
+                    int remaining = length - 1;
+                    while (remaining > 0) {
+                        remaining -= in.skipBytes(remaining);
+                    }
+                }
+            }
+        }
+    }
+
+    static void writeHeader(OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    static void writeVInt(OutputStream out, int i) throws IOException {
+        while ((i & ~0x7F) != 0) {
+            out.write((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        out.write(i);
+    }
+
+    static void writeString(ByteArrayOutputStream out, String s) throws IOException {
+        final byte[] bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        writeVInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static int readVInt(DataInputStream in) throws IOException {
+        int i = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            i |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return i;
+            }
+        }
+        throw new IOException("Invalid vint");
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[readVInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
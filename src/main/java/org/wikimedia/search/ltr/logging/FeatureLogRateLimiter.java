@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Node wide limit on the number of feature vectors logged per second, shared
+ * by all the log sinks. A token bucket holding up to one second worth of
+ * vectors, implemented as the time at which the bucket will be full again
+ * (the generic cell rate algorithm) so that acquiring is a single CAS.
+ * <p>
+ * Configured with the {@code ltr.feature_log.max_vectors_per_second} node
+ * setting, 0 (the default) disables the limit.
+ */
+public class FeatureLogRateLimiter extends AbstractComponent {
+    private final long intervalNanos;
+    private final long burstNanos;
+    // time at which the bucket will be full again
+    private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong rejected = new AtomicLong();
+
+    @Inject
+    public FeatureLogRateLimiter(Settings settings) {
+        this(settings, settings.getAsDouble(BinaryFeatureLogSink.SETTINGS_PREFIX + "max_vectors_per_second", 0d));
+    }
+
+    public FeatureLogRateLimiter(Settings settings, double vectorsPerSecond) {
+        super(settings);
+        if (vectorsPerSecond < 0) {
+            throw new IllegalArgumentException(
+                BinaryFeatureLogSink.SETTINGS_PREFIX + "max_vectors_per_second must be positive");
+        }
+        if (vectorsPerSecond == 0) {
+            intervalNanos = 0;
+            burstNanos = 0;
+        } else {
+            intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / vectorsPerSecond));
+            burstNanos = Math.max(intervalNanos, TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * @return true if the limit is enabled
+     */
+    public boolean isEnabled() {
+        return intervalNanos > 0;
+    }
+
+    /**
+     * Takes a token from the bucket.
+     *
+     * @return false if the bucket is empty, the vector should then not be
+     *         logged
+     */
+    public boolean tryAcquire() {
+        if (intervalNanos == 0) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        while (true) {
+            final long current = fullAt.get();
+            final long next = Math.max(current, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return number of vectors that were not logged because of the limit
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+}
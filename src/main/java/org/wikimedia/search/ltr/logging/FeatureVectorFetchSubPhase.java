@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.SearchParseElement;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.elasticsearch.search.internal.SearchContext;
+import org.wikimedia.search.ltr.LTRScoringQuery.FeatureInfo;
+
+/**
+ * Adds the feature vectors of the ltr queries logging to the "response" sink
+ * to the returned hits, as the {@value #FIELD} field. The field has one
+ * value per such query, formatted by its logger.
+ */
+public class FeatureVectorFetchSubPhase implements FetchSubPhase {
+    public static final String FIELD = "_ltr_features";
+
+    public static final ContextFactory<HitFeatureVectors> CONTEXT_FACTORY = new ContextFactory<HitFeatureVectors>() {
+        @Override
+        public String getName() {
+            return "ltr_features";
+        }
+
+        @Override
+        public HitFeatureVectors newContextInstance() {
+            return new HitFeatureVectors();
+        }
+    };
+
+    @Override
+    public Map<String, ? extends SearchParseElement> parseElements() {
+        // enabled by the ltr query itself
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public boolean hitExecutionNeeded(SearchContext context) {
+        return context.getFetchSubPhaseContext(CONTEXT_FACTORY).hitExecutionNeeded();
+    }
+
+    @Override
+    public void hitExecute(SearchContext context, HitContext hitContext) {
+        final HitFeatureVectors hitVectors = context.getFetchSubPhaseContext(CONTEXT_FACTORY);
+        final InternalSearchHit hit = hitContext.hit();
+        final Uid uid = new Uid(hit.type(), hit.id());
+        final List<Object> values = new ArrayList<>(hitVectors.getVectors().size());
+        try {
+            for (final HitFeatureVectors.Vectors vectors : hitVectors.getVectors()) {
+                final FeatureInfo[] featuresInfo = vectors.get(hitContext);
+                if (featuresInfo != null) {
+                    final Object vector = vectors.getLogger().makeHitFeatureVector(uid, featuresInfo);
+                    if (vector != null) {
+                        values.add(vector);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new ElasticsearchException("Unable to extract the features of [" + uid + "]", e);
+        }
+        if (values.isEmpty()) {
+            return;
+        }
+        if (hit.fieldsOrNull() == null) {
+            hit.fields(new HashMap<String, SearchHitField>(2));
+        }
+        hit.fields().put(FIELD, new InternalSearchHitField(FIELD, values));
+    }
+
+    @Override
+    public boolean hitsExecutionNeeded(SearchContext context) {
+        return false;
+    }
+
+    @Override
+    public void hitsExecute(SearchContext context, InternalSearchHit[] hits) {
+    }
+}
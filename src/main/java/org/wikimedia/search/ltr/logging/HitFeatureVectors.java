@@ -0,0 +1,208 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.FloatArray;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.common.util.LongHash;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.search.fetch.FetchSubPhase.HitContext;
+import org.elasticsearch.search.fetch.FetchSubPhaseContext;
+import org.wikimedia.search.ltr.FeatureLogSink;
+import org.wikimedia.search.ltr.FeatureLogger;
+import org.wikimedia.search.ltr.LTRScoringQuery;
+import org.wikimedia.search.ltr.LTRScoringQuery.FeatureInfo;
+
+/**
+ * Feature vectors of the ltr queries of a search request whose logger uses
+ * the "response" sink, kept in the search context until the fetch phase
+ * adds them to the returned hits (see {@link FeatureVectorFetchSubPhase}).
+ * <p>
+ * Vectors computed while rescoring are kept as raw values and only
+ * formatted for the hits actually returned. They are stored in arrays of the
+ * {@link BigArrays} of the search request, accounted to the request circuit
+ * breaker: a request collecting too many vectors fails instead of putting
+ * the node under memory pressure. Hits that were not scored by
+ * the query, because it is not a rescore query or the hit is outside of the
+ * window, are extracted again when fetched.
+ */
+public class HitFeatureVectors extends FetchSubPhaseContext {
+    /**
+     * Sink of the loggers whose vectors go to the search response: they are
+     * collected by the query instead of being logged, so nothing is ever
+     * written to it.
+     */
+    public static final FeatureLogSink RESPONSE_SINK = new FeatureLogSink() {
+        @Override
+        public boolean log(FeatureLogger logger, Uid uid, FeatureInfo[] featuresInfo) {
+            return false;
+        }
+    };
+
+    private final List<Vectors> vectors = new ArrayList<>(1);
+
+    /**
+     * Registers a query whose vectors should be returned with the hits.
+     *
+     * @param bigArrays
+     *            allocates the collected vectors, which must be released with
+     *            {@link Vectors#close()}
+     */
+    public Vectors add(LTRScoringQuery query, FeatureLogger logger, BigArrays bigArrays) {
+        final Vectors v = new Vectors(query, logger, bigArrays);
+        vectors.add(v);
+        return v;
+    }
+
+    public List<Vectors> getVectors() {
+        return Collections.unmodifiableList(vectors);
+    }
+
+    @Override
+    public boolean hitExecutionNeeded() {
+        return !vectors.isEmpty();
+    }
+
+    /**
+     * Feature vectors of one query, by global doc id.
+     */
+    public static class Vectors implements Releasable {
+        private final LTRScoringQuery query;
+        private final FeatureLogger logger;
+        private final BigArrays bigArrays;
+        // slots of the collected vectors, by global doc id
+        private final LongHash slots;
+        // features of the first vector collected, the names are the same for
+        // every doc
+        private FeatureInfo[] template;
+        // values of the vector of each slot, template.length per slot
+        private FloatArray values;
+        // bits set for the features used in each vector
+        private LongArray used;
+        private LTRScoringQuery.ModelWeight weight;
+        private int extracted;
+
+        Vectors(LTRScoringQuery query, FeatureLogger logger, BigArrays bigArrays) {
+            this.query = query;
+            this.logger = logger;
+            this.bigArrays = bigArrays;
+            this.slots = new LongHash(16, bigArrays);
+        }
+
+        public FeatureLogger getLogger() {
+            return logger;
+        }
+
+        /**
+         * Called by the query for every doc it scores.
+         *
+         * @param featuresInfo
+         *            the features of the doc, their values are copied
+         * @throws org.elasticsearch.common.breaker.CircuitBreakingException
+         *             if the vectors do not fit in the request circuit breaker
+         */
+        public void collect(int doc, FeatureInfo[] featuresInfo) {
+            long slot = slots.add(doc);
+            if (slot < 0) {
+                // scored again
+                slot = -1 - slot;
+            }
+            if (template == null) {
+                template = featuresInfo.clone();
+                values = bigArrays.newFloatArray(16L * template.length, false);
+                used = bigArrays.newLongArray(bits(16L * template.length));
+            }
+            final long start = slot * template.length;
+            values = bigArrays.grow(values, start + template.length);
+            used = bigArrays.grow(used, bits(start + template.length));
+            for (int i = 0; i < template.length; i++) {
+                final FeatureInfo fInfo = featuresInfo[i];
+                if (fInfo == null) {
+                    continue;
+                }
+                values.set(start + i, fInfo.getValue());
+                setUsed(start + i, fInfo.isUsed());
+            }
+        }
+
+        private static long bits(long size) {
+            return (size + 63) >>> 6;
+        }
+
+        private void setUsed(long index, boolean isUsed) {
+            final long word = used.get(index >>> 6);
+            final long mask = 1L << index;
+            used.set(index >>> 6, isUsed ? word | mask : word & ~mask);
+        }
+
+        private boolean isUsed(long index) {
+            return (used.get(index >>> 6) & (1L << index)) != 0;
+        }
+
+        /**
+         * @return the features of the hit, extracting them if the query did
+         *         not score it
+         */
+        FeatureInfo[] get(HitContext hitContext) throws IOException {
+            final long slot = slots.find(hitContext.readerContext().docBase + hitContext.docId());
+            if (slot >= 0) {
+                final long start = slot * template.length;
+                final FeatureInfo[] featuresInfo = new FeatureInfo[template.length];
+                for (int i = 0; i < template.length; i++) {
+                    if (template[i] != null) {
+                        featuresInfo[i] = template[i].copy(values.get(start + i), isUsed(start + i));
+                    }
+                }
+                return featuresInfo;
+            }
+            if (weight == null) {
+                // not through the searcher, which may wrap the weight: the
+                // model weight ignores normalization anyway
+                weight = query.createWeight(hitContext.topLevelSearcher(), true);
+            }
+            extracted++;
+            return weight.extractFeatures(hitContext.readerContext(), hitContext.docId());
+        }
+
+        /**
+         * @return number of vectors collected while scoring
+         */
+        public int getCollected() {
+            return (int) slots.size();
+        }
+
+        /**
+         * @return number of vectors extracted again in the fetch phase
+         */
+        public int getExtracted() {
+            return extracted;
+        }
+
+        @Override
+        public void close() {
+            Releasables.close(slots, values, used);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable UTF-8 byte buffer the feature loggers encode their vectors into.
+ * Meant to be reused: {@link #get()} returns a buffer per thread, emptied.
+ * <p>
+ * Strings are encoded without intermediate allocations, and JSON strings
+ * are escaped the way the XContent JSON generator does, so that the output
+ * is the same as building the vector with an XContentBuilder.
+ */
+public class Utf8Buffer {
+    private static final int INITIAL_SIZE = 512;
+    // Larger buffers are released after use, not to keep a big vector's
+    // buffer around on every search thread
+    private static final int MAX_RETAINED_SIZE = 64 * 1024;
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E',
+        'F' };
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+
+    private static final ThreadLocal<Utf8Buffer> BUFFERS = new ThreadLocal<Utf8Buffer>() {
+        @Override
+        protected Utf8Buffer initialValue() {
+            return new Utf8Buffer(INITIAL_SIZE);
+        }
+    };
+
+    private byte[] bytes;
+    private int length;
+
+    public Utf8Buffer(int size) {
+        bytes = new byte[size];
+    }
+
+    /**
+     * @return the empty buffer of the current thread
+     */
+    public static Utf8Buffer get() {
+        final Utf8Buffer buffer = BUFFERS.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    public void reset() {
+        length = 0;
+        if (bytes.length > MAX_RETAINED_SIZE) {
+            bytes = new byte[INITIAL_SIZE];
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Removes the last bytes of the buffer.
+     */
+    public void truncate(int newLength) {
+        assert newLength >= 0 && newLength <= length;
+        length = newLength;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(length + extra, bytes.length << 1));
+        }
+    }
+
+    public Utf8Buffer append(byte b) {
+        ensureCapacity(1);
+        bytes[length++] = b;
+        return this;
+    }
+
+    public Utf8Buffer append(byte[] b) {
+        ensureCapacity(b.length);
+        System.arraycopy(b, 0, bytes, length, b.length);
+        length += b.length;
+        return this;
+    }
+
+    /**
+     * Appends s encoded in UTF-8, "null" if s is null like
+     * {@link StringBuilder#append(String)}.
+     */
+    public Utf8Buffer append(String s) {
+        if (s == null) {
+            return append(NULL);
+        }
+        final int len = s.length();
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else {
+                i = appendNonAscii(s, i, len);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Appends s as a quoted and escaped JSON string, or the null literal.
+     */
+    public Utf8Buffer appendJsonString(String s) {
+        if (s == null) {
+            return append(NULL);
+        }
+        final int len = s.length();
+        ensureCapacity(len + 2);
+        bytes[length++] = '"';
+        for (int i = 0; i < len; i++) {
+            final char c = s.charAt(i);
+            if (Character.isSurrogate(c)) {
+                // the JSON generator escapes chars outside of the BMP
+                appendUnicodeEscape(c);
+            } else if (c >= 0x80) {
+                i = appendNonAscii(s, i, len);
+            } else if (c == '"' || c == '\\') {
+                ensureCapacity(2);
+                bytes[length++] = '\\';
+                bytes[length++] = (byte) c;
+            } else if (c < 0x20) {
+                appendControl(c);
+            } else {
+                ensureCapacity(1);
+                bytes[length++] = (byte) c;
+            }
+        }
+        ensureCapacity(1);
+        bytes[length++] = '"';
+        return this;
+    }
+
+    private void appendControl(char c) {
+        final char escape;
+        switch (c) {
+        case '\b':
+            escape = 'b';
+            break;
+        case '\t':
+            escape = 't';
+            break;
+        case '\n':
+            escape = 'n';
+            break;
+        case '\f':
+            escape = 'f';
+            break;
+        case '\r':
+            escape = 'r';
+            break;
+        default:
+            appendUnicodeEscape(c);
+            return;
+        }
+        ensureCapacity(2);
+        bytes[length++] = '\\';
+        bytes[length++] = (byte) escape;
+    }
+
+    private void appendUnicodeEscape(char c) {
+        ensureCapacity(6);
+        bytes[length++] = '\\';
+        bytes[length++] = 'u';
+        bytes[length++] = HEX[c >> 12];
+        bytes[length++] = HEX[(c >> 8) & 0xF];
+        bytes[length++] = HEX[(c >> 4) & 0xF];
+        bytes[length++] = HEX[c & 0xF];
+    }
+
+    /**
+     * Encodes the non ascii char at i.
+     *
+     * @return the index of the last char consumed
+     */
+    private int appendNonAscii(String s, int i, int len) {
+        // also keeps the room reserved for the rest of the string
+        ensureCapacity(4 + len - i);
+        final char c = s.charAt(i);
+        if (c < 0x800) {
+            bytes[length++] = (byte) (0xC0 | (c >> 6));
+            bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            return i;
+        }
+        if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+            final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            bytes[length++] = (byte) (0xF0 | (cp >> 18));
+            bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+            return i + 1;
+        }
+        if (Character.isSurrogate(c)) {
+            // unpaired surrogate, replaced like String.getBytes() does
+            bytes[length++] = '?';
+            return i;
+        }
+        bytes[length++] = (byte) (0xE0 | (c >> 12));
+        bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        bytes[length++] = (byte) (0x80 | (c & 0x3F));
+        return i;
+    }
+
+    /**
+     * Appends f formatted like {@link Float#toString(float)}. Integral values,
+     * the most common ones for features such as counts or flags, are written
+     * directly, others go through Float.toString.
+     */
+    public Utf8Buffer append(float f) {
+        if (f == (int) f && Math.abs(f) < 1e7f && (f != 0 || Float.floatToRawIntBits(f) == 0)) {
+            // Float.toString writes those as the integer followed by .0, and
+            // they are exactly representable as ints
+            appendInt((int) f);
+            ensureCapacity(2);
+            bytes[length++] = '.';
+            bytes[length++] = '0';
+            return this;
+        }
+        return append(Float.toString(f));
+    }
+
+    private void appendInt(int i) {
+        ensureCapacity(11);
+        if (i < 0) {
+            bytes[length++] = '-';
+            i = -i;
+        }
+        final int start = length;
+        do {
+            bytes[length++] = (byte) ('0' + i % 10);
+            i /= 10;
+        } while (i != 0);
+        // digits were written least significant first
+        for (int a = start, b = length - 1; a < b; a++, b--) {
+            final byte t = bytes[a];
+            bytes[a] = bytes[b];
+            bytes[b] = t;
+        }
+    }
+
+    /**
+     * Appends f as a JSON number, or a quoted string for NaN and infinities
+     * which have no JSON representation.
+     */
+    public Utf8Buffer appendJsonFloat(float f) {
+        if (Float.isNaN(f) || Float.isInfinite(f)) {
+            return append((byte) '"').append(Float.toString(f)).append((byte) '"');
+        }
+        return append(f);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a copy of the bytes of the buffer
+     */
+    public byte[] toBytes() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * @return s encoded in UTF-8
+     */
+    public static byte[] encode(String s) {
+        return new Utf8Buffer(s.length() + 8).append(s).toBytes();
+    }
+}
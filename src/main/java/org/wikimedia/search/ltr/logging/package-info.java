@@ -0,0 +1 @@
+package org.wikimedia.search.ltr.logging;
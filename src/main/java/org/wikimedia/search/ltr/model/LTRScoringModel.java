@@ -16,14 +16,19 @@
  */
 package org.wikimedia.search.ltr.model;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.Explanation;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
@@ -77,7 +82,7 @@ import org.wikimedia.search.ltr.norm.Normalizer;
  * implement the {@link #score(float[])} and
  * {@link #explain(LeafReaderContext, int, float, List)} methods.
  */
-public abstract class LTRScoringModel {
+public abstract class LTRScoringModel implements Accountable {
     private static ESLogger log = ESLoggerFactory.getLogger(LTRScoringModel.class.getCanonicalName());
 
     protected final String name;
@@ -90,6 +95,20 @@ public abstract class LTRScoringModel {
     public static LTRScoringModel getInstance(String className, String name, List<Feature> features,
         List<Normalizer> norms, String featureStoreName, List<Feature> allFeatures, Settings params)
         throws ModelException {
+        return getInstance(className, name, features, norms, featureStoreName, allFeatures, params, null);
+    }
+
+    /**
+     * Creates the model with the constructor taking the
+     * {@link OffHeapDirectory} of the node as last argument if the class has
+     * one, with the other one otherwise.
+     *
+     * @param offHeapDirectory
+     *            directory of the node, or null outside of a node
+     */
+    public static LTRScoringModel getInstance(String className, String name, List<Feature> features,
+        List<Normalizer> norms, String featureStoreName, List<Feature> allFeatures, Settings params,
+        OffHeapDirectory offHeapDirectory) throws ModelException {
         Class<?> clazz;
         try {
             clazz = LTRScoringModel.class.getClassLoader().loadClass(className);
@@ -102,9 +121,21 @@ public abstract class LTRScoringModel {
         // create an instance of the model
         LTRScoringModel model;
         try {
-            model = (LTRScoringModel) clazz
-                .getConstructor(String.class, List.class, List.class, String.class, List.class, Settings.class)
-                .newInstance(name, features, norms, featureStoreName, allFeatures, params);
+            Constructor<?> constructor;
+            try {
+                constructor = clazz.getConstructor(String.class, List.class, List.class, String.class, List.class,
+                    Settings.class, OffHeapDirectory.class);
+            } catch (NoSuchMethodException e) {
+                constructor = null;
+            }
+            if (constructor != null) {
+                model = (LTRScoringModel) constructor.newInstance(name, features, norms, featureStoreName,
+                    allFeatures, params, offHeapDirectory);
+            } else {
+                model = (LTRScoringModel) clazz
+                    .getConstructor(String.class, List.class, List.class, String.class, List.class, Settings.class)
+                    .newInstance(name, features, norms, featureStoreName, allFeatures, params);
+            }
         } catch (NoSuchMethodException e) {
             throw new ModelException("Model type does not have valid constructor: " + className, e);
         } catch (InvocationTargetException e) {
@@ -248,6 +279,67 @@ public abstract class LTRScoringModel {
         return featureStoreName;
     }
 
+    /**
+     * @return the names of the features the scores depend on, all the
+     *         features of the model unless the model ignores some of them
+     */
+    public Set<String> getReferencedFeatures() {
+        final Set<String> names = new LinkedHashSet<>();
+        for (final Feature feature : features) {
+            names.add(feature.getName());
+        }
+        return names;
+    }
+
+    /**
+     * Estimates the heap used by the model. The features are not counted,
+     * they belong to the feature store and are shared by its models.
+     */
+    @Override
+    public long ramBytesUsed() {
+        long bytes = RamUsageEstimator.shallowSizeOf(this) + Feature.ramBytesUsed(params);
+        // the lists of features and norms
+        bytes += 2 * RamUsageEstimator.alignObjectSize(
+            RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * features.size());
+        for (final Normalizer norm : norms) {
+            if (norm != IdentityNormalizer.INSTANCE) {
+                bytes += RamUsageEstimator.shallowSizeOf(norm);
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the bytes held by the model outside of the heap
+     */
+    public long offHeapBytesUsed() {
+        return 0;
+    }
+
+    /**
+     * Takes a reference on the resources held off heap by the model, which
+     * are released once the model store and every search using the model
+     * released theirs.
+     *
+     * @return false if the resources of the model were already released, the
+     *         model can then no longer be used
+     */
+    public boolean tryIncRef() {
+        return true;
+    }
+
+    /**
+     * Releases a reference taken with {@link #tryIncRef()}, or the one of the
+     * model store when the model is replaced or deleted.
+     */
+    public void decRef() {
+    }
+
     /**
      * Given a list of normalized values for all features a scoring algorithm
      * cares about, calculate and return a score.
@@ -17,10 +17,13 @@
 package org.wikimedia.search.ltr.model;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.Explanation;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.elasticsearch.common.settings.Settings;
 import org.wikimedia.search.ltr.feature.Feature;
 import org.wikimedia.search.ltr.norm.Normalizer;
@@ -67,6 +70,7 @@ import org.wikimedia.search.ltr.norm.Normalizer;
 public class LinearModel extends LTRScoringModel {
 
     static final String WEIGHTS_KEY = "weights";
+    private static final long FLOAT_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(Float.class);
 
     protected Float[] featureToWeight;
 
@@ -115,6 +119,26 @@ public class LinearModel extends LTRScoringModel {
         return score;
     }
 
+    /**
+     * @return the features with a weight other than 0
+     */
+    @Override
+    public Set<String> getReferencedFeatures() {
+        final Set<String> names = new LinkedHashSet<>();
+        for (int i = 0; i < features.size(); ++i) {
+            if (featureToWeight[i] != null && featureToWeight[i] != 0f) {
+                names.add(features.get(i).getName());
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return super.ramBytesUsed() + RamUsageEstimator.shallowSizeOf(featureToWeight)
+            + featureToWeight.length * FLOAT_RAM_BYTES;
+    }
+
     @Override
     public Explanation explain(LeafReaderContext context, int doc, float finalScore,
         List<Explanation> featureExplanations) {
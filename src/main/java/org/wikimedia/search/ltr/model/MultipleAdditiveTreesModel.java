@@ -17,13 +17,18 @@
 package org.wikimedia.search.ltr.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.Explanation;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.elasticsearch.common.settings.Settings;
 import org.wikimedia.search.ltr.feature.Feature;
 import org.wikimedia.search.ltr.norm.Normalizer;
@@ -76,6 +81,11 @@ import org.wikimedia.search.ltr.norm.Normalizer;
 }
  * </pre>
  * <p>
+ * The trees are stored and kept in memory encoded with {@link TreeEncoding},
+ * the params then hold {@code compact_trees} instead of {@code trees}. With
+ * the {@code off_heap} param set to true, the trees are scored from a memory
+ * mapped file instead of the heap, see {@link OffHeapTrees}.
+ * <p>
  * Training libraries:
  * <ul>
  * <li><a href="http://sourceforge.net/p/lemur/wiki/RankLib/">RankLib</a>
@@ -96,13 +106,28 @@ import org.wikimedia.search.ltr.norm.Normalizer;
  * </ul>
  */
 public class MultipleAdditiveTreesModel extends LTRScoringModel {
+    /**
+     * Param scoring the trees from a memory mapped file.
+     */
+    public static final String OFF_HEAP_PARAM = "off_heap";
+    static final float NODE_SPLIT_SLACK = 1E-6f;
+    private static final long NODE_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(RegressionTreeNode.class);
+    private static final long TREE_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(RegressionTree.class);
+    private static final long FLOAT_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(Float.class);
+    private static final long INTEGER_RAM_BYTES = RamUsageEstimator.shallowSizeOfInstance(Integer.class);
 
     private final HashMap<String, Integer> fname2index;
     private final List<RegressionTree> trees = new ArrayList<>();
+    // null when the trees are kept on heap
+    private final OffHeapTrees offHeapTrees;
+    // estimated heap used, -1 until computed
+    private volatile long ramBytesUsed = -1;
+    // shape of the trees, computed once from the encoded trees
+    private final int[] treeDepths;
+    private final int nodeCount;
+    private final Set<String> referencedFeatures;
 
     public class RegressionTreeNode {
-        private static final float NODE_SPLIT_SLACK = 1E-6f;
-
         private final float value;
         private final String feature;
         private final int featureIndex;
@@ -145,6 +170,29 @@ public class MultipleAdditiveTreesModel extends LTRScoringModel {
             }
         }
 
+        /**
+         * Decodes the node at the cursor, and its children.
+         */
+        RegressionTreeNode(TreeEncoding.Trees trees, int[] cursor) {
+            final int node = cursor[0]++;
+            if (trees.nodes[node] < 0) {
+                value = trees.values[node];
+                feature = null;
+                featureIndex = -1;
+                threshold = null;
+                left = null;
+                right = null;
+            } else {
+                value = 0f;
+                feature = trees.featureNames[trees.nodes[node]];
+                final Integer idx = fname2index.get(feature);
+                featureIndex = (idx == null) ? -1 : idx;
+                threshold = trees.values[node] + NODE_SPLIT_SLACK;
+                left = new RegressionTreeNode(trees, cursor);
+                right = new RegressionTreeNode(trees, cursor);
+            }
+        }
+
         public boolean isLeaf() {
             return feature == null;
         }
@@ -207,6 +255,13 @@ public class MultipleAdditiveTreesModel extends LTRScoringModel {
             return sb.toString();
         }
 
+        long ramBytesUsed() {
+            if (isLeaf()) {
+                return NODE_RAM_BYTES;
+            }
+            return NODE_RAM_BYTES + FLOAT_RAM_BYTES + left.ramBytesUsed() + right.ramBytesUsed();
+        }
+
         public void validate() throws ModelException {
             if (isLeaf()) {
                 if (left != null || right != null) {
@@ -246,6 +301,11 @@ public class MultipleAdditiveTreesModel extends LTRScoringModel {
             }
         }
 
+        RegressionTree(float weight, RegressionTreeNode root) {
+            this.weight = weight;
+            this.root = root;
+        }
+
         public float score(float[] featureVector) {
             return weight.floatValue() * root.score(featureVector);
         }
@@ -263,6 +323,10 @@ public class MultipleAdditiveTreesModel extends LTRScoringModel {
             return sb.toString();
         }
 
+        long ramBytesUsed() {
+            return TREE_RAM_BYTES + FLOAT_RAM_BYTES + root.ramBytesUsed();
+        }
+
         public void validate() throws ModelException {
             if (weight == null) {
                 throw new ModelException("MultipleAdditiveTreesModel tree doesn't contain a weight");
@@ -277,7 +341,18 @@ public class MultipleAdditiveTreesModel extends LTRScoringModel {
 
     public MultipleAdditiveTreesModel(String name, List<Feature> features, List<Normalizer> norms,
         String featureStoreName, List<Feature> allFeatures, Settings params) {
-        super(name, features, norms, featureStoreName, allFeatures, params);
+        this(name, features, norms, featureStoreName, allFeatures, params, null);
+    }
+
+    /**
+     * @param offHeapDirectory
+     *            directory of the node to map the trees from when they are
+     *            scored off heap, or null if they cannot be
+     */
+    public MultipleAdditiveTreesModel(String name, List<Feature> features, List<Normalizer> norms,
+        String featureStoreName, List<Feature> allFeatures, Settings params, OffHeapDirectory offHeapDirectory) {
+        // only the encoded trees are kept, not the settings of every node
+        super(name, features, norms, featureStoreName, allFeatures, TreeEncoding.compact(params));
 
         fname2index = new HashMap<String, Integer>();
         for (int i = 0; i < features.size(); ++i) {
@@ -285,15 +360,55 @@ public class MultipleAdditiveTreesModel extends LTRScoringModel {
             fname2index.put(key, i);
         }
 
-        for (Map.Entry<String, Settings> entry : params.getGroups("trees").entrySet()) {
-            final RegressionTree rt = new RegressionTree(entry.getValue());
-            this.trees.add(rt);
+        final String encoded = getParams().get(TreeEncoding.PARAM);
+        final TreeEncoding.Trees decoded = encoded == null ? null : TreeEncoding.decode(encoded);
+        if (decoded != null && getParams().getAsBoolean(OFF_HEAP_PARAM, false)) {
+            if (offHeapDirectory == null) {
+                throw new ModelException("MultipleAdditiveTreesModel can only be scored off heap on nodes with a "
+                    + "data path");
+            }
+            offHeapTrees = OffHeapTrees.map(offHeapDirectory, decoded, fname2index);
+        } else if (decoded != null) {
+            offHeapTrees = null;
+            final int[] cursor = new int[1];
+            for (int i = 0; i < decoded.treeSizes.length; i++) {
+                this.trees.add(new RegressionTree(decoded.weights[i], new RegressionTreeNode(decoded, cursor)));
+            }
+        } else {
+            offHeapTrees = null;
+            // invalid trees, reported by validate()
+            for (Map.Entry<String, Settings> entry : params.getGroups("trees").entrySet()) {
+                final RegressionTree rt = new RegressionTree(entry.getValue());
+                this.trees.add(rt);
+            }
+        }
+
+        referencedFeatures = new LinkedHashSet<>();
+        if (decoded == null) {
+            treeDepths = new int[0];
+            nodeCount = 0;
+        } else {
+            treeDepths = decoded.depths();
+            nodeCount = decoded.nodes.length;
+            final Set<String> splits = new HashSet<>(Arrays.asList(decoded.featureNames));
+            for (final Feature feature : features) {
+                if (splits.contains(feature.getName())) {
+                    referencedFeatures.add(feature.getName());
+                }
+            }
         }
     }
 
     @Override
     public void validate() throws ModelException {
         super.validate();
+        if (offHeapTrees != null) {
+            // encoded trees are valid
+            if (offHeapTrees.treeCount() == 0) {
+                throw new ModelException("no trees declared for model " + name);
+            }
+            return;
+        }
         if (trees.size() == 0) {
             throw new ModelException("no trees declared for model " + name);
         }
@@ -302,8 +417,74 @@ public class MultipleAdditiveTreesModel extends LTRScoringModel {
         }
     }
 
+    /**
+     * @return the depth of every tree, the number of splits on its longest
+     *         path
+     */
+    public int[] getTreeDepths() {
+        return treeDepths.clone();
+    }
+
+    /**
+     * @return the number of splits and leaves of all the trees
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the features of the model used by the splits
+     */
+    @Override
+    public Set<String> getReferencedFeatures() {
+        return Collections.unmodifiableSet(referencedFeatures);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        // walks every node, computed once
+        long bytes = ramBytesUsed;
+        if (bytes >= 0) {
+            return bytes;
+        }
+        bytes = super.ramBytesUsed() + fname2index.size() * (Feature.MAP_ENTRY_RAM_BYTES + INTEGER_RAM_BYTES)
+            + referencedFeatures.size() * Feature.MAP_ENTRY_RAM_BYTES + RamUsageEstimator.alignObjectSize(
+                RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) RamUsageEstimator.NUM_BYTES_INT * treeDepths.length);
+        if (offHeapTrees != null) {
+            bytes += offHeapTrees.ramBytesUsed();
+        } else {
+            bytes += RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * trees.size());
+            for (final RegressionTree tree : trees) {
+                bytes += tree.ramBytesUsed();
+            }
+        }
+        ramBytesUsed = bytes;
+        return bytes;
+    }
+
+    @Override
+    public long offHeapBytesUsed() {
+        return offHeapTrees == null ? 0 : offHeapTrees.length();
+    }
+
+    @Override
+    public boolean tryIncRef() {
+        return offHeapTrees == null || offHeapTrees.tryIncRef();
+    }
+
+    @Override
+    public void decRef() {
+        if (offHeapTrees != null) {
+            offHeapTrees.decRef();
+        }
+    }
+
     @Override
     public float score(float[] modelFeatureValuesNormalized) {
+        if (offHeapTrees != null) {
+            return offHeapTrees.score(modelFeatureValuesNormalized);
+        }
         float score = 0;
         for (final RegressionTree t : trees) {
             score += t.score(modelFeatureValuesNormalized);
@@ -340,6 +521,12 @@ public class MultipleAdditiveTreesModel extends LTRScoringModel {
             details.add(p);
             index++;
         }
+        if (offHeapTrees != null) {
+            for (int t = 0; t < offHeapTrees.treeCount(); t++) {
+                final float score = offHeapTrees.score(t, fv);
+                details.add(Explanation.match(score, "tree " + t + " | " + offHeapTrees.explain(t, fv)));
+            }
+        }
 
         return Explanation.match(finalScore, toString() + " model applied to features, sum of:", details);
     }
@@ -355,6 +542,14 @@ public class MultipleAdditiveTreesModel extends LTRScoringModel {
             }
             sb.append(trees.get(ii));
         }
+        if (offHeapTrees != null) {
+            for (int ii = 0; ii < offHeapTrees.treeCount(); ++ii) {
+                if (ii > 0) {
+                    sb.append(',');
+                }
+                sb.append(offHeapTrees.toString(ii));
+            }
+        }
         sb.append("])");
         return sb.toString();
     }
@@ -0,0 +1,64 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.model;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Node local directory the trees of the models scored off heap are written
+ * to, see {@link OffHeapTrees}. Each node owns one and passes it to the
+ * models it compiles.
+ */
+public final class OffHeapDirectory {
+    private final MMapDirectory directory;
+    private final AtomicLong fileIds = new AtomicLong();
+
+    private OffHeapDirectory(MMapDirectory directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the directory, removing the files left there by a previous run
+     * of the node.
+     */
+    public static OffHeapDirectory open(Path path) throws IOException {
+        IOUtils.rm(path);
+        return new OffHeapDirectory(new MMapDirectory(Files.createDirectories(path)));
+    }
+
+    MMapDirectory directory() {
+        return directory;
+    }
+
+    /**
+     * @return the name of a file that was not used yet
+     */
+    String newFile() {
+        return "trees-" + fileIds.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return directory.getDirectory().toString();
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.model;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.AbstractRefCounted;
+
+/**
+ * Trees of a {@link MultipleAdditiveTreesModel} written to a node local file
+ * and scored from its memory mapping, so that large ensembles do not use the
+ * heap. Only the features of the splits and the offsets of the file are kept
+ * on heap.
+ * <p>
+ * The file starts with the weight and the first node of every tree, followed
+ * by the nodes in pre-order, three ints each: the feature of the split or
+ * {@link #LEAF}, the threshold of the split or the value of the leaf, and the
+ * right child of the split. The left child of a split is the next node.
+ * <p>
+ * The mapping is reference counted: the model store holds a reference until
+ * the model is replaced or deleted and searches hold one until they are
+ * done, so that the file is never unmapped while in use. Scoring does not
+ * take any.
+ * <p>
+ * Files are written to the {@link OffHeapDirectory} of the node.
+ */
+final class OffHeapTrees extends AbstractRefCounted {
+    private static final ESLogger log = ESLoggerFactory.getLogger(OffHeapTrees.class.getName());
+    private static final int LEAF = -1;
+    private static final int TREE_BYTES = 8;
+    private static final int NODE_BYTES = 12;
+
+    private final MMapDirectory dir;
+    private final String file;
+    private final IndexInput input;
+    private final RandomAccessInput trees;
+    private final int treeCount;
+    private final long nodesOffset;
+    // names of the features of the splits, and their index in the feature
+    // vector or -1 if they are not features of the model
+    private final String[] featureNames;
+    private final int[] featureIndexes;
+
+    private OffHeapTrees(MMapDirectory dir, String file, IndexInput input, int treeCount, String[] featureNames,
+        int[] featureIndexes) throws IOException {
+        super(file);
+        this.dir = dir;
+        this.file = file;
+        this.input = input;
+        this.trees = input.randomAccessSlice(0, input.length());
+        this.treeCount = treeCount;
+        this.nodesOffset = (long) treeCount * TREE_BYTES;
+        this.featureNames = featureNames;
+        this.featureIndexes = featureIndexes;
+    }
+
+    /**
+     * Writes the trees to a new file and maps it.
+     *
+     * @param fname2index
+     *            index of the features of the model in the feature vector
+     */
+    static OffHeapTrees map(OffHeapDirectory directory, TreeEncoding.Trees decoded, Map<String, Integer> fname2index)
+        throws ModelException {
+        final int[] featureIndexes = new int[decoded.featureNames.length];
+        for (int i = 0; i < featureIndexes.length; i++) {
+            final Integer idx = fname2index.get(decoded.featureNames[i]);
+            featureIndexes[i] = idx == null ? -1 : idx;
+        }
+        final String file = directory.newFile();
+        try {
+            final MMapDirectory dir = directory.directory();
+            try (IndexOutput out = dir.createOutput(file, IOContext.DEFAULT)) {
+                write(decoded, out);
+            }
+            return new OffHeapTrees(dir, file, dir.openInput(file, IOContext.READ), decoded.treeSizes.length,
+                decoded.featureNames, featureIndexes);
+        } catch (IOException e) {
+            throw new ModelException("Unable to map trees to [" + file + "]", e);
+        }
+    }
+
+    private static void write(TreeEncoding.Trees decoded, IndexOutput out) throws IOException {
+        int start = 0;
+        for (int i = 0; i < decoded.treeSizes.length; i++) {
+            out.writeInt(Float.floatToRawIntBits(decoded.weights[i]));
+            out.writeInt(start);
+            start += decoded.treeSizes[i];
+        }
+        final int[] rights = rightChildren(decoded.nodes);
+        for (int node = 0; node < decoded.nodes.length; node++) {
+            final boolean leaf = decoded.nodes[node] < 0;
+            out.writeInt(leaf ? LEAF : decoded.nodes[node]);
+            out.writeInt(Float.floatToRawIntBits(decoded.values[node]));
+            out.writeInt(leaf ? 0 : rights[node]);
+        }
+    }
+
+    /**
+     * @return the right child of every split of nodes in pre-order
+     */
+    private static int[] rightChildren(int[] nodes) {
+        final int[] rights = new int[nodes.length];
+        // splits waiting for the end of their left subtree
+        final int[] pending = new int[nodes.length];
+        int depth = 0;
+        for (int node = 0; node < nodes.length; node++) {
+            if (nodes[node] >= 0) {
+                pending[depth++] = node;
+            } else if (depth > 0) {
+                // the subtree of the innermost split waiting for its right
+                // child ends with this leaf
+                rights[pending[--depth]] = node + 1;
+            }
+        }
+        return rights;
+    }
+
+    int treeCount() {
+        return treeCount;
+    }
+
+    /**
+     * @return the size of the mapped file
+     */
+    long length() {
+        return input.length();
+    }
+
+    /**
+     * Estimates the heap used by the features of the splits, the names
+     * being shared with the params of the model.
+     */
+    long ramBytesUsed() {
+        return RamUsageEstimator.shallowSizeOf(this) + RamUsageEstimator.shallowSizeOf(featureNames)
+            + RamUsageEstimator.sizeOf(featureIndexes);
+    }
+
+    float score(float[] featureVector) {
+        try {
+            float score = 0;
+            for (int tree = 0; tree < treeCount; tree++) {
+                score += scoreTree(tree, featureVector);
+            }
+            return score;
+        } catch (IOException e) {
+            throw new ModelException("Unable to read trees from [" + file + "]", e);
+        }
+    }
+
+    float score(int tree, float[] featureVector) {
+        try {
+            return scoreTree(tree, featureVector);
+        } catch (IOException e) {
+            throw new ModelException("Unable to read trees from [" + file + "]", e);
+        }
+    }
+
+    private float scoreTree(int tree, float[] featureVector) throws IOException {
+        final float weight = Float.intBitsToFloat(trees.readInt((long) tree * TREE_BYTES));
+        int node = trees.readInt((long) tree * TREE_BYTES + 4);
+        while (true) {
+            final long offset = nodesOffset + (long) node * NODE_BYTES;
+            final int feature = trees.readInt(offset);
+            final float value = Float.intBitsToFloat(trees.readInt(offset + 4));
+            if (feature == LEAF) {
+                return weight * value;
+            }
+            final int featureIndex = featureIndexes[feature];
+            // unsupported feature (tree is looking for a feature that does
+            // not exist)
+            if (featureIndex < 0 || featureIndex >= featureVector.length) {
+                return weight * 0f;
+            }
+            if (featureVector[featureIndex] <= value + MultipleAdditiveTreesModel.NODE_SPLIT_SLACK) {
+                node++;
+            } else {
+                node = trees.readInt(offset + 8);
+            }
+        }
+    }
+
+    String explain(int tree, float[] featureVector) {
+        try {
+            final StringBuilder sb = new StringBuilder();
+            int node = trees.readInt((long) tree * TREE_BYTES + 4);
+            while (true) {
+                final long offset = nodesOffset + (long) node * NODE_BYTES;
+                final int feature = trees.readInt(offset);
+                final float value = Float.intBitsToFloat(trees.readInt(offset + 4));
+                if (feature == LEAF) {
+                    return sb.append("val: ").append(value).toString();
+                }
+                final String name = featureNames[feature];
+                final int featureIndex = featureIndexes[feature];
+                if (featureIndex < 0 || featureIndex >= featureVector.length) {
+                    return sb.append("'").append(name).append("' does not exist in FV, Return Zero").toString();
+                }
+                final float threshold = value + MultipleAdditiveTreesModel.NODE_SPLIT_SLACK;
+                sb.append("'").append(name).append("':").append(featureVector[featureIndex]);
+                if (featureVector[featureIndex] <= threshold) {
+                    sb.append(" <= ").append(threshold).append(", Go Left | ");
+                    node++;
+                } else {
+                    sb.append(" > ").append(threshold).append(", Go Right | ");
+                    node = trees.readInt(offset + 8);
+                }
+            }
+        } catch (IOException e) {
+            throw new ModelException("Unable to read trees from [" + file + "]", e);
+        }
+    }
+
+    String toString(int tree) {
+        try {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("(weight=").append(Float.intBitsToFloat(trees.readInt((long) tree * TREE_BYTES)));
+            sb.append(",root=");
+            appendNode(sb, trees.readInt((long) tree * TREE_BYTES + 4));
+            return sb.append(")").toString();
+        } catch (IOException e) {
+            throw new ModelException("Unable to read trees from [" + file + "]", e);
+        }
+    }
+
+    /**
+     * @return the node following the subtree of node
+     */
+    private int appendNode(StringBuilder sb, int node) throws IOException {
+        final long offset = nodesOffset + (long) node * NODE_BYTES;
+        final int feature = trees.readInt(offset);
+        final float value = Float.intBitsToFloat(trees.readInt(offset + 4));
+        if (feature == LEAF) {
+            sb.append(value);
+            return node + 1;
+        }
+        sb.append("(feature=").append(featureNames[feature]);
+        // printed like the trees kept on heap
+        final float threshold = value + MultipleAdditiveTreesModel.NODE_SPLIT_SLACK;
+        sb.append(",threshold=").append(threshold - MultipleAdditiveTreesModel.NODE_SPLIT_SLACK);
+        sb.append(",left=");
+        final int right = appendNode(sb, node + 1);
+        sb.append(",right=");
+        final int next = appendNode(sb, right);
+        sb.append(')');
+        return next;
+    }
+
+    @Override
+    protected void closeInternal() {
+        try {
+            input.close();
+            dir.deleteFile(file);
+        } catch (IOException e) {
+            log.warn("unable to delete mapped trees [{}]", e, file);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+/**
+ * Loads the settings of models from their source in a single pass.
+ * <p>
+ * Loading the source as settings flattens the nodes of the trees of a
+ * {@link MultipleAdditiveTreesModel} to keys that {@link TreeEncoding} then
+ * looks up level by level, which is slow for large models. The trees are
+ * encoded while they are parsed instead, the settings only hold their
+ * {@code compact_trees} param. Everything else is flattened to the same
+ * settings as {@link Settings.Builder#loadFromSource(String)}.
+ * <p>
+ * Sources that are not valid models, or trees that cannot be encoded, are
+ * loaded as settings so that they are reported as they were.
+ */
+public final class StreamingModelLoader {
+    private static final String TREES = "trees";
+    private static final String PARAMS = "params";
+    private static final String MODELS = "models";
+
+    private final Map<String, String> settings = new LinkedHashMap<>();
+    // encoded trees by model key prefix
+    private final Map<String, String> trees = new HashMap<>();
+    private final StringBuilder key = new StringBuilder();
+
+    private StreamingModelLoader() {
+    }
+
+    /**
+     * @return the settings of the models of the source, with their trees
+     *         encoded
+     */
+    public static Settings load(String source) {
+        try {
+            final Settings settings = new StreamingModelLoader().parse(source);
+            if (settings != null) {
+                return settings;
+            }
+        } catch (IOException | RuntimeException e) {
+            // reported by the settings loader
+        }
+        return Settings.builder().loadFromSource(source).build();
+    }
+
+    /**
+     * @return the settings, or null if the source must be loaded as settings
+     */
+    private Settings parse(String source) throws IOException {
+        try (XContentParser parser = XContentFactory.xContent(source).createParser(source)) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT
+                || !parseObject(parser, new ArrayList<String>())) {
+                return null;
+            }
+        }
+        for (final Map.Entry<String, String> model : trees.entrySet()) {
+            final String prefix = model.getKey();
+            final String param = prefix + "." + PARAMS + "." + TreeEncoding.PARAM;
+            if (!MultipleAdditiveTreesModel.class.getCanonicalName().equals(settings.get(prefix + ".class"))
+                || settings.containsKey(param)) {
+                return null;
+            }
+            settings.put(param, model.getValue());
+        }
+        return Settings.builder().put(settings).build();
+    }
+
+    private boolean parseObject(XContentParser parser, List<String> path) throws IOException {
+        String field = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                field = parser.currentName();
+            } else if (token == XContentParser.Token.START_ARRAY && isTrees(path, field)) {
+                final String encoded = TreeEncoding.encode(parser);
+                final String prefix = join(path.subList(0, path.size() - 1), null);
+                if (encoded == null || trees.put(prefix, encoded) != null) {
+                    return false;
+                }
+            } else if (!parseValue(parser, token, path, field)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseArray(XContentParser parser, List<String> path, String field) throws IOException {
+        int index = 0;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                return false;
+            }
+            if (token != XContentParser.Token.VALUE_NULL && !parseValue(parser, token, path, field + "." + index++)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseValue(XContentParser parser, XContentParser.Token token, List<String> path, String field)
+        throws IOException {
+        switch (token) {
+        case START_OBJECT:
+            path.add(field);
+            final boolean parsed = parseObject(parser, path);
+            path.remove(path.size() - 1);
+            return parsed;
+        case START_ARRAY:
+            return parseArray(parser, path, field);
+        case VALUE_NULL:
+            // ignored, like settings do
+            return true;
+        default:
+            // duplicated keys are reported by the settings loader
+            return settings.put(join(path, field), parser.text()) == null;
+        }
+    }
+
+    /**
+     * @return true if the field is the trees param of a model, either
+     *         {@code name.params.trees} or {@code models.name.params.trees}
+     */
+    private static boolean isTrees(List<String> path, String field) {
+        if (!TREES.equals(field) || path.isEmpty() || !PARAMS.equals(path.get(path.size() - 1))) {
+            return false;
+        }
+        return path.size() == 2 || (path.size() == 3 && MODELS.equals(path.get(0)));
+    }
+
+    private String join(List<String> path, String field) {
+        key.setLength(0);
+        for (final String element : path) {
+            if (key.length() > 0) {
+                key.append('.');
+            }
+            key.append(element);
+        }
+        if (field != null) {
+            if (key.length() > 0) {
+                key.append('.');
+            }
+            key.append(field);
+        }
+        return key.toString();
+    }
+}
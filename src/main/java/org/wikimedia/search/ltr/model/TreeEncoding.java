@@ -0,0 +1,530 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsException;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Compact encoding of the trees of a {@link MultipleAdditiveTreesModel}.
+ * <p>
+ * Trees are declared as nested settings, which flattens every node to keys
+ * like {@code trees.17.root.left.right.threshold}. They are encoded instead
+ * as a single base64 param holding the feature names used by the splits,
+ * the structure of the trees as varints and their weights, thresholds and
+ * leaf values as float arrays, compressed when large. Models are encoded
+ * once, when they are uploaded, and that is what is kept in the cluster
+ * state and by the compiled model.
+ * <p>
+ * The encoding starts with a byte telling whether the rest is compressed.
+ * The nodes of the trees are written in pre-order: a split is followed by
+ * its left then its right subtree. Each node is a varint, 0 for a leaf or
+ * the index of the feature of the split plus one.
+ * <p>
+ * The APIs returning models decode them back with {@link #expand(Settings)}.
+ */
+public final class TreeEncoding {
+    /**
+     * The param holding the encoded trees, replacing the trees param.
+     */
+    public static final String PARAM = "compact_trees";
+    private static final String TREES = "trees";
+    private static final byte VERSION = 1;
+    private static final byte UNCOMPRESSED = 0;
+    private static final byte COMPRESSED = 1;
+    // compressing small models is not worth it
+    private static final int COMPRESSION_THRESHOLD = 512;
+
+    private static final Set<String> TREE_KEYS = ImmutableSet.of("weight", "root");
+    private static final Set<String> LEAF_KEYS = ImmutableSet.of("value");
+    private static final Set<String> SPLIT_KEYS = ImmutableSet.of("feature", "threshold", "left", "right", "value");
+
+    private TreeEncoding() {
+    }
+
+    /**
+     * Replaces the trees of the params of a model with their encoding. The
+     * params are returned as is if the trees are already encoded or if they
+     * are not valid, for the model to report the error.
+     */
+    public static Settings compact(Settings params) {
+        if (params.get(PARAM) != null || params.getGroups(TREES).isEmpty()) {
+            return params;
+        }
+        final String encoded = encode(params);
+        if (encoded == null) {
+            return params;
+        }
+        final Settings.Builder builder = Settings.builder();
+        for (final Map.Entry<String, String> entry : params.getAsMap().entrySet()) {
+            if (!entry.getKey().startsWith(TREES + ".")) {
+                builder.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return builder.put(PARAM, encoded).build();
+    }
+
+    /**
+     * Replaces the encoded trees of the params with the trees they encode,
+     * like they were uploaded. Thresholds and values are written as floats.
+     */
+    public static Settings expand(Settings params) {
+        final String encoded = params.get(PARAM);
+        if (encoded == null) {
+            return params;
+        }
+        final Trees trees = decode(encoded);
+        final Settings.Builder builder = Settings.builder();
+        for (final Map.Entry<String, String> entry : params.getAsMap().entrySet()) {
+            if (!entry.getKey().equals(PARAM)) {
+                builder.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final int[] cursor = new int[1];
+        for (int tree = 0; tree < trees.treeSizes.length; tree++) {
+            final String prefix = TREES + "." + tree + ".";
+            builder.put(prefix + "weight", trees.weights[tree]);
+            expandNode(trees, cursor, builder, prefix + "root.");
+        }
+        return builder.build();
+    }
+
+    private static void expandNode(Trees trees, int[] cursor, Settings.Builder builder, String prefix) {
+        final int node = cursor[0]++;
+        if (trees.nodes[node] < 0) {
+            builder.put(prefix + "value", trees.values[node]);
+            return;
+        }
+        builder.put(prefix + "feature", trees.featureNames[trees.nodes[node]]);
+        builder.put(prefix + "threshold", trees.values[node]);
+        expandNode(trees, cursor, builder, prefix + "left.");
+        expandNode(trees, cursor, builder, prefix + "right.");
+    }
+
+    /**
+     * @return the encoded trees of the params, or null if they are not valid
+     *         trees
+     */
+    static String encode(Settings params) {
+        final Encoder encoder = new Encoder();
+        try {
+            for (final Settings tree : trees(params)) {
+                if (!encoder.addTree(tree)) {
+                    return null;
+                }
+            }
+            return Base64.encodeBytes(encoder.toBytes().toBytes());
+        } catch (SettingsException e) {
+            // unparseable numbers
+            return null;
+        } catch (IOException e) {
+            throw new ModelException("Unable to encode trees", e);
+        }
+    }
+
+    /**
+     * @return the trees of the params, in the order of their array
+     */
+    private static Collection<Settings> trees(Settings params) {
+        final Map<String, Settings> groups = params.getGroups(TREES);
+        final Settings[] trees = new Settings[groups.size()];
+        for (final Map.Entry<String, Settings> entry : groups.entrySet()) {
+            final int index;
+            try {
+                index = Integer.parseInt(entry.getKey());
+            } catch (NumberFormatException e) {
+                // not an array
+                return groups.values();
+            }
+            if (index < 0 || index >= trees.length) {
+                return groups.values();
+            }
+            trees[index] = entry.getValue();
+        }
+        return Arrays.asList(trees);
+    }
+
+    /**
+     * Encodes the trees read from a parser positioned on their array, without
+     * going through settings.
+     *
+     * @return the encoded trees, or null if they are not valid trees, the
+     *         parser is then left anywhere in the array
+     */
+    static String encode(XContentParser parser) throws IOException {
+        final Encoder encoder = new Encoder();
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+            if (token == XContentParser.Token.VALUE_NULL) {
+                // ignored, like settings do
+                continue;
+            }
+            if (token != XContentParser.Token.START_OBJECT || !encoder.addTree(parser)) {
+                return null;
+            }
+        }
+        if (encoder.treeSizes.isEmpty()) {
+            return null;
+        }
+        return Base64.encodeBytes(encoder.toBytes().toBytes());
+    }
+
+    /**
+     * Decodes trees encoded with {@link #compact(Settings)}.
+     */
+    static Trees decode(String encoded) throws ModelException {
+        try (StreamInput in = open(Base64.decode(encoded))) {
+            final byte version = in.readByte();
+            if (version != VERSION) {
+                throw new ModelException("Unknown tree encoding version [" + version + "]");
+            }
+            final String[] featureNames = new String[in.readVInt()];
+            for (int i = 0; i < featureNames.length; i++) {
+                featureNames[i] = in.readString();
+            }
+            final int[] treeSizes = new int[in.readVInt()];
+            final int[] nodes = new int[in.readVInt()];
+            for (int i = 0; i < treeSizes.length; i++) {
+                treeSizes[i] = in.readVInt();
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = in.readVInt() - 1;
+            }
+            final float[] weights = readFloats(in, treeSizes.length);
+            final float[] values = readFloats(in, nodes.length);
+            return new Trees(featureNames, treeSizes, weights, nodes, values);
+        } catch (IOException | RuntimeException e) {
+            if (e instanceof ModelException) {
+                throw (ModelException) e;
+            }
+            throw new ModelException("Invalid encoded trees", e);
+        }
+    }
+
+    private static StreamInput open(byte[] bytes) throws IOException {
+        if (bytes.length == 0) {
+            throw new ModelException("Invalid encoded trees");
+        }
+        if (bytes[0] == COMPRESSED) {
+            final BytesReference compressed = new BytesArray(bytes, 1, bytes.length - 1);
+            return CompressorFactory.compressor(compressed).streamInput(compressed.streamInput());
+        }
+        return StreamInput.wrap(bytes, 1, bytes.length - 1);
+    }
+
+    private static float[] readFloats(StreamInput in, int count) throws IOException {
+        final float[] floats = new float[count];
+        for (int i = 0; i < count; i++) {
+            floats[i] = in.readFloat();
+        }
+        return floats;
+    }
+
+    /**
+     * Decoded trees.
+     */
+    static class Trees {
+        // names of the features of the splits
+        final String[] featureNames;
+        // number of nodes of each tree
+        final int[] treeSizes;
+        final float[] weights;
+        // all the nodes in pre-order: the index of the feature of a split or
+        // -1 for a leaf
+        final int[] nodes;
+        // threshold of a split or value of a leaf
+        final float[] values;
+
+        Trees(String[] featureNames, int[] treeSizes, float[] weights, int[] nodes, float[] values) {
+            this.featureNames = featureNames;
+            this.treeSizes = treeSizes;
+            this.weights = weights;
+            this.nodes = nodes;
+            this.values = values;
+        }
+
+        /**
+         * @return the depth of every tree, the number of splits on its
+         *         longest path
+         */
+        int[] depths() {
+            final int[] depths = new int[treeSizes.length];
+            // depths of the right children of the splits being walked
+            final int[] pending = new int[nodes.length];
+            int node = 0;
+            for (int tree = 0; tree < treeSizes.length; tree++) {
+                int top = 0;
+                int depth = 0;
+                for (final int end = node + treeSizes[tree]; node < end; node++) {
+                    if (nodes[node] >= 0) {
+                        pending[top++] = ++depth;
+                    } else {
+                        depths[tree] = Math.max(depths[tree], depth);
+                        if (top > 0) {
+                            depth = pending[--top];
+                        }
+                    }
+                }
+            }
+            return depths;
+        }
+    }
+
+    private static class Encoder {
+        private final Map<String, Integer> featureIds = new HashMap<>();
+        private final List<String> featureNames = new ArrayList<>();
+        private final List<Integer> treeSizes = new ArrayList<>();
+        private final List<Float> weights = new ArrayList<>();
+        private final List<Integer> nodes = new ArrayList<>();
+        private final List<Float> values = new ArrayList<>();
+
+        boolean addTree(Settings tree) {
+            final Set<String> names = tree.names();
+            if (!TREE_KEYS.containsAll(names) || !names.containsAll(TREE_KEYS) || tree.get("weight") == null) {
+                return false;
+            }
+            final int start = nodes.size();
+            weights.add(tree.getAsFloat("weight", null));
+            if (!addNode(tree.getAsSettings("root"))) {
+                return false;
+            }
+            treeSizes.add(nodes.size() - start);
+            return true;
+        }
+
+        private boolean addNode(Settings node) {
+            final Set<String> names = node.names();
+            if (!names.contains("feature")) {
+                if (!LEAF_KEYS.containsAll(names)) {
+                    return false;
+                }
+                nodes.add(0);
+                values.add(node.getAsFloat("value", 0f));
+                return true;
+            }
+            final String feature = node.get("feature");
+            if (feature == null || node.get("threshold") == null || !SPLIT_KEYS.containsAll(names)
+                || !names.contains("left") || !names.contains("right")) {
+                return false;
+            }
+            Integer id = featureIds.get(feature);
+            if (id == null) {
+                id = featureNames.size();
+                featureIds.put(feature, id);
+                featureNames.add(feature);
+            }
+            nodes.add(id + 1);
+            values.add(node.getAsFloat("threshold", null));
+            return addNode(node.getAsSettings("left")) && addNode(node.getAsSettings("right"));
+        }
+
+        /**
+         * Adds the tree of the object the parser is on. Null values are
+         * ignored and objects without values are missing, like they are in
+         * settings.
+         */
+        boolean addTree(XContentParser parser) throws IOException {
+            final int start = nodes.size();
+            Float weight = null;
+            boolean root = false;
+            String field = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    field = parser.currentName();
+                } else if (token == XContentParser.Token.VALUE_NULL) {
+                    continue;
+                } else if ("weight".equals(field) && weight == null) {
+                    weight = parseFloat(parser, token);
+                    if (weight == null) {
+                        return false;
+                    }
+                } else if ("root".equals(field) && !root && token == XContentParser.Token.START_OBJECT) {
+                    if (!addNode(parser, nodes, values)) {
+                        return false;
+                    }
+                    root = true;
+                } else {
+                    return false;
+                }
+            }
+            if (weight == null || !root) {
+                return false;
+            }
+            weights.add(weight);
+            treeSizes.add(nodes.size() - start);
+            return true;
+        }
+
+        /**
+         * Adds the node of the object the parser is on, and its children, to
+         * the given nodes and values.
+         */
+        private boolean addNode(XContentParser parser, List<Integer> nodes, List<Float> values) throws IOException {
+            final int node = nodes.size();
+            nodes.add(0);
+            values.add(0f);
+            String feature = null;
+            Float threshold = null;
+            Float value = null;
+            boolean left = false;
+            boolean right = false;
+            // the right subtree when it comes before the left one
+            List<Integer> rightNodes = null;
+            List<Float> rightValues = null;
+            String field = null;
+            XContentParser.Token token;
+            while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                if (token == XContentParser.Token.FIELD_NAME) {
+                    field = parser.currentName();
+                    continue;
+                }
+                if (token == XContentParser.Token.VALUE_NULL) {
+                    continue;
+                }
+                if ("feature".equals(field) && feature == null && token.isValue()) {
+                    feature = parser.text();
+                } else if ("threshold".equals(field) && threshold == null) {
+                    threshold = parseFloat(parser, token);
+                    if (threshold == null) {
+                        return false;
+                    }
+                } else if ("value".equals(field) && value == null) {
+                    value = parseFloat(parser, token);
+                    if (value == null) {
+                        return false;
+                    }
+                } else if ("left".equals(field) && !left && token == XContentParser.Token.START_OBJECT) {
+                    if (!addNode(parser, nodes, values)) {
+                        return false;
+                    }
+                    left = true;
+                } else if ("right".equals(field) && !right && token == XContentParser.Token.START_OBJECT) {
+                    if (left) {
+                        if (!addNode(parser, nodes, values)) {
+                            return false;
+                        }
+                    } else {
+                        rightNodes = new ArrayList<>();
+                        rightValues = new ArrayList<>();
+                        if (!addNode(parser, rightNodes, rightValues)) {
+                            return false;
+                        }
+                    }
+                    right = true;
+                } else {
+                    return false;
+                }
+            }
+            if (feature == null) {
+                if (left || right || threshold != null || value == null) {
+                    // a node without values is missing
+                    return false;
+                }
+                values.set(node, value);
+                return true;
+            }
+            if (threshold == null || !left || !right) {
+                return false;
+            }
+            if (rightNodes != null) {
+                nodes.addAll(rightNodes);
+                values.addAll(rightValues);
+            }
+            Integer id = featureIds.get(feature);
+            if (id == null) {
+                id = featureNames.size();
+                featureIds.put(feature, id);
+                featureNames.add(feature);
+            }
+            nodes.set(node, id + 1);
+            values.set(node, threshold);
+            return true;
+        }
+
+        /**
+         * @return the value parsed like settings do, or null if it is not a
+         *         float
+         */
+        private static Float parseFloat(XContentParser parser, XContentParser.Token token) throws IOException {
+            if (token != XContentParser.Token.VALUE_STRING && token != XContentParser.Token.VALUE_NUMBER) {
+                return null;
+            }
+            try {
+                return Float.parseFloat(parser.text());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        BytesReference toBytes() throws IOException {
+            final BytesStreamOutput bytes = new BytesStreamOutput();
+            bytes.writeByte(UNCOMPRESSED);
+            write(bytes);
+            if (bytes.size() < COMPRESSION_THRESHOLD) {
+                return bytes.bytes();
+            }
+            final BytesStreamOutput compressed = new BytesStreamOutput();
+            compressed.writeByte(COMPRESSED);
+            try (StreamOutput out = CompressorFactory.defaultCompressor().streamOutput(compressed)) {
+                write(out);
+            }
+            return compressed.bytes();
+        }
+
+        private void write(StreamOutput out) throws IOException {
+            out.writeByte(VERSION);
+            out.writeVInt(featureNames.size());
+            for (final String name : featureNames) {
+                out.writeString(name);
+            }
+            out.writeVInt(treeSizes.size());
+            out.writeVInt(nodes.size());
+            for (final int size : treeSizes) {
+                out.writeVInt(size);
+            }
+            for (final int node : nodes) {
+                out.writeVInt(node);
+            }
+            for (final float weight : weights) {
+                out.writeFloat(weight);
+            }
+            for (final float value : values) {
+                out.writeFloat(value);
+            }
+        }
+    }
+}
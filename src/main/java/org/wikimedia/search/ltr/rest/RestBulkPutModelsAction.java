@@ -0,0 +1,40 @@
+package org.wikimedia.search.ltr.rest;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.RestRequest.Method.PUT;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsAction;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsRequest;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsResponse;
+
+/**
+ * Uploads models from newline delimited JSON, optionally gzip compressed.
+ */
+public class RestBulkPutModelsAction extends BaseRestHandler {
+    @Inject
+    public RestBulkPutModelsAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(POST, "/_ltr/models/_bulk", this);
+        controller.registerHandler(PUT, "/_ltr/models/_bulk", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final Client client)
+        throws Exception {
+        final BulkPutModelsRequest bulkRequest = new BulkPutModelsRequest();
+        bulkRequest.timeout(request.paramAsTime("timeout", bulkRequest.timeout()));
+        bulkRequest.masterNodeTimeout(request.paramAsTime("master_timeout", bulkRequest.masterNodeTimeout()))
+            .models(request.content());
+
+        client.execute(BulkPutModelsAction.INSTANCE, bulkRequest,
+            new RestToXContentListener<BulkPutModelsResponse>(channel));
+    }
+}
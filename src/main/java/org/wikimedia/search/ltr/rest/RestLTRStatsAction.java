@@ -0,0 +1,33 @@
+package org.wikimedia.search.ltr.rest;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+import org.wikimedia.search.ltr.action.stats.LTRStatsAction;
+import org.wikimedia.search.ltr.action.stats.LTRStatsRequest;
+import org.wikimedia.search.ltr.action.stats.LTRStatsResponse;
+
+public class RestLTRStatsAction extends BaseRestHandler {
+    @Inject
+    public RestLTRStatsAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(GET, "/_ltr/_stats", this);
+        controller.registerHandler(GET, "/_ltr/_stats/{nodeId}", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final Client client) {
+        final LTRStatsRequest statsRequest = new LTRStatsRequest(
+            Strings.splitStringByCommaToArray(request.param("nodeId")));
+        statsRequest.timeout(request.param("timeout"));
+        client.execute(LTRStatsAction.INSTANCE, statsRequest, new RestToXContentListener<LTRStatsResponse>(channel));
+    }
+}
@@ -0,0 +1,37 @@
+package org.wikimedia.search.ltr.rest;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.support.RestToXContentListener;
+import org.wikimedia.search.ltr.action.model.validate.ValidateModelsAction;
+import org.wikimedia.search.ltr.action.model.validate.ValidateModelsRequest;
+import org.wikimedia.search.ltr.action.model.validate.ValidateModelsResponse;
+
+/**
+ * Compiles and profiles models without storing them.
+ */
+public class RestValidateModelsAction extends BaseRestHandler {
+    @Inject
+    public RestValidateModelsAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(POST, "/_ltr/models/_validate", this);
+    }
+
+    @Override
+    public void handleRequest(final RestRequest request, final RestChannel channel, final Client client)
+        throws Exception {
+        final ValidateModelsRequest validateRequest = new ValidateModelsRequest();
+        validateRequest.iterations(request.paramAsInt("iterations", validateRequest.iterations()))
+            .models(request.content().toUtf8());
+
+        client.execute(ValidateModelsAction.INSTANCE, validateRequest,
+            new RestToXContentListener<ValidateModelsResponse>(channel));
+    }
+}
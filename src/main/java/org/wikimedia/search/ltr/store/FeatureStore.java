@@ -18,9 +18,12 @@ package org.wikimedia.search.ltr.store;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.wikimedia.search.ltr.feature.ExpressionFeature;
 import org.wikimedia.search.ltr.feature.Feature;
 import org.wikimedia.search.ltr.feature.FeatureException;
 
@@ -33,6 +36,7 @@ public class FeatureStore {
     // ensures feature generation has consistent indices.
     private final LinkedHashMap<String, Feature> store = new LinkedHashMap<>();
     private final String name;
+    private boolean linked = true;
 
     public FeatureStore(String name) {
         this.name = name;
@@ -57,6 +61,69 @@ public class FeatureStore {
         }
         feature.setIndex(store.size());
         store.put(name, feature);
+        if (feature instanceof ExpressionFeature) {
+            linked = false;
+        }
+    }
+
+    /**
+     * Resolves the dependencies of all {@link ExpressionFeature}s in this
+     * store and assigns them an evaluation order following the dependency
+     * graph. Must be called once all features have been added, before the
+     * store is used by a model.
+     *
+     * @throws FeatureException
+     *             if an expression refers to an unknown feature or if
+     *             expression features depend on each other in a cycle
+     */
+    public void link() throws FeatureException {
+        if (linked) {
+            return;
+        }
+        // 0 = unvisited, 1 = in progress, 2 = done
+        final Map<String, Integer> state = new HashMap<>();
+        final List<ExpressionFeature> order = new ArrayList<>();
+        for (final Feature feature : store.values()) {
+            if (feature instanceof ExpressionFeature) {
+                visit((ExpressionFeature) feature, state, order, new ArrayList<String>());
+            }
+        }
+        for (int i = 0; i < order.size(); i++) {
+            final ExpressionFeature feature = order.get(i);
+            final List<Feature> dependencies = new ArrayList<>();
+            for (final String dependency : feature.getVariables()) {
+                dependencies.add(store.get(dependency));
+            }
+            feature.bind(dependencies, i);
+        }
+        linked = true;
+    }
+
+    private void visit(ExpressionFeature feature, Map<String, Integer> state, List<ExpressionFeature> order,
+        List<String> path) {
+        final Integer current = state.get(feature.getName());
+        if (current != null && current == 2) {
+            return;
+        }
+        path.add(feature.getName());
+        if (current != null && current == 1) {
+            throw new FeatureException("Cycle detected between expression features in store [" + name + "]: "
+                + path.subList(path.indexOf(feature.getName()), path.size()));
+        }
+        state.put(feature.getName(), 1);
+        for (final String dependency : feature.getVariables()) {
+            final Feature dep = store.get(dependency);
+            if (dep == null) {
+                throw new FeatureException("Expression feature [" + feature.getName() + "] refers to unknown feature ["
+                    + dependency + "] in store [" + name + "]");
+            }
+            if (dep instanceof ExpressionFeature) {
+                visit((ExpressionFeature) dep, state, order, path);
+            }
+        }
+        state.put(feature.getName(), 2);
+        path.remove(path.size() - 1);
+        order.add(feature);
     }
 
     public List<Feature> getFeatures() {
@@ -64,6 +131,17 @@ public class FeatureStore {
         return Collections.unmodifiableList(storeValues);
     }
 
+    /**
+     * Estimates the heap used by the features of the store.
+     */
+    public long ramBytesUsed() {
+        long bytes = 0;
+        for (final Feature feature : store.values()) {
+            bytes += Feature.MAP_ENTRY_RAM_BYTES + feature.ramBytesUsed();
+        }
+        return bytes;
+    }
+
     @Override
     public String toString() {
         return "FeatureStore [features=" + store.keySet() + "]";
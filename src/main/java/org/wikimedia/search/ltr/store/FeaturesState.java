@@ -5,12 +5,14 @@ import static org.elasticsearch.common.settings.Settings.writeSettingsToStream;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.elasticsearch.cluster.AbstractDiffable;
 import org.elasticsearch.cluster.ClusterState.Custom;
+import org.elasticsearch.cluster.Diff;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.settings.Settings;
@@ -19,10 +21,12 @@ import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import com.google.common.collect.ImmutableMap;
 
-public class FeaturesState extends AbstractDiffable<Custom> implements Custom {
+public class FeaturesState implements Custom {
     public static final String TYPE = "ltr-features";
     public static final FeaturesState PROTO = new FeaturesState();
     private final ImmutableMap<String, ImmutableMap<String, Settings>> features;
+    // hash of the content, computed on first use
+    private int hash;
 
     public FeaturesState() {
         features = ImmutableMap.<String, ImmutableMap<String, Settings>>of();
@@ -61,7 +65,9 @@ public class FeaturesState extends AbstractDiffable<Custom> implements Custom {
 
         FeaturesState that = (FeaturesState) o;
 
-        if (!features.equals(that.features)) {
+        // the hashes are cached, they tell most different states apart
+        // without comparing their content
+        if (hashCode() != that.hashCode() || !features.equals(that.features)) {
             return false;
         }
 
@@ -70,7 +76,13 @@ public class FeaturesState extends AbstractDiffable<Custom> implements Custom {
 
     @Override
     public int hashCode() {
-        return features.hashCode();
+        int h = hash;
+        if (h == 0) {
+            // racy but idempotent, like String
+            h = features.hashCode();
+            hash = h;
+        }
+        return h;
     }
 
     @Override
@@ -113,6 +125,48 @@ public class FeaturesState extends AbstractDiffable<Custom> implements Custom {
         }
     }
 
+    /**
+     * Only the features added, replaced or removed are sent to the other
+     * nodes, by feature store.
+     */
+    @Override
+    public Diff<Custom> diff(Custom previousState) {
+        final ImmutableMap<String, ImmutableMap<String, Settings>> before = ((FeaturesState) previousState).features;
+        final List<String> deletes = new ArrayList<>();
+        for (final String featureStore : before.keySet()) {
+            if (!features.containsKey(featureStore)) {
+                deletes.add(featureStore);
+            }
+        }
+        final Map<String, SettingsMapDiff> diffs = new LinkedHashMap<>();
+        for (final Map.Entry<String, ImmutableMap<String, Settings>> entry : features.entrySet()) {
+            ImmutableMap<String, Settings> previousStore = before.get(entry.getKey());
+            if (previousStore == null) {
+                previousStore = ImmutableMap.of();
+            } else if (previousStore.equals(entry.getValue())) {
+                continue;
+            }
+            diffs.put(entry.getKey(), SettingsMapDiff.diff(previousStore, entry.getValue()));
+        }
+        return new FeaturesStateDiff(deletes, diffs);
+    }
+
+    @Override
+    public Diff<Custom> readDiffFrom(StreamInput in) throws IOException {
+        final int deleteCount = in.readVInt();
+        final List<String> deletes = new ArrayList<>(deleteCount);
+        for (int i = 0; i < deleteCount; i++) {
+            deletes.add(in.readString());
+        }
+        final int diffCount = in.readVInt();
+        final Map<String, SettingsMapDiff> diffs = new LinkedHashMap<>();
+        for (int i = 0; i < diffCount; i++) {
+            final String featureStore = in.readString();
+            diffs.put(featureStore, SettingsMapDiff.readFrom(in));
+        }
+        return new FeaturesStateDiff(deletes, diffs);
+    }
+
     @Override
     public XContentBuilder toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
         for (Map.Entry<String, ImmutableMap<String, Settings>> outerEntry : features.entrySet()) {
@@ -128,7 +182,7 @@ public class FeaturesState extends AbstractDiffable<Custom> implements Custom {
     }
 
     public static class Builder {
-        private Map<String, Map<String, Settings>> map = new HashMap<>();
+        private Map<String, Map<String, Settings>> map = new LinkedHashMap<>();
 
         public Builder(FeaturesState featuresState) {
             if (featuresState != null) {
@@ -187,7 +241,7 @@ public class FeaturesState extends AbstractDiffable<Custom> implements Custom {
         public Builder putAll(String featureStoreName, Map<String, Settings> features) {
             Map<String, Settings> inner = map.get(featureStoreName);
             if (inner == null) {
-                map.put(featureStoreName, new HashMap<String, Settings>(features));
+                map.put(featureStoreName, new LinkedHashMap<String, Settings>(features));
             } else {
                 inner.putAll(features);
             }
@@ -197,7 +251,7 @@ public class FeaturesState extends AbstractDiffable<Custom> implements Custom {
         public Builder put(String featureStoreName, String feature, Settings settings) {
             Map<String, Settings> inner = map.get(featureStoreName);
             if (inner == null) {
-                inner = new HashMap<>();
+                inner = new LinkedHashMap<>();
                 inner.put(feature, settings);
                 map.put(featureStoreName, inner);
             } else {
@@ -210,4 +264,49 @@ public class FeaturesState extends AbstractDiffable<Custom> implements Custom {
             return new FeaturesState(map);
         }
     }
+
+    private static class FeaturesStateDiff implements Diff<Custom> {
+        private final List<String> deletes;
+        private final Map<String, SettingsMapDiff> diffs;
+
+        FeaturesStateDiff(List<String> deletes, Map<String, SettingsMapDiff> diffs) {
+            this.deletes = deletes;
+            this.diffs = diffs;
+        }
+
+        @Override
+        public Custom apply(Custom part) {
+            final FeaturesState previous = (FeaturesState) part;
+            if (deletes.isEmpty() && diffs.isEmpty()) {
+                return previous;
+            }
+            final ImmutableMap.Builder<String, ImmutableMap<String, Settings>> builder = ImmutableMap.builder();
+            for (final Map.Entry<String, ImmutableMap<String, Settings>> entry : previous.features.entrySet()) {
+                if (deletes.contains(entry.getKey())) {
+                    continue;
+                }
+                final SettingsMapDiff diff = diffs.get(entry.getKey());
+                builder.put(entry.getKey(), diff == null ? entry.getValue() : diff.apply(entry.getValue()));
+            }
+            for (final Map.Entry<String, SettingsMapDiff> entry : diffs.entrySet()) {
+                if (!previous.features.containsKey(entry.getKey())) {
+                    builder.put(entry.getKey(), entry.getValue().apply(Collections.<String, Settings>emptyMap()));
+                }
+            }
+            return new FeaturesState(builder);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVInt(deletes.size());
+            for (final String featureStore : deletes) {
+                out.writeString(featureStore);
+            }
+            out.writeVInt(diffs.size());
+            for (final Map.Entry<String, SettingsMapDiff> entry : diffs.entrySet()) {
+                out.writeString(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        }
+    }
 }
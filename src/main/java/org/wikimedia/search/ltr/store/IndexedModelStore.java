@@ -0,0 +1,475 @@
+package org.wikimedia.search.ltr.store;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.inject.Provider;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.wikimedia.search.ltr.feature.Feature;
+import org.wikimedia.search.ltr.model.LTRScoringModel;
+import org.wikimedia.search.ltr.model.ModelException;
+import org.wikimedia.search.ltr.model.OffHeapDirectory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Models and feature stores kept as documents of a dedicated index instead
+ * of the cluster state, enabled with {@code ltr.store.type: index}.
+ * <p>
+ * Every model is a document holding its settings, every feature store a
+ * document holding the settings of its features. Nodes compile the models
+ * when they are first used and keep them in a cache bounded by
+ * {@code ltr.store.cache.max_models}. Changes to the index increment the
+ * {@link StoreVersionState} of the cluster state, which is part of the cache
+ * keys: models compiled from an older version are never used again. The
+ * heap used by the cached models is accounted to the ltr circuit breaker, a
+ * model that does not fit is not loaded.
+ * <p>
+ * The index has a single shard replicated on every node, so that models are
+ * read locally. Models are read by the first search using them, on its
+ * thread: when the node has no copy of the index yet, during recovery for
+ * instance, they are read from another node and the search fails if that
+ * takes longer than {@code ltr.store.load_timeout}. The models cached when
+ * the version changes are read again in the background, searches do not wait
+ * for the models they used before the change.
+ */
+public class IndexedModelStore {
+    public static final String INDEX = ".ltrstore";
+    static final String MODEL_TYPE = "model";
+    static final String FEATURE_STORE_TYPE = "feature_store";
+    private static final String SETTINGS_FIELD = "settings";
+    private static final String FEATURES_FIELD = "features";
+    private static final ESLogger log = ESLoggerFactory.getLogger(IndexedModelStore.class.getName());
+
+    private final Provider<Client> client;
+    private final Cache<ModelKey, LTRScoringModel> cache;
+    private final CircuitBreaker breaker;
+    private final TimeValue loadTimeout;
+    private final OffHeapDirectory offHeapDirectory;
+    // version the models are reloaded for
+    private volatile long reloadVersion;
+
+    IndexedModelStore(Provider<Client> client, int maxModels, TimeValue loadTimeout, final CircuitBreaker breaker,
+        OffHeapDirectory offHeapDirectory) {
+        this.client = client;
+        this.offHeapDirectory = offHeapDirectory;
+        this.breaker = breaker;
+        this.loadTimeout = loadTimeout;
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxModels)
+            .removalListener(new RemovalListener<ModelKey, LTRScoringModel>() {
+                @Override
+                public void onRemoval(RemovalNotification<ModelKey, LTRScoringModel> notification) {
+                    breaker.addWithoutBreaking(-ramBytesUsed(notification.getValue()));
+                    notification.getValue().decRef();
+                }
+            }).build();
+    }
+
+    /**
+     * @return the model compiled from the given store version, or null if
+     *         there is no such model
+     */
+    LTRScoringModel getModel(final String name, long version) throws ModelException {
+        try {
+            return cache.get(new ModelKey(name, version), new Callable<LTRScoringModel>() {
+                @Override
+                public LTRScoringModel call() throws IOException {
+                    return loadModel(name);
+                }
+            });
+        } catch (CacheLoader.InvalidCacheLoadException e) {
+            // the model does not exist
+            return null;
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ModelException) {
+                throw (ModelException) cause;
+            }
+            if (cause instanceof CircuitBreakingException) {
+                throw (CircuitBreakingException) cause;
+            }
+            throw new ModelException("Unable to load model [" + name + "]", e);
+        }
+    }
+
+    /**
+     * Drops the models compiled from older versions of the store.
+     */
+    void invalidate() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Drops the models compiled from older versions of the store and compiles
+     * the ones that were cached again, from the given version.
+     */
+    void reload(final long version, Executor executor) {
+        reloadVersion = version;
+        final Set<String> names = new HashSet<>();
+        for (final ModelKey key : cache.asMap().keySet()) {
+            names.add(key.name);
+        }
+        cache.invalidateAll();
+        for (final String name : names) {
+            executor.execute(new AbstractRunnable() {
+                @Override
+                protected void doRun() throws Exception {
+                    if (reloadVersion != version) {
+                        return;
+                    }
+                    getModel(name, version);
+                    if (reloadVersion != version) {
+                        // invalidated while loading
+                        cache.invalidate(new ModelKey(name, version));
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // the search using the model fails the same way
+                    log.debug("Unable to reload model [{}]", t, name);
+                }
+            });
+        }
+    }
+
+    long cachedModels() {
+        return cache.size();
+    }
+
+    /**
+     * Adds the memory used by the cached models to the stats, their feature
+     * store being part of every model.
+     */
+    void memoryStats(MemoryStats stats) {
+        for (final Map.Entry<ModelKey, LTRScoringModel> model : cache.asMap().entrySet()) {
+            stats.addModel(model.getKey().name, ramBytesUsed(model.getValue()), model.getValue().offHeapBytesUsed());
+        }
+    }
+
+    /**
+     * Estimates the heap used by a model and the feature store compiled for
+     * it alone.
+     */
+    private static long ramBytesUsed(LTRScoringModel model) {
+        long bytes = model.ramBytesUsed();
+        for (final Feature feature : model.getAllFeatures()) {
+            bytes += Feature.MAP_ENTRY_RAM_BYTES + feature.ramBytesUsed();
+        }
+        return bytes;
+    }
+
+    private LTRScoringModel loadModel(String name) throws IOException {
+        final GetResponse model;
+        try {
+            model = client.get().prepareGet(INDEX, MODEL_TYPE, name).setPreference("_local").get(loadTimeout);
+        } catch (IndexNotFoundException e) {
+            return null;
+        }
+        if (!model.isExists()) {
+            return null;
+        }
+        final Settings settings = parseModel(model);
+        final String storeName = settings.get(LTRStoreService.STORE_KEY, FeatureStore.DEFAULT_FEATURE_STORE_NAME);
+        final GetResponse store = client.get().prepareGet(INDEX, FEATURE_STORE_TYPE, storeName)
+            .setPreference("_local").get(loadTimeout);
+
+        final LTRStoreService.ModelStoreBuilder builder = new LTRStoreService.ModelStoreBuilder(offHeapDirectory);
+        if (store.isExists()) {
+            for (final Map.Entry<String, Settings> feature : parseFeatureStore(store).entrySet()) {
+                builder.addFeature(storeName, feature);
+            }
+        }
+        builder.linkFeatureStores();
+        builder.addModel(name, settings);
+        final LTRScoringModel compiled = builder.modelStore.getModel(name);
+        final long bytes = ramBytesUsed(compiled);
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, "ltr model [" + name + "]");
+        } catch (CircuitBreakingException e) {
+            compiled.decRef();
+            throw e;
+        }
+        return compiled;
+    }
+
+    /**
+     * Validates and stores models, after validating them against their
+     * feature stores.
+     */
+    void putModels(final Map<String, Settings> models, final ActionListener<Void> listener) {
+        readFeatureStores(models, new Listener<FeaturesState>(listener) {
+            @Override
+            void handle(FeaturesState stores) throws IOException {
+                final ModelStore store = LTRStoreService.buildModelStore(new ModelStore(),
+                    Collections.<String, Map<String, Settings>>emptyMap(), Collections.<String, Settings>emptyMap(),
+                    stores.features(), models, false, null, offHeapDirectory);
+                try {
+                    // rejected up front if the nodes could not load them
+                    LTRStoreService.checkBreaker(breaker, store.ramBytesUsed(), "ltr models");
+                } finally {
+                    store.release(null);
+                }
+                writeModels(models, listener);
+            }
+        });
+    }
+
+    /**
+     * Reads the feature stores the models refer to.
+     */
+    void readFeatureStores(Map<String, Settings> models, ActionListener<FeaturesState> listener) {
+        final Set<String> storeNames = new HashSet<>();
+        for (final Settings model : models.values()) {
+            storeNames.add(model.get(LTRStoreService.STORE_KEY, FeatureStore.DEFAULT_FEATURE_STORE_NAME));
+        }
+        getFeatureStores(storeNames, null, listener);
+    }
+
+    /**
+     * Stores models that were validated already.
+     */
+    void writeModels(Map<String, Settings> models, ActionListener<Void> listener) throws IOException {
+        final BulkRequestBuilder bulk = client.get().prepareBulk();
+        for (final Map.Entry<String, Settings> model : models.entrySet()) {
+            final XContentBuilder source = XContentFactory.jsonBuilder().startObject()
+                .field(SETTINGS_FIELD, model.getValue().getAsStructuredMap()).endObject();
+            bulk.add(client.get().prepareIndex(INDEX, MODEL_TYPE, model.getKey()).setSource(source));
+        }
+        write(bulk, listener);
+    }
+
+    void deleteModels(Collection<String> names, ActionListener<Void> listener) {
+        final BulkRequestBuilder bulk = client.get().prepareBulk();
+        for (final String name : names) {
+            bulk.add(client.get().prepareDelete(INDEX, MODEL_TYPE, name));
+        }
+        write(bulk, listener);
+    }
+
+    /**
+     * Applies a change to feature stores, read from the index then written
+     * back unless they were changed concurrently.
+     */
+    void updateFeatureStores(final Set<String> storeNames, final FeatureStoresUpdate update,
+        final ActionListener<Void> listener) {
+        // versions of the documents read, to detect concurrent changes
+        final Map<String, Long> versions = new HashMap<>();
+        getFeatureStores(storeNames, versions, new Listener<FeaturesState>(listener) {
+            @Override
+            void handle(FeaturesState current) throws IOException {
+                final Map<String, Map<String, Settings>> updated = update.apply(current).features();
+                // validates the stores
+                LTRStoreService.buildModelStore(updated, Collections.<String, Settings>emptyMap()).release(null);
+                final BulkRequestBuilder bulk = client.get().prepareBulk();
+                for (final String storeName : storeNames) {
+                    final Map<String, Settings> features = updated.get(storeName);
+                    if (features == null || features.equals(current.features().get(storeName))) {
+                        continue;
+                    }
+                    final XContentBuilder source = XContentFactory.jsonBuilder().startObject()
+                        .startObject(FEATURES_FIELD);
+                    for (final Map.Entry<String, Settings> feature : features.entrySet()) {
+                        source.field(feature.getKey(), feature.getValue().getAsStructuredMap());
+                    }
+                    source.endObject().endObject();
+                    final IndexRequestBuilder index = client.get().prepareIndex(INDEX, FEATURE_STORE_TYPE, storeName)
+                        .setSource(source);
+                    final Long version = versions.get(storeName);
+                    if (version == null) {
+                        index.setCreate(true);
+                    } else {
+                        index.setVersion(version);
+                    }
+                    bulk.add(index);
+                }
+                write(bulk, listener);
+            }
+        });
+    }
+
+    /**
+     * A change to feature stores.
+     */
+    interface FeatureStoresUpdate {
+        FeaturesState apply(FeaturesState current);
+    }
+
+    /**
+     * Reads feature stores, and the versions of their documents if versions
+     * is not null.
+     */
+    private void getFeatureStores(Set<String> storeNames, final Map<String, Long> versions,
+        final ActionListener<FeaturesState> listener) {
+        if (storeNames.isEmpty()) {
+            listener.onResponse(new FeaturesState());
+            return;
+        }
+        final MultiGetRequestBuilder get = client.get().prepareMultiGet();
+        for (final String storeName : storeNames) {
+            get.add(INDEX, FEATURE_STORE_TYPE, storeName);
+        }
+        get.execute(new Listener<MultiGetResponse>(listener) {
+            @Override
+            void handle(MultiGetResponse response) {
+                final FeaturesState.Builder builder = new FeaturesState.Builder(null);
+                for (final MultiGetItemResponse item : response) {
+                    if (item.isFailed()) {
+                        final Throwable failure = item.getFailure().getFailure();
+                        if (ExceptionsHelper.unwrapCause(failure) instanceof IndexNotFoundException) {
+                            continue;
+                        }
+                        throw new ElasticsearchException("Unable to read feature store [" + item.getId() + "]",
+                            failure);
+                    }
+                    if (item.getResponse().isExists()) {
+                        builder.putAll(item.getId(), parseFeatureStore(item.getResponse()));
+                        if (versions != null) {
+                            versions.put(item.getId(), item.getResponse().getVersion());
+                        }
+                    }
+                }
+                listener.onResponse(builder.build());
+            }
+        });
+    }
+
+    private void write(final BulkRequestBuilder bulk, final ActionListener<Void> listener) {
+        if (bulk.numberOfActions() == 0) {
+            listener.onResponse(null);
+            return;
+        }
+        createIndex(new Listener<Void>(listener) {
+            @Override
+            void handle(Void response) {
+                bulk.execute(new Listener<BulkResponse>(listener) {
+                    @Override
+                    void handle(BulkResponse response) {
+                        if (response.hasFailures()) {
+                            throw new ElasticsearchException(response.buildFailureMessage());
+                        }
+                        listener.onResponse(null);
+                    }
+                });
+            }
+        });
+    }
+
+    private void createIndex(final ActionListener<Void> listener) {
+        final Settings settings = Settings.builder().put("index.number_of_shards", 1)
+            .put("index.auto_expand_replicas", "0-all").build();
+        final String mapping = "{\"dynamic\": false, \"_all\": {\"enabled\": false}}";
+        client.get().admin().indices().prepareCreate(INDEX).setSettings(settings).addMapping(MODEL_TYPE, mapping)
+            .addMapping(FEATURE_STORE_TYPE, mapping).execute(new ActionListener<CreateIndexResponse>() {
+                @Override
+                public void onResponse(CreateIndexResponse response) {
+                    listener.onResponse(null);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    if (ExceptionsHelper.unwrapCause(e) instanceof IndexAlreadyExistsException) {
+                        listener.onResponse(null);
+                    } else {
+                        listener.onFailure(e);
+                    }
+                }
+            });
+    }
+
+    private static Settings parseModel(GetResponse response) {
+        return Settings.builder().loadFromSource(response.getSourceAsString()).build().getAsSettings(SETTINGS_FIELD);
+    }
+
+    private static Map<String, Settings> parseFeatureStore(GetResponse response) {
+        return Settings.builder().loadFromSource(response.getSourceAsString()).build().getGroups(FEATURES_FIELD);
+    }
+
+    /**
+     * Listener handing its failures, including the ones thrown by
+     * {@link #handle(Object)}, to another listener.
+     */
+    private abstract static class Listener<T> implements ActionListener<T> {
+        private final ActionListener<?> delegate;
+
+        Listener(ActionListener<?> delegate) {
+            this.delegate = delegate;
+        }
+
+        abstract void handle(T response) throws Exception;
+
+        @Override
+        public void onResponse(T response) {
+            try {
+                handle(response);
+            } catch (Exception e) {
+                delegate.onFailure(e);
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            delegate.onFailure(e);
+        }
+    }
+
+    private static class ModelKey {
+        private final String name;
+        private final long version;
+
+        ModelKey(String name, long version) {
+            this.name = name;
+            this.version = version;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ModelKey)) {
+                return false;
+            }
+            final ModelKey other = (ModelKey) o;
+            return version == other.version && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, version);
+        }
+    }
+}
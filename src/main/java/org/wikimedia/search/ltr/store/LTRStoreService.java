@@ -1,32 +1,72 @@
 package org.wikimedia.search.ltr.store;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.AckedClusterStateUpdateTask;
 import org.elasticsearch.cluster.ClusterChangedEvent;
 import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.ClusterStateTaskExecutor;
+import org.elasticsearch.cluster.ClusterStateUpdateTask;
 import org.elasticsearch.cluster.ack.AckedRequest;
 import org.elasticsearch.cluster.ack.ClusterStateUpdateResponse;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Provider;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.metrics.MeanMetric;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.CountDown;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.indices.breaker.BreakerSettings;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.indices.breaker.NoneCircuitBreakerService;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.wikimedia.search.ltr.action.feature.delete.DeleteFeaturesClusterStateUpdateRequest;
 import org.wikimedia.search.ltr.action.feature.put.PutFeaturesClusterStateUpdateRequest;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsClusterStateUpdateRequest;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsClusterStateUpdateResponse;
 import org.wikimedia.search.ltr.action.model.delete.DeleteModelsClusterStateUpdateRequest;
 import org.wikimedia.search.ltr.action.model.put.PutModelsClusterStateUpdateRequest;
+import org.wikimedia.search.ltr.action.model.validate.ValidateModelsResponse;
 import org.wikimedia.search.ltr.feature.Feature;
+import org.wikimedia.search.ltr.feature.FeatureException;
 import org.wikimedia.search.ltr.model.LTRScoringModel;
 import org.wikimedia.search.ltr.model.ModelException;
+import org.wikimedia.search.ltr.model.MultipleAdditiveTreesModel;
+import org.wikimedia.search.ltr.model.OffHeapDirectory;
+import org.wikimedia.search.ltr.model.TreeEncoding;
 import org.wikimedia.search.ltr.norm.IdentityNormalizer;
 import org.wikimedia.search.ltr.norm.Normalizer;
 
@@ -38,26 +78,150 @@ public class LTRStoreService extends AbstractLifecycleComponent<LTRStoreService>
     static final String PARAMS_KEY = "params";
     static final String STORE_KEY = "store";
 
-    private final AtomicReference<ModelStore> modelStore;
+    /**
+     * Where models and features are stored: "cluster_state" (the default) or
+     * "index", see {@link IndexedModelStore}.
+     */
+    public static final String STORE_TYPE_SETTING = "ltr.store.type";
+    public static final String CACHE_SIZE_SETTING = "ltr.store.cache.max_models";
+    /**
+     * How long a search waits for the documents of a model of the indexed
+     * store, defaults to 1s.
+     */
+    public static final String LOAD_TIMEOUT_SETTING = "ltr.store.load_timeout";
+    /**
+     * Whether nodes compile models the first time they are used instead of in
+     * the background as soon as they are published.
+     */
+    public static final String LAZY_COMPILATION_SETTING = "ltr.store.lazy_compilation";
+    /**
+     * Models compiled in the background as soon as they are published, so
+     * that the first queries using them do not wait for their compilation.
+     */
+    public static final String PRECOMPILE_SETTING = "ltr.store.precompile";
+    /**
+     * Number of times new and changed models are scored against synthetic
+     * feature vectors before being published, 0 to disable the warmup.
+     */
+    public static final String WARMUP_ITERATIONS_SETTING = "ltr.store.warmup.iterations";
+    /**
+     * Maximum number of threads compiling models when the store is built
+     * eagerly, defaults to the number of processors.
+     */
+    public static final String COMPILATION_THREADS_SETTING = "ltr.store.compilation_threads";
+    /**
+     * Limit of the ltr circuit breaker, accounting for the heap used by the
+     * models and feature stores loaded on the node, defaults to 10% of the
+     * heap.
+     */
+    public static final String BREAKER_LIMIT_SETTING = "ltr.breaker.limit";
+    /**
+     * Constant the estimated sizes are multiplied with, defaults to 1.
+     */
+    public static final String BREAKER_OVERHEAD_SETTING = "ltr.breaker.overhead";
+    public static final String BREAKER_NAME = "ltr";
+
+    // the store used by searches, with the states it was built from
+    private final AtomicReference<PublishedStore> published;
+    // compiles and warms the models of the published stores off the cluster
+    // state update thread
+    private final ExecutorService storeExecutor;
+    // compiles models concurrently
+    private final ThreadPoolExecutor compileExecutor;
+    // merges the updates of the features and models kept in the cluster
+    // state
+    private final UpdateExecutor updateExecutor = new UpdateExecutor();
     private final ClusterService clusterService;
+    // null in tests, models are then never precompiled
+    private final ThreadPool threadPool;
+    private final boolean lazyCompilation;
+    private final List<String> precompiledModels;
+    private final int warmupIterations;
+    // count and time in nanoseconds of the models warmed
+    private final MeanMetric warmups = new MeanMetric();
+    private volatile long lastWarmupModels;
+    private volatile long lastWarmupTimeInMillis;
+    // null when models are kept in the cluster state
+    private final IndexedModelStore indexedStore;
+    // null on nodes without a data path, off heap models are then rejected
+    private final OffHeapDirectory offHeapDirectory;
+    private volatile long storeVersion;
+    private final CircuitBreaker breaker;
+    // bytes of the published store added to the breaker, guarded by this
+    private long accountedBytes;
 
-    private volatile FeaturesState lastFeaturesApplied;
-    private volatile ModelsState lastModelsApplied;
+    /**
+     * Increments the version of the indexed store once for all the queued
+     * changes, the nodes only need to drop their cached models once.
+     */
+    private static final ClusterStateTaskExecutor<ClusterStateUpdateTask> STORE_VERSION_EXECUTOR =
+        new ClusterStateTaskExecutor<ClusterStateUpdateTask>() {
+            @Override
+            public BatchResult<ClusterStateUpdateTask> execute(ClusterState currentState,
+                List<ClusterStateUpdateTask> tasks) {
+                return BatchResult.<ClusterStateUpdateTask>builder().successes(tasks)
+                    .build(incrementStoreVersion(currentState));
+            }
+        };
 
     private static final ESLogger log = ESLoggerFactory.getLogger(LTRStoreService.class.getName());
 
     static {
         ClusterState.registerPrototype(FeaturesState.TYPE, FeaturesState.PROTO);
         ClusterState.registerPrototype(ModelsState.TYPE, ModelsState.PROTO);
+        ClusterState.registerPrototype(StoreVersionState.TYPE, StoreVersionState.PROTO);
     }
 
-    @Inject
     public LTRStoreService(Settings settings, ClusterService clusterService) {
+        this(settings, clusterService, null, null, new NoneCircuitBreakerService(), null);
+    }
+
+    @Inject
+    public LTRStoreService(Settings settings, ClusterService clusterService, Provider<Client> client,
+        ThreadPool threadPool, CircuitBreakerService breakerService, NodeEnvironment nodeEnvironment) {
         super(settings);
-        modelStore = new AtomicReference<>(new ModelStore());
+        if (nodeEnvironment != null && nodeEnvironment.hasNodeFile()) {
+            final Path path = nodeEnvironment.nodeDataPaths()[0].resolve("ltr-trees");
+            try {
+                offHeapDirectory = OffHeapDirectory.open(path);
+            } catch (IOException e) {
+                throw new ElasticsearchException("Unable to clean [" + path + "]", e);
+            }
+        } else {
+            offHeapDirectory = null;
+        }
+        breakerService.registerBreaker(new BreakerSettings(BREAKER_NAME,
+            settings.getAsMemory(BREAKER_LIMIT_SETTING, "10%").bytes(),
+            settings.getAsDouble(BREAKER_OVERHEAD_SETTING, 1.0), CircuitBreaker.Type.MEMORY));
+        breaker = breakerService.getBreaker(BREAKER_NAME);
+        published = new AtomicReference<>(new PublishedStore(new ModelStore(), new FeaturesState(),
+            new ModelsState()));
+        storeExecutor = EsExecutors.newScaling("ltr_store", 0, 1, 5, TimeUnit.MINUTES,
+            EsExecutors.daemonThreadFactory(settings, "ltr_store"));
+        final int compilationThreads = settings.getAsInt(COMPILATION_THREADS_SETTING,
+            EsExecutors.boundedNumberOfProcessors(settings));
+        if (compilationThreads < 1) {
+            throw new IllegalArgumentException(COMPILATION_THREADS_SETTING + " must be at least 1");
+        }
+        compileExecutor = EsExecutors.newScaling("ltr_compile", 0, compilationThreads, 5, TimeUnit.MINUTES,
+            EsExecutors.daemonThreadFactory(settings, "ltr_compile"));
         this.clusterService = clusterService;
-        lastFeaturesApplied = new FeaturesState();
-        lastModelsApplied = new ModelsState();
+        this.threadPool = threadPool;
+        lazyCompilation = settings.getAsBoolean(LAZY_COMPILATION_SETTING, true);
+        precompiledModels = Arrays.asList(settings.getAsArray(PRECOMPILE_SETTING));
+        warmupIterations = settings.getAsInt(WARMUP_ITERATIONS_SETTING, 1000);
+        final String storeType = settings.get(STORE_TYPE_SETTING, "cluster_state");
+        switch (storeType) {
+        case "cluster_state":
+            indexedStore = null;
+            break;
+        case "index":
+            indexedStore = new IndexedModelStore(client, settings.getAsInt(CACHE_SIZE_SETTING, 1000),
+                settings.getAsTime(LOAD_TIMEOUT_SETTING, TimeValue.timeValueSeconds(1)), breaker, offHeapDirectory);
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown " + STORE_TYPE_SETTING + " [" + storeType + "]");
+        }
         clusterService.add(this);
     }
 
@@ -75,40 +239,292 @@ public class LTRStoreService extends AbstractLifecycleComponent<LTRStoreService>
 
     @Override
     protected void doClose() throws ElasticsearchException {
+        ThreadPool.terminate(storeExecutor, 10, TimeUnit.SECONDS);
+        ThreadPool.terminate(compileExecutor, 10, TimeUnit.SECONDS);
+        synchronized (this) {
+            breaker.addWithoutBreaking(-accountedBytes);
+            accountedBytes = 0;
+        }
+        if (indexedStore != null) {
+            indexedStore.invalidate();
+        }
     }
 
     @Override
     public void clusterChanged(ClusterChangedEvent event) {
-        // master node already applied the state change
-        if (!event.localNodeMaster()) {
-            loadClusterState(event.state());
+        if (indexedStore != null) {
+            final StoreVersionState version = event.state().custom(StoreVersionState.TYPE);
+            if (version != null && version.version() != storeVersion) {
+                storeVersion = version.version();
+                // the store executor is not used by the indexed store otherwise
+                indexedStore.reload(storeVersion, storeExecutor);
+            }
+            return;
+        }
+        final PublishedStore previous = published.get();
+        final ModelStore next = publish(previous, featuresState(event.state()), modelsState(event.state()));
+        if (next == null) {
+            return;
+        }
+        account();
+        // only registering the models is cheap enough for the cluster state
+        // update thread, compiling them may take a while
+        final List<String> names = modelsToCompile(previous.store, next);
+        if (names.isEmpty()) {
+            return;
+        }
+        try {
+            storeExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (published.get().store == next) {
+                        compile(next, names);
+                        account();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closing
         }
     }
 
-    private void loadClusterState(ClusterState state) {
-        FeaturesState featuresState = state.custom(FeaturesState.TYPE);
-        ModelsState modelsState = state.custom(ModelsState.TYPE);
+    /**
+     * Builds the model store of the given states, registering its models to
+     * be compiled when first used, then publishes it.
+     *
+     * @return the store published, or null if the published store was
+     *         already built from these states or could not be rebuilt
+     */
+    private ModelStore publish(PublishedStore previous, FeaturesState featuresState, ModelsState modelsState) {
+        if (previous.isBuiltFrom(featuresState, modelsState)) {
+            return null;
+        }
 
-        // If these are null that means they've never been set in the cluster
-        // state, so use an empty version.
-        if (featuresState == null) {
-            featuresState = new FeaturesState();
+        log.info("[" + clusterService.localNode().getName() + "] Reading new ltr settings");
+        final ModelStore next;
+        try {
+            next = buildModelStore(previous.store, previous.features.features(), previous.models.models(),
+                featuresState.features(), modelsState.models(), true, null, offHeapDirectory);
+        } catch (ModelException | FeatureException e) {
+            // validated by the master, should only happen if the store
+            // depends on something local to this node
+            log.warn("unable to build the model store, keeping the previous one", e);
+            return null;
         }
-        if (modelsState == null) {
-            modelsState = new ModelsState();
+        next.setCompilationListener(reservation);
+        published.set(new PublishedStore(next, featuresState, modelsState));
+        previous.store.release(next);
+        return next;
+    }
+
+    /**
+     * Validates the stores of the given states, reusing what the published
+     * store already built.
+     */
+    private void validate(FeaturesState featuresState, ModelsState modelsState) {
+        final PublishedStore current = published.get();
+        final ModelStore store = buildModelStore(current.store, current.features.features(),
+            current.models.models(), featuresState.features(), modelsState.models(), false, compileExecutor,
+            offHeapDirectory);
+        try {
+            // rejected up front if the nodes could not load the new models
+            checkBreaker(breaker, store.ramBytesUsed() - current.store.ramBytesUsed(), "ltr models");
+        } finally {
+            // only built to be validated
+            store.release(current.store);
         }
+    }
 
-        if (featuresState.equals(lastFeaturesApplied) && modelsState.equals(lastModelsApplied)) {
+    /**
+     * Checks that the bytes fit in the breaker without keeping them.
+     *
+     * @throws CircuitBreakingException if they do not
+     */
+    static void checkBreaker(CircuitBreaker breaker, long bytes, String label) {
+        if (bytes <= 0) {
             return;
         }
+        breaker.addEstimateBytesAndMaybeBreak(bytes, label);
+        breaker.addWithoutBreaking(-bytes);
+    }
 
-        log.info("[" + clusterService.localNode().getName() + "] Reading new ltr settings");
-        modelStore.set(buildModelStore(featuresState, modelsState));
-        lastFeaturesApplied = featuresState;
-        lastModelsApplied = modelsState;
+    /**
+     * Reserves the heap of the models compiled lazily before searches can use
+     * them: a model that does not fit in the breaker fails the search and is
+     * dropped.
+     */
+    private final ModelStore.CompilationListener reservation = new ModelStore.CompilationListener() {
+        @Override
+        public void compiled(LTRScoringModel model) {
+            reserve(model);
+        }
+    };
+
+    private synchronized void reserve(LTRScoringModel model) {
+        final long bytes = model.ramBytesUsed();
+        breaker.addEstimateBytesAndMaybeBreak(bytes, "ltr model [" + model.getName() + "]");
+        // until account() adjusts them to the published store
+        accountedBytes += bytes;
     }
 
+    /**
+     * Adjusts the bytes accounted to the breaker to the models and feature
+     * stores of the published store compiled so far.
+     */
+    private synchronized void account() {
+        final long bytes = published.get().store.ramBytesUsed();
+        breaker.addWithoutBreaking(bytes - accountedBytes);
+        accountedBytes = bytes;
+    }
+
+    /**
+     * @return the models of the next store to compile in the background: the
+     *         new and changed ones unless compilation is lazy, those replacing
+     *         a model that was in use, and the models listed in
+     *         {@link #PRECOMPILE_SETTING}
+     */
+    private List<String> modelsToCompile(ModelStore previous, ModelStore next) {
+        final List<String> names = new ArrayList<>();
+        for (final String name : next.modelNames()) {
+            if (next.isCompiled(name)) {
+                // reused
+                continue;
+            }
+            if (!lazyCompilation || previous.isCompiled(name) || precompiledModels.contains(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Compiles the given models of the store, up to
+     * {@link #COMPILATION_THREADS_SETTING} concurrently, then warms them.
+     */
+    private void compile(final ModelStore store, List<String> names) {
+        final CountDownLatch done = new CountDownLatch(names.size());
+        for (final String name : names) {
+            final Runnable compilation = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (store.getModel(name) != null) {
+                            log.debug("compiled model {}", name);
+                        }
+                    } catch (ModelException | FeatureException | CircuitBreakingException e) {
+                        log.warn("unable to compile model {}", e, name);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            try {
+                compileExecutor.execute(compilation);
+            } catch (RejectedExecutionException e) {
+                // closing
+                done.countDown();
+            }
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        warmup(store, names);
+    }
+
+    /**
+     * Scores the compiled models among the given ones
+     * {@link #WARMUP_ITERATIONS_SETTING} times, so that the first queries
+     * using them do not run cold code.
+     */
+    private void warmup(ModelStore store, List<String> names) {
+        if (warmupIterations <= 0) {
+            return;
+        }
+        final long start = System.nanoTime();
+        int warmed = 0;
+        for (final String name : names) {
+            if (!store.isCompiled(name)) {
+                // failed
+                continue;
+            }
+            try {
+                warmups.inc(ModelWarmer.warm(store.getModel(name), warmupIterations));
+                warmed++;
+            } catch (ModelException | FeatureException e) {
+                log.warn("unable to warm model {}", e, name);
+            }
+        }
+        if (warmed > 0) {
+            lastWarmupModels = warmed;
+            lastWarmupTimeInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            log.debug("warmed {} models in {}ms", warmed, lastWarmupTimeInMillis);
+        }
+    }
+
+    public StoreStats stats() {
+        final long models;
+        final long compiled;
+        if (indexedStore != null) {
+            models = indexedStore.cachedModels();
+            compiled = models;
+        } else {
+            final ModelStore store = published.get().store;
+            models = store.modelNames().size();
+            compiled = store.compiledModels();
+        }
+        return new StoreStats(models, compiled, warmups.count(), TimeUnit.NANOSECONDS.toMillis(warmups.sum()),
+            lastWarmupModels, lastWarmupTimeInMillis);
+    }
+
+    public MemoryStats memoryStats() {
+        final MemoryStats stats = new MemoryStats(breaker.getLimit(), breaker.getUsed(), breaker.getTrippedCount());
+        if (indexedStore != null) {
+            indexedStore.memoryStats(stats);
+            return stats;
+        }
+        final ModelStore store = published.get().store;
+        for (final Map.Entry<String, LTRScoringModel> model : store.loadedModels().entrySet()) {
+            stats.addModel(model.getKey(), model.getValue().ramBytesUsed(), model.getValue().offHeapBytesUsed());
+        }
+        for (final Map.Entry<String, FeatureStore> featureStore : store.loadedFeatureStores().entrySet()) {
+            stats.addFeatureStore(featureStore.getKey(), featureStore.getValue().ramBytesUsed());
+        }
+        return stats;
+    }
+
+    /**
+     * Model store with the states it was built from.
+     */
+    private static class PublishedStore {
+        private final ModelStore store;
+        private final FeaturesState features;
+        private final ModelsState models;
+
+        PublishedStore(ModelStore store, FeaturesState features, ModelsState models) {
+            this.store = store;
+            this.features = features;
+            this.models = models;
+        }
+
+        boolean isBuiltFrom(FeaturesState featuresState, ModelsState modelsState) {
+            return features.equals(featuresState) && models.equals(modelsState);
+        }
+    }
+
+    /**
+     * Update of the features or models kept in the cluster state. The update
+     * is validated before the task is submitted. If the state changed in the
+     * meantime the task fails with a {@link StaleValidationException} and
+     * is validated again and submitted again, so that the cluster state
+     * update thread never compiles models.
+     */
     abstract class AckedLtrClusterStateUpdateTask extends AckedClusterStateUpdateTask<ClusterStateUpdateResponse> {
+        private volatile FeaturesState validatedFeatures;
+        private volatile ModelsState validatedModels;
+
         public AckedLtrClusterStateUpdateTask(AckedRequest request,
             ActionListener<ClusterStateUpdateResponse> listener) {
             super(request, listener);
@@ -120,34 +536,169 @@ public class LTRStoreService extends AbstractLifecycleComponent<LTRStoreService>
         }
 
         protected FeaturesState update(FeaturesState featuresState) {
-            return featuresState == null ? new FeaturesState() : featuresState;
+            return featuresState;
         }
 
         protected ModelsState update(ModelsState modelsState) {
-            return modelsState == null ? new ModelsState() : modelsState;
+            return modelsState;
+        }
+
+        /**
+         * Validates the update applied to the given state.
+         */
+        void validate(ClusterState state) {
+            final FeaturesState newFeaturesState = update(featuresState(state));
+            final ModelsState newModelsState = update(modelsState(state));
+            LTRStoreService.this.validate(newFeaturesState, newModelsState);
+            validatedFeatures = newFeaturesState;
+            validatedModels = newModelsState;
+        }
+
+        /**
+         * Validates the new states unless the update was validated for them
+         * before the task was submitted. This should throw an exception for
+         * any invalid configuration.
+         */
+        void revalidate(FeaturesState newFeaturesState, ModelsState newModelsState) {
+            if (!isValidated(newFeaturesState, newModelsState)) {
+                LTRStoreService.this.validate(newFeaturesState, newModelsState);
+            }
+        }
+
+        /**
+         * @return true if these states were validated before the task was
+         *         submitted
+         */
+        protected boolean isValidated(FeaturesState newFeaturesState, ModelsState newModelsState) {
+            return newFeaturesState.equals(validatedFeatures) && newModelsState.equals(validatedModels);
+        }
+
+        /**
+         * @return the features the update was validated against, or null if
+         *         it was not validated
+         */
+        protected FeaturesState validatedFeatures() {
+            return validatedFeatures;
         }
 
         @Override
         public ClusterState execute(ClusterState currentState) {
-            final FeaturesState currentFeaturesState = currentState.custom(FeaturesState.TYPE);
-            final ModelsState currentModelsState = currentState.custom(ModelsState.TYPE);
-            final FeaturesState newFeaturesState = update(currentFeaturesState);
-            final ModelsState newModelsState = update(currentModelsState);
-            final ClusterState newState = ClusterState.builder(currentState)
-                .putCustom(FeaturesState.TYPE, newFeaturesState).putCustom(ModelsState.TYPE, newModelsState).build();
+            final FeaturesState newFeaturesState = update(featuresState(currentState));
+            final ModelsState newModelsState = update(modelsState(currentState));
+            revalidate(newFeaturesState, newModelsState);
+            return updatedState(currentState, newFeaturesState, newModelsState);
+        }
 
-            // Perhaps a lazy validation ... should extract into
-            // something more concrete? But this should throw an
-            // exception for any invalid configuration.
-            loadClusterState(newState);
+        @Override
+        public void onFailure(String source, Throwable t) {
+            if (t instanceof StaleValidationException) {
+                submitStateUpdateTask(source, this);
+                return;
+            }
+            super.onFailure(source, t);
+        }
+    }
 
-            return newState;
+    /**
+     * Merges the queued updates of features and models into a single cluster
+     * state change, every update still being acknowledged on its own. Nothing
+     * is published when the updates leave the features and models as they
+     * were.
+     */
+    private class UpdateExecutor extends ClusterStateTaskExecutor<AckedLtrClusterStateUpdateTask> {
+        @Override
+        public BatchResult<AckedLtrClusterStateUpdateTask> execute(ClusterState currentState,
+            List<AckedLtrClusterStateUpdateTask> tasks) {
+            FeaturesState featuresState = featuresState(currentState);
+            ModelsState modelsState = modelsState(currentState);
+            final BatchResult.Builder<AckedLtrClusterStateUpdateTask> result = BatchResult.builder();
+            for (final AckedLtrClusterStateUpdateTask task : tasks) {
+                try {
+                    final FeaturesState newFeaturesState = task.update(featuresState);
+                    final ModelsState newModelsState = task.update(modelsState);
+                    if ((!newFeaturesState.equals(featuresState) || !newModelsState.equals(modelsState))
+                        && !task.isValidated(newFeaturesState, newModelsState)) {
+                        // compiling the models is too slow for this thread
+                        result.failure(task, new StaleValidationException());
+                        continue;
+                    }
+                    featuresState = newFeaturesState;
+                    modelsState = newModelsState;
+                    result.success(task);
+                } catch (Exception e) {
+                    result.failure(task, e);
+                }
+            }
+            if (tasks.size() > 1) {
+                log.debug("merged {} ltr updates", tasks.size());
+            }
+            return result.build(updatedState(currentState, featuresState, modelsState));
+        }
+    }
+
+    /**
+     * Fails an update validated against a state that changed since, for it
+     * to be validated again off the cluster state update thread and
+     * submitted again.
+     */
+    private static class StaleValidationException extends ElasticsearchException {
+        StaleValidationException() {
+            super("ltr update validated against a stale state");
+        }
+    }
+
+    /**
+     * @return the state with the new features and models, or the current
+     *         state itself if they did not change so that nothing is published
+     */
+    private static ClusterState updatedState(ClusterState currentState, FeaturesState newFeaturesState,
+        ModelsState newModelsState) {
+        if (newFeaturesState.equals(featuresState(currentState)) && newModelsState.equals(modelsState(currentState))) {
+            return currentState;
+        }
+        return ClusterState.builder(currentState).putCustom(FeaturesState.TYPE, newFeaturesState)
+            .putCustom(ModelsState.TYPE, newModelsState).build();
+    }
+
+    /**
+     * Validates the update on the management thread pool, then submits it.
+     */
+    private void submitStateUpdateTask(final String source, final AckedLtrClusterStateUpdateTask task) {
+        final Runnable validation = new AbstractRunnable() {
+            @Override
+            protected void doRun() {
+                task.validate(clusterService.state());
+                clusterService.submitStateUpdateTask(source, task, task, updateExecutor, task);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                task.onFailure(source, t);
+            }
+        };
+        if (threadPool == null) {
+            validation.run();
+        } else {
+            threadPool.executor(ThreadPool.Names.MANAGEMENT).execute(validation);
         }
     }
 
     public void deleteFeatures(final DeleteFeaturesClusterStateUpdateRequest request,
         final ActionListener<ClusterStateUpdateResponse> listener) {
-        clusterService.submitStateUpdateTask("ltr-delete-features",
+        if (indexedStore != null) {
+            final Set<String> storeNames = new HashSet<>();
+            for (final Settings stores : request.features().getGroups("features").values()) {
+                storeNames.addAll(stores.getAsStructuredMap().keySet());
+            }
+            indexedStore.updateFeatureStores(storeNames, new IndexedModelStore.FeatureStoresUpdate() {
+                @Override
+                public FeaturesState apply(FeaturesState current) {
+                    return new FeaturesState.Builder(current).removeAll(request.features()).build();
+                }
+            }, incrementStoreVersion("ltr-delete-features", request, listener));
+            return;
+        }
+        submitStateUpdateTask("ltr-delete-features",
             new AckedLtrClusterStateUpdateTask(request, listener) {
                 @Override
                 protected FeaturesState update(FeaturesState featuresState) {
@@ -158,7 +709,18 @@ public class LTRStoreService extends AbstractLifecycleComponent<LTRStoreService>
 
     public void putFeatures(final PutFeaturesClusterStateUpdateRequest request,
         final ActionListener<ClusterStateUpdateResponse> listener) {
-        clusterService.submitStateUpdateTask("ltr-put-features", new AckedLtrClusterStateUpdateTask(request, listener) {
+        if (indexedStore != null) {
+            final Set<String> storeNames = new FeaturesState.Builder(null).putAll(request.features()).build()
+                .features().keySet();
+            indexedStore.updateFeatureStores(storeNames, new IndexedModelStore.FeatureStoresUpdate() {
+                @Override
+                public FeaturesState apply(FeaturesState current) {
+                    return new FeaturesState.Builder(current).putAll(request.features()).build();
+                }
+            }, incrementStoreVersion("ltr-put-features", request, listener));
+            return;
+        }
+        submitStateUpdateTask("ltr-put-features", new AckedLtrClusterStateUpdateTask(request, listener) {
             @Override
             protected FeaturesState update(FeaturesState featuresState) {
                 return new FeaturesState.Builder(featuresState).putAll(request.features()).build();
@@ -168,69 +730,574 @@ public class LTRStoreService extends AbstractLifecycleComponent<LTRStoreService>
 
     public void deleteModels(final DeleteModelsClusterStateUpdateRequest request,
         final ActionListener<ClusterStateUpdateResponse> listener) {
-        clusterService.submitStateUpdateTask("ltr-delete-models",
+        if (indexedStore != null) {
+            indexedStore.deleteModels(Arrays.asList(request.models().getAsArray("models")),
+                incrementStoreVersion("ltr-delete-models", request, listener));
+            return;
+        }
+        submitStateUpdateTask("ltr-delete-models",
             new AckedLtrClusterStateUpdateTask(request, listener) {
                 @Override
                 protected ModelsState update(ModelsState modelsState) {
                     return new ModelsState.Builder(modelsState).removeAll(request.models()).build();
                 }
+
+                @Override
+                protected boolean isValidated(FeaturesState newFeaturesState, ModelsState newModelsState) {
+                    // removing models cannot break anything
+                    return true;
+                }
             });
     }
 
     public void putModels(final PutModelsClusterStateUpdateRequest request,
         final ActionListener<ClusterStateUpdateResponse> listener) {
-        clusterService.submitStateUpdateTask("ltr-put-models", new AckedLtrClusterStateUpdateTask(request, listener) {
+        if (indexedStore != null) {
+            indexedStore.putModels(compactModels(request.models()),
+                incrementStoreVersion("ltr-put-models", request, listener));
+            return;
+        }
+        final Map<String, Settings> models = compactModels(request.models());
+        submitStateUpdateTask("ltr-put-models", new AckedLtrClusterStateUpdateTask(request, listener) {
             @Override
             protected ModelsState update(ModelsState modelsState) {
-                return new ModelsState.Builder(modelsState).putAll(request.models()).build();
+                return new ModelsState.Builder(modelsState).putAll(models).build();
+            }
+
+            @Override
+            protected boolean isValidated(FeaturesState newFeaturesState, ModelsState newModelsState) {
+                // models only depend on the features they were validated
+                // against
+                return newFeaturesState.equals(validatedFeatures());
             }
         });
     }
 
-    private ModelStore buildModelStore(FeaturesState featuresState, ModelsState modelsState) {
-        return buildModelStore(featuresState.features(), modelsState.models());
+    /**
+     * Validates and compiles the models in parallel on the executor, then
+     * stores the valid ones in a single update. The invalid models are
+     * reported in the response instead of failing the whole upload.
+     */
+    public void bulkPutModels(final BulkPutModelsClusterStateUpdateRequest request, final Executor executor,
+        final ActionListener<BulkPutModelsClusterStateUpdateResponse> listener) {
+        final Map<String, Settings> models = compactModels(request.models());
+        if (indexedStore != null) {
+            indexedStore.readFeatureStores(models, new ActionListener<FeaturesState>() {
+                @Override
+                public void onResponse(FeaturesState features) {
+                    validateModels(features, models, executor, new ValidatedModels(listener) {
+                        @Override
+                        void store(Map<String, Settings> valid, Map<String, Throwable> failures) throws IOException {
+                            indexedStore.writeModels(valid, incrementStoreVersion("ltr-bulk-put-models", request,
+                                withFailures(failures, listener)));
+                        }
+                    });
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    listener.onFailure(e);
+                }
+            });
+            return;
+        }
+        final FeaturesState features = featuresState(clusterService.state());
+        validateModels(features, models, executor, new ValidatedModels(listener) {
+            @Override
+            void store(final Map<String, Settings> valid, Map<String, Throwable> failures) {
+                final AckedLtrClusterStateUpdateTask task = new AckedLtrClusterStateUpdateTask(request,
+                    withFailures(failures, listener)) {
+                    @Override
+                    protected ModelsState update(ModelsState modelsState) {
+                        return new ModelsState.Builder(modelsState).putAll(valid).build();
+                    }
+
+                    @Override
+                    protected boolean isValidated(FeaturesState newFeaturesState, ModelsState newModelsState) {
+                        // the models were compiled against these features
+                        // already, they are only compiled again if the
+                        // features changed since
+                        return features.equals(newFeaturesState)
+                            || super.isValidated(newFeaturesState, newModelsState);
+                    }
+                };
+                clusterService.submitStateUpdateTask("ltr-bulk-put-models", task, task, updateExecutor, task);
+            }
+        });
+    }
+
+    /**
+     * Compiles every model in parallel on the executor, against the given
+     * feature stores, then stores those that compiled.
+     */
+    private void validateModels(FeaturesState features, final Map<String, Settings> models, Executor executor,
+        final ValidatedModels validated) {
+        final ModelStore store = buildModelStore(new ModelStore(),
+            Collections.<String, Map<String, Settings>>emptyMap(), Collections.<String, Settings>emptyMap(),
+            features.features(), models, true, null, offHeapDirectory);
+        final Map<String, Throwable> failures = new ConcurrentHashMap<>();
+        final CountDown countDown = new CountDown(models.size());
+        final long start = System.nanoTime();
+        for (final String name : models.keySet()) {
+            executor.execute(new AbstractRunnable() {
+                @Override
+                protected void doRun() {
+                    try {
+                        store.getModel(name);
+                    } catch (Exception e) {
+                        failures.put(name, e);
+                    }
+                    done();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failures.put(name, t);
+                    done();
+                }
+
+                private void done() {
+                    if (!countDown.countDown()) {
+                        return;
+                    }
+                    final Map<String, Settings> valid = new LinkedHashMap<>(models);
+                    valid.keySet().removeAll(failures.keySet());
+                    reserve(store, valid, failures);
+                    // the store was only built to validate the models
+                    store.release(null);
+                    log.info("validated {} models in {}ms, {} are invalid", models.size(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failures.size());
+                    validated.onValidated(valid, failures);
+                }
+            });
+        }
+    }
+
+    /**
+     * Rejects the valid models, in order, that would not fit in the breaker
+     * with those before them. Only the growth over the loaded models they
+     * replace is checked, as when validating a single update.
+     */
+    private void reserve(ModelStore store, Map<String, Settings> valid, Map<String, Throwable> failures) {
+        final MemoryStats loaded = memoryStats();
+        long reserved = 0;
+        try {
+            for (final Iterator<String> names = valid.keySet().iterator(); names.hasNext();) {
+                final String name = names.next();
+                // -1 if the model does not exist or is not loaded
+                final long replaced = Math.max(0, loaded.getModelHeapSizeInBytes(name));
+                final long bytes = store.getModel(name).ramBytesUsed() - replaced;
+                try {
+                    if (bytes > 0) {
+                        breaker.addEstimateBytesAndMaybeBreak(bytes, "ltr model [" + name + "]");
+                    } else {
+                        breaker.addWithoutBreaking(bytes);
+                    }
+                    reserved += bytes;
+                } catch (CircuitBreakingException e) {
+                    failures.put(name, e);
+                    names.remove();
+                }
+            }
+        } finally {
+            breaker.addWithoutBreaking(-reserved);
+        }
+    }
+
+    /**
+     * Stores the models of a bulk upload once they are validated.
+     */
+    private abstract static class ValidatedModels {
+        private final ActionListener<BulkPutModelsClusterStateUpdateResponse> listener;
+
+        ValidatedModels(ActionListener<BulkPutModelsClusterStateUpdateResponse> listener) {
+            this.listener = listener;
+        }
+
+        abstract void store(Map<String, Settings> valid, Map<String, Throwable> failures) throws Exception;
+
+        void onValidated(Map<String, Settings> valid, Map<String, Throwable> failures) {
+            if (valid.isEmpty()) {
+                listener.onResponse(new BulkPutModelsClusterStateUpdateResponse(true, failures));
+                return;
+            }
+            try {
+                store(valid, failures);
+            } catch (Exception e) {
+                listener.onFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Compiles the models against the current feature stores without
+     * storing them, and reports their cost. Models are profiled one at a
+     * time on the executor so that they do not skew each other's timings.
+     */
+    public void profileModels(Settings models, final int iterations, final Executor executor,
+        final ActionListener<ValidateModelsResponse> listener) {
+        final Map<String, Settings> compacted = compactModels(models);
+        if (indexedStore != null) {
+            indexedStore.readFeatureStores(compacted, new ActionListener<FeaturesState>() {
+                @Override
+                public void onResponse(FeaturesState features) {
+                    profileModels(features, compacted, iterations, executor, listener);
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    listener.onFailure(e);
+                }
+            });
+            return;
+        }
+        profileModels(featuresState(clusterService.state()), compacted, iterations, executor, listener);
+    }
+
+    private void profileModels(final FeaturesState features, final Map<String, Settings> models,
+        final int iterations, Executor executor, final ActionListener<ValidateModelsResponse> listener) {
+        executor.execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() {
+                final ModelStore store = buildModelStore(new ModelStore(),
+                    Collections.<String, Map<String, Settings>>emptyMap(), Collections.<String, Settings>emptyMap(),
+                    features.features(), models, true, null, offHeapDirectory);
+                final Map<String, ModelProfile> profiles = new LinkedHashMap<>();
+                final Map<String, String> failures = new LinkedHashMap<>();
+                try {
+                    for (final Map.Entry<String, Settings> model : models.entrySet()) {
+                        try {
+                            // compiled apart, its cost is shared by the
+                            // models of the store
+                            store.getFeatureStore(
+                                model.getValue().get(STORE_KEY, FeatureStore.DEFAULT_FEATURE_STORE_NAME));
+                            final long start = System.nanoTime();
+                            final LTRScoringModel compiled = store.getModel(model.getKey());
+                            profiles.put(model.getKey(),
+                                ModelProfile.profile(compiled, System.nanoTime() - start, iterations));
+                        } catch (RuntimeException e) {
+                            failures.put(model.getKey(), ExceptionsHelper.detailedMessage(e));
+                        }
+                    }
+                } finally {
+                    // the store was only built to profile the models
+                    store.release(null);
+                }
+                listener.onResponse(new ValidateModelsResponse(profiles, failures));
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                listener.onFailure(t);
+            }
+        });
+    }
+
+    private static ActionListener<ClusterStateUpdateResponse> withFailures(final Map<String, Throwable> failures,
+        final ActionListener<BulkPutModelsClusterStateUpdateResponse> listener) {
+        return new ActionListener<ClusterStateUpdateResponse>() {
+            @Override
+            public void onResponse(ClusterStateUpdateResponse response) {
+                listener.onResponse(new BulkPutModelsClusterStateUpdateResponse(response.isAcknowledged(), failures));
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    private static FeaturesState featuresState(ClusterState state) {
+        final FeaturesState featuresState = state.custom(FeaturesState.TYPE);
+        return featuresState == null ? new FeaturesState() : featuresState;
+    }
+
+    private static ModelsState modelsState(ClusterState state) {
+        final ModelsState modelsState = state.custom(ModelsState.TYPE);
+        return modelsState == null ? new ModelsState() : modelsState;
+    }
+
+    /**
+     * @return a listener incrementing the version of the indexed store once
+     *         it has been changed
+     */
+    private ActionListener<Void> incrementStoreVersion(final String source, final AckedRequest request,
+        final ActionListener<ClusterStateUpdateResponse> listener) {
+        return new ActionListener<Void>() {
+            @Override
+            public void onResponse(Void response) {
+                final ClusterStateUpdateTask task = new AckedClusterStateUpdateTask<ClusterStateUpdateResponse>(
+                    request, listener) {
+                    @Override
+                    protected ClusterStateUpdateResponse newResponse(boolean acknowledged) {
+                        return new ClusterStateUpdateResponse(acknowledged);
+                    }
+
+                    @Override
+                    public ClusterState execute(ClusterState currentState) {
+                        return incrementStoreVersion(currentState);
+                    }
+                };
+                clusterService.submitStateUpdateTask(source, task, task, STORE_VERSION_EXECUTOR, task);
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                listener.onFailure(e);
+            }
+        };
+    }
+
+    private static ClusterState incrementStoreVersion(ClusterState currentState) {
+        final StoreVersionState current = currentState.custom(StoreVersionState.TYPE);
+        final long version = current == null ? 1 : current.version() + 1;
+        return ClusterState.builder(currentState).putCustom(StoreVersionState.TYPE, new StoreVersionState(version))
+            .build();
+    }
+
+    /**
+     * Encodes the trees of the uploaded tree models, so that the cluster state
+     * does not hold the settings of every node.
+     */
+    static Map<String, Settings> compactModels(Settings models) {
+        final Map<String, Settings> compacted = new LinkedHashMap<>();
+        for (final Map.Entry<String, Settings> entry : models.getGroups("models").entrySet()) {
+            final Settings model = entry.getValue();
+            if (!MultipleAdditiveTreesModel.class.getCanonicalName().equals(model.get(CLASS_KEY))) {
+                compacted.put(entry.getKey(), model);
+                continue;
+            }
+            final Settings.Builder builder = Settings.builder();
+            for (final Map.Entry<String, String> setting : model.getAsMap().entrySet()) {
+                if (!setting.getKey().startsWith(PARAMS_KEY + ".")) {
+                    builder.put(setting.getKey(), setting.getValue());
+                }
+            }
+            final Settings params = TreeEncoding.compact(model.getAsSettings(PARAMS_KEY));
+            for (final Map.Entry<String, String> setting : params.getAsMap().entrySet()) {
+                builder.put(PARAMS_KEY + "." + setting.getKey(), setting.getValue());
+            }
+            compacted.put(entry.getKey(), builder.build());
+        }
+        return compacted;
     }
 
     /**
      * Only really public so the test case can get access to it
      */
-    public ModelStore buildModelStore(Map<String, Map<String, Settings>> features, Map<String, Settings> models) {
-        ModelStoreBuilder builder = new ModelStoreBuilder();
+    public static ModelStore buildModelStore(Map<String, Map<String, Settings>> features,
+        Map<String, Settings> models) {
+        return buildModelStore(new ModelStore(), Collections.<String, Map<String, Settings>>emptyMap(),
+            Collections.<String, Settings>emptyMap(), features, models);
+    }
+
+    /**
+     * Builds and validates the model store of the new features and models
+     * settings, reusing what was built from the previous settings when
+     * possible.
+     */
+    public static ModelStore buildModelStore(ModelStore previous, Map<String, Map<String, Settings>> previousFeatures,
+        Map<String, Settings> previousModels, Map<String, Map<String, Settings>> features,
+        Map<String, Settings> models) {
+        return buildModelStore(previous, previousFeatures, previousModels, features, models, false);
+    }
 
+    /**
+     * Builds the model store of the new features and models settings,
+     * reusing what was built from the previous settings when possible.
+     * <p>
+     * Features of a store are indexed and linked together, so a feature store
+     * is either reused as a whole, when its settings did not change, or
+     * rebuilt. Models are reused when their settings did not change and their
+     * feature store was reused, they are rebuilt otherwise as they hold the
+     * features of their store.
+     * <p>
+     * Settings were validated by the master before being published, so other
+     * nodes may build the store lazily: models and feature stores are then
+     * compiled the first time they are used.
+     *
+     * @param previous
+     *            the model store built from previousFeatures and
+     *            previousModels
+     * @param lazy
+     *            whether to defer compilation to the first use
+     */
+    static ModelStore buildModelStore(ModelStore previous, Map<String, Map<String, Settings>> previousFeatures,
+        Map<String, Settings> previousModels, Map<String, Map<String, Settings>> features,
+        Map<String, Settings> models, boolean lazy) {
+        return buildModelStore(previous, previousFeatures, previousModels, features, models, lazy, null, null);
+    }
+
+    /**
+     * Builds the model store like
+     * {@link #buildModelStore(ModelStore, Map, Map, Map, Map, boolean)},
+     * compiling the rebuilt models concurrently on the executor.
+     *
+     * @param executor
+     *            pool to compile models on, or null to compile them on the
+     *            calling thread
+     * @param offHeapDirectory
+     *            directory of the node to map the trees of off heap models
+     *            to, or null to reject them
+     */
+    static ModelStore buildModelStore(ModelStore previous, Map<String, Map<String, Settings>> previousFeatures,
+        Map<String, Settings> previousModels, Map<String, Map<String, Settings>> features,
+        Map<String, Settings> models, boolean lazy, ThreadPoolExecutor executor, OffHeapDirectory offHeapDirectory) {
+        ModelStoreBuilder builder = new ModelStoreBuilder(offHeapDirectory);
+
+        int rebuiltStores = 0;
         for (final Map.Entry<String, Map<String, Settings>> outerEntry : features.entrySet()) {
             final String featureStore = outerEntry.getKey();
+            if (isUnchangedFeatureStore(previous, previousFeatures, features, featureStore)) {
+                builder.reuseFeatureStore(featureStore, previous.featureStoreEntry(featureStore));
+                continue;
+            }
+            rebuiltStores++;
+            if (lazy) {
+                builder.addLazyFeatureStore(featureStore, outerEntry.getValue());
+                continue;
+            }
             for (Map.Entry<String, Settings> innerEntry : outerEntry.getValue().entrySet()) {
                 builder.addFeature(featureStore, innerEntry.getKey(), innerEntry.getValue());
             }
         }
+        // Validate expression features of every store, even those that are
+        // not used by any model yet.
+        builder.linkFeatureStores();
 
+        int rebuiltModels = 0;
+        final Map<String, Settings> compiledModels = new LinkedHashMap<>();
         for (final Map.Entry<String, Settings> entry : models.entrySet()) {
-            builder.addModel(entry.getKey(), entry.getValue());
+            final String modelName = entry.getKey();
+            final Settings settings = entry.getValue();
+            final LazyCompiled<LTRScoringModel> previousModel = previous.modelEntry(modelName);
+            final String featureStore = settings.get(STORE_KEY, FeatureStore.DEFAULT_FEATURE_STORE_NAME);
+            // a model that failed, e.g. rejected by the breaker, is given
+            // another chance
+            if (previousModel != null && !previousModel.isFailed() && settings.equals(previousModels.get(modelName))
+                && isUnchangedFeatureStore(previous, previousFeatures, features, featureStore)) {
+                builder.reuseModel(modelName, previousModel);
+            } else if (lazy) {
+                rebuiltModels++;
+                builder.addLazyModel(modelName, settings);
+            } else {
+                rebuiltModels++;
+                compiledModels.put(modelName, settings);
+            }
         }
+        builder.addModels(compiledModels, executor);
 
+        log.info("{} {} of {} feature stores and {} of {} models", lazy ? "registered" : "rebuilt", rebuiltStores,
+            features.size(), rebuiltModels, models.size());
         return builder.modelStore;
     }
 
+    private static boolean isUnchangedFeatureStore(ModelStore previous,
+        Map<String, Map<String, Settings>> previousFeatures, Map<String, Map<String, Settings>> features,
+        String featureStore) {
+        // stores without features are created empty for the models referring
+        // to them, such models are cheap to rebuild
+        final Map<String, Settings> settings = features.get(featureStore);
+        return settings != null && settings.equals(previousFeatures.get(featureStore))
+            && previous.featureStoreEntry(featureStore) != null;
+    }
+
+    /**
+     * @return the model with a reference taken on its resources, to release
+     *         with {@link LTRScoringModel#decRef()}, or null if there is no
+     *         such model
+     */
+    public LTRScoringModel acquireModel(String name) {
+        while (true) {
+            final LTRScoringModel model = getModel(name);
+            if (model == null || model.tryIncRef()) {
+                return model;
+            }
+            // the model was replaced since it was read
+        }
+    }
+
     public LTRScoringModel getModel(String name) {
-        return modelStore.get().getModel(name);
+        if (indexedStore != null) {
+            return indexedStore.getModel(name, storeVersion);
+        }
+        final ModelStore store = published.get().store;
+        final boolean compiled = store.isCompiled(name);
+        final LTRScoringModel model = store.getModel(name);
+        if (model != null && !compiled) {
+            // compiled lazily by this call
+            account();
+        }
+        return model;
     }
 
     public static class ModelStoreBuilder {
-        private HashMap<String, FeatureStore> featureStores = new HashMap<>();
+        private final Map<String, LazyCompiled<FeatureStore>> featureStores = new HashMap<>();
+        private final OffHeapDirectory offHeapDirectory;
         public ModelStore modelStore = new ModelStore();
 
+        public ModelStoreBuilder() {
+            this(null);
+        }
+
+        /**
+         * @param offHeapDirectory
+         *            directory of the node to map the trees of off heap
+         *            models to, or null to reject them
+         */
+        public ModelStoreBuilder(OffHeapDirectory offHeapDirectory) {
+            this.offHeapDirectory = offHeapDirectory;
+        }
+
         public FeatureStore getFeatureStore(String name) {
             if (name == null) {
                 name = FeatureStore.DEFAULT_FEATURE_STORE_NAME;
             }
-            if (!featureStores.containsKey(name)) {
-                featureStores.put(name, new FeatureStore(name));
+            return featureStoreEntry(name).get();
+        }
+
+        private LazyCompiled<FeatureStore> featureStoreEntry(String name) {
+            LazyCompiled<FeatureStore> fstore = featureStores.get(name);
+            if (fstore == null) {
+                fstore = LazyCompiled.of(new FeatureStore(name));
+                featureStores.put(name, fstore);
+                modelStore.addFeatureStore(name, fstore);
             }
-            return featureStores.get(name);
+            return fstore;
+        }
+
+        /**
+         * Adds a feature store built previously, as is, compiled or not.
+         */
+        ModelStoreBuilder reuseFeatureStore(String name, LazyCompiled<FeatureStore> fstore) {
+            if (featureStores.containsKey(name)) {
+                throw new FeatureException("feature store [" + name + "] already exists");
+            }
+            featureStores.put(name, fstore);
+            modelStore.addFeatureStore(name, fstore);
+            return this;
+        }
+
+        /**
+         * Adds a feature store compiled and linked the first time it is used.
+         */
+        ModelStoreBuilder addLazyFeatureStore(final String name, final Map<String, Settings> features) {
+            return reuseFeatureStore(name, new LazyCompiled<FeatureStore>() {
+                @Override
+                protected FeatureStore compile() {
+                    final FeatureStore fstore = new FeatureStore(name);
+                    for (Map.Entry<String, Settings> feature : features.entrySet()) {
+                        fstore.add(fromFeatureSettings(feature.getKey(), feature.getValue()));
+                    }
+                    fstore.link();
+                    return fstore;
+                }
+            });
         }
 
         public ModelStoreBuilder addFeature(String featureStore, String featureName, Settings settings) {
-            log.info("register feature based on {}", settings);
+            log.debug("register feature based on {}", settings);
             final FeatureStore fstore = getFeatureStore(featureStore);
             final Feature feature = fromFeatureSettings(featureName, settings);
             fstore.add(feature);
@@ -241,25 +1308,155 @@ public class LTRStoreService extends AbstractLifecycleComponent<LTRStoreService>
             return addFeature(featureStore, entry.getKey(), entry.getValue());
         }
 
+        public ModelStoreBuilder linkFeatureStores() {
+            for (LazyCompiled<FeatureStore> fstore : featureStores.values()) {
+                // lazy stores are linked when compiled
+                if (fstore.isCompiled()) {
+                    fstore.get().link();
+                }
+            }
+            return this;
+        }
+
         public ModelStoreBuilder addModel(String modelName, Settings settings) {
-            LTRScoringModel model = fromModelSettings(modelName, settings);
-            log.info("adding model {}", modelName);
+            LTRScoringModel model = fromModelSettings(getFeatureStore(settings.get(STORE_KEY)), modelName, settings,
+                offHeapDirectory);
+            log.debug("adding model {}", modelName);
             modelStore.addModel(model);
             return this;
         }
 
+        /**
+         * Adds a model compiled, with its feature store, the first time it is
+         * used.
+         */
+        ModelStoreBuilder addLazyModel(final String modelName, final Settings settings) {
+            final LazyCompiled<FeatureStore> fstore = featureStoreEntry(
+                settings.get(STORE_KEY, FeatureStore.DEFAULT_FEATURE_STORE_NAME));
+            final ModelStore store = modelStore;
+            final OffHeapDirectory directory = offHeapDirectory;
+            modelStore.addModel(modelName, new LazyCompiled<LTRScoringModel>() {
+                @Override
+                protected LTRScoringModel compile() {
+                    log.debug("compiling model {}", modelName);
+                    return store.lazilyCompiled(fromModelSettings(fstore.get(), modelName, settings, directory));
+                }
+
+                @Override
+                protected void discard(LTRScoringModel model) {
+                    model.decRef();
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Adds a model built previously, as is, compiled or not. Its feature
+         * store must have been reused as well.
+         */
+        ModelStoreBuilder reuseModel(String modelName, LazyCompiled<LTRScoringModel> model) {
+            modelStore.addModel(modelName, model);
+            return this;
+        }
+
+        /**
+         * Compiles the models concurrently on the executor, the calling thread
+         * taking part, then adds them. Failures are reported as if the models
+         * were compiled one by one in order: the failure of the first model
+         * that did not compile is thrown and the other models are released.
+         *
+         * @param executor
+         *            pool to compile models on, or null to compile them on
+         *            the calling thread
+         */
+        ModelStoreBuilder addModels(Map<String, Settings> models, ThreadPoolExecutor executor) {
+            final List<String> names = new ArrayList<>(models.keySet());
+            final List<Settings> settings = new ArrayList<>(models.values());
+            // resolved up front, registering stores is not thread safe
+            final List<FeatureStore> stores = new ArrayList<>(names.size());
+            for (final Settings model : settings) {
+                stores.add(getFeatureStore(model.get(STORE_KEY)));
+            }
+            final LTRScoringModel[] compiled = new LTRScoringModel[names.size()];
+            final RuntimeException[] failures = new RuntimeException[names.size()];
+            final AtomicInteger next = new AtomicInteger();
+            final Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    int i;
+                    while ((i = next.getAndIncrement()) < compiled.length) {
+                        try {
+                            compiled[i] = fromModelSettings(stores.get(i), names.get(i), settings.get(i),
+                                offHeapDirectory);
+                        } catch (RuntimeException e) {
+                            failures[i] = e;
+                        }
+                    }
+                }
+            };
+            final int helpers = executor == null ? 0
+                : Math.min(executor.getMaximumPoolSize(), compiled.length - 1);
+            final CountDownLatch done = new CountDownLatch(Math.max(helpers, 0));
+            for (int h = 0; h < helpers; h++) {
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                worker.run();
+                            } finally {
+                                done.countDown();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the calling thread compiles what is left
+                    done.countDown();
+                }
+            }
+            worker.run();
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                release(compiled);
+                throw new ModelException("Interrupted while compiling models", e);
+            }
+
+            for (int i = 0; i < compiled.length; i++) {
+                if (failures[i] != null || compiled[i] == null) {
+                    release(compiled);
+                    throw failures[i] != null ? failures[i]
+                        : new ModelException("Unable to compile model [" + names.get(i) + "]");
+                }
+            }
+            for (final LTRScoringModel model : compiled) {
+                log.debug("adding model {}", model.getName());
+                modelStore.addModel(model);
+            }
+            return this;
+        }
+
+        private static void release(LTRScoringModel[] models) {
+            for (final LTRScoringModel model : models) {
+                if (model != null) {
+                    model.decRef();
+                }
+            }
+        }
+
         public ModelStoreBuilder addModel(Map.Entry<String, Settings> entry) {
             return addModel(entry.getKey(), entry.getValue());
         }
 
-        private Feature fromFeatureSettings(String featureName, Settings featureSettings) {
+        private static Feature fromFeatureSettings(String featureName, Settings featureSettings) {
             final String className = featureSettings.get(CLASS_KEY);
             final Settings params = featureSettings.getAsSettings(PARAMS_KEY);
 
             return Feature.getInstance(className, featureName, params);
         }
 
-        private Feature lookupFeatureFromFeatureSettings(Settings featureSettings, FeatureStore featureStore) {
+        private static Feature lookupFeatureFromFeatureSettings(Settings featureSettings, FeatureStore featureStore) {
             final String featureName = featureSettings.get(NAME_KEY);
             if (featureName == null) {
                 return null;
@@ -274,7 +1471,7 @@ public class LTRStoreService extends AbstractLifecycleComponent<LTRStoreService>
             return feature;
         }
 
-        private Normalizer createNormalizerFromFeatureSettings(Settings featureSettings) {
+        private static Normalizer createNormalizerFromFeatureSettings(Settings featureSettings) {
             final Settings normSettings = featureSettings.getAsSettings(NORM_KEY);
             if (normSettings.getAsStructuredMap().size() == 0) {
                 return IdentityNormalizer.INSTANCE;
@@ -282,15 +1479,16 @@ public class LTRStoreService extends AbstractLifecycleComponent<LTRStoreService>
             return fromNormalizerSettings(normSettings);
         }
 
-        private Normalizer fromNormalizerSettings(Settings normSettings) {
+        private static Normalizer fromNormalizerSettings(Settings normSettings) {
             final String className = normSettings.get(CLASS_KEY);
             final Settings params = normSettings.getAsSettings(PARAMS_KEY);
 
             return Normalizer.getInstance(className, params);
         }
 
-        private LTRScoringModel fromModelSettings(String modelName, Settings modelSettings) {
-            final FeatureStore featureStore = getFeatureStore(modelSettings.get(STORE_KEY));
+        private static LTRScoringModel fromModelSettings(FeatureStore featureStore, String modelName,
+            Settings modelSettings, OffHeapDirectory offHeapDirectory) {
+            featureStore.link();
 
             final List<Feature> features = new ArrayList<>();
             final List<Normalizer> norms = new ArrayList<>();
@@ -303,7 +1501,8 @@ public class LTRStoreService extends AbstractLifecycleComponent<LTRStoreService>
             }
 
             return LTRScoringModel.getInstance(modelSettings.get(CLASS_KEY), modelName, features, norms,
-                featureStore.getName(), featureStore.getFeatures(), modelSettings.getAsSettings(PARAMS_KEY));
+                featureStore.getName(), featureStore.getFeatures(), modelSettings.getAsSettings(PARAMS_KEY),
+                offHeapDirectory);
         }
     }
 }
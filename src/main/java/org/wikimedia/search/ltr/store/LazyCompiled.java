@@ -0,0 +1,86 @@
+package org.wikimedia.search.ltr.store;
+
+/**
+ * A model or feature store compiled from its settings the first time it is
+ * needed. Concurrent first callers wait for a single compilation. A failure is
+ * kept and thrown to the next callers, the store replacing the one holding
+ * this entry compiles it again.
+ */
+abstract class LazyCompiled<T> {
+    private volatile T compiled;
+    private volatile RuntimeException failure;
+    // set once the store holding the value dropped it, guarded by this
+    private boolean released;
+
+    /**
+     * @return an already compiled value
+     */
+    static <T> LazyCompiled<T> of(T value) {
+        final LazyCompiled<T> lazy = new LazyCompiled<T>() {
+            @Override
+            protected T compile() {
+                throw new IllegalStateException("already compiled");
+            }
+        };
+        lazy.compiled = value;
+        return lazy;
+    }
+
+    T get() {
+        T value = compiled;
+        if (value == null) {
+            synchronized (this) {
+                value = compiled;
+                if (value == null) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    try {
+                        value = compile();
+                    } catch (RuntimeException e) {
+                        failure = e;
+                        throw e;
+                    }
+                    compiled = value;
+                    if (released) {
+                        // compiled by a search still using a replaced store
+                        discard(value);
+                    }
+                }
+            }
+        }
+        return value;
+    }
+
+    boolean isCompiled() {
+        return compiled != null;
+    }
+
+    /**
+     * @return true if the compilation failed, {@link #get()} then throws
+     *         the same failure
+     */
+    boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * Called once the store holding this value dropped it.
+     *
+     * @return the value if it was compiled, for the caller to release it.
+     *         A value compiled afterwards is passed to {@link #discard(Object)}.
+     */
+    synchronized T release() {
+        released = true;
+        return compiled;
+    }
+
+    protected abstract T compile();
+
+    /**
+     * Releases a value compiled after {@link #release()}, does nothing by
+     * default.
+     */
+    protected void discard(T value) {
+    }
+}
@@ -0,0 +1,185 @@
+package org.wikimedia.search.ltr.store;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+
+/**
+ * Memory used by the models and feature stores loaded on a node, and the
+ * state of the ltr circuit breaker accounting for it.
+ * <p>
+ * The usage of every model and feature store is only rendered with the
+ * {@code level=models} param.
+ */
+public class MemoryStats implements Streamable, ToXContent {
+    // -1 if the breaker has no limit
+    private long limitInBytes;
+    private long breakerUsedInBytes;
+    private long trippedCount;
+    private long heapSizeInBytes;
+    private long offHeapSizeInBytes;
+    // heap and off-heap bytes of every loaded model
+    private Map<String, long[]> models = new LinkedHashMap<>();
+    private Map<String, Long> featureStores = new LinkedHashMap<>();
+
+    MemoryStats() {
+    }
+
+    MemoryStats(long limitInBytes, long breakerUsedInBytes, long trippedCount) {
+        this.limitInBytes = limitInBytes;
+        this.breakerUsedInBytes = breakerUsedInBytes;
+        this.trippedCount = trippedCount;
+    }
+
+    void addModel(String name, long heapBytes, long offHeapBytes) {
+        models.put(name, new long[] { heapBytes, offHeapBytes });
+        heapSizeInBytes += heapBytes;
+        offHeapSizeInBytes += offHeapBytes;
+    }
+
+    void addFeatureStore(String name, long heapBytes) {
+        featureStores.put(name, heapBytes);
+        heapSizeInBytes += heapBytes;
+    }
+
+    public static MemoryStats readMemoryStats(StreamInput in) throws IOException {
+        final MemoryStats stats = new MemoryStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    /**
+     * @return the limit of the ltr circuit breaker
+     */
+    public long getLimitInBytes() {
+        return limitInBytes;
+    }
+
+    /**
+     * @return the bytes accounted by the ltr circuit breaker, with its
+     *         overhead
+     */
+    public long getBreakerUsedInBytes() {
+        return breakerUsedInBytes;
+    }
+
+    public long getTrippedCount() {
+        return trippedCount;
+    }
+
+    /**
+     * @return the estimated heap used by the loaded models and feature stores
+     */
+    public long getHeapSizeInBytes() {
+        return heapSizeInBytes;
+    }
+
+    public long getOffHeapSizeInBytes() {
+        return offHeapSizeInBytes;
+    }
+
+    /**
+     * @return the estimated heap used by a loaded model, or -1 if it is not
+     *         loaded on the node
+     */
+    public long getModelHeapSizeInBytes(String name) {
+        final long[] usage = models.get(name);
+        return usage == null ? -1 : usage[0];
+    }
+
+    /**
+     * @return the names of the loaded models
+     */
+    public Iterable<String> getModels() {
+        return models.keySet();
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        limitInBytes = in.readLong();
+        breakerUsedInBytes = in.readVLong();
+        trippedCount = in.readVLong();
+        heapSizeInBytes = in.readVLong();
+        offHeapSizeInBytes = in.readVLong();
+        int size = in.readVInt();
+        models = new LinkedHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            models.put(in.readString(), new long[] { in.readVLong(), in.readVLong() });
+        }
+        size = in.readVInt();
+        featureStores = new LinkedHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            featureStores.put(in.readString(), in.readVLong());
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeLong(limitInBytes);
+        out.writeVLong(breakerUsedInBytes);
+        out.writeVLong(trippedCount);
+        out.writeVLong(heapSizeInBytes);
+        out.writeVLong(offHeapSizeInBytes);
+        out.writeVInt(models.size());
+        for (final Map.Entry<String, long[]> model : models.entrySet()) {
+            out.writeString(model.getKey());
+            out.writeVLong(model.getValue()[0]);
+            out.writeVLong(model.getValue()[1]);
+        }
+        out.writeVInt(featureStores.size());
+        for (final Map.Entry<String, Long> featureStore : featureStores.entrySet()) {
+            out.writeString(featureStore.getKey());
+            out.writeVLong(featureStore.getValue());
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("memory");
+        builder.byteSizeField(Fields.HEAP_SIZE_IN_BYTES, Fields.HEAP_SIZE, heapSizeInBytes);
+        builder.byteSizeField(Fields.OFF_HEAP_SIZE_IN_BYTES, Fields.OFF_HEAP_SIZE, offHeapSizeInBytes);
+        builder.startObject("breaker");
+        builder.byteSizeField(Fields.LIMIT_SIZE_IN_BYTES, Fields.LIMIT_SIZE, limitInBytes);
+        builder.byteSizeField(Fields.ESTIMATED_SIZE_IN_BYTES, Fields.ESTIMATED_SIZE, breakerUsedInBytes);
+        builder.field("tripped", trippedCount);
+        builder.endObject();
+        if ("models".equals(params.param("level"))) {
+            builder.startObject("models");
+            for (final Map.Entry<String, long[]> model : models.entrySet()) {
+                builder.startObject(model.getKey());
+                builder.byteSizeField(Fields.HEAP_SIZE_IN_BYTES, Fields.HEAP_SIZE, model.getValue()[0]);
+                builder.byteSizeField(Fields.OFF_HEAP_SIZE_IN_BYTES, Fields.OFF_HEAP_SIZE, model.getValue()[1]);
+                builder.endObject();
+            }
+            builder.endObject();
+            builder.startObject("feature_stores");
+            for (final Map.Entry<String, Long> featureStore : featureStores.entrySet()) {
+                builder.startObject(featureStore.getKey());
+                builder.byteSizeField(Fields.HEAP_SIZE_IN_BYTES, Fields.HEAP_SIZE, featureStore.getValue());
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    static final class Fields {
+        static final XContentBuilderString HEAP_SIZE = ModelProfile.Fields.HEAP_SIZE;
+        static final XContentBuilderString HEAP_SIZE_IN_BYTES = ModelProfile.Fields.HEAP_SIZE_IN_BYTES;
+        static final XContentBuilderString OFF_HEAP_SIZE = ModelProfile.Fields.OFF_HEAP_SIZE;
+        static final XContentBuilderString OFF_HEAP_SIZE_IN_BYTES = ModelProfile.Fields.OFF_HEAP_SIZE_IN_BYTES;
+        static final XContentBuilderString LIMIT_SIZE = new XContentBuilderString("limit_size");
+        static final XContentBuilderString LIMIT_SIZE_IN_BYTES = new XContentBuilderString("limit_size_in_bytes");
+        static final XContentBuilderString ESTIMATED_SIZE = new XContentBuilderString("estimated_size");
+        static final XContentBuilderString ESTIMATED_SIZE_IN_BYTES = new XContentBuilderString(
+            "estimated_size_in_bytes");
+    }
+}
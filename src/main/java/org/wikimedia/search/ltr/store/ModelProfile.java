@@ -0,0 +1,235 @@
+package org.wikimedia.search.ltr.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.wikimedia.search.ltr.model.LTRScoringModel;
+import org.wikimedia.search.ltr.model.MultipleAdditiveTreesModel;
+
+/**
+ * Cost of a model compiled without being stored: compile time, memory
+ * footprint, shape of its trees and scoring time on synthetic vectors.
+ */
+public class ModelProfile implements Streamable, ToXContent {
+    private String modelClass;
+    private String featureStore;
+    private long compileTimeInNanos;
+    private long heapSizeInBytes;
+    private long offHeapSizeInBytes;
+    private int features;
+    private List<String> referencedFeatures;
+    // -1 when the model has no trees
+    private int trees = -1;
+    private int nodes;
+    private int minDepth;
+    private int maxDepth;
+    private double avgDepth;
+    private int scoringIterations;
+    private long scoringTimeInNanos;
+
+    ModelProfile() {
+    }
+
+    /**
+     * Profiles a compiled model, scoring it iterations times.
+     */
+    static ModelProfile profile(LTRScoringModel model, long compileTimeInNanos, int iterations) {
+        final ModelProfile profile = new ModelProfile();
+        profile.modelClass = model.getClass().getCanonicalName();
+        profile.featureStore = model.getFeatureStoreName();
+        profile.compileTimeInNanos = compileTimeInNanos;
+        profile.heapSizeInBytes = model.ramBytesUsed();
+        profile.offHeapSizeInBytes = model.offHeapBytesUsed();
+        profile.features = model.getFeatures().size();
+        profile.referencedFeatures = new ArrayList<>(model.getReferencedFeatures());
+        if (model instanceof MultipleAdditiveTreesModel) {
+            final MultipleAdditiveTreesModel mart = (MultipleAdditiveTreesModel) model;
+            final int[] depths = mart.getTreeDepths();
+            profile.trees = depths.length;
+            profile.nodes = mart.getNodeCount();
+            profile.minDepth = depths.length == 0 ? 0 : Integer.MAX_VALUE;
+            long totalDepth = 0;
+            for (final int depth : depths) {
+                profile.minDepth = Math.min(profile.minDepth, depth);
+                profile.maxDepth = Math.max(profile.maxDepth, depth);
+                totalDepth += depth;
+            }
+            profile.avgDepth = depths.length == 0 ? 0 : (double) totalDepth / depths.length;
+        }
+        if (iterations > 0) {
+            // once to warm the scoring code up, then measured
+            ModelWarmer.benchmark(model, iterations);
+            profile.scoringIterations = iterations;
+            profile.scoringTimeInNanos = ModelWarmer.benchmark(model, iterations);
+        }
+        return profile;
+    }
+
+    public static ModelProfile readModelProfile(StreamInput in) throws IOException {
+        final ModelProfile profile = new ModelProfile();
+        profile.readFrom(in);
+        return profile;
+    }
+
+    public String getModelClass() {
+        return modelClass;
+    }
+
+    public String getFeatureStore() {
+        return featureStore;
+    }
+
+    public long getCompileTimeInNanos() {
+        return compileTimeInNanos;
+    }
+
+    /**
+     * @return the estimated heap used by the model, without its features
+     */
+    public long getHeapSizeInBytes() {
+        return heapSizeInBytes;
+    }
+
+    public long getOffHeapSizeInBytes() {
+        return offHeapSizeInBytes;
+    }
+
+    /**
+     * @return the number of features declared by the model
+     */
+    public int getFeatures() {
+        return features;
+    }
+
+    /**
+     * @return the features the scores depend on
+     */
+    public List<String> getReferencedFeatures() {
+        return referencedFeatures;
+    }
+
+    /**
+     * @return the number of trees, -1 if the model has no trees
+     */
+    public int getTrees() {
+        return trees;
+    }
+
+    public int getNodes() {
+        return nodes;
+    }
+
+    public int getMinDepth() {
+        return minDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public double getAvgDepth() {
+        return avgDepth;
+    }
+
+    public int getScoringIterations() {
+        return scoringIterations;
+    }
+
+    public long getScoringTimeInNanos() {
+        return scoringTimeInNanos;
+    }
+
+    /**
+     * @return the mean time spent scoring a document, in nanoseconds
+     */
+    public double getNanosPerDoc() {
+        return scoringIterations == 0 ? 0 : (double) scoringTimeInNanos / scoringIterations;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        modelClass = in.readString();
+        featureStore = in.readString();
+        compileTimeInNanos = in.readVLong();
+        heapSizeInBytes = in.readVLong();
+        offHeapSizeInBytes = in.readVLong();
+        features = in.readVInt();
+        final int size = in.readVInt();
+        referencedFeatures = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            referencedFeatures.add(in.readString());
+        }
+        trees = in.readInt();
+        nodes = in.readVInt();
+        minDepth = in.readVInt();
+        maxDepth = in.readVInt();
+        avgDepth = in.readDouble();
+        scoringIterations = in.readVInt();
+        scoringTimeInNanos = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(modelClass);
+        out.writeString(featureStore);
+        out.writeVLong(compileTimeInNanos);
+        out.writeVLong(heapSizeInBytes);
+        out.writeVLong(offHeapSizeInBytes);
+        out.writeVInt(features);
+        out.writeVInt(referencedFeatures.size());
+        for (final String feature : referencedFeatures) {
+            out.writeString(feature);
+        }
+        out.writeInt(trees);
+        out.writeVInt(nodes);
+        out.writeVInt(minDepth);
+        out.writeVInt(maxDepth);
+        out.writeDouble(avgDepth);
+        out.writeVInt(scoringIterations);
+        out.writeVLong(scoringTimeInNanos);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("class", modelClass);
+        builder.field("store", featureStore);
+        builder.timeValueField("compile_time_in_nanos", "compile_time", compileTimeInNanos, TimeUnit.NANOSECONDS);
+        builder.byteSizeField(Fields.HEAP_SIZE_IN_BYTES, Fields.HEAP_SIZE, heapSizeInBytes);
+        builder.byteSizeField(Fields.OFF_HEAP_SIZE_IN_BYTES, Fields.OFF_HEAP_SIZE, offHeapSizeInBytes);
+        builder.startObject("features");
+        builder.field("declared", features);
+        builder.field("referenced", referencedFeatures);
+        builder.endObject();
+        if (trees >= 0) {
+            builder.startObject("trees");
+            builder.field("count", trees);
+            builder.field("nodes", nodes);
+            builder.field("min_depth", minDepth);
+            builder.field("max_depth", maxDepth);
+            builder.field("avg_depth", avgDepth);
+            builder.endObject();
+        }
+        builder.startObject("scoring");
+        builder.field("iterations", scoringIterations);
+        builder.timeValueField("time_in_nanos", "time", scoringTimeInNanos, TimeUnit.NANOSECONDS);
+        builder.field("nanos_per_doc", getNanosPerDoc());
+        builder.endObject();
+        return builder;
+    }
+
+    static final class Fields {
+        static final XContentBuilderString HEAP_SIZE = new XContentBuilderString("heap_size");
+        static final XContentBuilderString HEAP_SIZE_IN_BYTES = new XContentBuilderString("heap_size_in_bytes");
+        static final XContentBuilderString OFF_HEAP_SIZE = new XContentBuilderString("off_heap_size");
+        static final XContentBuilderString OFF_HEAP_SIZE_IN_BYTES = new XContentBuilderString(
+            "off_heap_size_in_bytes");
+    }
+}
@@ -17,39 +17,196 @@
 package org.wikimedia.search.ltr.store;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.wikimedia.search.ltr.model.LTRScoringModel;
 import org.wikimedia.search.ltr.model.ModelException;
 
 /**
- * Contains the model and features declared.
+ * Contains the model and features declared. Models and feature stores may be
+ * compiled lazily, the first time they are requested.
  */
 public class ModelStore {
 
-    private final Map<String, LTRScoringModel> availableModels;
+    private final Map<String, LazyCompiled<LTRScoringModel>> availableModels;
+    private final Map<String, LazyCompiled<FeatureStore>> featureStores;
+    private volatile CompilationListener compilationListener;
+
+    /**
+     * Notified of the models compiled lazily, before they are returned.
+     */
+    interface CompilationListener {
+        /**
+         * @throws RuntimeException
+         *             to reject the model, it is then released and the
+         *             exception thrown to the caller of
+         *             {@link ModelStore#getModel(String)}
+         */
+        void compiled(LTRScoringModel model);
+    }
 
     public ModelStore() {
         availableModels = new HashMap<>();
+        featureStores = new HashMap<>();
+    }
+
+    /**
+     * @return the model, compiled if it was not yet, or null if there is no
+     *         such model
+     * @throws ModelException
+     *             if the model fails to compile
+     */
+    public LTRScoringModel getModel(String name) throws ModelException {
+        final LazyCompiled<LTRScoringModel> model = availableModels.get(name);
+        return model == null ? null : model.get();
+    }
+
+    /**
+     * @return the feature store the models of this store were built from,
+     *         or null if no model or feature refers to it
+     */
+    public FeatureStore getFeatureStore(String name) {
+        final LazyCompiled<FeatureStore> featureStore = featureStores.get(name);
+        return featureStore == null ? null : featureStore.get();
+    }
+
+    public void addFeatureStore(FeatureStore featureStore) {
+        addFeatureStore(featureStore.getName(), LazyCompiled.of(featureStore));
+    }
+
+    void addFeatureStore(String name, LazyCompiled<FeatureStore> featureStore) {
+        featureStores.put(name, featureStore);
     }
 
-    public LTRScoringModel getModel(String name) {
+    LazyCompiled<FeatureStore> featureStoreEntry(String name) {
+        return featureStores.get(name);
+    }
+
+    LazyCompiled<LTRScoringModel> modelEntry(String name) {
         return availableModels.get(name);
     }
 
+    Set<String> modelNames() {
+        return availableModels.keySet();
+    }
+
+    int compiledModels() {
+        int compiled = 0;
+        for (final LazyCompiled<LTRScoringModel> model : availableModels.values()) {
+            if (model.isCompiled()) {
+                compiled++;
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * @return the models compiled so far, by name
+     */
+    Map<String, LTRScoringModel> loadedModels() {
+        final Map<String, LTRScoringModel> loaded = new LinkedHashMap<>();
+        for (final Map.Entry<String, LazyCompiled<LTRScoringModel>> entry : availableModels.entrySet()) {
+            if (entry.getValue().isCompiled()) {
+                loaded.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * @return the feature stores compiled so far, by name
+     */
+    Map<String, FeatureStore> loadedFeatureStores() {
+        final Map<String, FeatureStore> loaded = new LinkedHashMap<>();
+        for (final Map.Entry<String, LazyCompiled<FeatureStore>> entry : featureStores.entrySet()) {
+            if (entry.getValue().isCompiled()) {
+                loaded.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Estimates the heap used by the models and feature stores compiled so
+     * far.
+     */
+    long ramBytesUsed() {
+        long bytes = 0;
+        for (final LTRScoringModel model : loadedModels().values()) {
+            bytes += model.ramBytesUsed();
+        }
+        for (final FeatureStore featureStore : loadedFeatureStores().values()) {
+            bytes += featureStore.ramBytesUsed();
+        }
+        return bytes;
+    }
+
+    void setCompilationListener(CompilationListener compilationListener) {
+        this.compilationListener = compilationListener;
+    }
+
+    /**
+     * Passes a model compiled lazily to the listener, releasing it if the
+     * listener rejects it.
+     */
+    LTRScoringModel lazilyCompiled(LTRScoringModel model) {
+        final CompilationListener listener = compilationListener;
+        if (listener != null) {
+            try {
+                listener.compiled(model);
+            } catch (RuntimeException e) {
+                model.decRef();
+                throw e;
+            }
+        }
+        return model;
+    }
+
+    /**
+     * @return true if the model exists and was compiled
+     */
+    boolean isCompiled(String name) {
+        final LazyCompiled<LTRScoringModel> model = availableModels.get(name);
+        return model != null && model.isCompiled();
+    }
+
+    /**
+     * Releases the compiled models of this store that are not part of the
+     * store replacing it.
+     *
+     * @param next
+     *            the store replacing this one, or null to release every model
+     */
+    void release(ModelStore next) {
+        for (final Map.Entry<String, LazyCompiled<LTRScoringModel>> entry : availableModels.entrySet()) {
+            final LazyCompiled<LTRScoringModel> model = entry.getValue();
+            if (next == null || next.modelEntry(entry.getKey()) != model) {
+                // models compiled later are released by their entry
+                final LTRScoringModel compiled = model.release();
+                if (compiled != null) {
+                    compiled.decRef();
+                }
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "ModelStore [availableModels=" + availableModels.keySet() + "]";
     }
 
     public void addModel(LTRScoringModel modeldata) throws ModelException {
-        final String name = modeldata.getName();
+        addModel(modeldata.getName(), LazyCompiled.of(modeldata));
+    }
 
+    void addModel(String name, LazyCompiled<LTRScoringModel> model) throws ModelException {
         if (availableModels.containsKey(name)) {
             throw new ModelException("model '" + name + "' already exists. Please use a different name");
         }
 
-        availableModels.put(modeldata.getName(), modeldata);
+        availableModels.put(name, model);
     }
 
 }
@@ -0,0 +1,84 @@
+package org.wikimedia.search.ltr.store;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.wikimedia.search.ltr.model.LTRScoringModel;
+import org.wikimedia.search.ltr.norm.MinMaxNormalizer;
+import org.wikimedia.search.ltr.norm.Normalizer;
+import org.wikimedia.search.ltr.norm.StandardNormalizer;
+
+/**
+ * Scores models against synthetic feature vectors before they are published,
+ * so that the first queries using them do not run cold code.
+ * <p>
+ * Feature values follow the params of the normalizers of the model: a normal
+ * distribution for a {@link StandardNormalizer}, a uniform one between the
+ * bounds of a {@link MinMaxNormalizer} and between 0 and 1 otherwise.
+ */
+final class ModelWarmer {
+    // keeps the scores alive so that scoring is not optimized away
+    private static volatile float sink;
+    // distinct vectors scored by a benchmark
+    private static final int BENCHMARK_VECTORS = 1024;
+
+    private ModelWarmer() {
+    }
+
+    /**
+     * @return the time spent warming the model, in nanoseconds
+     */
+    static long warm(LTRScoringModel model, int iterations) {
+        final Random random = ThreadLocalRandom.current();
+        final List<Normalizer> norms = model.getNorms();
+        final long start = System.nanoTime();
+        float scores = 0;
+        for (int i = 0; i < iterations; i++) {
+            final float[] vector = syntheticVector(norms, random);
+            model.normalizeFeaturesInPlace(vector);
+            scores += model.score(vector);
+        }
+        sink = scores;
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Scores the model against synthetic feature vectors, generated and
+     * normalized up front so that only the scoring is timed.
+     *
+     * @return the time spent scoring, in nanoseconds
+     */
+    static long benchmark(LTRScoringModel model, int iterations) {
+        final Random random = ThreadLocalRandom.current();
+        final float[][] vectors = new float[Math.max(1, Math.min(iterations, BENCHMARK_VECTORS))][];
+        for (int i = 0; i < vectors.length; i++) {
+            vectors[i] = syntheticVector(model.getNorms(), random);
+            model.normalizeFeaturesInPlace(vectors[i]);
+        }
+        final long start = System.nanoTime();
+        float scores = 0;
+        for (int i = 0; i < iterations; i++) {
+            scores += model.score(vectors[i % vectors.length]);
+        }
+        sink = scores;
+        return System.nanoTime() - start;
+    }
+
+    static float[] syntheticVector(List<Normalizer> norms, Random random) {
+        final float[] vector = new float[norms.size()];
+        for (int i = 0; i < vector.length; i++) {
+            final Normalizer norm = norms.get(i);
+            if (norm instanceof StandardNormalizer) {
+                final StandardNormalizer standard = (StandardNormalizer) norm;
+                vector[i] = standard.getAvg() + standard.getStd() * (float) random.nextGaussian();
+            } else if (norm instanceof MinMaxNormalizer) {
+                final MinMaxNormalizer minMax = (MinMaxNormalizer) norm;
+                vector[i] = minMax.getMin() + (minMax.getMax() - minMax.getMin()) * random.nextFloat();
+            } else {
+                vector[i] = random.nextFloat();
+            }
+        }
+        return vector;
+    }
+}
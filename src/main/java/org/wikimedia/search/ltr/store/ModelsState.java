@@ -5,24 +5,27 @@ import static org.elasticsearch.common.settings.Settings.writeSettingsToStream;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.elasticsearch.cluster.AbstractDiffable;
 import org.elasticsearch.cluster.ClusterState.Custom;
+import org.elasticsearch.cluster.Diff;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.ToXContent;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.wikimedia.search.ltr.model.TreeEncoding;
 
 import com.google.common.collect.ImmutableMap;
 
-public class ModelsState extends AbstractDiffable<Custom> implements Custom {
+public class ModelsState implements Custom {
     public static final String TYPE = "ltr-models";
     public static final ModelsState PROTO = new ModelsState();
     private final ImmutableMap<String, Settings> models;
+    // hash of the content, computed on first use
+    private int hash;
 
     public ModelsState() {
         models = ImmutableMap.<String, Settings>of();
@@ -47,7 +50,9 @@ public class ModelsState extends AbstractDiffable<Custom> implements Custom {
 
         ModelsState that = (ModelsState) o;
 
-        if (!models.equals(that.models)) {
+        // the hashes are cached, they tell most different states apart
+        // without comparing their content
+        if (hashCode() != that.hashCode() || !models.equals(that.models)) {
             return false;
         }
 
@@ -56,7 +61,13 @@ public class ModelsState extends AbstractDiffable<Custom> implements Custom {
 
     @Override
     public int hashCode() {
-        return models.hashCode();
+        int h = hash;
+        if (h == 0) {
+            // racy but idempotent, like String
+            h = models.hashCode();
+            hash = h;
+        }
+        return h;
     }
 
     @Override
@@ -90,18 +101,52 @@ public class ModelsState extends AbstractDiffable<Custom> implements Custom {
         }
     }
 
+    /**
+     * Only the models added, replaced or removed are sent to the other nodes.
+     */
+    @Override
+    public Diff<Custom> diff(Custom previousState) {
+        return new ModelsStateDiff(SettingsMapDiff.diff(((ModelsState) previousState).models, models));
+    }
+
+    @Override
+    public Diff<Custom> readDiffFrom(StreamInput in) throws IOException {
+        return new ModelsStateDiff(SettingsMapDiff.readFrom(in));
+    }
+
+    /**
+     * Writes the models as they were uploaded, with their trees decoded.
+     */
     @Override
     public XContentBuilder toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
         for (Map.Entry<String, Settings> entry : models.entrySet()) {
             builder.startObject(entry.getKey());
-            entry.getValue().toXContent(builder, params);
+            expandTrees(entry.getValue()).toXContent(builder, params);
             builder.endObject();
         }
         return builder;
     }
 
+    private static Settings expandTrees(Settings model) {
+        if (model.get(LTRStoreService.PARAMS_KEY + "." + TreeEncoding.PARAM) == null) {
+            return model;
+        }
+        final String prefix = LTRStoreService.PARAMS_KEY + ".";
+        final Settings.Builder builder = Settings.builder();
+        for (Map.Entry<String, String> entry : model.getAsMap().entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                builder.put(entry.getKey(), entry.getValue());
+            }
+        }
+        final Settings params = TreeEncoding.expand(model.getAsSettings(LTRStoreService.PARAMS_KEY));
+        for (Map.Entry<String, String> entry : params.getAsMap().entrySet()) {
+            builder.put(prefix + entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
     public static class Builder {
-        private Map<String, Settings> map = new HashMap<>();
+        private Map<String, Settings> map = new LinkedHashMap<>();
 
         public Builder(ModelsState modelsState) {
             if (modelsState != null) {
@@ -138,4 +183,26 @@ public class ModelsState extends AbstractDiffable<Custom> implements Custom {
             return new ModelsState(ImmutableMap.copyOf(map));
         }
     }
+
+    private static class ModelsStateDiff implements Diff<Custom> {
+        private final SettingsMapDiff models;
+
+        ModelsStateDiff(SettingsMapDiff models) {
+            this.models = models;
+        }
+
+        @Override
+        public Custom apply(Custom part) {
+            final ModelsState previous = (ModelsState) part;
+            if (models.isEmpty()) {
+                return previous;
+            }
+            return new ModelsState(models.apply(previous.models));
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            models.writeTo(out);
+        }
+    }
 }
@@ -0,0 +1,111 @@
+package org.wikimedia.search.ltr.store;
+
+import static org.elasticsearch.common.settings.Settings.readSettingsFromStream;
+import static org.elasticsearch.common.settings.Settings.writeSettingsToStream;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.settings.Settings;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Difference between two maps of settings by name, the models or the
+ * features of a store: the names removed and the entries added or replaced.
+ * <p>
+ * Applying the diff keeps the order of the entries of the map it was computed
+ * from: entries that were kept or replaced stay in place and added entries
+ * are appended in the order of the new map.
+ */
+final class SettingsMapDiff {
+    private static final SettingsMapDiff EMPTY = new SettingsMapDiff(Collections.<String>emptyList(),
+        Collections.<String, Settings>emptyMap());
+
+    private final List<String> deletes;
+    private final Map<String, Settings> upserts;
+
+    private SettingsMapDiff(List<String> deletes, Map<String, Settings> upserts) {
+        this.deletes = deletes;
+        this.upserts = upserts;
+    }
+
+    static SettingsMapDiff diff(Map<String, Settings> before, Map<String, Settings> after) {
+        final List<String> deletes = new ArrayList<>();
+        for (final String name : before.keySet()) {
+            if (!after.containsKey(name)) {
+                deletes.add(name);
+            }
+        }
+        final Map<String, Settings> upserts = new LinkedHashMap<>();
+        for (final Map.Entry<String, Settings> entry : after.entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) {
+                upserts.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (deletes.isEmpty() && upserts.isEmpty()) {
+            return EMPTY;
+        }
+        return new SettingsMapDiff(deletes, upserts);
+    }
+
+    static SettingsMapDiff readFrom(StreamInput in) throws IOException {
+        final int deleteCount = in.readVInt();
+        final List<String> deletes = new ArrayList<>(deleteCount);
+        for (int i = 0; i < deleteCount; i++) {
+            deletes.add(in.readString());
+        }
+        final int upsertCount = in.readVInt();
+        final Map<String, Settings> upserts = new LinkedHashMap<>();
+        for (int i = 0; i < upsertCount; i++) {
+            final String name = in.readString();
+            upserts.put(name, readSettingsFromStream(in));
+        }
+        return new SettingsMapDiff(deletes, upserts);
+    }
+
+    void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(deletes.size());
+        for (final String name : deletes) {
+            out.writeString(name);
+        }
+        out.writeVInt(upserts.size());
+        for (final Map.Entry<String, Settings> entry : upserts.entrySet()) {
+            out.writeString(entry.getKey());
+            writeSettingsToStream(entry.getValue(), out);
+        }
+    }
+
+    boolean isEmpty() {
+        return deletes.isEmpty() && upserts.isEmpty();
+    }
+
+    ImmutableMap<String, Settings> apply(Map<String, Settings> before) {
+        if (isEmpty() && before instanceof ImmutableMap) {
+            return (ImmutableMap<String, Settings>) before;
+        }
+        final Set<String> deleted = new HashSet<>(deletes);
+        final ImmutableMap.Builder<String, Settings> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, Settings> entry : before.entrySet()) {
+            if (deleted.contains(entry.getKey())) {
+                continue;
+            }
+            final Settings replaced = upserts.get(entry.getKey());
+            builder.put(entry.getKey(), replaced == null ? entry.getValue() : replaced);
+        }
+        for (final Map.Entry<String, Settings> entry : upserts.entrySet()) {
+            if (!before.containsKey(entry.getKey())) {
+                builder.put(entry);
+            }
+        }
+        return builder.build();
+    }
+}
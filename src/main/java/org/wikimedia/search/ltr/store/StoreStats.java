@@ -0,0 +1,111 @@
+package org.wikimedia.search.ltr.store;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Streamable;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Statistics of the models of a node.
+ */
+public class StoreStats implements Streamable, ToXContent {
+    private long models;
+    private long compiledModels;
+    private long warmedModels;
+    private long warmupTimeInMillis;
+    private long lastWarmupModels;
+    private long lastWarmupTimeInMillis;
+
+    StoreStats() {
+    }
+
+    StoreStats(long models, long compiledModels, long warmedModels, long warmupTimeInMillis,
+        long lastWarmupModels, long lastWarmupTimeInMillis) {
+        this.models = models;
+        this.compiledModels = compiledModels;
+        this.warmedModels = warmedModels;
+        this.warmupTimeInMillis = warmupTimeInMillis;
+        this.lastWarmupModels = lastWarmupModels;
+        this.lastWarmupTimeInMillis = lastWarmupTimeInMillis;
+    }
+
+    public static StoreStats readStoreStats(StreamInput in) throws IOException {
+        final StoreStats stats = new StoreStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    /**
+     * @return the models available, or cached with the indexed store
+     */
+    public long getModels() {
+        return models;
+    }
+
+    public long getCompiledModels() {
+        return compiledModels;
+    }
+
+    /**
+     * @return the models warmed since the node started
+     */
+    public long getWarmedModels() {
+        return warmedModels;
+    }
+
+    public long getWarmupTimeInMillis() {
+        return warmupTimeInMillis;
+    }
+
+    /**
+     * @return the models warmed before publishing the last update
+     */
+    public long getLastWarmupModels() {
+        return lastWarmupModels;
+    }
+
+    public long getLastWarmupTimeInMillis() {
+        return lastWarmupTimeInMillis;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        models = in.readVLong();
+        compiledModels = in.readVLong();
+        warmedModels = in.readVLong();
+        warmupTimeInMillis = in.readVLong();
+        lastWarmupModels = in.readVLong();
+        lastWarmupTimeInMillis = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(models);
+        out.writeVLong(compiledModels);
+        out.writeVLong(warmedModels);
+        out.writeVLong(warmupTimeInMillis);
+        out.writeVLong(lastWarmupModels);
+        out.writeVLong(lastWarmupTimeInMillis);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("models");
+        builder.field("count", models);
+        builder.field("compiled", compiledModels);
+        builder.endObject();
+        builder.startObject("warmup");
+        builder.field("models", warmedModels);
+        builder.timeValueField("time_in_millis", "time", warmupTimeInMillis, TimeUnit.MILLISECONDS);
+        builder.startObject("last");
+        builder.field("models", lastWarmupModels);
+        builder.timeValueField("time_in_millis", "time", lastWarmupTimeInMillis, TimeUnit.MILLISECONDS);
+        builder.endObject();
+        builder.endObject();
+        return builder;
+    }
+}
@@ -0,0 +1,69 @@
+package org.wikimedia.search.ltr.store;
+
+import java.io.IOException;
+
+import org.elasticsearch.cluster.AbstractDiffable;
+import org.elasticsearch.cluster.ClusterState.Custom;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Version of the models and features stored in the ltr index, incremented
+ * on every change so that nodes drop the models they cached.
+ */
+public class StoreVersionState extends AbstractDiffable<Custom> implements Custom {
+    public static final String TYPE = "ltr-store-version";
+    public static final StoreVersionState PROTO = new StoreVersionState(0);
+    private final long version;
+
+    public StoreVersionState(long version) {
+        this.version = version;
+    }
+
+    public long version() {
+        return version;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return version == ((StoreVersionState) o).version;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (version ^ (version >>> 32));
+    }
+
+    @Override
+    public String type() {
+        return TYPE;
+    }
+
+    @Override
+    public String toString() {
+        return "StoreVersionState [version=" + version + "]";
+    }
+
+    @Override
+    public StoreVersionState readFrom(StreamInput in) throws IOException {
+        return new StoreVersionState(in.readVLong());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVLong(version);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, ToXContent.Params params) throws IOException {
+        return builder.field("version", version);
+    }
+}
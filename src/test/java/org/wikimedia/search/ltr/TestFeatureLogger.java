@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.mapper.Uid;
+import org.junit.Test;
+import org.wikimedia.search.ltr.FeatureLogger.CSVFeatureLogger;
+import org.wikimedia.search.ltr.FeatureLogger.FeatureFormat;
+import org.wikimedia.search.ltr.FeatureLogger.MapFeatureLogger;
+import org.wikimedia.search.ltr.FeatureLogger.SVMRankFeatureLogger;
+import org.wikimedia.search.ltr.LTRScoringQuery.FeatureInfo;
+
+public class TestFeatureLogger extends LuceneTestCase {
+    private static final float[] SPECIAL_VALUES = { 0f, -0f, 1f, -1f, 0.1f, 1e7f, -1e7f, 9999999f, 1e-3f, 1e-4f,
+        123.456f, Float.MIN_VALUE, Float.MAX_VALUE, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+        16777216f, 2147483648f };
+
+    private final LTRScoringQuery query = new LTRScoringQuery(null, Settings.EMPTY, false, null);
+
+    @Test
+    public void testCSVOutputIsUnchanged() throws IOException {
+        for (int iter = 0; iter < 200; iter++) {
+            final FeatureFormat format = random().nextBoolean() ? FeatureFormat.DENSE : FeatureFormat.SPARSE;
+            final String marker = random().nextBoolean() ? null : randomString();
+            final CSVFeatureLogger logger = new CSVFeatureLogger(format, marker);
+            char kvSep = ':';
+            char fSep = ';';
+            if (random().nextInt(4) == 0) {
+                kvSep = randomChar();
+                fSep = randomChar();
+                logger.setKeyValueSep(kvSep).setFeatureSep(fSep);
+            }
+            final FeatureInfo[] featuresInfo = randomFeatures();
+            for (int doc = 0; doc < 3; doc++) {
+                randomizeValues(featuresInfo);
+                final Uid uid = new Uid(randomString(), randomString());
+                assertEquals(csvReference(format, marker, kvSep, fSep, uid, featuresInfo),
+                    logger.makeFeatureVector(uid, featuresInfo));
+            }
+        }
+    }
+
+    @Test
+    public void testJsonOutputIsUnchanged() throws IOException {
+        for (int iter = 0; iter < 200; iter++) {
+            final FeatureFormat format = random().nextBoolean() ? FeatureFormat.DENSE : FeatureFormat.SPARSE;
+            final String marker = random().nextBoolean() ? null : randomString();
+            final MapFeatureLogger logger = new MapFeatureLogger(format, marker);
+            final FeatureInfo[] featuresInfo = randomFeatures();
+            for (int doc = 0; doc < 3; doc++) {
+                randomizeValues(featuresInfo);
+                final Uid uid = new Uid(randomString(), randomString());
+                assertEquals(jsonReference(format, marker, uid, featuresInfo),
+                    logger.makeFeatureVector(uid, featuresInfo));
+            }
+        }
+    }
+
+    @Test
+    public void testSVMRankFormat() throws IOException {
+        final FeatureInfo[] featuresInfo = new FeatureInfo[] { query.new FeatureInfo("a", 1f, true), null,
+            query.new FeatureInfo("c", 0f, false), query.new FeatureInfo("d", 0.5f, true) };
+        final Uid uid = new Uid("type", "42");
+
+        assertEquals("0 qid:7 1:1.0 4:0.5 # type#42",
+            new SVMRankFeatureLogger(FeatureFormat.SPARSE, "7").makeFeatureVector(uid, featuresInfo));
+        assertEquals("0 qid:7 1:1.0 3:0.0 4:0.5 # type#42",
+            new SVMRankFeatureLogger(FeatureFormat.DENSE, "007").makeFeatureVector(uid, featuresInfo));
+
+        // non numeric markers and query keys are hashed, the same way
+        // everywhere
+        final SVMRankFeatureLogger marked = new SVMRankFeatureLogger(FeatureFormat.SPARSE, "some query");
+        marked.setQueryKey("ignored, there is a marker");
+        final String line = marked.makeFeatureVector(uid, featuresInfo);
+        assertTrue(line, line.matches("0 qid:[0-9]+ 1:1.0 4:0.5 # type#42"));
+        assertEquals(line,
+            new SVMRankFeatureLogger(FeatureFormat.SPARSE, "some query").makeFeatureVector(uid, featuresInfo));
+
+        final SVMRankFeatureLogger unmarked = new SVMRankFeatureLogger(FeatureFormat.SPARSE, null);
+        unmarked.setQueryKey("some query");
+        assertEquals(line, unmarked.makeFeatureVector(uid, featuresInfo));
+        unmarked.setQueryKey("another query");
+        assertNotEquals(line, unmarked.makeFeatureVector(uid, featuresInfo));
+
+        assertTrue(FeatureLogger.createFeatureLogger("svmrank", "sparse", null) instanceof SVMRankFeatureLogger);
+        assertTrue(FeatureLogger.createFeatureLogger("libsvm", "dense", null) instanceof SVMRankFeatureLogger);
+    }
+
+    @Test
+    public void testLoggersAreThreadSafe() throws Exception {
+        final FeatureLogger[] loggers = { new CSVFeatureLogger(FeatureFormat.DENSE, "m"),
+            new MapFeatureLogger(FeatureFormat.SPARSE, null) };
+        for (final FeatureLogger logger : loggers) {
+            final int threads = 4;
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final List<Thread> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                final Thread worker = new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            final FeatureInfo[] featuresInfo = new FeatureInfo[] {
+                                query.new FeatureInfo("a", id, true), query.new FeatureInfo("b", id * 2, true) };
+                            final Uid uid = new Uid("type", "doc" + id);
+                            final String expected = logger instanceof CSVFeatureLogger
+                                ? csvReference(FeatureFormat.DENSE, "m", ':', ';', uid, featuresInfo)
+                                : jsonReference(FeatureFormat.SPARSE, null, uid, featuresInfo);
+                            start.await();
+                            for (int i = 0; i < 2000; i++) {
+                                assertEquals(expected, logger.makeFeatureVector(uid, featuresInfo));
+                            }
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                };
+                worker.start();
+                workers.add(worker);
+            }
+            start.countDown();
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+        }
+    }
+
+    private FeatureInfo[] randomFeatures() {
+        final FeatureInfo[] featuresInfo = new FeatureInfo[TestUtil.nextInt(random(), 1, 10)];
+        for (int i = 0; i < featuresInfo.length; i++) {
+            // features that are not extracted are null
+            if (random().nextInt(5) != 0) {
+                featuresInfo[i] = query.new FeatureInfo(randomString(), 0f, false);
+            }
+        }
+        return featuresInfo;
+    }
+
+    private void randomizeValues(FeatureInfo[] featuresInfo) {
+        for (final FeatureInfo fInfo : featuresInfo) {
+            if (fInfo == null) {
+                continue;
+            }
+            final float value;
+            switch (random().nextInt(4)) {
+            case 0:
+                value = SPECIAL_VALUES[random().nextInt(SPECIAL_VALUES.length)];
+                break;
+            case 1:
+                value = random().nextInt(1000) - 500;
+                break;
+            case 2:
+                value = Float.intBitsToFloat(random().nextInt());
+                break;
+            default:
+                value = random().nextFloat() * 100;
+            }
+            fInfo.setScore(value);
+            fInfo.setUsed(random().nextBoolean());
+        }
+    }
+
+    private String randomString() {
+        switch (random().nextInt(3)) {
+        case 0:
+            return TestUtil.randomSimpleString(random(), 1, 10);
+        case 1:
+            return TestUtil.randomRealisticUnicodeString(random(), 1, 10);
+        default:
+            // with quotes, backslashes and control chars
+            return TestUtil.randomSimpleString(random(), 1, 5) + "\"\\\n\t\u0001\u001f\u007fé€"
+                + new String(Character.toChars(0x1F600));
+        }
+    }
+
+    private char randomChar() {
+        final char[] chars = { ',', '|', '\t', '=', '§' };
+        return chars[random().nextInt(chars.length)];
+    }
+
+    /**
+     * The CSV logger as it was implemented with a StringBuilder.
+     */
+    static String csvReference(FeatureFormat format, String marker, char keyValueSep, char featureSep, Uid uid,
+        FeatureInfo[] featuresInfo) {
+        final StringBuilder sb = new StringBuilder();
+        boolean isDense = format.equals(FeatureFormat.DENSE);
+        sb.append("_id").append(keyValueSep).append(uid.id()).append(featureSep).append("_type").append(keyValueSep)
+            .append(uid.type()).append(featureSep);
+        if (marker != null) {
+            sb.append("_marker").append(keyValueSep).append(marker).append(featureSep);
+        }
+        for (FeatureInfo featInfo : featuresInfo) {
+            if (featInfo != null && (featInfo.isUsed() || isDense)) {
+                sb.append(featInfo.getName()).append(keyValueSep).append(featInfo.getValue());
+                sb.append(featureSep);
+            }
+        }
+        return sb.substring(0, sb.length() - 1);
+    }
+
+    /**
+     * The JSON logger as it was implemented with an XContentBuilder.
+     */
+    static String jsonReference(FeatureFormat format, String marker, Uid uid, FeatureInfo[] featuresInfo)
+        throws IOException {
+        boolean isDense = format.equals(FeatureFormat.DENSE);
+        XContentBuilder builder = XContentBuilder.builder(JsonXContent.jsonXContent);
+        builder.startObject();
+        builder.field("_id", uid.id());
+        builder.field("_type", uid.type());
+        if (marker != null) {
+            builder.field("_marker", marker);
+        }
+        builder.startObject("vec");
+        for (FeatureInfo featInfo : featuresInfo) {
+            if (featInfo != null && (featInfo.isUsed() || isDense)) {
+                builder.field(featInfo.getName(), featInfo.getValue());
+            }
+        }
+        builder.endObject();
+        builder.endObject();
+        return builder.string();
+    }
+}
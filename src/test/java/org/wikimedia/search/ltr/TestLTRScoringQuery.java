@@ -18,6 +18,7 @@ package org.wikimedia.search.ltr;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -32,15 +33,22 @@ import org.apache.lucene.index.ReaderUtil;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.QueryRescorer;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TwoPhaseIterator;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.LuceneTestCase;
 import org.apache.lucene.util.LuceneTestCase.SuppressSysoutChecks;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.IndexQueryParserService;
 import org.junit.Test;
 import org.wikimedia.search.ltr.feature.Feature;
 import org.wikimedia.search.ltr.feature.ValueFeature;
@@ -281,4 +289,339 @@ public class TestLTRScoringQuery extends LuceneTestCase {
         dir.close();
     }
 
+    @Test
+    public void testConstantFeaturesAreNotIterated() throws IOException, ModelException {
+        final Directory dir = newDirectory();
+        final RandomIndexWriter w = new RandomIndexWriter(random(), dir);
+        for (int i = 0; i < 3; i++) {
+            Document doc = new Document();
+            doc.add(newStringField("id", Integer.toString(i), Field.Store.YES));
+            w.addDocument(doc);
+        }
+        w.forceMerge(1);
+        final IndexReader r = w.getReader();
+        w.close();
+        final IndexSearcher searcher = getSearcher(r);
+
+        final List<Feature> features = makeFeatures(new int[] { 0, 1, 2 });
+        final List<Normalizer> norms = new ArrayList<Normalizer>(
+            Collections.nCopies(features.size(), IdentityNormalizer.INSTANCE));
+        final LTRScoringModel ltrScoringModel = TestLinearModel.createLinearModel("test", features, norms, "test",
+            features, makeFeatureWeights(features));
+
+        final LTRScoringQuery.ModelWeight modelWeight = (LTRScoringQuery.ModelWeight) searcher
+            .createNormalizedWeight(new LTRScoringQuery(ltrScoringModel, false, null), true);
+        final LeafReaderContext context = searcher.getTopReaderContext().leaves().get(0);
+        final Scorer scorer = modelWeight.scorer(context);
+        // value features are per-request constants, no scorer should be
+        // iterated for them
+        assertTrue(scorer.getChildren().isEmpty());
+        for (int doc = 0; doc < 3; doc++) {
+            assertEquals(doc, scorer.iterator().advance(doc));
+            // 0.1 * (0 + 1 + 2)
+            assertEquals(0.3f, scorer.score(), 0.0001);
+            for (LTRScoringQuery.FeatureInfo fInfo : modelWeight.getFeaturesInfo()) {
+                assertTrue(fInfo.isUsed());
+            }
+        }
+        r.close();
+        dir.close();
+    }
+
+    /**
+     * Scores 1 on documents containing the term, and is missing everywhere
+     * else.
+     */
+    static class TermFeature extends Feature {
+        private final Term term;
+
+        TermFeature(String name, Term term) {
+            super(name, Settings.EMPTY);
+            this.term = term;
+        }
+
+        @Override
+        public LinkedHashMap<String, Object> paramsToMap() {
+            final LinkedHashMap<String, Object> params = new LinkedHashMap<>(1, 1.0f);
+            params.put("term", term.toString());
+            return params;
+        }
+
+        @Override
+        public FeatureWeight createWeight(IndexSearcher searcher, boolean needsScores, Settings efi,
+            IndexQueryParserService queryParserService) throws IOException {
+            final Weight termWeight = searcher.createNormalizedWeight(new ConstantScoreQuery(new TermQuery(term)),
+                true);
+            return new FeatureWeight(this, searcher, efi) {
+                @Override
+                public FeatureScorer scorer(LeafReaderContext context) throws IOException {
+                    final Scorer termScorer = termWeight.scorer(context);
+                    if (termScorer == null) {
+                        return null;
+                    }
+                    return new FeatureScorer(this, termScorer.iterator()) {
+                        @Override
+                        public float score() throws IOException {
+                            return termScorer.score();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testRescoringSparseFeaturesWithConstantBias() throws IOException, ModelException {
+        final Directory dir = newDirectory();
+        final RandomIndexWriter w = new RandomIndexWriter(random(), dir);
+        final String[] texts = { "a", "b", "c", "a b", "d", "e" };
+        for (int i = 0; i < texts.length; i++) {
+            Document doc = new Document();
+            doc.add(newStringField("id", Integer.toString(i), Field.Store.YES));
+            doc.add(newTextField("field", texts[i], Field.Store.NO));
+            w.addDocument(doc);
+        }
+        w.forceMerge(1);
+        final IndexReader r = w.getReader();
+        w.close();
+        final IndexSearcher searcher = getSearcher(r);
+
+        // the bias is a per-request constant and is not iterated, only the
+        // two term features drive the disjunction
+        final List<Feature> features = new ArrayList<>();
+        features.add(Feature.getInstance(ValueFeature.class.getCanonicalName(), "bias",
+            Settings.builder().put("value", 5).build()));
+        features.add(new TermFeature("a", new Term("field", "a")));
+        features.add(new TermFeature("b", new Term("field", "b")));
+        for (int i = 0; i < features.size(); i++) {
+            features.get(i).setIndex(i);
+        }
+        final List<Normalizer> norms = new ArrayList<Normalizer>(
+            Collections.nCopies(features.size(), IdentityNormalizer.INSTANCE));
+        final Settings weights = Settings.builder().put("weights.bias", 1).put("weights.a", 1).put("weights.b", 1)
+            .build();
+        final LTRScoringModel ltrScoringModel = TestLinearModel.createLinearModel("test", features, norms, "test",
+            features, weights);
+
+        final TopDocs firstPass = searcher.search(new MatchAllDocsQuery(), texts.length);
+        // documents matching none of the term features must still be scored
+        // by the model, even when the disjunction has moved past them
+        final TopDocs rescored = QueryRescorer.rescore(searcher, firstPass,
+            new LTRScoringQuery(ltrScoringModel, false, null), 1, texts.length);
+        assertEquals(texts.length, rescored.scoreDocs.length);
+        for (ScoreDoc sd : rescored.scoreDocs) {
+            final String text = texts[Integer.parseInt(searcher.doc(sd.doc).get("id"))];
+            final float expected = 1f + 5f + (text.contains("a") ? 1f : 0f) + (text.contains("b") ? 1f : 0f);
+            assertEquals(expected, sd.score, 0.0001);
+        }
+        r.close();
+        dir.close();
+    }
+
+    @Test
+    public void testScoringStrategiesAgree() throws IOException, ModelException {
+        final Directory dir = newDirectory();
+        final RandomIndexWriter w = new RandomIndexWriter(random(), dir);
+        final int numDocs = atLeast(50);
+        for (int i = 0; i < numDocs; i++) {
+            Document doc = new Document();
+            final StringBuilder text = new StringBuilder();
+            for (String term : new String[] { "a", "b", "c" }) {
+                if (random().nextInt(4) == 0) {
+                    text.append(term).append(' ');
+                }
+            }
+            doc.add(newTextField("field", text.toString(), Field.Store.NO));
+            w.addDocument(doc);
+        }
+        w.forceMerge(1);
+        final IndexReader r = w.getReader();
+        w.close();
+        final IndexSearcher searcher = getSearcher(r);
+
+        final List<Feature> features = new ArrayList<>();
+        for (String term : new String[] { "a", "b", "c" }) {
+            final Feature f = new TermFeature(term, new Term("field", term));
+            f.setIndex(features.size());
+            features.add(f);
+        }
+        final List<Normalizer> norms = new ArrayList<Normalizer>(
+            Collections.nCopies(features.size(), IdentityNormalizer.INSTANCE));
+        final Settings weights = Settings.builder().put("weights.a", 1).put("weights.b", 2).put("weights.c", 4)
+            .build();
+        final LTRScoringQuery query = new LTRScoringQuery(
+            TestLinearModel.createLinearModel("test", features, norms, "test", features, weights), false, null);
+        final LeafReaderContext context = searcher.getTopReaderContext().leaves().get(0);
+
+        // skip some docs so that both advance and nextDoc are used
+        final boolean[] skip = new boolean[numDocs];
+        for (int doc = 0; doc < numDocs; doc++) {
+            skip[doc] = random().nextBoolean();
+        }
+        final float[][] scores = new float[2][numDocs];
+        final ScoringStrategy[] strategies = { ScoringStrategy.LEAP_FROG, ScoringStrategy.DISJUNCTION };
+        for (int s = 0; s < strategies.length; s++) {
+            final LTRScoringQuery.ModelWeight weight = query.createWeight(searcher, true);
+            weight.forcedStrategy = strategies[s];
+            final LTRScoringQuery.ModelWeight.ModelScorer scorer = weight.scorer(context);
+            assertEquals(strategies[s], scorer.getStrategy());
+            for (int doc = scorer.iterator().nextDoc(); doc < numDocs; doc = skip[doc] ? scorer.iterator()
+                .advance(doc + 2) : scorer.iterator().nextDoc()) {
+                scores[s][doc] = scorer.score();
+            }
+        }
+        for (int doc = 0; doc < numDocs; doc++) {
+            assertEquals("doc " + doc, scores[0][doc], scores[1][doc], 0.0001);
+        }
+        r.close();
+        dir.close();
+    }
+
+    @Test
+    public void testScoringStrategySelection() {
+        assertEquals(ScoringStrategy.RANDOM_ACCESS, ScoringStrategy.select(new long[0], 1000));
+        assertEquals(ScoringStrategy.LEAP_FROG, ScoringStrategy.select(new long[] { 100000 }, 1000));
+        // few dense features
+        assertEquals(ScoringStrategy.LEAP_FROG, ScoringStrategy.select(new long[] { 50000, 50000, 50000 }, 1000));
+        // many very sparse features over a large window
+        final long[] sparse = new long[32];
+        Arrays.fill(sparse, 100);
+        assertEquals(ScoringStrategy.DISJUNCTION, ScoringStrategy.select(sparse, 10000));
+    }
+
+    @Test
+    public void testScoringStrategyIsSelectedPerLeafFromFeatureCosts() throws IOException, ModelException {
+        final Directory dir = newDirectory();
+        final RandomIndexWriter w = new RandomIndexWriter(random(), dir);
+        final int numDocs = 2000;
+        for (int i = 0; i < numDocs; i++) {
+            final Document doc = new Document();
+            // dense terms in every doc, each sparse term in 1% of the docs
+            doc.add(newTextField("field", "d0 d1 d2 s" + (i % 100), Field.Store.NO));
+            w.addDocument(doc);
+        }
+        w.forceMerge(1);
+        final IndexReader r = w.getReader();
+        w.close();
+        final IndexSearcher searcher = getSearcher(r);
+        final LeafReaderContext context = searcher.getTopReaderContext().leaves().get(0);
+
+        // not run as a rescorer, every doc of the leaf is expected to be
+        // scored
+        assertEquals(ScoringStrategy.LEAP_FROG, strategy(searcher, context, "d", 3));
+        assertEquals(ScoringStrategy.DISJUNCTION, strategy(searcher, context, "s", 32));
+        r.close();
+        dir.close();
+    }
+
+    private static ScoringStrategy strategy(IndexSearcher searcher, LeafReaderContext context, String prefix,
+        int numFeatures) throws IOException, ModelException {
+        final List<Feature> features = new ArrayList<>();
+        final Settings.Builder weights = Settings.builder();
+        for (int i = 0; i < numFeatures; i++) {
+            final Feature f = new TermFeature(prefix + i, new Term("field", prefix + i));
+            f.setIndex(i);
+            features.add(f);
+            weights.put("weights." + prefix + i, 1);
+        }
+        final List<Normalizer> norms = new ArrayList<Normalizer>(
+            Collections.nCopies(features.size(), IdentityNormalizer.INSTANCE));
+        final LTRScoringQuery query = new LTRScoringQuery(
+            TestLinearModel.createLinearModel("test", features, norms, "test", features, weights.build()), false, null);
+        return query.createWeight(searcher, true).scorer(context).getStrategy();
+    }
+
+    /**
+     * Matches even docs through a two-phase iterator whose approximation
+     * matches every doc, and counts the calls to matches().
+     */
+    static class EvenDocsFeature extends Feature {
+        int matchesCalls = 0;
+
+        EvenDocsFeature(String name) {
+            super(name, Settings.EMPTY);
+        }
+
+        @Override
+        public LinkedHashMap<String, Object> paramsToMap() {
+            return new LinkedHashMap<>();
+        }
+
+        @Override
+        public FeatureWeight createWeight(IndexSearcher searcher, boolean needsScores, Settings efi,
+            IndexQueryParserService queryParserService) throws IOException {
+            return new FeatureWeight(this, searcher, efi) {
+                @Override
+                public FeatureScorer scorer(LeafReaderContext context) throws IOException {
+                    final DocIdSetIterator approximation = DocIdSetIterator.all(context.reader().maxDoc());
+                    final TwoPhaseIterator twoPhase = new TwoPhaseIterator(approximation) {
+                        @Override
+                        public boolean matches() throws IOException {
+                            matchesCalls++;
+                            return approximation.docID() % 2 == 0;
+                        }
+
+                        @Override
+                        public float matchCost() {
+                            return 100;
+                        }
+                    };
+                    return new FeatureScorer(this, TwoPhaseIterator.asDocIdSetIterator(twoPhase)) {
+                        @Override
+                        public float score() throws IOException {
+                            return 1;
+                        }
+
+                        @Override
+                        public TwoPhaseIterator twoPhaseIterator() {
+                            return twoPhase;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testTwoPhaseFeaturesAreOnlyConfirmedForScoredDocs() throws IOException, ModelException {
+        final Directory dir = newDirectory();
+        final RandomIndexWriter w = new RandomIndexWriter(random(), dir);
+        final int numDocs = 100;
+        for (int i = 0; i < numDocs; i++) {
+            Document doc = new Document();
+            doc.add(newTextField("field", i % 3 == 0 ? "a" : "b", Field.Store.NO));
+            w.addDocument(doc);
+        }
+        w.forceMerge(1);
+        final IndexReader r = w.getReader();
+        w.close();
+        final IndexSearcher searcher = getSearcher(r);
+        final LeafReaderContext context = searcher.getTopReaderContext().leaves().get(0);
+
+        final int[] targets = { 3, 4, 10, 41, 42, 99 };
+        for (ScoringStrategy strategy : new ScoringStrategy[] { ScoringStrategy.LEAP_FROG,
+            ScoringStrategy.DISJUNCTION }) {
+            final EvenDocsFeature even = new EvenDocsFeature("even");
+            final Feature a = new TermFeature("a", new Term("field", "a"));
+            even.setIndex(0);
+            a.setIndex(1);
+            final List<Feature> features = Arrays.asList(even, a);
+            final List<Normalizer> norms = new ArrayList<Normalizer>(
+                Collections.nCopies(features.size(), IdentityNormalizer.INSTANCE));
+            final Settings weights = Settings.builder().put("weights.even", 1).put("weights.a", 2).build();
+            final LTRScoringQuery query = new LTRScoringQuery(
+                TestLinearModel.createLinearModel("test", features, norms, "test", features, weights), false, null);
+            final LTRScoringQuery.ModelWeight weight = query.createWeight(searcher, true);
+            weight.forcedStrategy = strategy;
+            final LTRScoringQuery.ModelWeight.ModelScorer scorer = weight.scorer(context);
+            for (int target : targets) {
+                assertEquals(target, scorer.iterator().advance(target));
+                final float expected = (target % 2 == 0 ? 1 : 0) + (target % 3 == 0 ? 2 : 0);
+                assertEquals(strategy + " doc " + target, expected, scorer.score(), 0.0001);
+            }
+            assertEquals(strategy.toString(), targets.length, even.matchesCalls);
+        }
+        r.close();
+        dir.close();
+    }
 }
@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+import org.wikimedia.search.ltr.feature.Feature;
+import org.wikimedia.search.ltr.model.LTRScoringModel;
+import org.wikimedia.search.ltr.model.TestLinearModel;
+import org.wikimedia.search.ltr.norm.IdentityNormalizer;
+import org.wikimedia.search.ltr.norm.Normalizer;
+
+/**
+ * Measures the cost per scored document of the leap-frog and disjunction
+ * strategies of the ModelScorer, for a varying number of features, feature
+ * density and rescore window. The last column shows the strategy that
+ * {@link ScoringStrategy#select(long[], long)} picks, it should match the
+ * fastest one away from the crossover points.
+ * <p>
+ * Only run nightly, the table is logged at info level:
+ *
+ * <pre>
+ * mvn test -Dtests.nightly=true -Dtests.class=org.wikimedia.search.ltr.TestScoringStrategyBenchmark
+ * </pre>
+ */
+@LuceneTestCase.Nightly
+@LuceneTestCase.SuppressSysoutChecks(bugUrl = "logs the measured costs")
+public class TestScoringStrategyBenchmark extends LuceneTestCase {
+    private static final ESLogger log = ESLoggerFactory.getLogger(TestScoringStrategyBenchmark.class.getName());
+
+    private static final int NUM_DOCS = 200000;
+    private static final int[] NUM_FEATURES = { 2, 4, 8, 16, 32 };
+    private static final double[] DENSITIES = { 0.001, 0.01, 0.1, 0.5 };
+    private static final int[] WINDOWS = { 100, 1000, 10000 };
+    private static final int ITERATIONS = 20;
+
+    @Test
+    public void testScoringStrategies() throws Exception {
+        final Random random = new Random(random().nextLong());
+        try (RAMDirectory dir = new RAMDirectory()) {
+            index(dir, random);
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                final IndexSearcher searcher = new IndexSearcher(reader);
+                final LeafReaderContext leaf = reader.leaves().get(0);
+                final StringBuilder table = new StringBuilder(String.format(Locale.ROOT,
+                    "%8s %8s %8s %12s %12s %14s", "features", "density", "window", "leapfrog", "disjunction",
+                    "selected"));
+                // first round only warms up the JIT
+                for (int round = 0; round < 2; round++) {
+                    final boolean report = round == 1;
+                    for (final int window : WINDOWS) {
+                        final int[] targets = targets(window, random);
+                        for (final double density : DENSITIES) {
+                            for (final int numFeatures : NUM_FEATURES) {
+                                final LTRScoringQuery query = new LTRScoringQuery(model(numFeatures, density), false,
+                                    null);
+                                final double leapFrog = run(searcher, leaf, query, targets,
+                                    ScoringStrategy.LEAP_FROG);
+                                final double disjunction = run(searcher, leaf, query, targets,
+                                    ScoringStrategy.DISJUNCTION);
+                                if (report) {
+                                    table.append(String.format(Locale.ROOT, "\n%8d %8.3f %8d %9.1fns %9.1fns %14s",
+                                        numFeatures, density, window, leapFrog, disjunction,
+                                        selected(searcher, leaf, query, window)));
+                                }
+                            }
+                        }
+                    }
+                }
+                log.info("scoring strategies:\n{}", table);
+            }
+        }
+    }
+
+    private static void index(RAMDirectory dir, Random random) throws IOException {
+        final IndexWriterConfig iwc = new IndexWriterConfig(new WhitespaceAnalyzer());
+        try (IndexWriter w = new IndexWriter(dir, iwc)) {
+            for (int i = 0; i < NUM_DOCS; i++) {
+                final Document doc = new Document();
+                for (final double density : DENSITIES) {
+                    for (int f = 0; f < NUM_FEATURES[NUM_FEATURES.length - 1]; f++) {
+                        if (random.nextDouble() < density) {
+                            doc.add(new StringField(field(f, density), "t", Field.Store.NO));
+                        }
+                    }
+                }
+                w.addDocument(doc);
+            }
+            w.forceMerge(1);
+        }
+    }
+
+    private static String field(int feature, double density) {
+        return String.format(Locale.ROOT, "f%d_%s", feature, density);
+    }
+
+    private static int[] targets(int window, Random random) {
+        final int[] targets = new int[window];
+        for (int i = 0; i < window; i++) {
+            targets[i] = random.nextInt(NUM_DOCS);
+        }
+        Arrays.sort(targets);
+        return targets;
+    }
+
+    private static LTRScoringModel model(int numFeatures, double density) throws Exception {
+        final List<Feature> features = new ArrayList<>(numFeatures);
+        final Settings.Builder weights = Settings.builder();
+        for (int f = 0; f < numFeatures; f++) {
+            final Feature feature = new TestLTRScoringQuery.TermFeature("f" + f, new Term(field(f, density), "t"));
+            feature.setIndex(f);
+            features.add(feature);
+            weights.put("weights.f" + f, 1);
+        }
+        final List<Normalizer> norms = new ArrayList<Normalizer>(
+            Collections.nCopies(numFeatures, IdentityNormalizer.INSTANCE));
+        return TestLinearModel.createLinearModel("bench", features, norms, "bench", features, weights.build());
+    }
+
+    /**
+     * @return the best average time to score one of the targets, in
+     *         nanoseconds
+     */
+    private static double run(IndexSearcher searcher, LeafReaderContext leaf, LTRScoringQuery query, int[] targets,
+        ScoringStrategy strategy) throws IOException {
+        long best = Long.MAX_VALUE;
+        float sum = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final LTRScoringQuery.ModelWeight weight = query.createWeight(searcher, true);
+            weight.forcedStrategy = strategy;
+            final LTRScoringQuery.ModelWeight.ModelScorer scorer = weight.scorer(leaf);
+            final long start = System.nanoTime();
+            for (final int target : targets) {
+                if (scorer.docID() < target) {
+                    scorer.iterator().advance(target);
+                }
+                sum += scorer.score();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        // keeps the scoring from being optimized away
+        assertFalse(Float.isNaN(sum));
+        return (double) best / targets.length;
+    }
+
+    private static ScoringStrategy selected(IndexSearcher searcher, LeafReaderContext leaf, LTRScoringQuery query,
+        int window) throws IOException {
+        final Feature.FeatureWeight[] weights = query.createWeight(searcher, true).getExtractedFeatureWeights();
+        final long[] costs = new long[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            final Feature.FeatureWeight.FeatureScorer scorer = weights[i].scorer(leaf);
+            costs[i] = scorer == null ? 0 : scorer.iterator().cost();
+        }
+        return ScoringStrategy.select(costs, window);
+    }
+}
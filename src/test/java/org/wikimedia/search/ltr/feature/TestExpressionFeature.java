@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.feature;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFirstHit;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSecondHit;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.hasId;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.hasScore;
+import static org.hamcrest.core.StringContains.containsString;
+
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.LTRScoringQueryBuilder;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.model.LinearModel;
+import org.wikimedia.search.ltr.store.LTRStoreService.ModelStoreBuilder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestExpressionFeature extends TestRerankBase {
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+
+        indexRandom(false, doc("1", "title", "w1", "description", "w1", "popularity", "1"));
+        indexRandom(false, doc("2", "title", "w2", "description", "w2", "popularity", "2"));
+        indexRandom(false, doc("3", "title", "w3", "description", "w3", "popularity", "3"));
+        refresh();
+
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+        loadFeature("popularitySquared", ExpressionFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("expression", "popularity ^ 2"));
+        loadFeature("shifted", ExpressionFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("expression", "max(popularitySquared - 2, 0) + 1"));
+    }
+
+    @Test
+    public void testExpressionFeature() throws Exception {
+        loadModel("squared-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularitySquared")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("popularitySquared", 1.0f)));
+
+        SearchResponse response = rescoreQuery(new LTRScoringQueryBuilder("squared-model"));
+        assertFirstHit(response, hasId("3"));
+        assertFirstHit(response, hasScore(9f));
+        assertSecondHit(response, hasId("2"));
+        assertSecondHit(response, hasScore(4f));
+    }
+
+    @Test
+    public void testChainedExpressionFeatureExtractsDependencies() throws Exception {
+        // The model only references 'shifted', popularity and
+        // popularitySquared must still be extracted to compute it
+        loadModel("shifted-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "shifted")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("shifted", 1.0f)));
+
+        SearchResponse response = rescoreQuery(new LTRScoringQueryBuilder("shifted-model"));
+        assertFirstHit(response, hasId("3"));
+        assertFirstHit(response, hasScore(8f));
+        assertSecondHit(response, hasId("2"));
+        assertSecondHit(response, hasScore(3f));
+    }
+
+    @Test
+    public void testExpressionCycleIsRejected() throws Exception {
+        ModelStoreBuilder builder = modelStoreBuilder();
+        builder.addFeature("cycle", "a", mapToSettings(createFeatureMap(ExpressionFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("expression", "b + 1"))));
+        builder.addFeature("cycle", "b", mapToSettings(createFeatureMap(ExpressionFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("expression", "log1p(a)"))));
+        try {
+            builder.linkFeatureStores();
+            fail("Expected cycle to be detected");
+        } catch (FeatureException e) {
+            assertThat(e.getMessage(), containsString("Cycle detected"));
+        }
+    }
+
+    @Test
+    public void testExpressionWithUnknownFeatureIsRejected() throws Exception {
+        ModelStoreBuilder builder = modelStoreBuilder();
+        builder.addFeature("unknown", "a", mapToSettings(createFeatureMap(ExpressionFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("expression", "missing * 2"))));
+        try {
+            builder.linkFeatureStores();
+            fail("Expected unknown feature to be detected");
+        } catch (FeatureException e) {
+            assertThat(e.getMessage(), containsString("unknown feature [missing]"));
+        }
+    }
+
+    @Test
+    public void testInvalidExpressionIsRejected() throws Exception {
+        try {
+            FeatureExpression.compile("log1p(a");
+            fail("Expected parse error");
+        } catch (FeatureException e) {
+            assertThat(e.getMessage(), containsString("expected ')'"));
+        }
+        try {
+            FeatureExpression.compile("nope(a)");
+            fail("Expected parse error");
+        } catch (FeatureException e) {
+            assertThat(e.getMessage(), containsString("unknown function [nope]"));
+        }
+        try {
+            FeatureExpression.compile("`title-match + 1");
+            fail("Expected parse error");
+        } catch (FeatureException e) {
+            assertThat(e.getMessage(), containsString("unterminated feature name"));
+        }
+    }
+
+    @Test
+    public void testQuotedFeatureNames() throws Exception {
+        final FeatureExpression expression = FeatureExpression.compile("`title-match` * 2 + `a``b` + max(`c d`, 1)");
+        assertEquals(ImmutableList.of("title-match", "a`b", "c d"), ImmutableList.copyOf(expression.variables()));
+
+        loadFeature("popularity-log", ExpressionFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("expression", "log10(popularity)"));
+        loadFeature("quoted", ExpressionFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("expression", "pow(10, `popularity-log`) + sigmoid(0)"));
+        loadModel("quoted-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "quoted")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("quoted", 1.0f)));
+
+        SearchResponse response = rescoreQuery(new LTRScoringQueryBuilder("quoted-model"));
+        assertFirstHit(response, hasId("3"));
+        assertFirstHit(response, hasScore(3.5f));
+        assertSecondHit(response, hasId("2"));
+        assertSecondHit(response, hasScore(2.5f));
+    }
+}
@@ -149,4 +149,36 @@ public class TestFieldValueFeature extends TestRerankBase {
         SearchResponse response = rescoreQuery(idsQueryBuilder, new LTRScoringQueryBuilder("popularity2-model"));
         assertFirstHit(response, hasScore(33f));
     }
+
+    @Test
+    public void testThatFieldValueLoadsFromDocValues() throws Exception {
+        loadFeature("popularityDv", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity", "docValues", true));
+        loadModel("popularityDv-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularityDv")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("popularityDv", 1f)));
+
+        SearchResponse response = rescoreQuery(new MatchQueryBuilder("title", "w1"),
+            new LTRScoringQueryBuilder("popularityDv-model"));
+        assertFirstHit(response, hasId("8"));
+        assertFirstHit(response, hasScore(8f));
+        assertSecondHit(response, hasId("7"));
+        assertSecondHit(response, hasScore(7f));
+
+        // missing values fall back to the default value
+        IdsQueryBuilder idsQueryBuilder = new IdsQueryBuilder("test").addIds("42");
+        response = rescoreQuery(idsQueryBuilder, new LTRScoringQueryBuilder("popularityDv-model"));
+        assertFirstHit(response, hasScore(FIELD_VALUE_FEATURE_DEFAULT_VAL));
+    }
+
+    @Test
+    public void testSourceAndDocValuesAreExclusive() throws Exception {
+        try {
+            new FieldValueFeature("popularity", mapToSettings(
+                ImmutableMap.<String, Object>of("field", "popularity", "source", true, "docValues", true)));
+            fail("Expected source and docValues to be rejected");
+        } catch (FeatureException e) {
+            // expected
+        }
+    }
 }
@@ -31,7 +31,9 @@ import java.util.concurrent.ExecutionException;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.common.lucene.search.function.FieldValueFactorFunction.Modifier;
+import org.elasticsearch.index.query.ConstantScoreQueryBuilder;
 import org.elasticsearch.index.query.MatchQueryBuilder;
+import org.elasticsearch.index.query.TermQueryBuilder;
 import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
 import org.elasticsearch.index.query.functionscore.fieldvaluefactor.FieldValueFactorFunctionBuilder;
 import org.elasticsearch.index.query.functionscore.script.ScriptScoreFunctionBuilder;
@@ -127,4 +129,31 @@ public class TestRankingFeature extends TestRerankBase {
         }
     }
 
+    @Test
+    public void testPhraseESQueryFeature() throws Exception {
+        // phrase queries are two-phase, only the docs in the window should be
+        // confirmed but the values must not change
+        Map<String, Object> phraseQuery = toXContentAsMap(new ConstantScoreQueryBuilder(
+            new MatchQueryBuilder("title", "w1 w2").type(MatchQueryBuilder.Type.PHRASE)));
+        Map<String, Object> termQuery = toXContentAsMap(new ConstantScoreQueryBuilder(
+            new TermQueryBuilder("title", "w8")));
+        loadFeature("phraseW1W2", ESQueryFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("q", phraseQuery));
+        loadFeature("termW8", ESQueryFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("q", termQuery));
+        loadModel("phrase-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "phraseW1W2"),
+                ImmutableMap.<String, Object>of("name", "termW8")),
+            ImmutableMap.<String, Object>of("weights",
+                ImmutableMap.<String, Object>of("phraseW1W2", 1.0f, "termW8", 2.0f)));
+
+        SearchResponse response = rescoreQuery(new MatchQueryBuilder("title", "w1"),
+            new LTRScoringQueryBuilder("phrase-model"));
+        assertFirstHit(response, hasId("8"));
+        assertFirstHit(response, hasScore(3.0f));
+        assertSecondHit(response, hasScore(1.0f));
+        assertThirdHit(response, hasScore(1.0f));
+        assertFourthHit(response, hasId("1"));
+        assertFourthHit(response, hasScore(0.0f));
+    }
 }
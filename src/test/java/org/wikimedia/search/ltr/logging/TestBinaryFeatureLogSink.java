@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.LTRScoringQueryBuilder;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.feature.FieldValueFeature;
+import org.wikimedia.search.ltr.model.LinearModel;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestBinaryFeatureLogSink extends TestRerankBase {
+    private Path logDir;
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        if (logDir == null) {
+            logDir = createTempDir();
+        }
+        return Settings.builder().put(super.nodeSettings(nodeOrdinal))
+            .put(BinaryFeatureLogSink.SETTINGS_PREFIX + "path", logDir.resolve("node" + nodeOrdinal).toString())
+            .put(BinaryFeatureLogSink.SETTINGS_PREFIX + "compress", nodeOrdinal % 2 == 0)
+            .put(BinaryFeatureLogSink.SETTINGS_PREFIX + "flush_interval", "10ms").build();
+    }
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+
+        indexRandom(false, doc("1", "title", "w1", "description", "w1", "popularity", "1"));
+        indexRandom(false, doc("2", "title", "w2", "description", "w2", "popularity", "2"));
+        indexRandom(false, doc("3", "title", "w3", "description", "w3", "popularity", "3"));
+        refresh();
+
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+        loadModel("popularity-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularity")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("popularity", 1.0f)));
+    }
+
+    @Test
+    public void testFeatureVectorsAreWrittenToBinaryLog() throws Exception {
+        rescoreQuery(new LTRScoringQueryBuilder("popularity-model").marker("binary-test").sink("binary"));
+
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final Map<String, FeatureLogFormat.Record> records = readRecords();
+                    assertEquals(3, records.size());
+                    for (Map.Entry<String, FeatureLogFormat.Record> entry : records.entrySet()) {
+                        final FeatureLogFormat.Record record = entry.getValue();
+                        assertEquals("binary-test", record.getMarker());
+                        assertEquals("test", record.getType());
+                        assertEquals(Collections.singletonList("popularity"), record.getNames());
+                        assertEquals(Float.parseFloat(entry.getKey()), record.getValues()[0], 0f);
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testRingBufferDropsWhenFull() throws Exception {
+        final BoundedRingBuffer<Integer> buffer = new BoundedRingBuffer<>(3);
+        assertEquals(4, buffer.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(4, buffer.size());
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(5));
+        for (int expected : new int[] { 1, 2, 3, 5 }) {
+            assertEquals(Integer.valueOf(expected), buffer.poll());
+        }
+        assertNull(buffer.poll());
+    }
+
+    private Map<String, FeatureLogFormat.Record> readRecords() throws IOException {
+        final Map<String, FeatureLogFormat.Record> records = new HashMap<>();
+        if (!Files.isDirectory(logDir)) {
+            return records;
+        }
+        try (DirectoryStream<Path> nodeDirs = Files.newDirectoryStream(logDir)) {
+            for (Path nodeDir : nodeDirs) {
+                for (Path file : FeatureLogFileWriter.listFiles(nodeDir)) {
+                    try (InputStream raw = Files.newInputStream(file)) {
+                        final InputStream in = file.toString().endsWith(FeatureLogFileWriter.COMPRESSED_SUFFIX)
+                            ? new GZIPInputStream(raw) : raw;
+                        final FeatureLogFormat.Reader reader = new FeatureLogFormat.Reader(in);
+                        for (FeatureLogFormat.Record r = reader.next(); r != null; r = reader.next()) {
+                            records.put(r.getId(), r);
+                        }
+                    } catch (IOException e) {
+                        // the end of the file is still being written
+                    }
+                }
+            }
+        }
+        return records;
+    }
+}
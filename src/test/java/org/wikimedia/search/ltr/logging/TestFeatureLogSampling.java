@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.LTRScoringQueryBuilder;
+import org.wikimedia.search.ltr.LTRScoringQueryParser;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.feature.FieldValueFeature;
+import org.wikimedia.search.ltr.model.LinearModel;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestFeatureLogSampling extends TestRerankBase {
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+
+        indexRandom(false, doc("1", "title", "w1", "description", "w1", "popularity", "1"));
+        indexRandom(false, doc("2", "title", "w2", "description", "w2", "popularity", "2"));
+        indexRandom(false, doc("3", "title", "w3", "description", "w3", "popularity", "3"));
+        refresh();
+
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+        loadModel("popularity-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularity")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("popularity", 1.0f)));
+    }
+
+    @Test
+    public void testUnsampledRequestsAreNotLogged() throws Exception {
+        assertVectors(0, new LTRScoringQueryBuilder("popularity-model").sink("response").sampleRate(0));
+        assertVectors(3, new LTRScoringQueryBuilder("popularity-model").sink("response").sampleRate(1));
+    }
+
+    @Test
+    public void testSamplingByKeyIsDeterministic() throws Exception {
+        String sampled = null;
+        String skipped = null;
+        for (int i = 0; sampled == null || skipped == null; i++) {
+            final String key = "query " + i;
+            if (LTRScoringQueryParser.isSampled(0.5, key)) {
+                sampled = key;
+            } else {
+                skipped = key;
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            assertVectors(3,
+                new LTRScoringQueryBuilder("popularity-model").sink("response").sampleRate(0.5).sampleKey(sampled));
+            assertVectors(0,
+                new LTRScoringQueryBuilder("popularity-model").sink("response").sampleRate(0.5).sampleKey(skipped));
+        }
+    }
+
+    @Test
+    public void testShardsOfARequestAreSampledTogether() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            final int vectors = countVectors(
+                rescoreQuery(new LTRScoringQueryBuilder("popularity-model").sink("response").sampleRate(0.5)));
+            assertTrue("vectors " + vectors, vectors == 0 || vectors == 3);
+        }
+    }
+
+    @Test
+    public void testSampleRateByKey() {
+        int sampled = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (LTRScoringQueryParser.isSampled(0.1, "query " + i)) {
+                sampled++;
+            }
+        }
+        assertTrue("sampled " + sampled, sampled > 800 && sampled < 1200);
+    }
+
+    @Test
+    public void testInvalidSampleRate() throws Exception {
+        try {
+            rescoreQuery(new LTRScoringQueryBuilder("popularity-model").sampleRate(2));
+            fail("expected an exception");
+        } catch (Exception e) {
+            assertTrue(getRootCause(e).getMessage(), getRootCause(e).getMessage().contains("sample_rate"));
+        }
+    }
+
+    @Test
+    public void testRateLimiter() {
+        final FeatureLogRateLimiter limiter = new FeatureLogRateLimiter(Settings.EMPTY, 5);
+        assertTrue(limiter.isEnabled());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1, limiter.getRejected());
+
+        final FeatureLogRateLimiter unlimited = new FeatureLogRateLimiter(Settings.EMPTY, 0);
+        assertFalse(unlimited.isEnabled());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(unlimited.tryAcquire());
+        }
+    }
+
+    private void assertVectors(int expected, LTRScoringQueryBuilder query) throws Exception {
+        assertEquals(expected, countVectors(rescoreQuery(query)));
+    }
+
+    private int countVectors(SearchResponse response) {
+        int vectors = 0;
+        for (final SearchHit hit : response.getHits()) {
+            if (hit.field(FeatureVectorFetchSubPhase.FIELD) != null) {
+                vectors++;
+            }
+        }
+        return vectors;
+    }
+}
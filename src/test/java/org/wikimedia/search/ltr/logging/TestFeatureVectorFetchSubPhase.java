@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.logging;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.query.MatchAllQueryBuilder;
+import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.rescore.RescoreBuilder;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.LTRScoringQueryBuilder;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.feature.FieldValueFeature;
+import org.wikimedia.search.ltr.model.LinearModel;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestFeatureVectorFetchSubPhase extends TestRerankBase {
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        // the test cluster may disable the request breaker
+        return Settings.builder().put(super.nodeSettings(nodeOrdinal))
+            .put(HierarchyCircuitBreakerService.REQUEST_CIRCUIT_BREAKER_TYPE_SETTING, "memory").build();
+    }
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+
+        indexRandom(false, doc("1", "title", "w1", "description", "w1", "popularity", "1"));
+        indexRandom(false, doc("2", "title", "w2", "description", "w2", "popularity", "2"));
+        indexRandom(false, doc("3", "title", "w3", "description", "w3", "popularity", "3"));
+        refresh();
+
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+        loadModel("popularity-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularity")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("popularity", 1.0f)));
+    }
+
+    @Test
+    public void testRescoredVectorsAreReturnedWithHits() throws Exception {
+        final SearchResponse response = rescoreQuery(
+            new LTRScoringQueryBuilder("popularity-model").marker("hits").sink("response"));
+        assertEquals(3, response.getHits().getTotalHits());
+        for (final SearchHit hit : response.getHits()) {
+            assertJsonVector(hit, "hits");
+        }
+    }
+
+    @Test
+    public void testVectorsOfHitsOutsideOfTheWindowAreExtracted() throws Exception {
+        final SearchSourceBuilder builder = SearchSourceBuilder.searchSource().query(new MatchAllQueryBuilder())
+            .addRescorer(new RescoreBuilder().rescorer(RescoreBuilder
+                .queryRescorer(new LTRScoringQueryBuilder("popularity-model").sink("response")))
+                .windowSize(1));
+        final SearchResponse response = doSearch(builder);
+        assertEquals(3, response.getHits().getHits().length);
+        for (final SearchHit hit : response.getHits()) {
+            assertJsonVector(hit, null);
+        }
+    }
+
+    @Test
+    public void testVectorsOfMainQueryUseLoggerFormat() throws Exception {
+        final SearchSourceBuilder builder = SearchSourceBuilder.searchSource()
+            .query(new LTRScoringQueryBuilder("popularity-model").stringFormat("csv").sink("response")).size(2);
+        final SearchResponse response = doSearch(builder);
+        assertEquals(2, response.getHits().getHits().length);
+        for (final SearchHit hit : response.getHits()) {
+            final SearchHitField field = hit.field(FeatureVectorFetchSubPhase.FIELD);
+            assertNotNull(field);
+            assertEquals("_id:" + hit.getId() + ";_type:test;popularity:" + Float.parseFloat(hit.getId()),
+                field.getValue());
+        }
+    }
+
+    @Test
+    public void testSVMRankQueryIdIdentifiesTheRequest() throws Exception {
+        final Set<String> queryIds = new HashSet<>();
+        for (int size = 3; size < 5; size++) {
+            final SearchSourceBuilder builder = SearchSourceBuilder.searchSource()
+                .query(new LTRScoringQueryBuilder("popularity-model").stringFormat("svmrank").sink("response")
+                    .efi(ImmutableMap.of("user_query", "w1")))
+                .size(size);
+            final Set<String> requestQueryIds = new HashSet<>();
+            for (final SearchHit hit : doSearch(builder).getHits()) {
+                final String line = (String) hit.field(FeatureVectorFetchSubPhase.FIELD).getValue();
+                assertTrue(line, line.matches("0 qid:[0-9]+ 1:[0-9.]+ # test#" + hit.getId()));
+                requestQueryIds.add(line.substring(0, line.indexOf(' ', 2)));
+            }
+            // the same on all the shards
+            assertEquals(1, requestQueryIds.size());
+            queryIds.addAll(requestQueryIds);
+        }
+        // same efi but another request
+        assertEquals(2, queryIds.size());
+    }
+
+    @Test
+    public void testNoVectorsWithoutResponseSink() throws Exception {
+        final SearchResponse response = rescoreQuery(new LTRScoringQueryBuilder("popularity-model"));
+        for (final SearchHit hit : response.getHits()) {
+            assertNull(hit.field(FeatureVectorFetchSubPhase.FIELD));
+        }
+    }
+
+    @Test
+    public void testVectorsAreAccountedToTheRequestBreaker() throws Exception {
+        assertRequestBreakerTrips(new LTRScoringQueryBuilder("popularity-model").sink("response"));
+        // released once the search is done, checked after every test
+        testRescoredVectorsAreReturnedWithHits();
+    }
+
+    @Test
+    public void testFeatureValuesAreAccountedToTheRequestBreaker() throws Exception {
+        assertRequestBreakerTrips(new LTRScoringQueryBuilder("popularity-model"));
+        assertSearchResponse(rescoreQuery(new LTRScoringQueryBuilder("popularity-model")));
+    }
+
+    private void assertRequestBreakerTrips(LTRScoringQueryBuilder query) throws Exception {
+        client().admin().cluster().prepareUpdateSettings().setTransientSettings(Settings.builder()
+            .put(HierarchyCircuitBreakerService.REQUEST_CIRCUIT_BREAKER_LIMIT_SETTING, "10b")).get();
+        try {
+            rescoreQuery(query);
+            fail("expected the request breaker to trip");
+        } catch (Exception e) {
+            assertTrue(ExceptionsHelper.detailedMessage(e), ExceptionsHelper.detailedMessage(e)
+                .contains("CircuitBreakingException"));
+        } finally {
+            client().admin().cluster().prepareUpdateSettings().setTransientSettings(Settings.builder()
+                .put(HierarchyCircuitBreakerService.REQUEST_CIRCUIT_BREAKER_LIMIT_SETTING,
+                    HierarchyCircuitBreakerService.DEFAULT_REQUEST_BREAKER_LIMIT)).get();
+        }
+    }
+
+    private void assertJsonVector(SearchHit hit, String marker) {
+        final SearchHitField field = hit.field(FeatureVectorFetchSubPhase.FIELD);
+        assertNotNull("no vector for " + hit.getId(), field);
+        assertEquals(1, field.getValues().size());
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> vector = (Map<String, Object>) field.getValue();
+        assertEquals(hit.getId(), vector.get("_id"));
+        assertEquals(marker, vector.get("_marker"));
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> vec = (Map<String, Object>) vector.get("vec");
+        assertEquals(Float.parseFloat(hit.getId()), ((Number) vec.get("popularity")).floatValue(), 0f);
+    }
+}
@@ -23,12 +23,27 @@ import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.hasId;
 import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.hasScore;
 import static org.hamcrest.core.StringContains.containsString;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.apache.lucene.search.Explanation;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.wikimedia.search.ltr.LTRScoringQueryBuilder;
+import org.wikimedia.search.ltr.feature.Feature;
+import org.wikimedia.search.ltr.norm.IdentityNormalizer;
+import org.wikimedia.search.ltr.norm.Normalizer;
+import org.wikimedia.search.ltr.store.ModelsState;
 
 //import static org.junit.internal.matchers.StringContains.containsString;
 
@@ -228,4 +243,247 @@ public class TestMultipleAdditiveTreesModel extends TestRerankBase {
             assertEquals(expectedException.toString(), actualException.toString());
         }
     }
+
+    @Test
+    public void testTreesAreEncoded() throws Exception {
+        final LTRScoringModel model = createModelFromFiles("multipleadditivetreesmodel.json",
+            "multipleadditivetreesmodel_features.json");
+        assertNotNull(model.getParams().get(TreeEncoding.PARAM));
+        assertTrue(model.getParams().getGroups("trees").isEmpty());
+        assertEquals("MultipleAdditiveTreesModel(name=multipleadditivetreesmodel,trees=["
+            + "(weight=1.0,root=(feature=matchedTitle,threshold=0.5,left=-100.0,"
+            + "right=(feature=this_feature_doesnt_exist,threshold=10.0,left=50.0,right=75.0))),"
+            + "(weight=2.0,root=-10.0)])", model.toString());
+
+        final ModelsState state = client().admin().cluster().prepareState().get().getState().custom(ModelsState.TYPE);
+        final Settings stored = state.models().get("multipleadditivetreesmodel");
+        assertNotNull(stored.get("params." + TreeEncoding.PARAM));
+        assertTrue(stored.getAsSettings("params").getGroups("trees").isEmpty());
+
+        // returned as they were uploaded
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        state.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        final Settings returned = Settings.builder().loadFromSource(builder.endObject().string()).build()
+            .getAsSettings("multipleadditivetreesmodel.params");
+        assertNull(returned.get(TreeEncoding.PARAM));
+        assertEquals(1f, returned.getAsFloat("trees.0.weight", null), 0f);
+        assertEquals("matchedTitle", returned.get("trees.0.root.feature"));
+        assertEquals(0.5f, returned.getAsFloat("trees.0.root.threshold", null), 0f);
+        assertEquals(75f, returned.getAsFloat("trees.0.root.right.right.value", null), 0f);
+        assertEquals(-10f, returned.getAsFloat("trees.1.root.value", null), 0f);
+    }
+
+    @Test
+    public void testEncodedTreesScoreLikeTheirSettings() throws Exception {
+        final List<String> featureNames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            featureNames.add("f" + i);
+        }
+        final Settings.Builder builder = Settings.builder();
+        for (int tree = 0; tree < 50; tree++) {
+            builder.put("trees." + tree + ".weight", random().nextFloat());
+            randomNode(builder, "trees." + tree + ".root.", featureNames, 0);
+        }
+        final Settings params = builder.build();
+        final List<Feature> features = getFeatures(featureNames.subList(0, 15));
+        final List<Normalizer> norms = new ArrayList<Normalizer>(
+            Collections.nCopies(features.size(), IdentityNormalizer.INSTANCE));
+        final LTRScoringModel model = LTRScoringModel.getInstance(MultipleAdditiveTreesModel.class.getCanonicalName(),
+            "random", features, norms, "test", features, params);
+
+        final String encoded = model.getParams().get(TreeEncoding.PARAM);
+        assertNotNull(encoded);
+        int settingsSize = 0;
+        for (final Map.Entry<String, String> entry : params.getAsMap().entrySet()) {
+            settingsSize += entry.getKey().length() + entry.getValue().length();
+        }
+        assertTrue("encoded in " + encoded.length() + " chars instead of " + settingsSize,
+            encoded.length() * 4 < settingsSize);
+        final Settings expanded = TreeEncoding.expand(model.getParams());
+        assertEquals(params.getAsMap().keySet(), expanded.getAsMap().keySet());
+        for (final Map.Entry<String, String> entry : params.getAsMap().entrySet()) {
+            if (entry.getKey().endsWith(".feature")) {
+                assertEquals(entry.getValue(), expanded.get(entry.getKey()));
+            } else {
+                assertEquals(entry.getKey(), Float.parseFloat(entry.getValue()),
+                    expanded.getAsFloat(entry.getKey(), null), 0f);
+            }
+        }
+
+        for (int i = 0; i < 100; i++) {
+            final float[] vector = new float[features.size()];
+            for (int f = 0; f < vector.length; f++) {
+                vector[f] = random().nextFloat();
+            }
+            float expected = 0;
+            for (int tree = 0; tree < 50; tree++) {
+                final Settings settings = params.getAsSettings("trees." + tree);
+                expected += settings.getAsFloat("weight", null) * score(settings.getAsSettings("root"), vector);
+            }
+            assertEquals(expected, model.score(vector), 0f);
+        }
+    }
+
+    @Test
+    public void testOffHeapTreesScoreLikeOnHeapTrees() throws Exception {
+        final List<String> featureNames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            featureNames.add("f" + i);
+        }
+        final Settings.Builder builder = Settings.builder();
+        for (int tree = 0; tree < 50; tree++) {
+            builder.put("trees." + tree + ".weight", random().nextFloat());
+            randomNode(builder, "trees." + tree + ".root.", featureNames, 0);
+        }
+        final Settings params = builder.build();
+        final List<Feature> features = getFeatures(featureNames.subList(0, 15));
+        final List<Normalizer> norms = new ArrayList<Normalizer>(
+            Collections.nCopies(features.size(), IdentityNormalizer.INSTANCE));
+        final LTRScoringModel onHeap = LTRScoringModel.getInstance(
+            MultipleAdditiveTreesModel.class.getCanonicalName(), "random", features, norms, "test", features, params);
+        final Settings offHeapParams = Settings.builder().put(params)
+            .put(MultipleAdditiveTreesModel.OFF_HEAP_PARAM, true).build();
+        try {
+            LTRScoringModel.getInstance(MultipleAdditiveTreesModel.class.getCanonicalName(), "random", features, norms,
+                "test", features, offHeapParams);
+            fail("expected off heap trees to require a directory");
+        } catch (ModelException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("data path"));
+        }
+        final LTRScoringModel offHeap = LTRScoringModel.getInstance(
+            MultipleAdditiveTreesModel.class.getCanonicalName(), "random", features, norms, "test", features,
+            offHeapParams, OffHeapDirectory.open(createTempDir()));
+
+        assertEquals(onHeap.toString(), offHeap.toString());
+        assertEquals(0, onHeap.offHeapBytesUsed());
+        assertTrue(offHeap.offHeapBytesUsed() > 0);
+        // the nodes are no longer on heap
+        assertTrue(offHeap.ramBytesUsed() < onHeap.ramBytesUsed());
+        for (int i = 0; i < 100; i++) {
+            final float[] vector = new float[features.size()];
+            final List<Explanation> explanations = new ArrayList<>();
+            for (int f = 0; f < vector.length; f++) {
+                vector[f] = random().nextFloat();
+                explanations.add(Explanation.match(vector[f], "f" + f));
+            }
+            final float score = onHeap.score(vector);
+            assertEquals(score, offHeap.score(vector), 0f);
+            assertEquals(onHeap.explain(null, 0, score, explanations).toString(),
+                offHeap.explain(null, 0, score, explanations).toString());
+        }
+
+        // a search still using the model after it was replaced
+        assertTrue(offHeap.tryIncRef());
+        offHeap.decRef();
+        offHeap.score(new float[features.size()]);
+        offHeap.decRef();
+        assertFalse(offHeap.tryIncRef());
+    }
+
+    @Test
+    public void testStreamedTreesScoreLikeTheirSettings() throws Exception {
+        final List<String> featureNames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            featureNames.add("f" + i);
+        }
+        final XContentBuilder json = XContentFactory.jsonBuilder().startObject().startObject("models");
+        json.startObject("random").field("class", MultipleAdditiveTreesModel.class.getCanonicalName());
+        json.field("store", "test").startObject("params").field("off_heap", false).startArray("trees");
+        for (int tree = 0; tree < 50; tree++) {
+            json.startObject().startObject("root");
+            randomNode(json, featureNames, 0);
+            json.endObject().field("weight", random().nextFloat()).endObject();
+        }
+        json.endArray().endObject().endObject().endObject().endObject();
+
+        final Settings streamed = StreamingModelLoader.load(json.string());
+        final Settings loaded = Settings.builder().loadFromSource(json.string()).build();
+        final Settings params = streamed.getAsSettings("models.random.params");
+        assertNotNull(params.get(TreeEncoding.PARAM));
+        final Map<String, String> expectedKeys = new HashMap<>(loaded.getAsMap());
+        for (final String key : loaded.getAsSettings("models.random.params.trees").getAsMap().keySet()) {
+            expectedKeys.remove("models.random.params.trees." + key);
+        }
+        final Map<String, String> actualKeys = new HashMap<>(streamed.getAsMap());
+        actualKeys.remove("models.random.params." + TreeEncoding.PARAM);
+        assertEquals(expectedKeys, actualKeys);
+
+        final List<Feature> features = getFeatures(featureNames.subList(0, 15));
+        final List<Normalizer> norms = new ArrayList<Normalizer>(
+            Collections.nCopies(features.size(), IdentityNormalizer.INSTANCE));
+        final LTRScoringModel streamedModel = LTRScoringModel.getInstance(
+            MultipleAdditiveTreesModel.class.getCanonicalName(), "random", features, norms, "test", features, params);
+        final LTRScoringModel loadedModel = LTRScoringModel.getInstance(
+            MultipleAdditiveTreesModel.class.getCanonicalName(), "random", features, norms, "test", features,
+            loaded.getAsSettings("models.random.params"));
+        for (int i = 0; i < 100; i++) {
+            final float[] vector = new float[features.size()];
+            for (int f = 0; f < vector.length; f++) {
+                vector[f] = random().nextFloat();
+            }
+            // trees are summed in the order of the array instead of the
+            // lexicographic order of their settings
+            assertEquals(loadedModel.score(vector), streamedModel.score(vector), 1E-3f);
+        }
+    }
+
+    @Test
+    public void testStreamingFallsBackToSettings() throws Exception {
+        final String[] sources = {
+            // leaf with a split
+            "{\"m\":{\"class\":\"" + MultipleAdditiveTreesModel.class.getCanonicalName() + "\","
+                + "\"params\":{\"trees\":[{\"weight\":1,\"root\":{\"value\":1,\"left\":{\"value\":2}}}]}}}",
+            // not a tree model
+            "{\"m\":{\"class\":\"" + LinearModel.class.getCanonicalName() + "\","
+                + "\"params\":{\"trees\":[{\"weight\":1,\"root\":{\"value\":1}}]}}}",
+            // not a number
+            "{\"m\":{\"class\":\"" + MultipleAdditiveTreesModel.class.getCanonicalName() + "\","
+                + "\"params\":{\"trees\":[{\"weight\":\"heavy\",\"root\":{\"value\":1}}]}}}",
+        };
+        for (final String source : sources) {
+            assertEquals(Settings.builder().loadFromSource(source).build().getAsMap(),
+                StreamingModelLoader.load(source).getAsMap());
+        }
+    }
+
+    private static void randomNode(XContentBuilder json, List<String> featureNames, int depth) throws IOException {
+        if (depth == 6 || random().nextInt(4) == 0) {
+            json.field("value", random().nextFloat() * 10 - 5);
+            return;
+        }
+        json.field("feature", featureNames.get(random().nextInt(featureNames.size())));
+        final boolean rightFirst = random().nextBoolean();
+        json.startObject(rightFirst ? "right" : "left");
+        randomNode(json, featureNames, depth + 1);
+        json.endObject().field("threshold", random().nextFloat());
+        json.startObject(rightFirst ? "left" : "right");
+        randomNode(json, featureNames, depth + 1);
+        json.endObject();
+    }
+
+    private static void randomNode(Settings.Builder builder, String prefix, List<String> featureNames, int depth) {
+        if (depth == 6 || random().nextInt(4) == 0) {
+            builder.put(prefix + "value", random().nextFloat() * 10 - 5);
+            return;
+        }
+        builder.put(prefix + "feature", featureNames.get(random().nextInt(featureNames.size())));
+        builder.put(prefix + "threshold", random().nextFloat());
+        randomNode(builder, prefix + "left.", featureNames, depth + 1);
+        randomNode(builder, prefix + "right.", featureNames, depth + 1);
+    }
+
+    private static float score(Settings node, float[] vector) {
+        if (node.get("feature") == null) {
+            return node.getAsFloat("value", 0f);
+        }
+        final int feature = Integer.parseInt(node.get("feature").substring(1));
+        if (feature >= vector.length) {
+            // not a feature of the model
+            return 0f;
+        }
+        if (vector[feature] <= node.getAsFloat("threshold", null) + 1E-6f) {
+            return score(node.getAsSettings("left"), vector);
+        }
+        return score(node.getAsSettings("right"), vector);
+    }
 }
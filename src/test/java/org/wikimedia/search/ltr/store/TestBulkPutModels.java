@@ -0,0 +1,90 @@
+package org.wikimedia.search.ltr.store;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFirstHit;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.hasScore;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.LTRScoringQueryBuilder;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsAction;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsResponse;
+import org.wikimedia.search.ltr.feature.FieldValueFeature;
+import org.wikimedia.search.ltr.model.LinearModel;
+
+import com.google.common.collect.ImmutableMap;
+
+public class TestBulkPutModels extends TestRerankBase {
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+
+        indexRandom(false, doc("1", "title", "w1", "description", "w1", "popularity", "1"));
+        indexRandom(false, doc("2", "title", "w2", "description", "w2", "popularity", "2"));
+        refresh();
+
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+    }
+
+    @Test
+    public void testValidModelsAreStoredAndInvalidOnesReported() throws Exception {
+        final String ndjson = linearModel("double", "popularity", 2f) + "\n"
+            + linearModel("unknown", "missing", 1f) + "\n\n"
+            + linearModel("triple", "popularity", 3f) + "\n";
+        final BulkPutModelsResponse response = BulkPutModelsAction.INSTANCE.newRequestBuilder(client())
+            .models(new BytesArray(ndjson)).get();
+
+        assertTrue(response.isAcknowledged());
+        assertEquals(Arrays.asList("double", "triple"), response.stored());
+        assertEquals(1, response.failures().size());
+        assertTrue(response.failures().get("unknown"), response.failures().get("unknown").contains("unknown feature"));
+
+        final ModelsState state = client().admin().cluster().prepareState().get().getState().custom(ModelsState.TYPE);
+        assertEquals(2, state.models().size());
+        assertFirstHit(rescoreQuery(new LTRScoringQueryBuilder("double")), hasScore(4f));
+        assertFirstHit(rescoreQuery(new LTRScoringQueryBuilder("triple")), hasScore(6f));
+    }
+
+    @Test
+    public void testGzipCompressedModels() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write((linearModel("double", "popularity", 2f) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        final BulkPutModelsResponse response = BulkPutModelsAction.INSTANCE.newRequestBuilder(client())
+            .models(new BytesArray(bytes.toByteArray())).get();
+
+        assertEquals(Arrays.asList("double"), response.stored());
+        assertFirstHit(rescoreQuery(new LTRScoringQueryBuilder("double")), hasScore(4f));
+    }
+
+    @Test
+    public void testDuplicatedModelsAreRejected() throws Exception {
+        final String ndjson = linearModel("double", "popularity", 2f) + "\n"
+            + linearModel("double", "popularity", 3f) + "\n";
+        try {
+            BulkPutModelsAction.INSTANCE.newRequestBuilder(client()).models(new BytesArray(ndjson));
+            fail("expected an exception");
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("already defined"));
+        }
+    }
+
+    private static String linearModel(String name, String feature, float weight) throws Exception {
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject().startObject(name);
+        builder.field("class", LinearModel.class.getCanonicalName()).field("store", "test");
+        builder.startArray("features").startObject().field("name", feature).endObject().endArray();
+        builder.startObject("params").startObject("weights").field(feature, weight).endObject().endObject();
+        return builder.endObject().endObject().string();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.store;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFirstHit;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.hasId;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.hasScore;
+
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.LTRScoringQueryBuilder;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsAction;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsResponse;
+import org.wikimedia.search.ltr.action.stats.LTRNodeStats;
+import org.wikimedia.search.ltr.action.stats.LTRStatsAction;
+import org.wikimedia.search.ltr.action.stats.LTRStatsRequest;
+import org.wikimedia.search.ltr.feature.FieldValueFeature;
+import org.wikimedia.search.ltr.feature.ValueFeature;
+import org.wikimedia.search.ltr.model.LinearModel;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestIndexedModelStore extends TestRerankBase {
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder().put(super.nodeSettings(nodeOrdinal)).put(LTRStoreService.STORE_TYPE_SETTING, "index")
+            .build();
+    }
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+
+        indexRandom(false, doc("1", "title", "w1", "description", "w1", "popularity", "1"));
+        indexRandom(false, doc("2", "title", "w2", "description", "w2", "popularity", "2"));
+        refresh();
+
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+        loadFeature("constant", ValueFeature.class.getCanonicalName(), ImmutableMap.<String, Object>of("value", 10));
+    }
+
+    @Test
+    public void testModelsAreReadFromTheIndex() throws Exception {
+        loadLinearModel(1f);
+        assertFirstHit(rescoreQuery(new LTRScoringQueryBuilder("popularity-model")), hasScore(2f));
+
+        final ClusterState state = client().admin().cluster().prepareState().get().getState();
+        assertNull(state.custom(ModelsState.TYPE));
+        assertNull(state.custom(FeaturesState.TYPE));
+        assertNotNull(state.custom(StoreVersionState.TYPE));
+        assertTrue(client().prepareGet(IndexedModelStore.INDEX, IndexedModelStore.MODEL_TYPE, "popularity-model")
+            .get().isExists());
+        // both features were merged in the same store document
+        final Map<String, Object> store = client()
+            .prepareGet(IndexedModelStore.INDEX, IndexedModelStore.FEATURE_STORE_TYPE, "test").get().getSourceAsMap();
+        assertEquals(2, ((Map<?, ?>) store.get("features")).size());
+    }
+
+    @Test
+    public void testUpdatedModelsAreReloaded() throws Exception {
+        loadLinearModel(1f);
+        assertFirstHit(rescoreQuery(new LTRScoringQueryBuilder("popularity-model")), hasScore(2f));
+
+        final long version = ((StoreVersionState) client().admin().cluster().prepareState().get().getState()
+            .custom(StoreVersionState.TYPE)).version();
+        loadLinearModel(-1f);
+        final StoreVersionState updated = client().admin().cluster().prepareState().get().getState()
+            .custom(StoreVersionState.TYPE);
+        assertEquals(version + 1, updated.version());
+        // compiled again in the background by the nodes that used it
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                boolean loaded = false;
+                for (final LTRNodeStats node : client().execute(LTRStatsAction.INSTANCE, new LTRStatsRequest())
+                    .actionGet()) {
+                    loaded |= node.getMemoryStats().getModelHeapSizeInBytes("popularity-model") > 0;
+                }
+                assertTrue(loaded);
+            }
+        });
+
+        final SearchResponse response = rescoreQuery(new LTRScoringQueryBuilder("popularity-model"));
+        assertFirstHit(response, hasId("1"));
+        assertFirstHit(response, hasScore(-1f));
+    }
+
+    @Test
+    public void testInvalidModelsAreRejected() throws Exception {
+        try {
+            loadModel("invalid", LinearModel.class.getCanonicalName(),
+                ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "unknown")),
+                ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("unknown", 1.0f)));
+            fail("expected an exception");
+        } catch (Exception e) {
+            assertTrue(getRootCause(e).getMessage(), getRootCause(e).getMessage().contains("unknown feature"));
+        }
+        assertFalse(client().prepareGet(IndexedModelStore.INDEX, IndexedModelStore.MODEL_TYPE, "invalid").get()
+            .isExists());
+    }
+
+    @Test
+    public void testBulkUploadedModelsAreReadFromTheIndex() throws Exception {
+        final String ndjson = "{\"valid\":{\"class\":\"" + LinearModel.class.getCanonicalName() + "\","
+            + "\"store\":\"test\",\"features\":[{\"name\":\"popularity\"}],"
+            + "\"params\":{\"weights\":{\"popularity\":2}}}}\n"
+            + "{\"invalid\":{\"class\":\"" + LinearModel.class.getCanonicalName() + "\","
+            + "\"store\":\"test\",\"features\":[{\"name\":\"unknown\"}],"
+            + "\"params\":{\"weights\":{\"unknown\":2}}}}\n";
+        final BulkPutModelsResponse response = BulkPutModelsAction.INSTANCE.newRequestBuilder(client())
+            .models(new BytesArray(ndjson)).get();
+        assertEquals(ImmutableList.of("valid"), response.stored());
+        assertTrue(response.failures().containsKey("invalid"));
+
+        assertFirstHit(rescoreQuery(new LTRScoringQueryBuilder("valid")), hasScore(4f));
+        assertFalse(client().prepareGet(IndexedModelStore.INDEX, IndexedModelStore.MODEL_TYPE, "invalid").get()
+            .isExists());
+    }
+
+    @Test
+    public void testMissingModel() throws Exception {
+        try {
+            rescoreQuery(new LTRScoringQueryBuilder("missing"));
+            fail("expected an exception");
+        } catch (Exception e) {
+            assertTrue(getRootCause(e).getMessage(), getRootCause(e).getMessage().contains("missing"));
+        }
+    }
+
+    private void loadLinearModel(float weight) throws Exception {
+        loadModel("popularity-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularity")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("popularity", weight)));
+    }
+}
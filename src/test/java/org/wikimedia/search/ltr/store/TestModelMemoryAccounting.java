@@ -0,0 +1,195 @@
+package org.wikimedia.search.ltr.store;
+
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertFirstHit;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertSearchResponse;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.hasScore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.LTRScoringQueryBuilder;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsAction;
+import org.wikimedia.search.ltr.action.model.bulk.BulkPutModelsResponse;
+import org.wikimedia.search.ltr.action.stats.LTRNodeStats;
+import org.wikimedia.search.ltr.action.stats.LTRStatsAction;
+import org.wikimedia.search.ltr.action.stats.LTRStatsRequest;
+import org.wikimedia.search.ltr.action.stats.LTRStatsResponse;
+import org.wikimedia.search.ltr.feature.FieldValueFeature;
+import org.wikimedia.search.ltr.model.LinearModel;
+import org.wikimedia.search.ltr.model.MultipleAdditiveTreesModel;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestModelMemoryAccounting extends TestRerankBase {
+    // trees of a model that fits in the breaker limit, but not twice
+    private static final int TREES = 60;
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        return Settings.builder().put(super.nodeSettings(nodeOrdinal))
+            .put(LTRStoreService.BREAKER_LIMIT_SETTING, "16kb")
+            .put(LTRStoreService.PRECOMPILE_SETTING, "replaced").build();
+    }
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+
+        indexRandom(false, doc("1", "title", "w1", "description", "w1", "popularity", "1"));
+        indexRandom(false, doc("2", "title", "w2", "description", "w2", "popularity", "2"));
+        refresh();
+
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+    }
+
+    @Test
+    public void testLoadedModelsAreReported() throws Exception {
+        loadModel("double", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularity")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("popularity", 2f)));
+        // compiled by the nodes the first time it is used
+        assertFirstHit(rescoreQuery(new LTRScoringQueryBuilder("double")), hasScore(4f));
+
+        final LTRStatsResponse response = client().execute(LTRStatsAction.INSTANCE, new LTRStatsRequest())
+            .actionGet();
+        boolean loaded = false;
+        for (final LTRNodeStats node : response) {
+            final MemoryStats stats = node.getMemoryStats();
+            assertEquals(16 * 1024, stats.getLimitInBytes());
+            if (stats.getModelHeapSizeInBytes("double") > 0) {
+                loaded = true;
+                assertTrue(stats.getHeapSizeInBytes() > stats.getModelHeapSizeInBytes("double"));
+                assertEquals(stats.getHeapSizeInBytes(), stats.getBreakerUsedInBytes());
+            }
+        }
+        assertTrue(loaded);
+
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        response.toXContent(builder, new ToXContent.MapParams(ImmutableMap.of("level", "models")));
+        assertTrue(builder.endObject().string(), builder.string().contains("\"feature_stores\""));
+    }
+
+    @Test
+    public void testModelsOverTheLimitAreRejected() throws Exception {
+        try {
+            loadTrees("trees", 500);
+            fail("expected a circuit breaking exception");
+        } catch (Exception e) {
+            assertTrue(e.toString(), getRootCause(e) instanceof CircuitBreakingException);
+        }
+        final ModelsState state = client().admin().cluster().prepareState().get().getState().custom(ModelsState.TYPE);
+        assertTrue(state == null || state.models().isEmpty());
+    }
+
+    @Test
+    public void testModelsCompiledOverTheLimitAreDropped() throws Exception {
+        loadTrees("first", TREES);
+        loadTrees("second", TREES);
+        assertSearchResponse(doSearch("first"));
+
+        assertBreakerTrips("second");
+        assertNotLoaded("second");
+
+        // the rejection is kept, the model is not compiled again
+        final long tripped = trippedCount();
+        assertBreakerTrips("second");
+        assertEquals(tripped, trippedCount());
+    }
+
+    @Test
+    public void testBulkUploadsOnlyCheckTheGrowthOfReplacedModels() throws Exception {
+        loadTrees("replaced", TREES);
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                for (final LTRNodeStats node : client().execute(LTRStatsAction.INSTANCE, new LTRStatsRequest())
+                    .actionGet()) {
+                    assertTrue(node.getMemoryStats().getModelHeapSizeInBytes("replaced") > 0);
+                }
+            }
+        });
+
+        // would not fit next to the model it replaces
+        final XContentBuilder builder = XContentFactory.jsonBuilder().startObject().startObject("replaced");
+        builder.field("class", MultipleAdditiveTreesModel.class.getCanonicalName()).field("store", "test");
+        builder.startArray("features").startObject().field("name", "popularity").endObject().endArray();
+        builder.startObject("params").startArray("trees");
+        for (int i = 0; i < TREES; i++) {
+            builder.startObject().field("weight", 2f).startObject("root").field("feature", "popularity")
+                .field("threshold", (float) i).startObject("left").field("value", -i).endObject()
+                .startObject("right").field("value", i).endObject().endObject().endObject();
+        }
+        builder.endArray().endObject().endObject().endObject();
+        final BulkPutModelsResponse response = BulkPutModelsAction.INSTANCE.newRequestBuilder(client())
+            .models(new BytesArray(builder.string())).get();
+
+        assertEquals(response.failures().toString(), Arrays.asList("replaced"), response.stored());
+    }
+
+    private void assertBreakerTrips(String model) throws Exception {
+        try {
+            // all shards fail unless some are on nodes without the first model
+            final SearchResponse response = doSearch(model);
+            assertTrue(response.getFailedShards() > 0);
+            for (final ShardSearchFailure failure : response.getShardFailures()) {
+                assertTrue(failure.reason(), failure.reason().contains("CircuitBreakingException"));
+            }
+        } catch (SearchPhaseExecutionException e) {
+            assertTrue(e.toString(), getRootCause(e) instanceof CircuitBreakingException);
+        }
+    }
+
+    private long trippedCount() {
+        long tripped = 0;
+        for (final LTRNodeStats node : client().execute(LTRStatsAction.INSTANCE, new LTRStatsRequest()).actionGet()) {
+            tripped += node.getMemoryStats().getTrippedCount();
+        }
+        return tripped;
+    }
+
+    private SearchResponse doSearch(String model) throws Exception {
+        // the same shard copies compile both models
+        return client().search(Requests.searchRequest("test").preference("_primary")
+            .source(rescoreQueryBuilder(null, new LTRScoringQueryBuilder(model)))).actionGet();
+    }
+
+    private void assertNotLoaded(String model) {
+        final LTRStatsResponse response = client().execute(LTRStatsAction.INSTANCE, new LTRStatsRequest())
+            .actionGet();
+        for (final LTRNodeStats node : response) {
+            final MemoryStats stats = node.getMemoryStats();
+            assertEquals(-1, stats.getModelHeapSizeInBytes(model));
+            assertEquals(stats.getHeapSizeInBytes(), stats.getBreakerUsedInBytes());
+        }
+    }
+
+    private void loadTrees(String name, int count) throws Exception {
+        final List<Map<String, Object>> trees = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            trees.add(ImmutableMap.<String, Object>of("weight", 1f, "root", ImmutableMap.<String, Object>of(
+                "feature", "popularity", "threshold", (float) i,
+                "left", ImmutableMap.<String, Object>of("value", -i),
+                "right", ImmutableMap.<String, Object>of("value", i))));
+        }
+        loadModel(name, MultipleAdditiveTreesModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularity")),
+            ImmutableMap.<String, Object>of("trees", trees));
+    }
+}
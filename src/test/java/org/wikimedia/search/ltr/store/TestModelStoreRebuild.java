@@ -0,0 +1,282 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.Test;
+import org.wikimedia.search.ltr.feature.ValueFeature;
+import org.wikimedia.search.ltr.model.LTRScoringModel;
+import org.wikimedia.search.ltr.model.LinearModel;
+import org.wikimedia.search.ltr.model.ModelException;
+import org.wikimedia.search.ltr.model.MultipleAdditiveTreesModel;
+import org.wikimedia.search.ltr.model.OffHeapDirectory;
+
+public class TestModelStoreRebuild extends LuceneTestCase {
+
+    private final Map<String, Map<String, Settings>> features = new HashMap<>();
+    private final Map<String, Settings> models = new HashMap<>();
+
+    @Test
+    public void testUnchangedModelsAreReused() {
+        putFeature("store1", "c1", 1);
+        putFeature("store1", "c2", 2);
+        putFeature("store2", "c1", 3);
+        putModel("model1", "store1", "c1");
+        putModel("model2", "store1", "c2");
+        putModel("model3", "store2", "c1");
+        final Map<String, Map<String, Settings>> previousFeatures = copy(features);
+        final Map<String, Settings> previousModels = new HashMap<>(models);
+        final ModelStore previous = LTRStoreService.buildModelStore(new ModelStore(),
+            new HashMap<String, Map<String, Settings>>(), new HashMap<String, Settings>(), features, models);
+
+        // a new model in an unchanged store
+        putModel("model4", "store1", "c2");
+        final ModelStore next = LTRStoreService.buildModelStore(previous, previousFeatures, previousModels, features,
+            models);
+        assertSame(previous.getFeatureStore("store1"), next.getFeatureStore("store1"));
+        assertSame(previous.getFeatureStore("store2"), next.getFeatureStore("store2"));
+        for (final String model : new String[] { "model1", "model2", "model3" }) {
+            assertSame(previous.getModel(model), next.getModel(model));
+        }
+        assertNotNull(next.getModel("model4"));
+
+        // a changed model is rebuilt, alone
+        final Map<String, Settings> nextModels = new HashMap<>(models);
+        putModel("model1", "store1", "c2");
+        final ModelStore last = LTRStoreService.buildModelStore(next, copy(features), nextModels, features, models);
+        assertNotSame(next.getModel("model1"), last.getModel("model1"));
+        assertSame(next.getModel("model2"), last.getModel("model2"));
+        assertSame(next.getModel("model4"), last.getModel("model4"));
+    }
+
+    @Test
+    public void testModelsOfChangedStoresAreRebuilt() {
+        putFeature("store1", "c1", 1);
+        putFeature("store2", "c1", 3);
+        putModel("model1", "store1", "c1");
+        putModel("model2", "store2", "c1");
+        final Map<String, Map<String, Settings>> previousFeatures = copy(features);
+        final Map<String, Settings> previousModels = new HashMap<>(models);
+        final ModelStore previous = LTRStoreService.buildModelStore(new ModelStore(),
+            new HashMap<String, Map<String, Settings>>(), new HashMap<String, Settings>(), features, models);
+
+        putFeature("store1", "c2", 2);
+        final ModelStore next = LTRStoreService.buildModelStore(previous, previousFeatures, previousModels, features,
+            models);
+        assertNotSame(previous.getFeatureStore("store1"), next.getFeatureStore("store1"));
+        assertEquals(2, next.getFeatureStore("store1").getFeatures().size());
+        assertNotSame(previous.getModel("model1"), next.getModel("model1"));
+        assertSame(next.getFeatureStore("store1").get("c1"), next.getModel("model1").getFeatures().get(0));
+
+        assertSame(previous.getFeatureStore("store2"), next.getFeatureStore("store2"));
+        assertSame(previous.getModel("model2"), next.getModel("model2"));
+    }
+
+    @Test
+    public void testRemovedModelsAreDropped() {
+        putFeature("store1", "c1", 1);
+        putModel("model1", "store1", "c1");
+        putModel("model2", "store1", "c1");
+        final Map<String, Map<String, Settings>> previousFeatures = copy(features);
+        final Map<String, Settings> previousModels = new HashMap<>(models);
+        final ModelStore previous = LTRStoreService.buildModelStore(new ModelStore(),
+            new HashMap<String, Map<String, Settings>>(), new HashMap<String, Settings>(), features, models);
+
+        models.remove("model2");
+        final ModelStore next = LTRStoreService.buildModelStore(previous, previousFeatures, previousModels, features,
+            models);
+        assertSame(previous.getModel("model1"), next.getModel("model1"));
+        assertNull(next.getModel("model2"));
+    }
+
+    @Test
+    public void testLazyModelsAreCompiledOnFirstUse() throws Exception {
+        putFeature("store1", "c1", 1);
+        putModel("model1", "store1", "c1");
+        putModel("model2", "store1", "c1");
+        // refers to a missing feature, only reported when used
+        putModel("broken", "store1", "missing");
+        final ModelStore store = LTRStoreService.buildModelStore(new ModelStore(),
+            new HashMap<String, Map<String, Settings>>(), new HashMap<String, Settings>(), features, models, true);
+        assertFalse(store.isCompiled("model1"));
+        assertFalse(store.featureStoreEntry("store1").isCompiled());
+
+        final int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReferenceArray<LTRScoringModel> compiled = new AtomicReferenceArray<>(threads);
+        final List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            final Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        compiled.set(id, store.getModel("model1"));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        assertNotNull(compiled.get(0));
+        for (int t = 1; t < threads; t++) {
+            assertSame(compiled.get(0), compiled.get(t));
+        }
+        assertTrue(store.isCompiled("model1"));
+        assertFalse(store.isCompiled("model2"));
+        assertSame(store.getFeatureStore("store1").get("c1"), store.getModel("model2").getFeatures().get(0));
+
+        try {
+            store.getModel("broken");
+            fail("the model refers to a missing feature");
+        } catch (ModelException e) {
+            assertFalse(store.isCompiled("broken"));
+        }
+    }
+
+    @Test
+    public void testLazyModelsAreReused() {
+        putFeature("store1", "c1", 1);
+        putFeature("store2", "c1", 2);
+        putModel("model1", "store1", "c1");
+        putModel("model2", "store2", "c1");
+        final Map<String, Map<String, Settings>> previousFeatures = copy(features);
+        final Map<String, Settings> previousModels = new HashMap<>(models);
+        final ModelStore previous = LTRStoreService.buildModelStore(new ModelStore(),
+            new HashMap<String, Map<String, Settings>>(), new HashMap<String, Settings>(), features, models, true);
+        final LTRScoringModel model1 = previous.getModel("model1");
+
+        putFeature("store2", "c2", 3);
+        final ModelStore next = LTRStoreService.buildModelStore(previous, previousFeatures, previousModels, features,
+            models, true);
+        // compiled or not, the entries of unchanged models are kept
+        assertSame(model1, next.getModel("model1"));
+        assertSame(previous.modelEntry("model1"), next.modelEntry("model1"));
+        assertNotSame(previous.modelEntry("model2"), next.modelEntry("model2"));
+        assertEquals(2, next.getModel("model2").getAllFeatures().size());
+    }
+
+    @Test
+    public void testModelsCompiledAfterTheirStoreIsReleasedAreReleased() throws Exception {
+        putFeature("store1", "c1", 1);
+        // the resources of off heap models are reference counted
+        putOffHeapModel("model1", "store1", "c1");
+        putOffHeapModel("model2", "store1", "c1");
+        final ModelStore store = LTRStoreService.buildModelStore(new ModelStore(),
+            new HashMap<String, Map<String, Settings>>(), new HashMap<String, Settings>(), features, models, true,
+            null, OffHeapDirectory.open(createTempDir()));
+        final LTRScoringModel model1 = store.getModel("model1");
+
+        store.release(null);
+        assertFalse(model1.tryIncRef());
+        // compiled by a search that read the store before it was replaced
+        final LTRScoringModel model2 = store.getModel("model2");
+        assertNotNull(model2);
+        assertFalse(model2.tryIncRef());
+    }
+
+    @Test
+    public void testParallelCompilation() throws Exception {
+        putFeature("store1", "c1", 1);
+        putFeature("store2", "c1", 2);
+        for (int i = 0; i < 20; i++) {
+            putModel("model" + i, i % 2 == 0 ? "store1" : "store2", "c1");
+        }
+        final ThreadPoolExecutor executor = EsExecutors.newScaling("test", 0, 4, 1, TimeUnit.MINUTES,
+            EsExecutors.daemonThreadFactory(Settings.EMPTY, "test"));
+        try {
+            final ModelStore store = LTRStoreService.buildModelStore(new ModelStore(),
+                new HashMap<String, Map<String, Settings>>(), new HashMap<String, Settings>(), features, models,
+                false, executor, null);
+            for (int i = 0; i < 20; i++) {
+                final LTRScoringModel model = store.getModel("model" + i);
+                assertEquals("model" + i, model.getName());
+                assertSame(store.getFeatureStore(i % 2 == 0 ? "store1" : "store2").get("c1"),
+                    model.getFeatures().get(0));
+            }
+
+            // the failure reported is the one of the first broken model,
+            // as when compiling serially
+            putModel("broken1", "store1", "missing1");
+            putModel("broken2", "store2", "missing2");
+            putModel("broken3", "store1", "missing3");
+            final String expected = buildFailure(null);
+            assertNotNull(expected);
+            for (int i = 0; i < 10; i++) {
+                assertEquals(expected, buildFailure(executor));
+            }
+        } finally {
+            ThreadPool.terminate(executor, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    private String buildFailure(ThreadPoolExecutor executor) {
+        try {
+            LTRStoreService.buildModelStore(new ModelStore(), new HashMap<String, Map<String, Settings>>(),
+                new HashMap<String, Settings>(), features, models, false, executor, null);
+            return null;
+        } catch (ModelException e) {
+            return e.getMessage();
+        }
+    }
+
+    private void putFeature(String store, String name, int value) {
+        Map<String, Settings> fstore = features.get(store);
+        fstore = fstore == null ? new HashMap<String, Settings>() : new HashMap<>(fstore);
+        fstore.put(name, Settings.builder().put("class", ValueFeature.class).put("params.value", value).build());
+        features.put(store, fstore);
+    }
+
+    private void putModel(String name, String store, String feature) {
+        models.put(name, Settings.builder().put("class", LinearModel.class).put("store", store)
+            .put("features.0.name", feature).put("params.weights." + feature, 1d).build());
+    }
+
+    private void putOffHeapModel(String name, String store, String feature) {
+        models.put(name, Settings.builder().put("class", MultipleAdditiveTreesModel.class).put("store", store)
+            .put("features.0.name", feature).put("params.off_heap", true).put("params.trees.0.weight", 1f)
+            .put("params.trees.0.root.feature", feature).put("params.trees.0.root.threshold", 0.5f)
+            .put("params.trees.0.root.left.value", 0f).put("params.trees.0.root.right.value", 1f).build());
+    }
+
+    private static Map<String, Map<String, Settings>> copy(Map<String, Map<String, Settings>> features) {
+        final Map<String, Map<String, Settings>> copy = new HashMap<>();
+        for (final Map.Entry<String, Map<String, Settings>> entry : features.entrySet()) {
+            copy.put(entry.getKey(), new HashMap<>(entry.getValue()));
+        }
+        return copy;
+    }
+}
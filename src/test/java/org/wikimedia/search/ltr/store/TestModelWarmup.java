@@ -0,0 +1,81 @@
+package org.wikimedia.search.ltr.store;
+
+import java.util.Map;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.action.stats.LTRNodeStats;
+import org.wikimedia.search.ltr.action.stats.LTRStatsAction;
+import org.wikimedia.search.ltr.action.stats.LTRStatsRequest;
+import org.wikimedia.search.ltr.action.stats.LTRStatsResponse;
+import org.wikimedia.search.ltr.feature.FieldValueFeature;
+import org.wikimedia.search.ltr.model.LinearModel;
+import org.wikimedia.search.ltr.norm.MinMaxNormalizer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestModelWarmup extends TestRerankBase {
+
+    @Override
+    protected Settings nodeSettings(int nodeOrdinal) {
+        // lazy nodes only warm the models that are precompiled or in use
+        return Settings.builder().put(super.nodeSettings(nodeOrdinal))
+            .put(LTRStoreService.PRECOMPILE_SETTING, "popularity-model")
+            .put(LTRStoreService.WARMUP_ITERATIONS_SETTING, 100).build();
+    }
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+    }
+
+    @Test
+    public void testPrecompiledModelsAreWarmed() throws Exception {
+        loadModel("popularity-model", LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularity",
+                "norm", ImmutableMap.<String, Object>of("class", MinMaxNormalizer.class.getCanonicalName(),
+                    "params", ImmutableMap.<String, Object>of("min", 0, "max", 10)))),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("popularity", 1f)));
+
+        // models are compiled and warmed in the background
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                final LTRStatsResponse response = client().execute(LTRStatsAction.INSTANCE, new LTRStatsRequest())
+                    .actionGet();
+                assertEquals(cluster().size(), response.getNodes().length);
+                for (final LTRNodeStats node : response) {
+                    final StoreStats stats = node.getStoreStats();
+                    assertEquals(1, stats.getModels());
+                    assertEquals(1, stats.getCompiledModels());
+                    assertEquals(1, stats.getWarmedModels());
+                    assertEquals(1, stats.getLastWarmupModels());
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testSyntheticVectorsFollowTheNormalizers() throws Exception {
+        final LinearModel model = (LinearModel) modelStoreBuilder()
+            .addFeature("test", "a", Settings.builder().put("class", FieldValueFeature.class)
+                .put("params.field", "popularity").build())
+            .addFeature("test", "b", Settings.builder().put("class", FieldValueFeature.class)
+                .put("params.field", "popularity").build())
+            .addModel("model", Settings.builder().put("class", LinearModel.class).put("store", "test")
+                .put("features.0.name", "a").put("features.0.norm.class", MinMaxNormalizer.class)
+                .put("features.0.norm.params.min", 5).put("features.0.norm.params.max", 6)
+                .put("features.1.name", "b").put("params.weights.a", 1).put("params.weights.b", 1).build())
+            .modelStore.getModel("model");
+        for (int i = 0; i < 100; i++) {
+            final float[] vector = ModelWarmer.syntheticVector(model.getNorms(), random());
+            assertTrue(vector[0] >= 5 && vector[0] <= 6);
+            assertTrue(vector[1] >= 0 && vector[1] < 1);
+        }
+    }
+}
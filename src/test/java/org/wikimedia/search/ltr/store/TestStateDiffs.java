@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wikimedia.search.ltr.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.elasticsearch.cluster.ClusterState.Custom;
+import org.elasticsearch.cluster.Diff;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+
+public class TestStateDiffs extends LuceneTestCase {
+
+    @Test
+    public void testModelsDiffSizeIsProportionalToTheChange() throws IOException {
+        ModelsState.Builder builder = new ModelsState.Builder(null);
+        for (int i = 0; i < 40; i++) {
+            builder.putAll(Collections.singletonMap("model" + i, model(i, 200)));
+        }
+        final ModelsState before = builder.build();
+        final int fullSize = size(before);
+
+        // one model added
+        final Settings added = model(40, 200);
+        ModelsState after = new ModelsState.Builder(before).putAll(Collections.singletonMap("model40", added)).build();
+        assertDiffSize(before, after, size(added), fullSize);
+        assertModelsOrder(after, roundTrip(before, after));
+
+        // one model replaced
+        after = new ModelsState.Builder(before).putAll(Collections.singletonMap("model7", model(99, 200))).build();
+        assertDiffSize(before, after, size(added), fullSize);
+        assertModelsOrder(after, roundTrip(before, after));
+
+        // one model removed
+        after = new ModelsState.Builder(before).removeAll("model3").build();
+        assertTrue(diffSize(before, after) < 32);
+        assertModelsOrder(after, roundTrip(before, after));
+
+        // nothing changed
+        assertTrue(diffSize(before, before) < 8);
+        assertSame(before, roundTrip(before, before));
+    }
+
+    @Test
+    public void testFeaturesDiffSizeIsProportionalToTheChange() throws IOException {
+        FeaturesState.Builder builder = new FeaturesState.Builder(null);
+        for (int store = 0; store < 5; store++) {
+            for (int i = 0; i < 200; i++) {
+                builder.put("store" + store, "feature" + i, feature(i));
+            }
+        }
+        final FeaturesState before = builder.build();
+        final int fullSize = size(before);
+
+        final Settings added = feature(1000);
+        FeaturesState after = new FeaturesState.Builder(before).put("store2", "feature1000", added).build();
+        assertDiffSize(before, after, size(added), fullSize);
+        assertFeaturesOrder(after, roundTrip(before, after));
+
+        after = new FeaturesState.Builder(before).put("new_store", "feature0", added).build();
+        assertDiffSize(before, after, size(added), fullSize);
+        assertFeaturesOrder(after, roundTrip(before, after));
+
+        after = new FeaturesState.Builder(before).remove("store4", "feature12", "feature13").build();
+        assertTrue(diffSize(before, after) < 64);
+        assertFeaturesOrder(after, roundTrip(before, after));
+
+        assertTrue(diffSize(before, before) < 8);
+        assertSame(before, roundTrip(before, before));
+    }
+
+    private static void assertDiffSize(Custom before, Custom after, int entrySize, int fullSize) throws IOException {
+        final int diffSize = diffSize(before, after);
+        assertTrue("diff of " + diffSize + " bytes for an entry of " + entrySize + " bytes",
+            diffSize < entrySize + 64);
+        assertTrue(diffSize * 20 < fullSize);
+    }
+
+    private static void assertModelsOrder(ModelsState expected, Custom actual) {
+        assertEquals(expected, actual);
+        assertEquals(new ArrayList<>(expected.models().keySet()),
+            new ArrayList<>(((ModelsState) actual).models().keySet()));
+    }
+
+    private static void assertFeaturesOrder(FeaturesState expected, Custom actual) {
+        assertEquals(expected, actual);
+        final Map<String, Map<String, Settings>> actualFeatures = ((FeaturesState) actual).features();
+        assertEquals(new ArrayList<>(expected.features().keySet()), new ArrayList<>(actualFeatures.keySet()));
+        for (final Map.Entry<String, Map<String, Settings>> entry : expected.features().entrySet()) {
+            // feature indices follow the order of the store
+            assertEquals(new ArrayList<>(entry.getValue().keySet()),
+                new ArrayList<>(actualFeatures.get(entry.getKey()).keySet()));
+        }
+    }
+
+    private static Custom roundTrip(Custom before, Custom after) throws IOException {
+        final BytesStreamOutput out = new BytesStreamOutput();
+        after.diff(before).writeTo(out);
+        final StreamInput in = StreamInput.wrap(out.bytes());
+        final Diff<Custom> diff = before.readDiffFrom(in);
+        return diff.apply(before);
+    }
+
+    private static int diffSize(Custom before, Custom after) throws IOException {
+        return size(after.diff(before));
+    }
+
+    private static int size(Diff<?> diff) throws IOException {
+        final BytesStreamOutput out = new BytesStreamOutput();
+        diff.writeTo(out);
+        return out.bytes().length();
+    }
+
+    private static int size(Writeable<?> writeable) throws IOException {
+        final BytesStreamOutput out = new BytesStreamOutput();
+        writeable.writeTo(out);
+        return out.bytes().length();
+    }
+
+    private static int size(Settings settings) throws IOException {
+        final BytesStreamOutput out = new BytesStreamOutput();
+        Settings.writeSettingsToStream(settings, out);
+        return out.bytes().length();
+    }
+
+    private static Settings model(int seed, int weights) {
+        final Settings.Builder builder = Settings.builder().put("class", "LinearModel").put("store", "store");
+        for (int i = 0; i < weights; i++) {
+            builder.put("features." + i + ".name", "feature" + i);
+            builder.put("params.weights.feature" + i, seed + i / 1000d);
+        }
+        return builder.build();
+    }
+
+    private static Settings feature(int seed) {
+        return Settings.builder().put("class", "ValueFeature").put("params.value", seed).build();
+    }
+}
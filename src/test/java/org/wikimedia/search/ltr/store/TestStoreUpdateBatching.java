@@ -0,0 +1,149 @@
+package org.wikimedia.search.ltr.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateUpdateTask;
+import org.elasticsearch.cluster.service.PendingClusterTask;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.action.feature.put.PutFeaturesAction;
+import org.wikimedia.search.ltr.action.feature.put.PutFeaturesResponse;
+import org.wikimedia.search.ltr.action.model.put.PutModelsAction;
+import org.wikimedia.search.ltr.action.model.put.PutModelsResponse;
+import org.wikimedia.search.ltr.feature.FieldValueFeature;
+import org.wikimedia.search.ltr.feature.ValueFeature;
+import org.wikimedia.search.ltr.model.LinearModel;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestStoreUpdateBatching extends TestRerankBase {
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+    }
+
+    @Test
+    public void testConcurrentUpdatesAreAllAcknowledged() throws Exception {
+        final long version = clusterStateVersion();
+        final List<ListenableActionFuture<PutModelsResponse>> responses = new ArrayList<>();
+        final CountDownLatch release = blockClusterStateUpdates();
+        try {
+            for (int i = 0; i < 20; i++) {
+                responses.add(PutModelsAction.INSTANCE.newRequestBuilder(client())
+                    .models(ImmutableMap.<String, Map<String, Object>>of("model" + i, linearModel(i))).execute());
+            }
+            awaitPendingTasks("ltr-put-models", 20);
+        } finally {
+            release.countDown();
+        }
+        for (final ListenableActionFuture<PutModelsResponse> response : responses) {
+            assertTrue(response.get().isAcknowledged());
+        }
+        final ModelsState state = client().admin().cluster().prepareState().get().getState().custom(ModelsState.TYPE);
+        assertEquals(20, state.models().size());
+        assertTrue(clusterStateVersion() - version < 20);
+    }
+
+    @Test
+    public void testStaleUpdatesAreValidatedAgain() throws Exception {
+        final List<ListenableActionFuture<PutFeaturesResponse>> responses = new ArrayList<>();
+        final CountDownLatch release = blockClusterStateUpdates();
+        try {
+            for (int i = 0; i < 20; i++) {
+                // every update was validated against the features before the
+                // others, so all but the first of a batch are stale
+                final Map<String, Map<String, Object>> feature = ImmutableMap.<String, Map<String, Object>>of(
+                    "feature" + i, createFeatureMap(ValueFeature.class.getCanonicalName(),
+                        ImmutableMap.<String, Object>of("value", i)));
+                responses.add(PutFeaturesAction.INSTANCE.newRequestBuilder(client())
+                    .features(ImmutableMap.<String, Map<String, Map<String, Object>>>of("test", feature)).execute());
+            }
+            awaitPendingTasks("ltr-put-features", 20);
+        } finally {
+            release.countDown();
+        }
+        for (final ListenableActionFuture<PutFeaturesResponse> response : responses) {
+            assertTrue(response.get().isAcknowledged());
+        }
+        final FeaturesState state = client().admin().cluster().prepareState().get().getState()
+            .custom(FeaturesState.TYPE);
+        assertEquals(21, state.features().get("test").size());
+    }
+
+    @Test
+    public void testUnchangedModelsAreNotPublished() throws Exception {
+        loadModel("model", linearModel(1));
+        final long version = client().admin().cluster().prepareState().get().getState().version();
+
+        loadModel("model", linearModel(1));
+        assertEquals(version, client().admin().cluster().prepareState().get().getState().version());
+
+        loadModel("model", linearModel(2));
+        assertTrue(client().admin().cluster().prepareState().get().getState().version() > version);
+    }
+
+    private long clusterStateVersion() {
+        return client().admin().cluster().prepareState().get().getState().version();
+    }
+
+    /**
+     * Keeps the cluster state update thread of the master busy until the
+     * returned latch is released, so that the updates submitted meanwhile
+     * are queued.
+     */
+    private CountDownLatch blockClusterStateUpdates() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        masterClusterService().submitStateUpdateTask("block", new ClusterStateUpdateTask() {
+            @Override
+            public ClusterState execute(ClusterState currentState) throws Exception {
+                started.countDown();
+                release.await();
+                return currentState;
+            }
+
+            @Override
+            public void onFailure(String source, Throwable t) {
+                started.countDown();
+            }
+        });
+        started.await();
+        return release;
+    }
+
+    private void awaitPendingTasks(final String source, final int count) throws Exception {
+        assertBusy(new Runnable() {
+            @Override
+            public void run() {
+                int pending = 0;
+                for (final PendingClusterTask task : masterClusterService().pendingTasks()) {
+                    if (source.equals(task.getSource().string())) {
+                        pending++;
+                    }
+                }
+                assertEquals(count, pending);
+            }
+        });
+    }
+
+    private ClusterService masterClusterService() {
+        return internalCluster().getInstance(ClusterService.class, internalCluster().getMasterName());
+    }
+
+    private Map<String, Object> linearModel(float weight) {
+        return createModelMap(LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", "popularity")),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of("popularity", weight)));
+    }
+}
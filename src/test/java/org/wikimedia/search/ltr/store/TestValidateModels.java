@@ -0,0 +1,92 @@
+package org.wikimedia.search.ltr.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikimedia.search.ltr.TestRerankBase;
+import org.wikimedia.search.ltr.action.model.validate.ValidateModelsAction;
+import org.wikimedia.search.ltr.action.model.validate.ValidateModelsRequest;
+import org.wikimedia.search.ltr.action.model.validate.ValidateModelsResponse;
+import org.wikimedia.search.ltr.feature.FieldValueFeature;
+import org.wikimedia.search.ltr.model.LinearModel;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+
+public class TestValidateModels extends TestRerankBase {
+
+    @Before
+    public void setup() throws Exception {
+        setuptest("ltr-mapping.json");
+        loadFeatures("multipleadditivetreesmodel_features.json");
+        loadFeature("popularity", FieldValueFeature.class.getCanonicalName(),
+            ImmutableMap.<String, Object>of("field", "popularity"));
+    }
+
+    @Test
+    public void testTreesAreProfiled() throws Exception {
+        final String source = Resources.toString(Resources.getResource("modelExamples/multipleadditivetreesmodel.json"),
+            StandardCharsets.UTF_8);
+        final ValidateModelsResponse response = ValidateModelsAction.INSTANCE.newRequestBuilder(client())
+            .models(source).iterations(100).get();
+
+        assertTrue(response.failures().isEmpty());
+        final ModelProfile profile = response.profiles().get("multipleadditivetreesmodel");
+        assertEquals(2, profile.getFeatures());
+        // the second tree is a leaf and the other feature of the first one
+        // is not a feature of the model
+        assertEquals(Arrays.asList("matchedTitle"), profile.getReferencedFeatures());
+        assertEquals(2, profile.getTrees());
+        assertEquals(6, profile.getNodes());
+        assertEquals(0, profile.getMinDepth());
+        assertEquals(2, profile.getMaxDepth());
+        assertEquals(1d, profile.getAvgDepth(), 0d);
+        assertTrue(profile.getHeapSizeInBytes() > 0);
+        assertEquals(0, profile.getOffHeapSizeInBytes());
+        assertEquals(100, profile.getScoringIterations());
+        assertTrue(profile.getNanosPerDoc() > 0);
+    }
+
+    @Test
+    public void testModelsAreNotStored() throws Exception {
+        final ValidateModelsResponse response = ValidateModelsAction.INSTANCE.newRequestBuilder(client())
+            .models(ImmutableMap.<String, Map<String, Object>>of(
+                "linear", linearModel("popularity", 0f), "unknown", linearModel("missing", 1f)))
+            .iterations(0).get();
+
+        final ModelProfile profile = response.profiles().get("linear");
+        assertEquals("test", profile.getFeatureStore());
+        assertEquals(-1, profile.getTrees());
+        assertEquals(0, profile.getScoringIterations());
+        // a weight of 0 ignores the feature
+        assertTrue(profile.getReferencedFeatures().isEmpty());
+        assertEquals(1, response.failures().size());
+        assertTrue(response.failures().get("unknown"), response.failures().get("unknown").contains("unknown feature"));
+
+        final ModelsState state = client().admin().cluster().prepareState().get().getState().custom(ModelsState.TYPE);
+        assertTrue(state == null || state.models().isEmpty());
+    }
+
+    @Test
+    public void testTooManyIterationsAreRejected() throws Exception {
+        try {
+            ValidateModelsAction.INSTANCE.newRequestBuilder(client())
+                .models(ImmutableMap.<String, Map<String, Object>>of("linear", linearModel("popularity", 1f)))
+                .iterations(ValidateModelsRequest.MAX_ITERATIONS + 1).get();
+            fail("expected a validation exception");
+        } catch (ActionRequestValidationException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("iterations"));
+        }
+    }
+
+    private Map<String, Object> linearModel(String feature, float weight) {
+        return createModelMap(LinearModel.class.getCanonicalName(),
+            ImmutableList.<Map<String, Object>>of(ImmutableMap.<String, Object>of("name", feature)),
+            ImmutableMap.<String, Object>of("weights", ImmutableMap.<String, Object>of(feature, weight)));
+    }
+}